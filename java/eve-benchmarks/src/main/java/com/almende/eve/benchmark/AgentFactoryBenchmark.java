@@ -0,0 +1,70 @@
+package com.almende.eve.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.config.Config;
+
+/**
+ * Loading an agent via AgentFactory.getAgent. A cold load reads the context
+ * and instantiates the agent, a warm load finds the agent in the agent 
+ * cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentFactoryBenchmark {
+	@Setup
+	public void setup() throws Exception {
+		factory = createFactory();
+		factory.createAgent(BenchmarkAgent.class, "cold");
+		factory.createAgent(CachedBenchmarkAgent.class, "warm");
+	}
+
+	@Benchmark
+	public Agent getAgentCold() throws Exception {
+		return factory.getAgent("cold");
+	}
+
+	@Benchmark
+	public Agent getAgentWarm() throws Exception {
+		return factory.getAgent("warm");
+	}
+
+	/**
+	 * Create an AgentFactory with an in-memory context and an agent cache
+	 * @return factory
+	 */
+	static AgentFactory createFactory() throws Exception {
+		String yaml = 
+				"context:\n" +
+				"  class: MemoryContextFactory\n" +
+				"scheduler:\n" +
+				"  class: com.almende.eve.scheduler.RunnableSchedulerFactory\n" +
+				"AgentCache:\n" +
+				"  maxSize: 1000\n" +
+				"metrics:\n" +
+				"  jmx: false\n";
+		Config config = new Config(new ByteArrayInputStream(
+				yaml.getBytes("UTF-8")));
+		return new AgentFactory(config);
+	}
+
+	private AgentFactory factory;
+}
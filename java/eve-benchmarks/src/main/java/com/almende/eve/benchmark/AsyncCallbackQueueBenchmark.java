@@ -0,0 +1,76 @@
+package com.almende.eve.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncCallbackQueue;
+
+/**
+ * Pushing a callback on the AsyncCallbackQueue and pulling it again, as 
+ * done for every asynchronous request, single threaded and contended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncCallbackQueueBenchmark {
+	@Setup
+	public void setup() {
+		queue = new AsyncCallbackQueue<JSONResponse>();
+		callback = new AsyncCallback<JSONResponse>() {
+			@Override
+			public void onSuccess(JSONResponse result) {}
+
+			@Override
+			public void onFailure(Exception exception) {}
+		};
+	}
+
+	@Benchmark
+	public AsyncCallback<JSONResponse> pushPull(Ids ids) throws Exception {
+		return pushPull(ids.next());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public AsyncCallback<JSONResponse> pushPullContended(Ids ids) 
+			throws Exception {
+		return pushPull(ids.next());
+	}
+
+	private AsyncCallback<JSONResponse> pushPull(String id) throws Exception {
+		queue.push(id, callback);
+		return queue.pull(id);
+	}
+
+	/**
+	 * Request ids, unique per thread
+	 */
+	@State(Scope.Thread)
+	public static class Ids {
+		String next() {
+			return prefix + (counter++);
+		}
+
+		private final String prefix = Thread.currentThread().getId() + ":";
+		private long counter = 0;
+	}
+
+	private AsyncCallbackQueue<JSONResponse> queue;
+	private AsyncCallback<JSONResponse> callback;
+}
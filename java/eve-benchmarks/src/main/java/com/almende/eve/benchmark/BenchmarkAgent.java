@@ -0,0 +1,38 @@
+package com.almende.eve.benchmark;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.agent.annotation.Required;
+import com.almende.eve.entity.Person;
+
+/**
+ * Agent invoked by the benchmarks. It is not thread safe, so the 
+ * AgentFactory instantiates it for every request.
+ */
+public class BenchmarkAgent extends Agent {
+	public Double add(@Name("a") Double a, @Name("b") Double b) {
+		return a + b;
+	}
+
+	public String ping() {
+		return "pong";
+	}
+
+	public Person echo(@Name("person") Person person, 
+			@Required(false) @Name("name") String name) {
+		if (name != null) {
+			person.setName(name);
+		}
+		return person;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Agent invoked by the benchmarks";
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+}
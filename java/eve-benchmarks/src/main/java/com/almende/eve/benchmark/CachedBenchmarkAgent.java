@@ -0,0 +1,11 @@
+package com.almende.eve.benchmark;
+
+import com.almende.eve.agent.annotation.ThreadSafe;
+
+/**
+ * Thread safe variant of the BenchmarkAgent, which is kept in the agent
+ * cache of the AgentFactory.
+ */
+@ThreadSafe(true)
+public class CachedBenchmarkAgent extends BenchmarkAgent {
+}
@@ -0,0 +1,104 @@
+package com.almende.eve.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.context.ConcurrentFileContext;
+import com.almende.eve.context.Context;
+import com.almende.eve.context.ContextFactory;
+import com.almende.eve.context.FileContextFactory;
+import com.almende.eve.context.MemoryContextFactory;
+
+/**
+ * Reading and writing a value in the context of an agent, for each type of
+ * context, with a given number of entries already stored in the context.
+ * 
+ * Types:
+ *     memory       MemoryContextFactory
+ *     file         FileContextFactory
+ *     concurrent   ConcurrentFileContext (which has no factory of its own)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmark {
+	@Param({"memory", "file", "concurrent"})
+	public String type;
+
+	@Param({"10", "100", "1000"})
+	public int entries;
+
+	@Setup
+	public void setup() throws Exception {
+		AgentFactory agentFactory = new AgentFactory();
+		dir = File.createTempFile("eve", ".benchmark");
+		dir.delete();
+		dir.mkdir();
+
+		if (type.equals("memory")) {
+			ContextFactory contextFactory = new MemoryContextFactory(agentFactory);
+			context = contextFactory.create(AGENT_ID);
+		}
+		else if (type.equals("file")) {
+			ContextFactory contextFactory = 
+					new FileContextFactory(agentFactory, dir.getPath());
+			context = contextFactory.create(AGENT_ID);
+		}
+		else if (type.equals("concurrent")) {
+			File file = new File(dir, AGENT_ID);
+			context = new ConcurrentFileContext(AGENT_ID, file.getPath());
+		}
+		else {
+			throw new IllegalArgumentException("Unknown context type " + type);
+		}
+		context.init();
+
+		context.clear();
+		for (int i = 0; i < entries; i++) {
+			context.put("key" + i, "value" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.destroy();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public Object get() {
+		return context.get("key0");
+	}
+
+	@Benchmark
+	public Object put() {
+		return context.put("key0", "value" + (count++));
+	}
+
+	private static final String AGENT_ID = "benchmark";
+
+	private File dir;
+	private Context context;
+	private long count = 0;
+}
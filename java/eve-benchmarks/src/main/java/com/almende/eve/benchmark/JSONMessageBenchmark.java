@@ -0,0 +1,80 @@
+package com.almende.eve.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Parsing and serializing JSON-RPC requests and responses, with a payload
+ * of a given number of fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONMessageBenchmark {
+	@Param({"1", "10", "100"})
+	public int fields;
+
+	@Setup
+	public void setup() throws Exception {
+		ObjectNode params = JOM.createObjectNode();
+		ArrayNode result = JOM.createArrayNode();
+		for (int i = 0; i < fields; i++) {
+			params.put("field" + i, "value" + i);
+			ObjectNode item = JOM.createObjectNode();
+			item.put("id", i);
+			item.put("name", "item" + i);
+			result.add(item);
+		}
+
+		request = new JSONRequest("request", params);
+		request.setId(1);
+		requestString = request.toString();
+		response = new JSONResponse(1, result);
+		responseString = response.toString();
+	}
+
+	@Benchmark
+	public JSONRequest parseRequest() throws Exception {
+		return new JSONRequest(requestString);
+	}
+
+	@Benchmark
+	public String serializeRequest() {
+		return request.toString();
+	}
+
+	@Benchmark
+	public JSONResponse parseResponse() throws Exception {
+		return new JSONResponse(responseString);
+	}
+
+	@Benchmark
+	public String serializeResponse() {
+		return response.toString();
+	}
+
+	private JSONRequest request;
+	private String requestString;
+	private JSONResponse response;
+	private String responseString;
+}
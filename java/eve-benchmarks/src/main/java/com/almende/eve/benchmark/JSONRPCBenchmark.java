@@ -0,0 +1,89 @@
+package com.almende.eve.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+
+/**
+ * Dispatch of a JSON-RPC request to a method of an agent: finding the
+ * method, binding the parameters, invoking it and creating the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONRPCBenchmark {
+	@Setup
+	public void setup() throws Exception {
+		agent = new BenchmarkAgent();
+		requestParams = new RequestParams();
+		requestParams.put(Sender.class, null);
+
+		ping = new JSONRequest("{\"jsonrpc\":\"2.0\",\"id\":1," +
+				"\"method\":\"ping\",\"params\":{}}");
+		add = new JSONRequest("{\"jsonrpc\":\"2.0\",\"id\":2," +
+				"\"method\":\"add\",\"params\":{\"a\":1.5,\"b\":2.5}}");
+		echo = new JSONRequest(ECHO);
+	}
+
+	/**
+	 * A method without parameters: dispatch only
+	 */
+	@Benchmark
+	public JSONResponse invokeNoParams() {
+		return JSONRPC.invoke(agent, ping, requestParams);
+	}
+
+	/**
+	 * A method with primitive parameters
+	 */
+	@Benchmark
+	public JSONResponse invokePrimitiveParams() {
+		return JSONRPC.invoke(agent, add, requestParams);
+	}
+
+	/**
+	 * A method with an object parameter and an optional parameter
+	 */
+	@Benchmark
+	public JSONResponse invokeObjectParams() {
+		return JSONRPC.invoke(agent, echo, requestParams);
+	}
+
+	/**
+	 * A request as string, including parsing the request and serializing
+	 * the response
+	 */
+	@Benchmark
+	public String invokeString() throws Exception {
+		return JSONRPC.invoke(agent, ECHO, requestParams);
+	}
+
+	private static final String ECHO = "{\"jsonrpc\":\"2.0\",\"id\":3," +
+			"\"method\":\"echo\",\"params\":{\"person\":{\"name\":\"Jos\"," +
+			"\"firstName\":\"Jos\",\"lastName\":\"de Jong\"," +
+			"\"marks\":[7.5,8.0,6.5]}}}";
+
+	private BenchmarkAgent agent;
+	private RequestParams requestParams;
+	private JSONRequest ping;
+	private JSONRequest add;
+	private JSONRequest echo;
+}
@@ -0,0 +1,122 @@
+package com.almende.eve.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.entity.Weight;
+import com.almende.util.IntervalSet;
+import com.almende.util.IntervalsUtil;
+import com.almende.util.WeightProfile;
+import com.almende.util.WeightsUtil;
+
+/**
+ * Merging a given number of partly overlapping intervals and weights, 
+ * as done when planning meetings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanningBenchmark {
+	@Param({"10", "100", "1000", "5000"})
+	public int size;
+
+	@Setup
+	public void setup() {
+		// a fixed seed, so every run merges the same intervals
+		Random random = new Random(42);
+		DateTime start = new DateTime(2013, 1, 1, 0, 0, 0, 0);
+		intervals = new ArrayList<Interval>(size);
+		weights = new ArrayList<Weight>(size);
+		for (int i = 0; i < size; i++) {
+			// intervals of 15 to 120 minutes within a range of size hours
+			DateTime intervalStart = start.plusMinutes(random.nextInt(size * 60));
+			DateTime intervalEnd = intervalStart.plusMinutes(
+					15 + random.nextInt(106));
+			Interval interval = new Interval(intervalStart, intervalEnd);
+			intervals.add(interval);
+			weights.add(new Weight(interval, random.nextDouble()));
+		}
+		intervalSet = IntervalSet.fromIntervals(intervals);
+
+		// candidate meetings of an hour, as checked against the busy intervals
+		probes = new Interval[PROBES];
+		for (int i = 0; i < PROBES; i++) {
+			DateTime probeStart = start.plusMinutes(random.nextInt(size * 60));
+			probes[i] = new Interval(probeStart, probeStart.plusHours(1));
+		}
+	}
+
+	@Benchmark
+	public List<Interval> mergeIntervals() {
+		return IntervalsUtil.merge(intervals);
+	}
+
+	@Benchmark
+	public IntervalSet mergeIntervalSet() {
+		return IntervalSet.fromIntervals(intervals);
+	}
+
+	@Benchmark
+	public IntervalSet inverseIntervalSet() {
+		return intervalSet.inverse(intervalSet.getStart(0),
+				intervalSet.getEnd(intervalSet.size() - 1));
+	}
+
+	@Benchmark
+	public int overlapsList() {
+		int count = 0;
+		for (Interval probe : probes) {
+			if (IntervalsUtil.overlaps(probe, intervals)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int overlapsIntervalSet() {
+		int count = 0;
+		for (Interval probe : probes) {
+			if (intervalSet.overlaps(probe)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public List<Weight> mergeWeights() {
+		return WeightsUtil.merge(weights);
+	}
+
+	@Benchmark
+	public WeightProfile mergeWeightProfile() {
+		return WeightProfile.fromWeights(weights);
+	}
+
+	private List<Interval> intervals;
+	private List<Weight> weights;
+	private IntervalSet intervalSet;
+	private Interval[] probes;
+
+	private static final int PROBES = 100;
+}
@@ -0,0 +1,56 @@
+package com.almende.eve.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.scheduler.Scheduler;
+
+/**
+ * Creating and cancelling a task with the RunnableSchedulerFactory, 
+ * including persisting the task in the context of the scheduler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+	@Setup
+	public void setup() {
+		AgentFactory agentFactory = new AgentFactory();
+		agentFactory.setContextFactory(new MemoryContextFactory(agentFactory));
+		RunnableSchedulerFactory schedulerFactory = 
+				new RunnableSchedulerFactory(agentFactory, ".benchmarkscheduler");
+		agentFactory.setSchedulerFactory(schedulerFactory);
+		scheduler = schedulerFactory.getScheduler("benchmark");
+	}
+
+	@Benchmark
+	public String createAndCancelTask() {
+		JSONRequest request = new JSONRequest("ping", JOM.createObjectNode());
+		String taskId = scheduler.createTask(request, DELAY);
+		scheduler.cancelTask(taskId);
+		return taskId;
+	}
+
+	// long enough that the task never fires during the benchmark
+	private static final long DELAY = 3600000;
+
+	private Scheduler scheduler;
+}
@@ -0,0 +1,52 @@
+package com.almende.eve.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.agent.example.TestAgentInterface;
+
+/**
+ * A synchronous call to an agent via an agent proxy, by default via the
+ * in-memory local transport.
+ *
+ * To compare with HTTP loopback, start the test webapp of eve-core first
+ * (mvn jetty:run), and pass the url of a TestAgent hosted there:
+ *     -Djmh.args="-p url=http://localhost:8080/agents/test/ TransportBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+	@Setup
+	public void setup() throws Exception {
+		AgentFactory factory = AgentFactoryBenchmark.createFactory();
+		factory.createAgent(TestAgent.class, "benchmark");
+		agent = factory.createAgentProxy(null, url, TestAgentInterface.class);
+	}
+
+	@Benchmark
+	public Double call() {
+		return agent.add(1.0, 2.0);
+	}
+
+	@Param({"local://benchmark"})
+	public String url;
+
+	private TestAgentInterface agent;
+}
@@ -28,16 +28,19 @@
 package com.almende.eve.agent;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import com.almende.eve.agent.annotation.Access;
 import com.almende.eve.agent.annotation.AccessType;
 import com.almende.eve.agent.annotation.Name;
 import com.almende.eve.agent.annotation.Required;
+import com.almende.eve.agent.event.SubscriptionIndex;
 import com.almende.eve.context.Context;
 import com.almende.eve.entity.Callback;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
@@ -55,6 +58,8 @@ abstract public class Agent implements AgentInterface {
 	private AgentFactory agentFactory = null;
 	private Context context = null;
 	private Scheduler scheduler = null;
+	private SubscriptionIndex subscriptionIndex = null;
+	private String subscriptionsVersion = null;
 	
 	public abstract String getDescription();
 	public abstract String getVersion();
@@ -182,45 +187,66 @@ abstract public class Agent implements AgentInterface {
 	}
 
 	/**
-	 * Retrieve the list with subscriptions on given event.
-	 * If there are no subscriptions for this event, an empty list is returned
-	 * @param event
-	 * @return
+	 * Get the index with the subscriptions on the events of this agent.
+	 * The index is built from the subscriptions stored in the context, and
+	 * kept in memory as long as the stored subscriptions are not changed.
+	 * @return subscriptionIndex
 	 */
 	@SuppressWarnings("unchecked")
-	private List<Callback> getSubscriptions(String event) {
-		Map<String, List<Callback> > allSubscriptions = 
-			(Map<String, List<Callback> >) context.get("subscriptions");
-		if (allSubscriptions != null) {
-			List<Callback> eventSubscriptions = allSubscriptions.get(event);
-			if (eventSubscriptions != null) {
-				return eventSubscriptions;
+	private synchronized SubscriptionIndex getSubscriptionIndex() {
+		String version = (String) context.get("subscriptionsVersion");
+		if (subscriptionIndex == null || version == null || 
+				!version.equals(subscriptionsVersion)) {
+			Map<String, List<Callback> > allSubscriptions = 
+				(Map<String, List<Callback> >) context.get("subscriptions");
+			subscriptionIndex = new SubscriptionIndex(allSubscriptions);
+			if (version == null) {
+				// context stored before the subscriptions were versioned
+				version = UUID.randomUUID().toString();
+				context.put("subscriptionsVersion", version);
 			}
+			subscriptionsVersion = version;
 		}
-		
-		return new ArrayList<Callback>();
+		return subscriptionIndex;
 	}
 	
 	/**
-	 * Store a list with subscriptions for an event
-	 * @param event
-	 * @param subscriptions
+	 * Store the subscriptions of the given events from the subscription index
+	 * into the context. Events without subscriptions are removed.
+	 * The context only supports whole-value puts, so the complete map with
+	 * subscriptions is written again.
+	 * @param events
 	 */
 	@SuppressWarnings("unchecked")
-	private void putSubscriptions(String event, List<Callback> subscriptions) {
+	private synchronized void putSubscriptions(Collection<String> events) {
 		Map<String, List<Callback> > allSubscriptions = 
 			(Map<String, List<Callback> >) context.get("subscriptions");
 		if (allSubscriptions == null) {
 			allSubscriptions = new HashMap<String, List<Callback>> ();
 		}
-		allSubscriptions.put(event, subscriptions);
-		context.put("subscriptions", allSubscriptions);
+		for (String event : events) {
+			List<Callback> subscriptions = subscriptionIndex.get(event);
+			if (subscriptions.isEmpty()) {
+				allSubscriptions.remove(event);
+			}
+			else {
+				allSubscriptions.put(event, subscriptions);
+			}
+		}
+		
+		subscriptionsVersion = UUID.randomUUID().toString();
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("subscriptions", allSubscriptions);
+		properties.put("subscriptionsVersion", subscriptionsVersion);
+		context.putAll(properties);
 	}
 	
 	/**
 	 * Let an other agent subscribe to one of this agents events
 	 * When the event is triggered, a callback will be send to the provided
 	 * callbackUrl.
+	 * The event can be a pattern ending with "*", for example "calendar.*",
+	 * to subscribe to all events starting with "calendar.".
 	 * @param event
 	 * @param callbackUrl
 	 * @param callbackMethod
@@ -230,27 +256,24 @@ abstract public class Agent implements AgentInterface {
 			@Name("event") String event, 
 			@Name("callbackUrl") String callbackUrl, 
 			@Name("callbackMethod") String callbackMethod) {
-		List<Callback> subscriptions = getSubscriptions(event);
-		for (Callback subscription : subscriptions) {
-			if (subscription.url == null || subscription.method == null){
-				continue;
-			}
-			if (subscription.url.equals(callbackUrl) && 
-					subscription.method.equals(callbackMethod)) {
+		synchronized (this) {
+			SubscriptionIndex index = getSubscriptionIndex();
+			Callback subscription = index.find(event, callbackUrl, callbackMethod);
+			if (subscription != null) {
 				// The callback already exists. do not duplicate it
 				return subscription.id;
 			}
+			
+			// the callback does not yet exist. create it and store it
+			String subscriptionId = UUID.randomUUID().toString();
+			Callback callback = new Callback(subscriptionId, callbackUrl, callbackMethod);
+			index.add(event, callback);
+			
+			// store the subscriptions
+			putSubscriptions(Arrays.asList(event));
+			
+			return subscriptionId;
 		}
-		
-		// the callback does not yet exist. create it and store it
-		String subscriptionId = UUID.randomUUID().toString();
-		Callback callback = new Callback(subscriptionId, callbackUrl, callbackMethod);
-		subscriptions.add(callback);
-		
-		// store the subscriptions
-		putSubscriptions(event, subscriptions);
-		
-		return subscriptionId;
 	}
 	
 	/**
@@ -271,46 +294,16 @@ abstract public class Agent implements AgentInterface {
 			@Required(false) @Name("event") String event, 
 			@Required(false) @Name("callbackUrl") String callbackUrl,
 			@Required(false) @Name("callbackMethod") String callbackMethod) {
-		@SuppressWarnings("unchecked")
-		Map<String, List<Callback> > allSubscriptions = 
-				(Map<String, List<Callback> >) context.get("subscriptions");
-		if (allSubscriptions == null) {
-			return;
-		}
-		
-		for (Entry<String, List<Callback>> entry : allSubscriptions.entrySet()) {
-			String subscriptionEvent = entry.getKey();
-			List<Callback> subscriptions = entry.getValue();
-			if (subscriptions != null) {
-				int i = 0;
-				while (i < subscriptions.size()) {
-					Callback subscription = subscriptions.get(i);
-					boolean matched = false;
-					if (subscriptionId != null && subscriptionId.equals(subscription.id)) {
-						// callback with given subscriptionId is found
-						matched = true;
-					}
-					else if (callbackUrl != null && callbackUrl.equals(subscription.url)){
-						if ((callbackMethod == null || callbackMethod.equals(subscription.method)) &&
-								(event == null || event.equals(subscriptionEvent))) {
-							// callback with matching properties is found
-							matched = true;
-						}
-					}
-					
-					if (matched) {
-						subscriptions.remove(i);
-					}
-					else {
-						i++;
-					}
-				}
+		synchronized (this) {
+			SubscriptionIndex index = getSubscriptionIndex();
+			Set<String> events = index.remove(subscriptionId, event, 
+					callbackUrl, callbackMethod);
+			
+			// store context again
+			if (!events.isEmpty()) {
+				putSubscriptions(events);
 			}
-			// TODO: cleanup event list when empty
 		}
-		
-		// store context again
-		context.put("subscriptions", allSubscriptions);
 	}
 	
 	/**
@@ -392,24 +385,18 @@ abstract public class Agent implements AgentInterface {
 			@Name("params") Object params) throws Exception {
 		// TODO: user first url is very dangerous! can cause a mismatch
 		String url = getFirstUrl();
-		List<Callback> subscriptions = new ArrayList<Callback>();
 
-		if (event.equals("*")) {
-			throw new Exception("Cannot trigger * event");
+		if (SubscriptionIndex.isPattern(event)) {
+			throw new Exception("Cannot trigger pattern '" + event + "'");
 		}
 
 		// send a trigger to the agent factory
 		getAgentFactory().getEventLogger().log(getId(), event, params);
 		
-		// retrieve subscriptions from the event
-		List<Callback> valueEvent = getSubscriptions(event);
-		subscriptions.addAll(valueEvent);
-		
-		// retrieve subscriptions from the all event "*"
-		List<Callback> valueAll = getSubscriptions("*");
-		subscriptions.addAll(valueAll);
+		// retrieve subscriptions on the event and on matching patterns,
+		// like "*" or "calendar.*" for the event "calendar.updated"
+		List<Callback> subscriptions = getSubscriptionIndex().match(event);
 		
-		// TODO: smartly remove double entries?
 		ObjectNode callbackParams = JOM.createObjectNode();
 		callbackParams.put("agent", url);
 		callbackParams.put("event", event);
@@ -571,6 +558,30 @@ abstract public class Agent implements AgentInterface {
 		JSONRequest request = new JSONRequest(id, method, params);
 		sendAsync(url, request, callback, type);
 	}
+
+	/**
+	 * Send an asynchronous JSON-RPC request to an agent, with a custom timeout
+	 * sendAsync is not supported on Google App Engine
+	 * @param url             The url of the agent to be called
+	 * @param method          The name of the method
+	 * @param params          A JSONObject containing the parameter 
+	 *                         values of the method
+	 * @param callback        An AsyncCallback of which the onSuccess or
+	 *                         onFailure method will be executed on callback.
+	 *                         onFailure receives a TimeoutException when no
+	 *                         response is received within the timeout.
+	 * @param type            The type of result coming from the callback.
+	 * @param timeout         Timeout in milliseconds
+	 * @throws Exception 
+	 */
+	@Access(AccessType.UNAVAILABLE)
+	final public <T> void sendAsync(String url, String method, ObjectNode params,
+			final AsyncCallback<T> callback, final Class<T> type, long timeout) 
+			throws Exception {
+		String id = UUID.randomUUID().toString();
+		JSONRequest request = new JSONRequest(id, method, params);
+		sendAsync(url, request, callback, type, timeout);
+	}
 	
 	/**
 	 * Send an asynchronous JSON-RPC request to an agent
@@ -586,6 +597,42 @@ abstract public class Agent implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	final public <T> void sendAsync(final String url, final JSONRequest request,
 			final AsyncCallback<T> callback, final Class<T> type) throws Exception {
+		sendAsync(url, request, callback, type, null);
+	}
+
+	/**
+	 * Send an asynchronous JSON-RPC request to an agent, with a custom timeout
+	 * sendAsync is not supported on Google App Engine
+	 * @param url             The url of the agent to be called
+	 * @param request         JSON-RPC request containing method and params
+	 * @param callback        An AsyncCallback of which the onSuccess or
+	 *                         onFailure method will be executed on callback.
+	 *                         onFailure receives a TimeoutException when no
+	 *                         response is received within the timeout.
+	 * @param type            The type of result coming from the callback.
+	 * @param timeout         Timeout in milliseconds
+	 * @throws Exception 
+	 */
+	@Access(AccessType.UNAVAILABLE)
+	final public <T> void sendAsync(final String url, final JSONRequest request,
+			final AsyncCallback<T> callback, final Class<T> type, long timeout) 
+			throws Exception {
+		sendAsync(url, request, callback, type, Long.valueOf(timeout));
+	}
+
+	/**
+	 * Send an asynchronous JSON-RPC request to an agent
+	 * @param url
+	 * @param request
+	 * @param callback
+	 * @param type
+	 * @param timeout   Timeout in milliseconds, or null to use the default
+	 *                  timeout of the transport service
+	 * @throws Exception
+	 */
+	private <T> void sendAsync(final String url, final JSONRequest request,
+			final AsyncCallback<T> callback, final Class<T> type, 
+			Long timeout) throws Exception {
 
 		// Create a callback to retrieve a JSONResponse and extract the result
 		// or error from this.
@@ -616,7 +663,13 @@ abstract public class Agent implements AgentInterface {
 			}
 		};
 		
-		getAgentFactory().sendAsync(getId(), url, request, responseCallback);
+		if (timeout != null) {
+			getAgentFactory().sendAsync(getId(), url, request, responseCallback, 
+					timeout);
+		}
+		else {
+			getAgentFactory().sendAsync(getId(), url, request, responseCallback);
+		}
 	}
 
 	/**
@@ -2,8 +2,10 @@ package com.almende.eve.agent;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.almende.eve.config.Config;
 
@@ -12,6 +14,9 @@ public class AgentCache {
 	ArrayList<MetaInfo> scores;
 	
 	int maxSize = 100;
+	AtomicLong hits = new AtomicLong(0);
+	AtomicLong misses = new AtomicLong(0);
+	AtomicLong evictions = new AtomicLong(0);
 	
 	public AgentCache(){
 		cache = new ConcurrentHashMap<String, MetaInfo>(maxSize);
@@ -30,8 +35,10 @@ public class AgentCache {
 		if (result != null){
 			result.use();
 			//System.err.println("Got:"+result.agent.getId());
+			hits.incrementAndGet();
 			return result.agent;
 		}
+		misses.incrementAndGet();
 		return null;
 	}
 	
@@ -59,9 +66,25 @@ public class AgentCache {
 			for (MetaInfo entry: toEvict){
 				cache.remove(entry.agent.getId());
 			}
+			evictions.addAndGet(amount);
 			//System.err.println("Evicted:"+amount+" records");
 		}
 	}
+	
+	/**
+	 * Get the number of cached agents, the maximum size, and the number of
+	 * hits, misses and evictions
+	 * @return stats
+	 */
+	public Map<String, Object> getStats(){
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("size", cache.size());
+		stats.put("max_size", maxSize);
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		return stats;
+	}
 }
 class MetaInfo implements Comparable<MetaInfo> {
 	Agent agent;
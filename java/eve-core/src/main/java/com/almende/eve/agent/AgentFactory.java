@@ -1,5 +1,6 @@
 package com.almende.eve.agent;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
@@ -9,26 +10,53 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import com.almende.eve.agent.annotation.Sender;
 import com.almende.eve.agent.annotation.ThreadSafe;
 import com.almende.eve.agent.log.EventLogger;
+import com.almende.eve.capture.TrafficRecorder;
 import com.almende.eve.config.Config;
 import com.almende.eve.context.Context;
 import com.almende.eve.context.ContextFactory;
+import com.almende.eve.context.log.AsyncRequestLogger;
+import com.almende.eve.context.log.RequestLogger;
+import com.almende.eve.metrics.Gauge;
+import com.almende.eve.metrics.InvocationMetrics;
+import com.almende.eve.metrics.MethodMetrics;
+import com.almende.eve.metrics.MetricsRegistry;
+import com.almende.eve.probe.Probe;
+import com.almende.eve.probe.Probes;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.jsonrpc.JSONRPC;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.RequestTemplate;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
+import com.almende.eve.trace.FileSpanExporter;
+import com.almende.eve.trace.MemorySpanExporter;
+import com.almende.eve.trace.Span;
+import com.almende.eve.trace.SpanExporter;
+import com.almende.eve.trace.Tracer;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncCallbackQueue;
+import com.almende.eve.transport.RoutingTable;
 import com.almende.eve.transport.TransportService;
 import com.almende.eve.transport.http.HttpService;
+import com.almende.eve.transport.http.RequestCoalescer;
+import com.almende.eve.transport.local.LocalService;
+import com.almende.eve.transport.xmpp.XmppService;
 import com.almende.util.ClassUtil;
 
 /**
@@ -74,8 +102,11 @@ import com.almende.util.ClassUtil;
  */
 public class AgentFactory {
 	public AgentFactory () {
+		initMetrics();
 		addTransportService(new HttpService(this));
+		addTransportService(new LocalService(this));
 		agents = new AgentCache();
+		eventLogger = new EventLogger(this);
 	}
 	
 	/**
@@ -85,22 +116,32 @@ public class AgentFactory {
 	 */
 	public AgentFactory(Config config) throws Exception {
 		this.config = config;
+		eventLogger = new EventLogger(this);
+		initMetrics();
 
 		if (config != null) {
 			// important to initialize in the correct order: cache first, 
 			// then the context and transport services, and lastly scheduler.
 			agents = new AgentCache(config);
 			
+			initCallbacks(config);
 			initContextFactory(config);
 			initTransportServices(config);
 			initSchedulerFactory(config);
 			initBootstrap(config);
+			initRequestCoalescer(config);
+			initRequestLogger(config);
+			initTracer(config);
+			initTrafficRecorder(config);
 		}
 		else {
 			agents = new AgentCache();
 		}
 
 		addTransportService(new HttpService(this));
+		if (getTransportServices("local").isEmpty()) {
+			addTransportService(new LocalService(this));
+		}
 	}
 	
 	/**
@@ -178,6 +219,19 @@ public class AgentFactory {
 		AgentFactory factory = new AgentFactory(config);
 		factories.put(namespace, factory);
 		
+		// expose the metrics via JMX, unless disabled via metrics.jmx: false
+		Boolean jmx = (config != null) ? 
+				(Boolean) config.get("metrics", "jmx") : null;
+		if (jmx == null || jmx) {
+			try {
+				factory.getMetricsRegistry().registerMBeans(namespace);
+			}
+			catch (Exception e) {
+				factory.logger.warning("Cannot register metrics MBeans: " + 
+						e.getMessage());
+			}
+		}
+		
 		return factory;
 	}
 
@@ -196,10 +250,16 @@ public class AgentFactory {
 			return null;
 		}
 		
+		Probe probe = Probes.get();
+		long start = (probe != null) ? System.nanoTime() : 0;
+		
 		//Check if agent is instantiated already, returning if it is:
 		Agent agent = agents.get(agentId);
 		if (agent != null){
 			//System.err.println("Agent "+agentId+" found in cache!");
+			if (probe != null) {
+				probe.agentLoaded(agentId, true, System.nanoTime() - start);
+			}
 			return agent;
 		}
 		//No agent found, normal initialization:
@@ -233,6 +293,9 @@ public class AgentFactory {
 			agents.put(agentId, agent);
 		}
 		
+		if (probe != null) {
+			probe.agentLoaded(agentId, false, System.nanoTime() - start);
+		}
 		return agent;
 	}
 
@@ -248,6 +311,13 @@ public class AgentFactory {
 	@SuppressWarnings("unchecked")
 	public <T> T createAgentProxy(final String senderId, final String receiverUrl,
 			Class<T> agentInterface) {
+		// proxies are cached per sender, receiver, and interface
+		String key = senderId + " " + receiverUrl + " " + agentInterface.getName();
+		Object cached = proxies.get(key);
+		if (agentInterface.isInstance(cached)) {
+			return (T) cached;
+		}
+
 		if (!ClassUtil.hasInterface(agentInterface, AgentInterface.class)) {
 			throw new IllegalArgumentException("agentInterface must extend " + 
 					AgentInterface.class.getName());
@@ -260,31 +330,31 @@ public class AgentFactory {
 					public Object invoke(Object proxy, Method method,
 							Object[] args) throws Throwable {
 						String id = getAgentId(receiverUrl);
-						if (id != null) {
-							// local agent
-							Agent agent = getAgent(id);
+						Agent agent = (id != null) ? getAgent(id) : null;
+						if (method.getDeclaringClass().isInstance(agent)) {
+							// local agent implementing the interface
 							return method.invoke(agent, args);
 						}
 						else {
-							// remote agent
-							JSONRequest request = JSONRPC.createRequest(method, args);
+							// remote agent, or local agent which does not
+							// implement the interface: send a request
+							RequestTemplate template = RequestTemplate.get(method);
+							JSONRequest request = template.createRequest(args);
+							request.setId(UUID.randomUUID().toString());
 							JSONResponse response = send(senderId, receiverUrl, request);
 							JSONRPCException err = response.getError();
 							if (err != null) {
 								throw err;
 							}
-							else if (response.getResult() != null) {
-								return response.getResult(Object.class);
-							}
-							else {
-								return null;
-							}
+							return template.getResult(response);
 						}
 					}
 				});
 		
-		// TODO: for optimization, one can cache the created proxy's
-
+		if (proxies.size() >= PROXY_CACHE_SIZE) {
+			proxies.clear();
+		}
+		proxies.put(key, proxy);
 		return proxy;
 	}
 
@@ -416,7 +486,30 @@ public class AgentFactory {
 			JSONRequest request, RequestParams requestParams) throws Exception {
 		Agent receiver = getAgent(receiverId);
 		if (receiver != null) {
-			JSONResponse response = JSONRPC.invoke(receiver, request, requestParams);
+			String method = request.getMethod();
+			MethodMetrics metrics = invocationMetrics.get(receiver.getClass(), 
+					method);
+			metrics.start();
+			Span span = tracer.startServerSpan(receiverId, request);
+			long start = System.nanoTime();
+			JSONResponse response = null;
+			try {
+				response = JSONRPC.invoke(receiver, request, requestParams);
+			}
+			finally {
+				long duration = System.nanoTime() - start;
+				boolean success = isSuccess(response);
+				metrics.end(duration, success);
+				tracer.end(span, success);
+
+				AsyncRequestLogger requestLogger = this.requestLogger;
+				if (requestLogger != null) {
+					long millis = TimeUnit.NANOSECONDS.toMillis(duration);
+					requestLogger.log(receiverId, receiver.getClass().getName(), 
+							method, System.currentTimeMillis() - millis, millis, 
+							success);
+				}
+			}
 			receiver.destroy();
 			return response;
 		}
@@ -440,36 +533,88 @@ public class AgentFactory {
 	 */
 	public JSONResponse send(String senderId, String receiverUrl, JSONRequest request) 
 			throws Exception {
+		Span span = tracer.startClientSpan(senderId, request);
+		if (span == null) {
+			return route(senderId, receiverUrl, request);
+		}
+		JSONResponse response = null;
+		try {
+			response = route(senderId, receiverUrl, request);
+			return response;
+		}
+		finally {
+			tracer.end(span, isSuccess(response));
+		}
+	}
+
+	/**
+	 * Send a request to a local or remote agent, via the transport service
+	 * of its url
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @return response
+	 * @throws Exception
+	 */
+	private JSONResponse route(String senderId, String receiverUrl, 
+			JSONRequest request) throws Exception {
 		String agentId = getAgentId(receiverUrl);
 		if (agentId != null) {
 			// local agent, invoke locally
-			// TODO: provide Sender in requestParams
 			RequestParams requestParams = new RequestParams();
-			requestParams.put(Sender.class, null);
+			requestParams.put(Sender.class, getLocalSenderUrl(senderId));
 			JSONResponse response = invoke(agentId, request, requestParams);
 			return response;
 		}
 		else {
-			TransportService service = null;
-			String protocol = null;
-			int separator = receiverUrl.indexOf(":");
-			if (separator != -1) {
-				protocol = receiverUrl.substring(0, separator);
-				service = getTransportService(protocol);
-			}
+			RoutingTable routes = this.routes;
+			String url = routes.getPreferredUrl(receiverUrl);
+			TransportService service = routes.route(url);
+			// synchronous requests are not coalesced: the sender would wait
+			// for the window, and send its requests one by one anyway
 			if (service != null) {
-				JSONResponse response = service.send(senderId, receiverUrl, request);
-				return response;
+				Probe probe = Probes.get();
+				long start = (probe != null) ? System.nanoTime() : 0;
+				JSONResponse response = null;
+				try {
+					response = service.send(senderId, url, request);
+					return response;
+				}
+				finally {
+					if (probe != null) {
+						probe.sent(getProtocol(url), request.getMethod(), 
+								System.nanoTime() - start, isSuccess(response));
+					}
+				}
 			}
 			else {
 				throw new ProtocolException(
-					"No transport service configured for protocol '" + protocol + "'.");
+					"No transport service configured for protocol '" + 
+					getProtocol(url) + "'.");
 			}			
 		}
 	}
 	
 	/**
-	 * Asynchronously invoke a request on an agent.
+	 * Get the url of a sender agent for a request to a local agent, as passed
+	 * to the receiving agent via @Sender: its url "local://{senderId}".
+	 * @param senderId
+	 * @return senderUrl   null when the sender is unknown
+	 */
+	private String getLocalSenderUrl(String senderId) {
+		if (senderId == null) {
+			return null;
+		}
+		TransportService local = getTransportService("local");
+		return (local != null) ? 
+				local.getAgentUrl(senderId) : LocalService.PREFIX + senderId;
+	}
+	
+	/**
+	 * Asynchronously invoke a request on an agent, with the default callback
+	 * timeout of the factory.
+	 * If no response is received within the timeout, callback.onFailure is
+	 * invoked with a TimeoutException.
 	 * @param senderId    Internal id of the sender agent. 
 	 *                    Not required for all transport services 
 	 *                    (for example not for outgoing HTTP requests)
@@ -481,40 +626,192 @@ public class AgentFactory {
 	public void sendAsync(final String senderId, final String receiverUrl, 
 			final JSONRequest request, 
 			final AsyncCallback<JSONResponse> callback) throws Exception {
+		sendAsync(senderId, receiverUrl, request, callback, 
+				callbacks.getTimeout());
+	}
+
+	/**
+	 * Asynchronously send a request to a local or remote agent, via the
+	 * transport service of its url
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 * @throws Exception
+	 */
+	private void routeAsync(final String senderId, final String receiverUrl, 
+			final JSONRequest request, 
+			final AsyncCallback<JSONResponse> callback) throws Exception {
 		final String receiverId = getAgentId(receiverUrl);
 		if (receiverId != null) {
-			new Thread(new Runnable () {
+			// local agent, invoke in-memory via the local transport service
+			TransportService local = getTransportService("local");
+			if (local != null) {
+				local.sendAsync(senderId, local.getAgentUrl(receiverId), 
+						request, callback);
+				return;
+			}
+			
+			getExecutor().execute(new Runnable () {
 				@Override
 				public void run() {
 					JSONResponse response;
 					try {
-						// TODO: provide Sender in requestParams
 						RequestParams requestParams = new RequestParams();
-						requestParams.put(Sender.class, null);
+						requestParams.put(Sender.class, 
+								getLocalSenderUrl(senderId));
 						response = invoke(receiverId, request, requestParams);
 						callback.onSuccess(response);
 					} catch (Exception e) {
 						callback.onFailure(e);
 					}
 				}
-			}).start();
+			});
 		}
 		else {
-			TransportService service = null;
-			String protocol = null;
-			int separator = receiverUrl.indexOf(":");
-			if (separator != -1) {
-				protocol = receiverUrl.substring(0, separator);
-				service = getTransportService(protocol);
+			RoutingTable routes = this.routes;
+			String url = routes.getPreferredUrl(receiverUrl);
+			TransportService service = routes.route(url);
+			if (isCoalesced(service)) {
+				coalescer.send((HttpService) service, senderId, url, request, 
+						probe(url, request, callback));
 			}
-			if (service != null) {
-				service.sendAsync(senderId, receiverUrl, request, callback);
+			else if (service != null) {
+				service.sendAsync(senderId, url, request, 
+						probe(url, request, callback));
+			}
+			else {
+				throw new ProtocolException(
+					"No transport service configured for protocol '" + 
+					getProtocol(url) + "'.");
+			}
+		}
+	}
+
+	/**
+	 * Asynchronously invoke a request on an agent, with a custom timeout.
+	 * If no response is received within the timeout, callback.onFailure is
+	 * invoked with a TimeoutException.
+	 * @param senderId    Internal id of the sender agent. 
+	 *                    Not required for all transport services 
+	 *                    (for example not for outgoing HTTP requests)
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 * @param timeout     Timeout in milliseconds
+	 * @throws Exception 
+	 */
+	public void sendAsync(final String senderId, final String receiverUrl, 
+			final JSONRequest request, 
+			final AsyncCallback<JSONResponse> callback, 
+			long timeout) throws Exception {
+		AsyncCallback<JSONResponse> traced = trace(senderId, request, callback);
+		if (getAgentId(receiverUrl) != null) {
+			// local agent
+			routeAsync(senderId, receiverUrl, request, 
+					callbacks.wrap(traced, timeout));
+		}
+		else {
+			RoutingTable routes = this.routes;
+			String url = routes.getPreferredUrl(receiverUrl);
+			TransportService service = routes.route(url);
+			if (isCoalesced(service)) {
+				coalescer.send((HttpService) service, senderId, url, request, 
+						probe(url, request, callbacks.wrap(traced, timeout)));
+			}
+			else if (service != null) {
+				service.sendAsync(senderId, url, request, 
+						probe(url, request, traced), timeout);
 			}
 			else {
 				throw new ProtocolException(
-					"No transport service configured for protocol '" + protocol + "'.");
+					"No transport service configured for protocol '" + 
+					getProtocol(url) + "'.");
+			}
+		}
+	}
+
+	/**
+	 * Start a client span for an asynchronous request, when sent while a 
+	 * traced request is handled, and wrap the callback to end the span
+	 * @param senderId
+	 * @param request
+	 * @param callback
+	 * @return callback   the wrapped callback, or the callback itself when
+	 *                    the request is not traced
+	 */
+	private AsyncCallback<JSONResponse> trace(String senderId, 
+			JSONRequest request, final AsyncCallback<JSONResponse> callback) {
+		final Span span = tracer.startClientSpan(senderId, request);
+		if (span == null) {
+			return callback;
+		}
+		return new AsyncCallback<JSONResponse>() {
+			@Override
+			public void onSuccess(JSONResponse response) {
+				tracer.end(span, isSuccess(response));
+				callback.onSuccess(response);
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				tracer.end(span, false);
+				callback.onFailure(exception);
 			}
+		};
+	}
+
+	/**
+	 * Wrap the callback of an asynchronous request to a remote agent, to
+	 * report the request to the installed probe
+	 * @param url
+	 * @param request
+	 * @param callback
+	 * @return callback   the wrapped callback, or the callback itself when
+	 *                    no probe is enabled
+	 */
+	private static AsyncCallback<JSONResponse> probe(final String url, 
+			final JSONRequest request, 
+			final AsyncCallback<JSONResponse> callback) {
+		final Probe probe = Probes.get();
+		if (probe == null) {
+			return callback;
 		}
+		final long start = System.nanoTime();
+		return new AsyncCallback<JSONResponse>() {
+			@Override
+			public void onSuccess(JSONResponse response) {
+				probe.sent(getProtocol(url), request.getMethod(), 
+						System.nanoTime() - start, isSuccess(response));
+				callback.onSuccess(response);
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				probe.sent(getProtocol(url), request.getMethod(), 
+						System.nanoTime() - start, false);
+				callback.onFailure(exception);
+			}
+		};
+	}
+
+	/**
+	 * Test whether a response contains a result and no error
+	 * @param response   can be null
+	 * @return success
+	 */
+	private static boolean isSuccess(JSONResponse response) {
+		return (response != null && !response.getObjectNode().has("error"));
+	}
+
+	/**
+	 * Get the protocol of an url, for example "http"
+	 * @param url
+	 * @return protocol   null when the url has no protocol
+	 */
+	private static String getProtocol(String url) {
+		int separator = url.indexOf(":");
+		return (separator != -1) ? url.substring(0, separator) : null;
 	}
 
 	/**
@@ -527,13 +824,7 @@ public class AgentFactory {
 	 * @return agentId
 	 */
 	private String getAgentId(String agentUrl) {
-		for (TransportService service : transportServices) {
-			String agentId = service.getAgentId(agentUrl);
-			if (agentId != null) {
-				return agentId;
-			}
-		}		
-		return null;
+		return routes.getAgentId(agentUrl);
 	}
 	
 	/**
@@ -601,6 +892,40 @@ public class AgentFactory {
 		}		
 	}
 	
+	/**
+	 * Initialize the default timeout of asynchronous requests, when 
+	 * configured. Configuration:
+	 *     callbacks:
+	 *       timeout: 30000   # milliseconds
+	 * The timeout applies to asynchronous requests sent via the factory,
+	 * including requests to local agents, and is the default for transport
+	 * services without a timeout of their own.
+	 * @param config
+	 */
+	private void initCallbacks (Config config) {
+		Number timeout = config.get("callbacks", "timeout");
+		if (timeout != null) {
+			setCallbackTimeout(timeout.longValue());
+		}
+	}
+
+	/**
+	 * Set the default timeout of asynchronous requests. Transport services
+	 * added afterwards use it as their default timeout.
+	 * @param timeout   timeout in milliseconds
+	 */
+	public void setCallbackTimeout(long timeout) {
+		callbacks.setTimeout(timeout);
+	}
+
+	/**
+	 * Get the default timeout of asynchronous requests
+	 * @return timeout   timeout in milliseconds
+	 */
+	public long getCallbackTimeout() {
+		return callbacks.getTimeout();
+	}
+
 	/**
 	 * Bootstrap agents on system startup.
 	 * This will create the configured agents when they are not yet existing.
@@ -628,6 +953,371 @@ public class AgentFactory {
 		}
 	}
 
+	/**
+	 * Initialize the request logger, when configured. Configuration:
+	 *     request_logger:
+	 *       class: DatastoreRequestLogger   # a class implementing RequestLogger
+	 *       capacity: 10000                 # maximum number of queued records
+	 *       async: true                     # pass records to the logger in a
+	 *                                       # worker thread
+	 * On Google App Engine, which does not allow background threads, async 
+	 * is false by default.
+	 * @param config
+	 */
+	private void initRequestLogger (Config config) {
+		String className = config.get("request_logger", "class");
+		if (className != null) {
+			for (String name : REQUEST_LOGGERS.keySet()) {
+				if (className.toLowerCase().equals(name.toLowerCase())) {
+					className = REQUEST_LOGGERS.get(name);
+					break;
+				}
+			}
+			try {
+				RequestLogger sink = (RequestLogger) Class.forName(className)
+						.newInstance();
+				Integer capacity = config.get("request_logger", "capacity");
+				Boolean async = config.get("request_logger", "async");
+				if (async == null) {
+					async = (System.getProperty(GAE_ENVIRONMENT) == null);
+				}
+				setRequestLogger(sink, (capacity != null) ? capacity : 10000,
+						async);
+				logger.info("Initialized request logger: " + className);
+			}
+			catch (Exception e) {
+				logger.warning("Cannot load request logger " + className + 
+						": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Set a logger receiving a record of each invocation of a local agent.
+	 * The records are passed to the logger asynchronously, so a slow logger
+	 * does not delay the invocations.
+	 * @param sink       the logger, or null to stop logging
+	 * @param capacity   maximum number of records waiting for the logger. 
+	 *                   When full, new records are dropped.
+	 */
+	public synchronized void setRequestLogger(RequestLogger sink, int capacity) {
+		setRequestLogger(sink, capacity, true);
+	}
+
+	/**
+	 * Set a logger receiving a record of each invocation of a local agent.
+	 * @param sink       the logger, or null to stop logging
+	 * @param capacity   maximum number of records waiting for the logger. 
+	 *                   When full, new records are dropped.
+	 * @param async      pass the records to the logger in a worker thread.
+	 *                   Must be false on Google App Engine: the records are
+	 *                   then logged in the thread of the invocation.
+	 */
+	public synchronized void setRequestLogger(RequestLogger sink, int capacity,
+			boolean async) {
+		if (requestLogger != null) {
+			requestLogger.stop();
+		}
+		if (sink == null) {
+			requestLogger = null;
+		}
+		else if (async) {
+			requestLogger = new AsyncRequestLogger(sink, capacity);
+		}
+		else {
+			requestLogger = new AsyncRequestLogger(sink, capacity, null);
+		}
+	}
+
+	/**
+	 * Get the asynchronous logger receiving a record of each invocation
+	 * @return requestLogger   null if no request logger is configured
+	 */
+	public AsyncRequestLogger getRequestLogger() {
+		return requestLogger;
+	}
+
+	/**
+	 * Get the metrics of the invocations of local agents: calls, errors,
+	 * calls in progress, and latencies per agent class and method
+	 * @return metrics
+	 */
+	public InvocationMetrics getInvocationMetrics() {
+		return invocationMetrics;
+	}
+
+	/**
+	 * Initialize tracing of requests, when configured. Configuration:
+	 *     trace:
+	 *       sample_rate: 0.01     # probability to trace a request without
+	 *                             # trace context, 0 by default
+	 *       exporter: file        # file or memory
+	 *       file: .eventagents/spans.log
+	 *       capacity: 1000        # number of spans kept by the memory exporter
+	 * @param config
+	 */
+	private void initTracer (Config config) {
+		String exporterType = config.get("trace", "exporter");
+		Number sampleRate = config.get("trace", "sample_rate");
+		if (exporterType == null && sampleRate == null) {
+			return;
+		}
+
+		SpanExporter exporter = null;
+		if ("file".equals(exporterType)) {
+			String filename = config.get("trace", "file");
+			try {
+				exporter = new FileSpanExporter(
+						(filename != null) ? filename : "spans.log");
+			}
+			catch (IOException e) {
+				logger.warning("Cannot open span file " + filename + ": " + 
+						e.getMessage());
+			}
+		}
+		else if ("memory".equals(exporterType)) {
+			Integer capacity = config.get("trace", "capacity");
+			exporter = (capacity != null) ? 
+					new MemorySpanExporter(capacity) : new MemorySpanExporter();
+		}
+		else if (exporterType != null) {
+			logger.warning("Unknown span exporter " + exporterType);
+		}
+		setTracer(new Tracer(exporter, 
+				(sampleRate != null) ? sampleRate.doubleValue() : 0));
+	}
+
+	/**
+	 * Initialize capturing of the requests handled by local agents, when
+	 * configured. Configuration:
+	 *     capture:
+	 *       path: .evecapture     # directory of the capture files
+	 *       max_file_size: 67108864  # bytes after which a new file is started
+	 *       max_files: 10         # number of files kept
+	 *       capacity: 10000       # maximum number of queued records
+	 * @param config
+	 */
+	private void initTrafficRecorder (Config config) {
+		Map<String, Object> params = config.get("capture");
+		if (params == null) {
+			return;
+		}
+		String path = (String) params.get("path");
+		Number maxFileSize = (Number) params.get("max_file_size");
+		Number maxFiles = (Number) params.get("max_files");
+		Number capacity = (Number) params.get("capacity");
+		setTrafficRecorder(new TrafficRecorder(
+				(path != null) ? path : ".evecapture",
+				(maxFileSize != null) ? maxFileSize.longValue() : 64 * 1024 * 1024,
+				(maxFiles != null) ? maxFiles.intValue() : 10,
+				(capacity != null) ? capacity.intValue() : 10000));
+		logger.info("Capturing requests in " + 
+				trafficRecorder.getDir().getAbsolutePath());
+	}
+
+	/**
+	 * Set a recorder capturing the requests received via http and xmpp, and
+	 * the fired tasks of the scheduler
+	 * @param recorder   null to stop capturing
+	 */
+	public void setTrafficRecorder(TrafficRecorder recorder) {
+		this.trafficRecorder = recorder;
+	}
+
+	/**
+	 * Get the recorder capturing the handled requests
+	 * @return recorder   null when not capturing
+	 */
+	public TrafficRecorder getTrafficRecorder() {
+		return trafficRecorder;
+	}
+
+	/**
+	 * Set the tracer recording the spans of handled and sent requests
+	 * @param tracer
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = (tracer != null) ? tracer : new Tracer();
+	}
+
+	/**
+	 * Get the tracer recording the spans of handled and sent requests
+	 * @return tracer
+	 */
+	public Tracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Get the registry with the metrics of this factory and its subsystems,
+	 * which are exposed via JMX for shared instances, and via the 
+	 * MetricsAgent
+	 * @return metrics
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metrics;
+	}
+
+	/**
+	 * Register the metrics of the agent cache, scheduler, callbacks, 
+	 * contexts and invocations. The metrics of the transport services are 
+	 * registered when the services are added.
+	 */
+	private void initMetrics() {
+		metrics.register("AgentCache", new Gauge() {
+			@Override
+			public Object getValue() {
+				return (agents != null) ? agents.getStats() : null;
+			}
+		});
+		metrics.register("Scheduler", new Gauge() {
+			@Override
+			public Object getValue() {
+				Map<String, Object> stats = new HashMap<String, Object>();
+				SchedulerFactory factory = schedulerFactory;
+				if (factory instanceof RunnableSchedulerFactory) {
+					stats.putAll(((RunnableSchedulerFactory) factory).getStats());
+				}
+				stats.put("class", (factory != null) ? 
+						factory.getClass().getSimpleName() : null);
+				return stats;
+			}
+		});
+		// the callbacks of the factory and of its transport services
+		metrics.register("AsyncCallbackQueue", "pending", new Gauge() {
+			@Override
+			public Object getValue() {
+				int pending = callbacks.size();
+				for (TransportService service : transportServices) {
+					pending += service.getCallbackQueue().size();
+				}
+				return pending;
+			}
+		});
+		metrics.register("AsyncCallbackQueue", "timeouts", new Gauge() {
+			@Override
+			public Object getValue() {
+				long timeouts = callbacks.getTimeouts();
+				for (TransportService service : transportServices) {
+					timeouts += service.getCallbackQueue().getTimeouts();
+				}
+				return timeouts;
+			}
+		});
+		metrics.register("Context", "bytes_read", new Gauge() {
+			@Override
+			public Object getValue() {
+				ContextFactory factory = contextFactory;
+				return (factory != null) ? factory.getBytesRead() : null;
+			}
+		});
+		metrics.register("Context", "bytes_written", new Gauge() {
+			@Override
+			public Object getValue() {
+				ContextFactory factory = contextFactory;
+				return (factory != null) ? factory.getBytesWritten() : null;
+			}
+		});
+		metrics.register("Invocations", new Gauge() {
+			@Override
+			public Object getValue() {
+				return invocationMetrics.getStats();
+			}
+		});
+	}
+
+	/**
+	 * Register the metrics of a transport service: the open connections of
+	 * XMPP services, and the send latencies per host of HTTP services.
+	 * The metrics of multiple services of the same class are combined.
+	 * @param transportService
+	 */
+	private void initMetrics(TransportService transportService) {
+		if (transportService instanceof XmppService) {
+			metrics.register("XmppService", new Gauge() {
+				@Override
+				public Object getValue() {
+					long connections = 0;
+					long sessions = 0;
+					for (TransportService service : transportServices) {
+						if (service instanceof XmppService) {
+							Map<String, Object> stats = 
+									((XmppService) service).getStats();
+							connections += (Integer) stats.get("connections");
+							sessions += (Integer) stats.get("sessions");
+						}
+					}
+					Map<String, Object> stats = new HashMap<String, Object>();
+					stats.put("connections", connections);
+					stats.put("sessions", sessions);
+					return stats;
+				}
+			});
+		}
+		else if (transportService instanceof HttpService) {
+			metrics.register("HttpService", new Gauge() {
+				@Override
+				public Object getValue() {
+					Map<String, Object> stats = new HashMap<String, Object>();
+					for (TransportService service : transportServices) {
+						if (service instanceof HttpService) {
+							stats.putAll(((HttpService) service).getHostStats());
+						}
+					}
+					return stats;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Initialize coalescing of outgoing HTTP requests into batches, when
+	 * configured. Configuration:
+	 *     request_coalescing:
+	 *       window: 2        # milliseconds to buffer requests per host
+	 *       max_batch: 50    # maximum number of requests in a batch
+	 * The receiving hosts must support batches. Only asynchronous requests
+	 * are coalesced. Batches are guarded by the circuit breaker and retry
+	 * settings of the HttpService, and only retried when all requests in
+	 * the batch can be retried. Batches are not hedged.
+	 * @param config
+	 */
+	private void initRequestCoalescer (Config config) {
+		Number window = config.get("request_coalescing", "window");
+		if (window != null) {
+			Integer maxBatch = config.get("request_coalescing", "max_batch");
+			setRequestCoalescer(new RequestCoalescer(window.longValue(), 
+					(maxBatch != null) ? maxBatch : 50, getExecutor()));
+		}
+	}
+
+	/**
+	 * Set a coalescer for outgoing HTTP requests, or null to send each 
+	 * request separately
+	 * @param coalescer
+	 */
+	public void setRequestCoalescer(RequestCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	/**
+	 * Get the coalescer for outgoing HTTP requests
+	 * @return coalescer   null if requests are not coalesced
+	 */
+	public RequestCoalescer getRequestCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Test whether requests via given transport service are coalesced into
+	 * batches
+	 * @param service   can be null
+	 * @return coalesced
+	 */
+	private boolean isCoalesced(TransportService service) {
+		return coalescer != null && service instanceof HttpService;
+	}
+
 	/**
 	 * Set a context factory. The context factory is used to get/create/delete
 	 * an agents context.
@@ -819,6 +1509,8 @@ public class AgentFactory {
 	 */
 	public void addTransportService(TransportService transportService) {
 		transportServices.add(transportService);
+		updateRoutes();
+		initMetrics(transportService);
 		logger.info("Registered transport service: " + transportService.toString());
 	}
 
@@ -828,9 +1520,70 @@ public class AgentFactory {
 	 */
 	public void removeTransportService(TransportService transportService) {
 		transportServices.remove(transportService);
+		updateRoutes();
 		logger.info("Unregistered transport service " + transportService.toString());
 	}
 
+	/**
+	 * Compile the routing table for the registered transport services, and
+	 * replace the current table
+	 */
+	private synchronized void updateRoutes() {
+		routes = new RoutingTable(transportServices);
+	}
+
+	/**
+	 * Get the executor shared by the agents and transport services of this 
+	 * factory, for invoking asynchronous requests. Idle threads are 
+	 * terminated after a minute.
+	 * @return executor
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, 
+							"AgentFactory-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Test whether all registered transport services are ready, for example
+	 * have restored their persisted connections after startup.
+	 * @return ready
+	 */
+	public boolean isReady() {
+		for (TransportService service : transportServices) {
+			if (!service.isReady()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until all registered transport services are ready
+	 * @param timeout   timeout in milliseconds
+	 * @return ready    false if not ready within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitReady(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (TransportService service : transportServices) {
+			long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+			if (!service.awaitReady(remaining)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Get all registered transport services
 	 * @return transportService
@@ -842,19 +1595,10 @@ public class AgentFactory {
 	/**
 	 * Get all registered transport services which can handle given protocol
 	 * @param protocol   A protocol, for example "http" or "xmpp"
-	 * @return transportService
+	 * @return transportService   An unmodifiable list
 	 */
 	public List<TransportService> getTransportServices(String protocol) {
-		List<TransportService> filteredServices = new ArrayList<TransportService> ();
-		
-		for (TransportService service : transportServices) {
-			List<String> protocols = service.getProtocols();
-			if (protocols.contains(protocol)) {
-				filteredServices.add(service);
-			}
-		}
-		
-		return filteredServices;
+		return routes.getTransportServices(protocol);
 	}
 	
 	/**
@@ -896,13 +1640,27 @@ public class AgentFactory {
 	
 	// Note: the CopyOnWriteArrayList is inefficient but thread safe. 
 	private List<TransportService> transportServices = new CopyOnWriteArrayList<TransportService>();
+	private volatile RoutingTable routes = new RoutingTable(transportServices);
+	private Map<String, Object> proxies = 
+			new ConcurrentHashMap<String, Object>(); // key:proxy
 	private ContextFactory contextFactory = null;
 	private SchedulerFactory schedulerFactory = null;
 	private Config config = null;
-	private EventLogger eventLogger = new EventLogger(this);
+	private EventLogger eventLogger = null;
+	private AsyncCallbackQueue<JSONResponse> callbacks = 
+			new AsyncCallbackQueue<JSONResponse>();
+	private ExecutorService executor = null;
+	private RequestCoalescer coalescer = null;
+	private volatile AsyncRequestLogger requestLogger = null;
+	private InvocationMetrics invocationMetrics = new InvocationMetrics();
+	private MetricsRegistry metrics = new MetricsRegistry();
+	private volatile Tracer tracer = new Tracer();
+	private volatile TrafficRecorder trafficRecorder = null;
+	private AtomicInteger threadCount = new AtomicInteger(0);
 
 	private static Map<String, AgentFactory> factories = 
 			new ConcurrentHashMap<String, AgentFactory>();  // namespace:factory
+	private static int PROXY_CACHE_SIZE = 10000;
 
 	private final static Map<String, String> CONTEXT_FACTORIES = new HashMap<String, String>();
 	static {
@@ -917,10 +1675,21 @@ public class AgentFactory {
 		SCHEDULERS.put("GaeSchedulerFactory", "com.almende.eve.scheduler.google.GaeSchedulerFactory");
 	}
 	
+	private final static Map<String, String> REQUEST_LOGGERS = new HashMap<String, String>();
+	static {
+		REQUEST_LOGGERS.put("DatastoreRequestLogger", "com.almende.eve.context.google.DatastoreRequestLogger");
+	}
+	
+	// system property set when running on Google App Engine
+	private final static String GAE_ENVIRONMENT = "com.google.appengine.runtime.environment";
+
 	private final static Map<String, String> TRANSPORT_SERVICES = new HashMap<String, String>();
 	static {
 		TRANSPORT_SERVICES.put("XmppService", "com.almende.eve.transport.xmpp.XmppService");
 		TRANSPORT_SERVICES.put("HttpService", "com.almende.eve.transport.http.HttpService");
+		TRANSPORT_SERVICES.put("LocalService", "com.almende.eve.transport.local.LocalService");
+		TRANSPORT_SERVICES.put("TcpService", "com.almende.eve.transport.tcp.TcpService");
+		TRANSPORT_SERVICES.put("ShmService", "com.almende.eve.transport.shm.ShmService");
     }
 
 	private final static RequestParams eveRequestParams = new RequestParams();
@@ -928,7 +1697,7 @@ public class AgentFactory {
 		eveRequestParams.put(Sender.class, null);
 	}
 	
-	private static AgentCache agents;
+	private AgentCache agents;
 	
 	private Logger logger = Logger.getLogger(this.getClass().getSimpleName());
 }
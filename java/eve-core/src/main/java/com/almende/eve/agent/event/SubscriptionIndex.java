@@ -0,0 +1,321 @@
+package com.almende.eve.agent.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.almende.eve.entity.Callback;
+
+/**
+ * In-memory index of the event subscriptions of an agent.
+ *
+ * Event names are hierarchical, the segments being separated by a dot, for
+ * example "calendar.event.updated". The subscriptions are stored in a trie
+ * of event segments. A subscription on an event ending with the segment "*"
+ * is a prefix subscription: "calendar.*" matches "calendar.created" and
+ * "calendar.event.updated", and "*" matches all events.
+ * A "*" which is not the last segment has no special meaning.
+ *
+ * Matching an event costs O(number of segments), and checking whether a
+ * subscription with the same callback url and method already exists on an
+ * event is O(1).
+ *
+ * The index can be converted from and to the map {event: [callbacks]} which
+ * the agent stores in its context.
+ *
+ * @author jos
+ */
+public class SubscriptionIndex {
+	public static final String WILDCARD = "*";
+	public static final String SEPARATOR = ".";
+
+	public SubscriptionIndex() {}
+
+	/**
+	 * Create an index from a map with a list of callbacks per event
+	 * @param subscriptions
+	 */
+	public SubscriptionIndex(Map<String, List<Callback>> subscriptions) {
+		if (subscriptions != null) {
+			for (Entry<String, List<Callback>> entry : subscriptions.entrySet()) {
+				List<Callback> callbacks = entry.getValue();
+				if (callbacks != null) {
+					for (Callback callback : callbacks) {
+						add(entry.getKey(), callback);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test whether given event name is a pattern, i.e. ends with the
+	 * wildcard segment "*"
+	 * @param event
+	 * @return isPattern
+	 */
+	public static boolean isPattern(String event) {
+		return event.equals(WILDCARD) ||
+				event.endsWith(SEPARATOR + WILDCARD);
+	}
+
+	/**
+	 * Find the subscription on given event with given callback url and method.
+	 * Returns null if not found.
+	 * @param event
+	 * @param url
+	 * @param method
+	 * @return callback
+	 */
+	public synchronized Callback find(String event, String url, String method) {
+		Node node = getNode(event, false);
+		if (node != null) {
+			return node.callbacks.get(getKey(url, method));
+		}
+		return null;
+	}
+
+	/**
+	 * Add a subscription to an event or pattern. An existing subscription
+	 * with the same callback url and method is replaced.
+	 * @param event
+	 * @param callback
+	 */
+	public synchronized void add(String event, Callback callback) {
+		Node node = getNode(event, true);
+		Callback previous = node.callbacks.put(
+				getKey(callback.url, callback.method), callback);
+		if (previous != null && previous.id != null) {
+			subscriptions.remove(previous.id);
+		}
+		if (callback.id != null) {
+			subscriptions.put(callback.id, event);
+		}
+	}
+
+	/**
+	 * Get all subscriptions which match given event: the subscriptions on the
+	 * event itself, and the prefix subscriptions on all of its parents.
+	 * Each subscription is returned once.
+	 * @param event
+	 * @return callbacks
+	 */
+	public synchronized List<Callback> match(String event) {
+		List<Callback> matches = new ArrayList<Callback>();
+
+		Node node = root;
+		int start = 0;
+		while (node != null) {
+			if (node.wildcard != null) {
+				matches.addAll(node.wildcard.callbacks.values());
+			}
+
+			int end = event.indexOf(SEPARATOR, start);
+			String segment = (end != -1) ?
+					event.substring(start, end) : event.substring(start);
+			node = node.children.get(segment);
+			if (end == -1) {
+				if (node != null) {
+					matches.addAll(node.callbacks.values());
+				}
+				break;
+			}
+			start = end + 1;
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Get the subscriptions on exactly given event or pattern.
+	 * Returns an empty list when there are no subscriptions.
+	 * @param event
+	 * @return callbacks
+	 */
+	public synchronized List<Callback> get(String event) {
+		Node node = getNode(event, false);
+		if (node != null) {
+			return new ArrayList<Callback>(node.callbacks.values());
+		}
+		return new ArrayList<Callback>();
+	}
+
+	/**
+	 * Remove subscriptions
+	 * - If subscriptionId is provided, the subscription with this id will be
+	 *   removed
+	 * - If callbackUrl and optionally event and/or callbackMethod are
+	 *   provided, all subscriptions with matching parameters will be removed.
+	 * @param subscriptionId
+	 * @param event
+	 * @param callbackUrl
+	 * @param callbackMethod
+	 * @return events   The events of which subscriptions are removed
+	 */
+	public synchronized Set<String> remove(String subscriptionId, String event,
+			String callbackUrl, String callbackMethod) {
+		Set<String> changed = new HashSet<String>();
+
+		if (subscriptionId != null) {
+			String subscriptionEvent = subscriptions.get(subscriptionId);
+			if (subscriptionEvent != null) {
+				Node node = getNode(subscriptionEvent, false);
+				if (node != null) {
+					removeFromNode(node, subscriptionEvent, subscriptionId,
+							null, null, changed);
+				}
+			}
+		}
+		if (callbackUrl != null) {
+			if (event != null) {
+				Node node = getNode(event, false);
+				if (node != null) {
+					removeFromNode(node, event, null,
+							callbackUrl, callbackMethod, changed);
+				}
+			}
+			else {
+				for (String subscriptionEvent : getEvents()) {
+					Node node = getNode(subscriptionEvent, false);
+					removeFromNode(node, subscriptionEvent, null,
+							callbackUrl, callbackMethod, changed);
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Get all events and patterns having subscriptions
+	 * @return events
+	 */
+	public synchronized Set<String> getEvents() {
+		return new HashSet<String>(subscriptions.values());
+	}
+
+	/**
+	 * Convert the index into a map with a list of callbacks per event
+	 * @return subscriptions
+	 */
+	public synchronized Map<String, List<Callback>> toMap() {
+		Map<String, List<Callback>> map = new HashMap<String, List<Callback>>();
+		for (String event : getEvents()) {
+			map.put(event, get(event));
+		}
+		return map;
+	}
+
+	/**
+	 * Get the number of subscriptions in the index
+	 * @return size
+	 */
+	public synchronized int size() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Remove the callbacks matching either the subscriptionId, or the
+	 * callbackUrl and optionally callbackMethod from a node
+	 * @param node
+	 * @param event
+	 * @param subscriptionId
+	 * @param callbackUrl
+	 * @param callbackMethod
+	 * @param changed         the event is added when a callback is removed
+	 */
+	private void removeFromNode(Node node, String event,
+			String subscriptionId, String callbackUrl, String callbackMethod,
+			Set<String> changed) {
+		if (callbackUrl != null && callbackMethod != null) {
+			// exact lookup
+			Callback callback = node.callbacks.remove(
+					getKey(callbackUrl, callbackMethod));
+			if (callback != null) {
+				subscriptions.remove(callback.id);
+				changed.add(event);
+			}
+			return;
+		}
+
+		List<String> keys = new ArrayList<String>();
+		for (Entry<String, Callback> entry : node.callbacks.entrySet()) {
+			Callback callback = entry.getValue();
+			if ((subscriptionId != null && subscriptionId.equals(callback.id)) ||
+					(callbackUrl != null && callbackUrl.equals(callback.url))) {
+				keys.add(entry.getKey());
+			}
+		}
+		for (String key : keys) {
+			Callback callback = node.callbacks.remove(key);
+			subscriptions.remove(callback.id);
+			changed.add(event);
+		}
+	}
+
+	/**
+	 * Get the node of given event from the trie
+	 * @param event
+	 * @param create   if true, missing nodes will be created
+	 * @return node    null if not found and create is false
+	 */
+	private Node getNode(String event, boolean create) {
+		Node node = root;
+		int start = 0;
+		while (true) {
+			int end = event.indexOf(SEPARATOR, start);
+			String segment = (end != -1) ?
+					event.substring(start, end) : event.substring(start);
+
+			Node child;
+			if (end == -1 && segment.equals(WILDCARD)) {
+				child = node.wildcard;
+				if (child == null && create) {
+					child = new Node();
+					node.wildcard = child;
+				}
+			}
+			else {
+				child = node.children.get(segment);
+				if (child == null && create) {
+					child = new Node();
+					node.children.put(segment, child);
+				}
+			}
+
+			if (child == null || end == -1) {
+				return child;
+			}
+			node = child;
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Create the key under which a callback is stored in a node
+	 * @param url
+	 * @param method
+	 * @return key
+	 */
+	private static String getKey(String url, String method) {
+		return url + " " + method;
+	}
+
+	/**
+	 * A node in the trie, representing one segment of an event name
+	 */
+	private static class Node {
+		Map<String, Node> children = new HashMap<String, Node>();
+		Node wildcard = null;
+		Map<String, Callback> callbacks = new LinkedHashMap<String, Callback>();
+	}
+
+	private Node root = new Node();
+	private Map<String, String> subscriptions =
+			new HashMap<String, String>(); // subscriptionId:event
+}
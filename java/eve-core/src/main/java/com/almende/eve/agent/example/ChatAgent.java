@@ -70,6 +70,7 @@ import java.util.logging.Logger;
 import com.almende.eve.agent.Agent;
 import com.almende.eve.agent.annotation.Name;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.SyncCallback;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class ChatAgent extends Agent {
@@ -117,9 +118,25 @@ public class ChatAgent extends Agent {
 		log(getUsername() + " posts message '" + message + "'" + 
 				" to " + connections.size() + " agent(s)"); 
 
-		for (int i = 0; i < connections.size(); i++) {
-			String connection = connections.get(i);
-			send(connection, "receive", params);
+		if (getAgentFactory().getRequestCoalescer() != null) {
+			// send the messages concurrently, so the messages to agents on
+			// the same host are coalesced into one batch
+			List<SyncCallback<Void>> callbacks = 
+					new ArrayList<SyncCallback<Void>>();
+			for (String connection : connections) {
+				SyncCallback<Void> callback = new SyncCallback<Void>();
+				sendAsync(connection, "receive", params, callback, void.class);
+				callbacks.add(callback);
+			}
+			for (SyncCallback<Void> callback : callbacks) {
+				callback.get();
+			}
+		}
+		else {
+			for (int i = 0; i < connections.size(); i++) {
+				String connection = connections.get(i);
+				send(connection, "receive", params);
+			}
 		}
 	}	
 	
@@ -0,0 +1,196 @@
+package com.almende.eve.agent.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer holding the most recent logs of a single agent.
+ *
+ * The buffer has a fixed capacity: when full, the oldest log is overwritten.
+ * Logs older than the time to live are not returned anymore.
+ *
+ * The buffer supports a single writer (the ingestion thread of the
+ * EventLogger) and any number of concurrent readers, without locking.
+ * Registered listeners are notified by the writer of each appended log.
+ * The writer keeps the timestamps of the logs ascending, which allows
+ * readers to find the logs since a given timestamp with a binary search.
+ *
+ * Each appended log gets a sequence number, starting at 1. Unlike the 
+ * timestamps, which can be equal for logs appended in the same millisecond,
+ * the sequence numbers are unique, so a client can resume exactly after the
+ * last log it received.
+ */
+public class EventLog {
+	public EventLog(int capacity, long timeToLive) {
+		this.capacity = capacity;
+		this.timeToLive = timeToLive;
+		buffer = new AtomicReferenceArray<Log>(capacity);
+		touch();
+	}
+
+	/**
+	 * Append a log to the buffer. Must be called from a single thread only.
+	 * The timestamp of the log is increased when it is older than the
+	 * timestamp of the previously appended log, and the log gets the next
+	 * sequence number.
+	 * @param log
+	 */
+	void append(Log log) {
+		Long timestamp = log.getTimestamp();
+		if (timestamp == null || timestamp < lastTimestamp) {
+			log.setTimestamp(lastTimestamp);
+		}
+		lastTimestamp = log.getTimestamp();
+		log.setSequence(head + 1);
+
+		buffer.set((int) (head % capacity), log);
+		head++;
+
+		for (LogListener listener : listeners) {
+			try {
+				listener.onLog(log);
+			} catch (Exception e) {
+				listeners.remove(listener);
+			}
+		}
+	}
+
+	/**
+	 * Register a listener, which will be notified of each appended log.
+	 * Must be called from the writer thread, to ensure no logs are missed
+	 * between retrieving the existing logs and registering the listener.
+	 * @param listener
+	 */
+	void addListener(LogListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a registered listener
+	 * @param listener
+	 */
+	void removeListener(LogListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Retrieve all logs with a timestamp larger than since, which have not
+	 * yet expired.
+	 * @param since   timestamp in milliseconds, or null to retrieve all logs
+	 * @return logs   ordered by timestamp
+	 */
+	public List<Log> getLogs(Long since) {
+		touch();
+
+		// take a snapshot of the buffer
+		long end = head;
+		long start = Math.max(0, end - capacity);
+		Log[] snapshot = new Log[(int) (end - start)];
+		for (long i = start; i < end; i++) {
+			snapshot[(int) (i - start)] = buffer.get((int) (i % capacity));
+		}
+
+		// entries which were overwritten by the writer meanwhile are dropped
+		long overwritten = head - capacity - start;
+		int first = (int) Math.max(0, Math.min(overwritten, snapshot.length));
+
+		// find the first log matching since and the time to live
+		long min = System.currentTimeMillis() - timeToLive - 1;
+		if (since != null && since > min) {
+			min = since;
+		}
+		int index = search(snapshot, first, min);
+
+		List<Log> logs = new ArrayList<Log>(snapshot.length - index);
+		for (int i = index; i < snapshot.length; i++) {
+			logs.add(snapshot[i]);
+		}
+		return logs;
+	}
+
+	/**
+	 * Retrieve all logs with a sequence number larger than given sequence
+	 * number, which have not yet expired. When the sequence number is larger 
+	 * than the number of appended logs, the log has been recreated since the
+	 * client retrieved it, and all logs are returned.
+	 * @param sequence   sequence number, or null to retrieve all logs
+	 * @return logs      ordered by sequence number
+	 */
+	public List<Log> getLogsAfter(Long sequence) {
+		touch();
+
+		long end = head;
+		long start = Math.max(0, end - capacity);
+		if (sequence != null && sequence > start && sequence <= end) {
+			// the log with sequence number s is stored at position s - 1
+			start = sequence;
+		}
+		long min = System.currentTimeMillis() - timeToLive - 1;
+
+		List<Log> logs = new ArrayList<Log>((int) (end - start));
+		for (long i = start; i < end; i++) {
+			Log log = buffer.get((int) (i % capacity));
+			// skip entries overwritten by the writer meanwhile, and expired logs
+			if (log.getSequence() == i + 1 && log.getTimestamp() > min) {
+				logs.add(log);
+			}
+		}
+		return logs;
+	}
+
+	/**
+	 * Get the number of logs in the buffer, including expired logs
+	 * @return size
+	 */
+	public int size() {
+		return (int) Math.min(head, capacity);
+	}
+
+	/**
+	 * Test whether the log has no listeners and has not been read during its 
+	 * time to live.
+	 * @return idle
+	 */
+	boolean isIdle() {
+		return listeners.isEmpty() && 
+				(System.currentTimeMillis() - lastAccess) > timeToLive;
+	}
+
+	/**
+	 * Binary search the index of the first log with a timestamp larger than
+	 * given timestamp
+	 * @param logs      array with logs ordered by timestamp
+	 * @param from      index to start searching
+	 * @param timestamp
+	 * @return index    logs.length if there is no newer log
+	 */
+	private static int search(Log[] logs, int from, long timestamp) {
+		int low = from;
+		int high = logs.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (logs[mid].getTimestamp() > timestamp) {
+				high = mid;
+			}
+			else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	private void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	private final int capacity;
+	private final long timeToLive;
+	private final AtomicReferenceArray<Log> buffer;
+	private final List<LogListener> listeners = 
+			new CopyOnWriteArrayList<LogListener>();
+	private volatile long head = 0;           // number of appended logs
+	private volatile long lastAccess = 0;     // timestamp of last read
+	private long lastTimestamp = 0;           // only used by the writer
+}
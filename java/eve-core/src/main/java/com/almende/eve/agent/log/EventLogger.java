@@ -1,44 +1,296 @@
 package com.almende.eve.agent.log;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.config.Config;
 
+/**
+ * The EventLogger temporarily logs the events triggered by agents, so they
+ * can be displayed on the agents web interface.
+ *
+ * The logs of each agent are kept in memory in a ring buffer with a limited
+ * capacity and time to live. An agents logs are only recorded after they
+ * have been requested once via getLogs, and are discarded again when not
+ * requested during the time to live.
+ * Logs are ingested asynchronously, so triggering an event does not wait
+ * for the log to be stored.
+ *
+ * Optionally, the logs can be persisted via a LogAgent per agent as well.
+ * The persisted logs of an agent are loaded when its logs are requested 
+ * for the first time, before that request returns.
+ *
+ * The logger can be configured in the Eve configuration:
+ *     event_logger:
+ *       capacity: 1000          # maximum number of logs per agent
+ *       time_to_live: 1200000   # milliseconds
+ *       persistent: false       # persist the logs in a LogAgent
+ */
 public class EventLogger {
 	protected EventLogger() {}
-	
+
 	public EventLogger(AgentFactory agentFactory) {
 		this.agentFactory = agentFactory;
+
+		Config config = agentFactory.getConfig();
+		if (config != null) {
+			Integer capacity = config.get("event_logger", "capacity");
+			if (capacity != null) {
+				this.capacity = capacity;
+			}
+			Number timeToLive = config.get("event_logger", "time_to_live");
+			if (timeToLive != null) {
+				this.timeToLive = timeToLive.longValue();
+			}
+			Boolean persistent = config.get("event_logger", "persistent");
+			if (persistent != null) {
+				this.persistent = persistent;
+			}
+		}
 	}
-	
-	public void log(String agentId, String event, Object params) {
+
+	/**
+	 * Log an event. The log is stored asynchronously.
+	 * Nothing is logged when nobody requested the logs of the agent.
+	 * @param agentId
+	 * @param event
+	 * @param params
+	 */
+	public void log(final String agentId, String event, Object params) {
+		if (!persistent && !logs.containsKey(agentId)) {
+			return;
+		}
+
 		try {
-			String logAgentId = getLogAgentId(agentId);
-			LogAgent agent = (LogAgent) agentFactory.getAgent(logAgentId);
-			if (agent != null) {
-				// log only if the log agent exists
-				agent.log(new Log(agentId, event, params));
-			}
+			final Log log = new Log(agentId, event, params);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					ingest(agentId, log);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the ingestion queue is full. drop the log
 		} catch (Exception e) {
-			e.printStackTrace(); // TODO: remove printing stacktrace?
+			logger.log(Level.WARNING, "Failed to log event of agent '" + 
+					agentId + "'", e);
 		}
 	}
-	
+
+	/**
+	 * Retrieve the logs of an agent.
+	 * @param agentId
+	 * @param since     Optional timestamp in milliseconds. Only logs newer
+	 *                  than this timestamp are returned
+	 * @return logs
+	 * @throws Exception
+	 */
 	public List<Log> getLogs(String agentId, Long since) throws Exception {
+		return getEventLog(agentId).getLogs(since);
+	}
+
+	/**
+	 * Retrieve the logs of an agent after given sequence number.
+	 * @param agentId
+	 * @param sequence  Optional sequence number of the last log retrieved 
+	 *                  before. Only logs with a larger sequence number are 
+	 *                  returned
+	 * @return logs
+	 * @throws Exception
+	 */
+	public List<Log> getLogsAfter(String agentId, Long sequence) 
+			throws Exception {
+		return getEventLog(agentId).getLogsAfter(sequence);
+	}
+
+	/**
+	 * Register a listener for the logs of an agent. The listener is first 
+	 * invoked for the existing logs after given sequence number, and then for
+	 * each new log, until it is removed again. The listener is invoked from
+	 * the ingestion thread only.
+	 * @param agentId
+	 * @param sequence   Optional sequence number of the last log retrieved
+	 *                   before
+	 * @param listener
+	 * @throws RejectedExecutionException  when the ingestion queue is full.
+	 *                                     The listener is not registered.
+	 * @throws Exception
+	 */
+	public void addListener(String agentId, final Long sequence,
+			final LogListener listener) throws Exception {
+		final EventLog eventLog = getEventLog(agentId);
+		Runnable register = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (Log log : eventLog.getLogsAfter(sequence)) {
+						listener.onLog(log);
+					}
+					eventLog.addListener(listener);
+				} catch (Exception e) {
+					// listener failed. do not register it
+				}
+			}
+		};
+		// register from the ingestion thread, so no log can be missed
+		executor.execute(register);
+	}
+
+	/**
+	 * Remove a registered listener
+	 * @param agentId
+	 * @param listener
+	 */
+	public void removeListener(String agentId, LogListener listener) {
+		EventLog eventLog = logs.get(agentId);
+		if (eventLog != null) {
+			eventLog.removeListener(listener);
+		}
+	}
+
+	/**
+	 * Get the log buffer of an agent, create it when not yet existing.
+	 * @param agentId
+	 * @return eventLog
+	 * @throws Exception
+	 */
+	private EventLog getEventLog(String agentId) throws Exception {
+		EventLog eventLog = logs.get(agentId);
+		if (eventLog == null) {
+			eventLog = createEventLog(agentId);
+		}
+		return eventLog;
+	}
+
+	/**
+	 * Create the log buffer for an agent, and fill it with the persisted logs
+	 * when the logger is persistent. The buffer is filled before it is 
+	 * published to the ingestion thread, so the first read already contains
+	 * the persisted logs.
+	 * @param agentId
+	 * @return eventLog
+	 * @throws Exception
+	 */
+	private synchronized EventLog createEventLog(final String agentId)
+			throws Exception {
+		EventLog eventLog = logs.get(agentId);
+		if (eventLog == null) {
+			EventLog newEventLog = new EventLog(capacity, timeToLive);
+			if (persistent) {
+				for (Log log : getLogAgent(agentId, true).getLogs(null)) {
+					newEventLog.append(log);
+				}
+			}
+			logs.put(agentId, newEventLog);
+			eventLog = newEventLog;
+		}
+		return eventLog;
+	}
+
+	/**
+	 * Store a log. Executed by the ingestion thread.
+	 * @param agentId
+	 * @param log
+	 */
+	private void ingest(String agentId, Log log) {
+		EventLog eventLog = logs.get(agentId);
+		if (eventLog != null) {
+			eventLog.append(log);
+		}
+
+		if (persistent) {
+			try {
+				LogAgent agent = getLogAgent(agentId, false);
+				if (agent != null) {
+					agent.log(log);
+				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to persist log of agent '" + 
+						agentId + "'", e);
+			}
+		}
+
+		removeIdleLogs();
+	}
+
+	/**
+	 * Remove the logs of agents which are not requested anymore during the
+	 * time to live. Executed by the ingestion thread, at most once a minute.
+	 */
+	private void removeIdleLogs() {
+		long now = System.currentTimeMillis();
+		if (now - lastCleanup < CLEANUP_INTERVAL) {
+			return;
+		}
+		lastCleanup = now;
+
+		Iterator<Map.Entry<String, EventLog>> it = logs.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().isIdle()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the LogAgent persisting the logs of an agent
+	 * @param agentId
+	 * @param create     create the LogAgent if it does not yet exist
+	 * @return agent     null if not existing and create is false
+	 * @throws Exception
+	 */
+	private LogAgent getLogAgent(String agentId, boolean create)
+			throws Exception {
 		String logAgentId = getLogAgentId(agentId);
 		LogAgent agent = (LogAgent) agentFactory.getAgent(logAgentId);
-		if (agent == null) {
+		if (agent == null && create) {
 			// create the log agent if it does not yet exist
 			agent = (LogAgent) agentFactory.createAgent(LogAgent.class, logAgentId);
 		}
-		return agent.getLogs(since);
+		return agent;
 	}
-	
+
 	private String getLogAgentId(String agentId) {
 		// TODO: use a naming here which cannot conflict with other agents.
 		//       introduce a separate namespace or something like that?
 		return "_logagent_" + agentId;
 	}
-	
+
+	private static Logger logger = 
+			Logger.getLogger(EventLogger.class.getSimpleName());
+
+	private static long CLEANUP_INTERVAL = 60 * 1000; // milliseconds
+	private static int QUEUE_SIZE = 10000;
+
 	private AgentFactory agentFactory = null;
+	private int capacity = 1000;
+	private long timeToLive = 20 * 60 * 1000; // milliseconds
+	private boolean persistent = false;
+	private long lastCleanup = System.currentTimeMillis();
+
+	private Map<String, EventLog> logs =
+			new ConcurrentHashMap<String, EventLog>(); // agentId:eventLog
+
+	// single ingestion thread, with a bounded queue
+	private ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+			0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "EventLogger");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 }
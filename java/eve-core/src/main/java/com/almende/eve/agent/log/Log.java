@@ -17,6 +17,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 @SuppressWarnings("serial")
 public class Log implements Serializable {
 	private Long timestamp = null;
+	private Long sequence = null;
 	private String agentId = null;
 	private String event = null;
 	private String params = null;
@@ -37,6 +38,19 @@ public class Log implements Serializable {
 		return timestamp;
 	}
 
+	/**
+	 * Set the sequence number of the log. Assigned by the EventLog when the
+	 * log is appended, and increasing by one per log of an agent.
+	 * @param sequence
+	 */
+	public void setSequence(Long sequence) {
+		this.sequence = sequence;
+	}
+
+	public Long getSequence() {
+		return sequence;
+	}
+
 	public void setAgentId(String agentId) {
 		this.agentId = agentId;
 	}
@@ -20,7 +20,11 @@ public class LogAgent extends Agent {
 		}
 		logs.add(log);
 		
-		// TODO: limit to a maximum number and age of the logs?
+		// remove expired logs
+		long expired = System.currentTimeMillis() - TIME_TO_LIVE;
+		while (!logs.isEmpty() && logs.get(0).getTimestamp() < expired) {
+			logs.remove(0);
+		}
 		
 		getContext().put("logs", logs);
 	}
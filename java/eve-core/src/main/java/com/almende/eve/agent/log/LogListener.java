@@ -0,0 +1,10 @@
+package com.almende.eve.agent.log;
+
+/**
+ * Listener which is notified of new logs of an agent.
+ * Listeners are invoked from the ingestion thread of the EventLogger, and
+ * must return quickly. A listener throwing an exception is removed.
+ */
+public interface LogListener {
+	public void onLog(Log log) throws Exception;
+}
@@ -0,0 +1,91 @@
+package com.almende.eve.capture;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Reads the records captured by a TrafficRecorder, from a single capture
+ * file or from all capture files in a directory, oldest first:
+ *     TrafficReader reader = new TrafficReader(new File(".evecapture"));
+ *     TrafficRecord record;
+ *     while ((record = reader.next()) != null) {
+ *         ...
+ *     }
+ *     reader.close();
+ * A file which is not finished (still being written, or left by a crashed
+ * process) is read up to its last complete record.
+ */
+public class TrafficReader {
+	/**
+	 * Create a reader
+	 * @param path   a capture file, or a directory with capture files
+	 */
+	public TrafficReader(File path) {
+		files = path.isDirectory() ? 
+				TrafficRecorder.getFiles(path) : new File[] {path};
+	}
+
+	/**
+	 * Read the next record
+	 * @return record   null when all records are read
+	 * @throws IOException
+	 */
+	public TrafficRecord next() throws IOException {
+		while (true) {
+			if (reader == null) {
+				if (index >= files.length) {
+					return null;
+				}
+				reader = new BufferedReader(new InputStreamReader(
+						new GZIPInputStream(new FileInputStream(files[index++])),
+						"UTF-8"));
+			}
+
+			String line;
+			try {
+				line = reader.readLine();
+			} catch (EOFException e) {
+				logger.warning("Capture file " + files[index - 1] + 
+						" is not finished, skipping its last record");
+				line = null;
+			}
+			if (line == null) {
+				close();
+				continue;
+			}
+			if (line.isEmpty()) {
+				continue;
+			}
+			return TrafficRecord.fromJson(
+					JOM.getInstance().readValue(line, ObjectNode.class));
+		}
+	}
+
+	/**
+	 * Close the current file
+	 */
+	public void close() {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {}
+			reader = null;
+		}
+	}
+
+	private static Logger logger = 
+			Logger.getLogger(TrafficReader.class.getSimpleName());
+
+	private final File[] files;
+	private int index = 0;
+	private BufferedReader reader = null;
+}
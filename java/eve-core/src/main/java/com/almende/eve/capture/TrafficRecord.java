@@ -0,0 +1,107 @@
+package com.almende.eve.capture;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+
+/**
+ * A captured request, handled by a local agent. Stored as one JSON object
+ * per line:
+ *     {"timestamp": 1364373012345, "source": "http", "agent": "calendar1",
+ *      "sender": null, "request": {...}, "duration": 1520, "success": true}
+ * The timestamp is in milliseconds since the epoch, the duration in 
+ * microseconds.
+ */
+public class TrafficRecord {
+	public TrafficRecord(long timestamp, String source, String agentId, 
+			String sender, ObjectNode request, long duration, boolean success) {
+		this.timestamp = timestamp;
+		this.source = source;
+		this.agentId = agentId;
+		this.sender = sender;
+		this.request = request;
+		this.duration = duration;
+		this.success = success;
+	}
+
+	/**
+	 * Get the time the request was received
+	 * @return timestamp   milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Get the source of the request: http, xmpp or scheduler
+	 * @return source
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	public String getAgentId() {
+		return agentId;
+	}
+
+	/**
+	 * Get the url of the sender, when known
+	 * @return sender
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	public ObjectNode getRequest() {
+		return request;
+	}
+
+	/**
+	 * Get the time it took to handle the request
+	 * @return duration   in microseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode json = JOM.createObjectNode();
+		json.put("timestamp", timestamp);
+		json.put("source", source);
+		json.put("agent", agentId);
+		json.put("sender", sender);
+		json.put("request", request);
+		json.put("duration", duration);
+		json.put("success", success);
+		return json;
+	}
+
+	/**
+	 * Read a record from its JSON representation
+	 * @param json
+	 * @return record
+	 */
+	public static TrafficRecord fromJson(ObjectNode json) {
+		JsonNode sender = json.get("sender");
+		return new TrafficRecord(
+				json.get("timestamp").asLong(),
+				json.get("source").asText(),
+				json.get("agent").asText(),
+				(sender != null && !sender.isNull()) ? sender.asText() : null,
+				(ObjectNode) json.get("request"),
+				json.get("duration").asLong(),
+				json.get("success").asBoolean());
+	}
+
+	private final long timestamp;
+	private final String source;
+	private final String agentId;
+	private final String sender;
+	private final ObjectNode request;
+	private final long duration;
+	private final boolean success;
+}
@@ -0,0 +1,272 @@
+package com.almende.eve.capture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Captures the requests handled by local agents, to replay them later
+ * against another build with the TrafficReplayer.
+ *
+ * The records are appended by a worker thread to gzip compressed files in
+ * a directory, one JSON object per line (see TrafficRecord). A new file is
+ * started when the current file exceeds the maximum file size, and the
+ * oldest files are deleted when there are more than the maximum number of
+ * files. When the queue of the worker is full, records are dropped.
+ *
+ * The trace context of a request is not captured, so a replayed request
+ * starts a new trace.
+ */
+public class TrafficRecorder {
+	/**
+	 * Create a recorder
+	 * @param path          directory of the capture files
+	 * @param maxFileSize   size in bytes after which a new file is started
+	 * @param maxFiles      number of files kept
+	 * @param capacity      maximum number of queued records
+	 */
+	public TrafficRecorder(String path, long maxFileSize, int maxFiles,
+			int capacity) {
+		this.dir = new File(path);
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		this.queue = new ArrayBlockingQueue<TrafficRecord>(capacity);
+		dir.mkdirs();
+
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "TrafficRecorder");
+		worker.setDaemon(true);
+		worker.start();
+
+		// finish the current file, so it can be read completely
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				TrafficRecorder.this.stop();
+			}
+		});
+	}
+
+	public TrafficRecorder(String path) {
+		this(path, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Capture a request handled by a local agent
+	 * @param source     http, xmpp or scheduler
+	 * @param agentId
+	 * @param sender     url of the sender, can be null
+	 * @param request
+	 * @param response   can be null
+	 * @param start      start of the handling, in nanoseconds (System.nanoTime)
+	 */
+	public void record(String source, String agentId, String sender, 
+			JSONRequest request, JSONResponse response, long start) {
+		if (!running) {
+			return;
+		}
+		long duration = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+		boolean success = (response != null && 
+				!response.getObjectNode().has("error"));
+
+		ObjectNode json = request.getObjectNode().deepCopy();
+		json.remove("trace");
+		TrafficRecord record = new TrafficRecord(
+				System.currentTimeMillis() - duration / 1000, 
+				source, agentId, sender, json, duration, success);
+		if (queue.offer(record)) {
+			recorded.incrementAndGet();
+		}
+		else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of captured records
+	 * @return recorded
+	 */
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * Get the number of records dropped because the queue was full
+	 * @return dropped
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the directory of the capture files
+	 * @return dir
+	 */
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Write the queued records and finish the current file. Records 
+	 * captured afterwards are ignored.
+	 */
+	public void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			worker.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Loop of the worker thread
+	 */
+	private void work() {
+		try {
+			while (running || !queue.isEmpty()) {
+				TrafficRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (record != null) {
+					write(record);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop
+		} finally {
+			close();
+		}
+	}
+
+	private void write(TrafficRecord record) {
+		try {
+			if (out == null || counter.count >= maxFileSize) {
+				roll();
+			}
+			out.write((record.toJson().toString() + "\n").getBytes("UTF-8"));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to capture request", e);
+			close();
+		}
+	}
+
+	/**
+	 * Start a new file, and delete the oldest files
+	 * @throws IOException
+	 */
+	private void roll() throws IOException {
+		close();
+
+		// the sequence number keeps the names unique and ordered when files
+		// are started within the same millisecond
+		String name = PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS")
+				.format(new Date()) + String.format("-%04d", sequence++) + SUFFIX;
+		counter = new CountingOutputStream(
+				new FileOutputStream(new File(dir, name)));
+		out = new GZIPOutputStream(counter);
+
+		File[] files = getFiles(dir);
+		for (int i = 0; i < files.length - maxFiles; i++) {
+			files[i].delete();
+		}
+	}
+
+	private void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to close capture file", e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Get the capture files in a directory, oldest first
+	 * @param dir
+	 * @return files
+	 */
+	public static File[] getFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				files[count++] = file;
+			}
+		}
+		files = Arrays.copyOf(files, count);
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Stream counting the written bytes
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long count = 0;
+	}
+
+	static final String PREFIX = "capture-";
+	static final String SUFFIX = ".jsonl.gz";
+	private static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024;
+	private static final int DEFAULT_MAX_FILES = 10;
+	private static final int DEFAULT_CAPACITY = 10000;
+	private static final long STOP_TIMEOUT = 5000;
+	private static Logger logger = 
+			Logger.getLogger(TrafficRecorder.class.getSimpleName());
+
+	private final File dir;
+	private final long maxFileSize;
+	private final int maxFiles;
+	private final BlockingQueue<TrafficRecord> queue;
+	private final Thread worker;
+	private final AtomicLong recorded = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private volatile boolean running = true;
+	private OutputStream out = null;                 // used by the worker only
+	private CountingOutputStream counter = null;
+	private int sequence = 0;
+}
@@ -0,0 +1,233 @@
+package com.almende.eve.capture;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.config.Config;
+import com.almende.eve.metrics.Histogram;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+
+/**
+ * Replays captured requests against the agents of a local AgentFactory,
+ * and compares the latencies of the replay with the captured latencies.
+ *
+ * The requests are issued at their original pace multiplied by a speed
+ * factor: speed 2 replays twice as fast, speed 0 replays as fast as
+ * possible. Like the capture, the latency covers the invocation of the
+ * agent, not the transport.
+ *
+ * The agents must exist in the factory, for example via a copy of the
+ * contexts of the captured agents. Usage:
+ *     java com.almende.eve.capture.TrafficReplayer eve.yaml .evecapture [speed]
+ */
+public class TrafficReplayer {
+	/**
+	 * Create a replayer
+	 * @param agentFactory   factory hosting the agents
+	 * @param threads        number of threads invoking the requests
+	 */
+	public TrafficReplayer(AgentFactory agentFactory, int threads) {
+		this.agentFactory = agentFactory;
+		this.threads = threads;
+	}
+
+	/**
+	 * Replay all records of a reader
+	 * @param reader
+	 * @param speed    factor applied to the original pace, 0 to replay as
+	 *                 fast as possible
+	 * @return result  the number of replayed requests and errors, and the
+	 *                 captured and replayed latencies in microseconds,
+	 *                 overall and per method
+	 * @throws Exception
+	 */
+	public Map<String, Object> replay(TrafficReader reader, double speed)
+			throws Exception {
+		final Comparison total = new Comparison();
+		final Map<String, Comparison> methods =
+				new TreeMap<String, Comparison>();
+		final AtomicLong errors = new AtomicLong(0);
+		final AtomicLong mismatches = new AtomicLong(0);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		long first = 0;
+		long start = System.nanoTime();
+		long count = 0;
+		try {
+			TrafficRecord record;
+			while ((record = reader.next()) != null) {
+				if (count == 0) {
+					first = record.getTimestamp();
+				}
+				count++;
+
+				if (speed > 0) {
+					long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(
+							record.getTimestamp() - first) / speed);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+
+				final TrafficRecord replayed = record;
+				final Comparison method;
+				String name = record.getRequest().path("method").asText();
+				synchronized (methods) {
+					Comparison comparison = methods.get(name);
+					if (comparison == null) {
+						comparison = new Comparison();
+						methods.put(name, comparison);
+					}
+					method = comparison;
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						boolean success = invoke(replayed, total, method);
+						if (!success) {
+							errors.incrementAndGet();
+						}
+						if (success != replayed.isSuccess()) {
+							mismatches.incrementAndGet();
+						}
+					}
+				});
+			}
+		} finally {
+			reader.close();
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Map<String, Object> perMethod = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Comparison> entry : methods.entrySet()) {
+			perMethod.put(entry.getKey(), entry.getValue().getStats());
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("requests", count);
+		result.put("errors", errors.get());
+		result.put("mismatches", mismatches.get());
+		result.put("duration", seconds);
+		result.put("throughput", (seconds > 0) ? count / seconds : 0.0);
+		result.put("latency_us", total.getStats());
+		result.put("methods", perMethod);
+		return result;
+	}
+
+	/**
+	 * Invoke a captured request
+	 * @param record
+	 * @param total    comparison of all requests
+	 * @param method   comparison of the requests of the same method
+	 * @return success
+	 */
+	private boolean invoke(TrafficRecord record, Comparison total,
+			Comparison method) {
+		boolean success = false;
+		long start = System.nanoTime();
+		try {
+			JSONRequest request = new JSONRequest(record.getRequest());
+			RequestParams params = new RequestParams();
+			params.put(Sender.class, record.getSender());
+			JSONResponse response = agentFactory.invoke(record.getAgentId(),
+					request, params);
+			success = (response != null &&
+					!response.getObjectNode().has("error"));
+		} catch (Exception e) {
+			success = false;
+		}
+		long duration = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+		total.captured.record(record.getDuration());
+		total.replayed.record(duration);
+		method.captured.record(record.getDuration());
+		method.replayed.record(duration);
+		return success;
+	}
+
+	/**
+	 * Captured and replayed latencies
+	 */
+	private static class Comparison {
+		Map<String, Object> getStats() {
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("captured", captured.getStats());
+			stats.put("replayed", replayed.getStats());
+
+			// ratio replayed/captured per percentile, > 1 is slower
+			Map<String, Object> ratios = new LinkedHashMap<String, Object>();
+			for (String p : PERCENTILES.keySet()) {
+				double percentile = PERCENTILES.get(p);
+				long before = captured.getPercentile(percentile);
+				long after = replayed.getPercentile(percentile);
+				ratios.put(p, (before > 0) ? (double) after / before : null);
+			}
+			stats.put("ratio", ratios);
+			return stats;
+		}
+
+		final Histogram captured = new Histogram();
+		final Histogram replayed = new Histogram();
+	}
+
+	/**
+	 * Replay a capture and print the comparison of the latencies as JSON
+	 * @param args   config file of the AgentFactory, capture file or
+	 *               directory, and optionally the speed (1 by default)
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: TrafficReplayer config.yaml " +
+					"capture [speed] [threads]");
+			System.exit(1);
+		}
+		Config config = new Config(args[0]);
+		double speed = (args.length > 2) ? Double.parseDouble(args[2]) : 1.0;
+		int threads = (args.length > 3) ? Integer.parseInt(args[3]) :
+				DEFAULT_THREADS;
+
+		// the replay must not be captured itself
+		if (config.get() != null) {
+			config.get().remove("capture");
+		}
+		AgentFactory agentFactory = AgentFactory.createInstance(config);
+
+		logger.info("Replaying " + args[1] + " at speed " + speed);
+		TrafficReplayer replayer = new TrafficReplayer(agentFactory, threads);
+		Map<String, Object> result = replayer.replay(
+				new TrafficReader(new File(args[1])), speed);
+		System.out.println(JOM.getInstance().writerWithDefaultPrettyPrinter()
+				.writeValueAsString(result));
+		System.exit(0);
+	}
+
+	private static final int DEFAULT_THREADS = 10;
+	private static final Map<String, Double> PERCENTILES =
+			new LinkedHashMap<String, Double>();
+	static {
+		PERCENTILES.put("p50", 0.50);
+		PERCENTILES.put("p90", 0.90);
+		PERCENTILES.put("p99", 0.99);
+	}
+	private static Logger logger =
+			Logger.getLogger(TrafficReplayer.class.getSimpleName());
+
+	private final AgentFactory agentFactory;
+	private final int threads;
+}
@@ -88,10 +88,12 @@ public class ConcurrentFileContext extends Context {
 	 * @throws IOException
 	 */
 	private void write() throws Exception {
+		long start = startIO();
 		channel.position(0);
 		ObjectOutput out = new ObjectOutputStream(fos);
 		out.writeObject(properties);
 		out.flush();
+		countBytesWritten(channel.position(), start);
 	}
 
 	/**
@@ -103,10 +105,12 @@ public class ConcurrentFileContext extends Context {
 	 */
 	@SuppressWarnings("unchecked")
 	private void read() throws Exception {
+		long start = startIO();
 		channel.position(0);
 		ObjectInput in = new ObjectInputStream(fis);
 		properties.clear();
 		properties.putAll((Map<String, Object>) in.readObject());
+		countBytesRead(channel.position(), start);
 	}
 
 	/**
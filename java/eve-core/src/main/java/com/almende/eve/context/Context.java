@@ -2,6 +2,9 @@ package com.almende.eve.context;
 
 import java.util.Map;
 
+import com.almende.eve.probe.Probe;
+import com.almende.eve.probe.Probes;
+
 /**
  * @class Context
  * 
@@ -33,6 +36,15 @@ public abstract class Context implements Map<String, Object> {
 		this.agentId = agentId;
 	}
 
+	/**
+	 * Constructor for a context created by a context factory, which counts
+	 * the bytes read and written by its contexts
+	 */
+	public Context (String agentId, ContextFactory contextFactory) {
+		this.agentId = agentId;
+		this.contextFactory = contextFactory;
+	}
+
 	/**
 	 * Get the agents id
 	 * @return agentId
@@ -65,10 +77,49 @@ public abstract class Context implements Map<String, Object> {
 		}
 	}
 
+	/**
+	 * Start measuring a read or write, to be invoked by the implementations
+	 * @return start   start time in nanoseconds, or 0 when not measured
+	 */
+	protected static long startIO() {
+		return (Probes.get() != null) ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Count bytes read from storage, to be invoked by the implementations
+	 * @param bytes
+	 * @param start   the value returned by startIO
+	 */
+	protected void countBytesRead(long bytes, long start) {
+		if (contextFactory != null) {
+			contextFactory.countBytesRead(bytes);
+		}
+		Probe probe = Probes.get();
+		if (probe != null && start != 0) {
+			probe.contextRead(agentId, bytes, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Count bytes written to storage, to be invoked by the implementations
+	 * @param bytes
+	 * @param start   the value returned by startIO
+	 */
+	protected void countBytesWritten(long bytes, long start) {
+		if (contextFactory != null) {
+			contextFactory.countBytesWritten(bytes);
+		}
+		Probe probe = Probes.get();
+		if (probe != null && start != 0) {
+			probe.contextWritten(agentId, bytes, System.nanoTime() - start);
+		}
+	}
+
 	// init and destroy methods
 	public abstract void init();     // executed once after the agent is instantiated
 	public abstract void destroy();  // executed once before the agent is destroyed
 	
 	protected String agentId = null;
+	private ContextFactory contextFactory = null;
 	//protected AgentFactory agentFactory = null;
 }
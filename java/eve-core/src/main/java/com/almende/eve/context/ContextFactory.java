@@ -2,6 +2,7 @@ package com.almende.eve.context;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.almende.eve.agent.AgentFactory;
 
@@ -46,6 +47,32 @@ public abstract class ContextFactory {
 	 */
 	public abstract String getEnvironment();
 
+	/**
+	 * Get the number of bytes read from storage by the contexts of this
+	 * factory
+	 * @return bytesRead
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Get the number of bytes written to storage by the contexts of this
+	 * factory
+	 * @return bytesWritten
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	void countBytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	void countBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
 	@Override
 	public String toString() {
 		Map<String, Object> data = new HashMap<String, Object>();
@@ -54,4 +81,6 @@ public abstract class ContextFactory {
 	}
 	
 	protected AgentFactory agentFactory = null;
+	private final AtomicLong bytesRead = new AtomicLong(0);
+	private final AtomicLong bytesWritten = new AtomicLong(0);
 }
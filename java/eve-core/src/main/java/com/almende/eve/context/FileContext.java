@@ -40,7 +40,12 @@ public class FileContext extends Context {
 	protected FileContext() {}
 
 	public FileContext(String agentId, String filename) {
-		super(agentId);
+		this(agentId, filename, null);
+	}
+
+	public FileContext(String agentId, String filename, 
+			ContextFactory contextFactory) {
+		super(agentId, contextFactory);
 		this.filename = filename;
 	}
 
@@ -50,12 +55,15 @@ public class FileContext extends Context {
 	 * @throws IOException
 	 */
 	private boolean write() {
+		long start = startIO();
 		try {
 			FileOutputStream fos = new FileOutputStream(filename);
 			FileLock fl = fos.getChannel().lock();//block until lock is acquired.
 		    if(fl != null) {
 		    	ObjectOutput out = new ObjectOutputStream(fos);
 		    	out.writeObject(properties);
+		    	out.flush();
+		    	countBytesWritten(fos.getChannel().position(), start);
 				fl.release();
 		    	out.close();
 		    } else {
@@ -78,6 +86,7 @@ public class FileContext extends Context {
 	 */
 	@SuppressWarnings("unchecked")
 	private boolean read() {
+		long start = startIO();
 		try {
 			File file = new File(filename);
 			if (file.length() > 0) {
@@ -85,6 +94,7 @@ public class FileContext extends Context {
 				ObjectInput in = new ObjectInputStream(fis);
 				properties.clear();
 				properties.putAll((Map<String, Object>) in.readObject());
+				countBytesRead(file.length(), start);
 				in.close();
 				fis.close();
 				return true;
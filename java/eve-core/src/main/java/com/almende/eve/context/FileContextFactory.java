@@ -60,7 +60,7 @@ public class FileContextFactory extends ContextFactory {
 	@Override
 	public FileContext get(String agentId) {
 		if (exists(agentId)) {
-			return new FileContext(agentId, getFilename(agentId));
+			return new FileContext(agentId, getFilename(agentId), this);
 		}
 		return null;
 	}
@@ -85,7 +85,7 @@ public class FileContextFactory extends ContextFactory {
 		file.createNewFile();
 		
 		// instantiate the context
-		return new FileContext(agentId, filename);
+		return new FileContext(agentId, filename, this);
 	}
 	
 	/**
@@ -0,0 +1,229 @@
+package com.almende.eve.context.log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+/**
+ * RequestLogger passing the records asynchronously to another RequestLogger
+ * (the sink), so logging a request does not wait for the sink.
+ *
+ * The records are queued in a lock free queue with a limited capacity,
+ * and passed to the sink by a single worker thread. When the queue is
+ * full, records are dropped.
+ *
+ * Google App Engine does not allow a request to start a thread which 
+ * outlives it. There, the logger must be created without thread factory:
+ * the records are then passed to the sink in the thread of the caller.
+ */
+public class AsyncRequestLogger implements RequestLogger {
+	/**
+	 * Create an asynchronous logger, with a daemon worker thread
+	 * @param sink       logger receiving the records
+	 * @param capacity   maximum number of queued records
+	 */
+	public AsyncRequestLogger(RequestLogger sink, int capacity) {
+		this(sink, capacity, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AsyncRequestLogger");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create a logger
+	 * @param sink            logger receiving the records
+	 * @param capacity        maximum number of queued records
+	 * @param threadFactory   factory creating the worker thread, or null to
+	 *                        pass the records to the sink in the thread of
+	 *                        the caller
+	 */
+	public AsyncRequestLogger(RequestLogger sink, int capacity, 
+			ThreadFactory threadFactory) {
+		this.sink = sink;
+		this.capacity = capacity;
+
+		if (threadFactory != null) {
+			worker = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+			worker.start();
+		}
+		else {
+			worker = null;
+		}
+	}
+
+	/**
+	 * Test whether the records are passed to the sink by a worker thread
+	 * @return async
+	 */
+	public boolean isAsync() {
+		return worker != null;
+	}
+
+	/**
+	 * Queue a record for the sink
+	 * @param record
+	 */
+	@Override
+	public void log(AgentDetailRecord record) {
+		enqueue(record);
+	}
+
+	/**
+	 * Queue the record of an invocation for the sink. The record is
+	 * created by the worker thread.
+	 * @param agent       id of the agent
+	 * @param type        class name of the agent
+	 * @param method      name of the method
+	 * @param timestamp   start of the invocation in milliseconds
+	 * @param duration    duration of the invocation in milliseconds
+	 * @param success     false if the invocation failed
+	 */
+	public void log(String agent, String type, String method, long timestamp,
+			long duration, boolean success) {
+		enqueue(new Entry(agent, type, method, timestamp, duration, success));
+	}
+
+	/**
+	 * Get the number of records dropped because the queue was full
+	 * @return dropped
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the number of queued records
+	 * @return size
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Get the sink receiving the records
+	 * @return sink
+	 */
+	public RequestLogger getSink() {
+		return sink;
+	}
+
+	/**
+	 * Stop the worker thread. Queued records are not logged anymore.
+	 */
+	public void stop() {
+		running = false;
+		if (worker != null) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	private void enqueue(Object record) {
+		if (worker == null) {
+			pass(record);
+			return;
+		}
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.offer(record);
+		if (waiting) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	/**
+	 * Loop of the worker thread
+	 */
+	private void work() {
+		while (running) {
+			Object record = queue.poll();
+			if (record == null) {
+				waiting = true;
+				if (queue.isEmpty()) {
+					LockSupport.parkNanos(IDLE_PARK);
+				}
+				waiting = false;
+				continue;
+			}
+			size.decrementAndGet();
+			pass(record);
+		}
+	}
+
+	/**
+	 * Pass a record to the sink
+	 * @param record
+	 */
+	private void pass(Object record) {
+		try {
+			if (record instanceof Entry) {
+				sink.log(((Entry) record).toRecord());
+			}
+			else {
+				sink.log((AgentDetailRecord) record);
+			}
+		} catch (Throwable err) {
+			logger.log(Level.WARNING, "Failed to log request", err);
+		}
+	}
+
+	/**
+	 * The raw data of a record, so the hot path does not need to format
+	 * the timestamp
+	 */
+	private static class Entry {
+		Entry(String agent, String type, String method, long timestamp,
+				long duration, boolean success) {
+			this.agent = agent;
+			this.type = type;
+			this.method = method;
+			this.timestamp = timestamp;
+			this.duration = duration;
+			this.success = success;
+		}
+
+		AgentDetailRecord toRecord() {
+			return new AgentDetailRecord(agent, type, method,
+					new DateTime(timestamp).toString(), duration, success);
+		}
+
+		final String agent;
+		final String type;
+		final String method;
+		final long timestamp;
+		final long duration;
+		final boolean success;
+	}
+
+	private static long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+	private static Logger logger =
+			Logger.getLogger(AsyncRequestLogger.class.getSimpleName());
+
+	private final RequestLogger sink;
+	private final int capacity;
+	private final Thread worker;
+	private final Queue<Object> queue = new ConcurrentLinkedQueue<Object>();
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private volatile boolean waiting = false;
+	private volatile boolean running = true;
+}
@@ -0,0 +1,29 @@
+package com.almende.eve.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A metric counting events, such as the number of bytes written.
+ */
+public class Counter implements Gauge {
+	public Counter() {}
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long amount) {
+		count.addAndGet(amount);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public Object getValue() {
+		return count.get();
+	}
+
+	private final AtomicLong count = new AtomicLong(0);
+}
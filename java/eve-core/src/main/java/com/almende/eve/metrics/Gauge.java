@@ -0,0 +1,9 @@
+package com.almende.eve.metrics;
+
+/**
+ * A metric whose value is read on demand, such as the size of a queue.
+ * The value is a Number, a String, or a Map with further values.
+ */
+public interface Gauge {
+	public Object getValue();
+}
@@ -0,0 +1,148 @@
+package com.almende.eve.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, such as latencies in microseconds.
+ *
+ * The values are counted in log-linear buckets (as in an HDR histogram):
+ * each power of two is divided into 16 sub-buckets, so a percentile is
+ * accurate within about 6%, independent of the magnitude of the values.
+ * Values up to 2^40 are distinguished, larger values are counted in the
+ * last bucket.
+ *
+ * Recording a value does not lock and does not allocate: it only
+ * increments an atomic counter. Percentiles are computed from a snapshot
+ * of the counters when requested.
+ */
+public class Histogram {
+	public Histogram() {}
+
+	/**
+	 * Record a value
+	 * @param value   negative values are recorded as zero
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get the mean of the recorded values
+	 * @return mean   0 when no values are recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n > 0) ? (double) sum.get() / n : 0.0;
+	}
+
+	/**
+	 * Get a percentile of the recorded values
+	 * @param percentile   a value between 0 and 1, for example 0.99
+	 * @return value       the upper bound of the bucket containing the
+	 *                     percentile, or 0 when no values are recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Get a snapshot of the count, mean, maximum and the common percentiles
+	 * @return stats
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("count", getCount());
+		stats.put("mean", getMean());
+		stats.put("max", getMax());
+		stats.put("p50", getPercentile(0.50));
+		stats.put("p90", getPercentile(0.90));
+		stats.put("p99", getPercentile(0.99));
+		stats.put("p999", getPercentile(0.999));
+		return stats;
+	}
+
+	/**
+	 * Get the index of the bucket counting given value
+	 * @param value
+	 * @return index
+	 */
+	static int getIndex(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value),
+				MAX_MAGNITUDE);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		long sub = Math.min(value >> shift, 2 * SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS +
+				(int) (sub - SUB_BUCKETS);
+	}
+
+	/**
+	 * Get the largest value counted by a bucket
+	 * @param index
+	 * @return value
+	 */
+	static long getUpperBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		if (magnitude >= MAX_MAGNITUDE && sub == 2 * SUB_BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		return ((sub + 1) << shift) - 1;
+	}
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE = 40;
+	private static final int BUCKETS =
+			(MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong sum = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+}
@@ -0,0 +1,94 @@
+package com.almende.eve.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics of the invocations of agent methods, per agent class and method.
+ *
+ * Looking up the metrics of a method which was invoked before does not
+ * lock and does not allocate. The number of methods per class is limited,
+ * as requests can contain any method name: further methods are counted
+ * together under the name "(other)".
+ *
+ * Usage:
+ *     MethodMetrics metrics = invocationMetrics.get(agentClass, method);
+ *     metrics.start();
+ *     long start = System.nanoTime();
+ *     ...
+ *     metrics.end(System.nanoTime() - start, success);
+ */
+public class InvocationMetrics {
+	public InvocationMetrics() {}
+
+	/**
+	 * Get the metrics of a method, create them when not yet existing
+	 * @param agentClass
+	 * @param method      name of the method
+	 * @return metrics
+	 */
+	public MethodMetrics get(Class<?> agentClass, String method) {
+		ConcurrentMap<String, MethodMetrics> methods = classes.get(agentClass);
+		if (methods == null) {
+			methods = new ConcurrentHashMap<String, MethodMetrics>();
+			ConcurrentMap<String, MethodMetrics> existing = 
+					classes.putIfAbsent(agentClass, methods);
+			if (existing != null) {
+				methods = existing;
+			}
+		}
+
+		MethodMetrics metrics = methods.get(method);
+		if (metrics == null) {
+			if (methods.size() >= MAX_METHODS) {
+				method = OTHER;
+				metrics = methods.get(method);
+				if (metrics != null) {
+					return metrics;
+				}
+			}
+			metrics = new MethodMetrics();
+			MethodMetrics existing = methods.putIfAbsent(method, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Get a snapshot of the metrics of all invoked methods
+	 * @return stats   Map with the agent class name as key, and a map with
+	 *                 the stats per method as value
+	 */
+	public Map<String, Map<String, Object>> getStats() {
+		Map<String, Map<String, Object>> stats = 
+				new HashMap<String, Map<String, Object>>();
+		for (Map.Entry<Class<?>, ConcurrentMap<String, MethodMetrics>> entry : 
+				classes.entrySet()) {
+			Map<String, Object> methods = new HashMap<String, Object>();
+			for (Map.Entry<String, MethodMetrics> method : 
+					entry.getValue().entrySet()) {
+				methods.put(method.getKey(), method.getValue().getStats());
+			}
+			stats.put(entry.getKey().getName(), methods);
+		}
+		return stats;
+	}
+
+	/**
+	 * Remove all metrics
+	 */
+	public void clear() {
+		classes.clear();
+	}
+
+	private static int MAX_METHODS = 256;
+	private static String OTHER = "(other)";
+
+	private final ConcurrentMap<Class<?>, ConcurrentMap<String, MethodMetrics>>
+			classes = new ConcurrentHashMap<Class<?>, 
+				ConcurrentMap<String, MethodMetrics>>();
+}
@@ -0,0 +1,87 @@
+package com.almende.eve.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the invocations of a single method: the number of calls and
+ * errors, the number of calls in progress, and a histogram with the
+ * latencies in microseconds.
+ */
+public class MethodMetrics {
+	public MethodMetrics() {}
+
+	/**
+	 * Register the start of a call
+	 */
+	public void start() {
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Register the end of a call
+	 * @param duration  duration of the call in nanoseconds
+	 * @param success   false if the call failed
+	 */
+	public void end(long duration, boolean success) {
+		inFlight.decrementAndGet();
+		calls.incrementAndGet();
+		if (!success) {
+			errors.incrementAndGet();
+		}
+		latency.record(TimeUnit.NANOSECONDS.toMicros(duration));
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Get the histogram with the latencies of the calls in microseconds
+	 * @return latency
+	 */
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Get the average number of calls per second since the metrics were 
+	 * created
+	 * @return rate
+	 */
+	public double getRate() {
+		long elapsed = System.nanoTime() - created;
+		return (elapsed > 0) ? 
+				calls.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed : 0.0;
+	}
+
+	/**
+	 * Get a snapshot of the metrics
+	 * @return stats
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = latency.getStats();
+		stats.remove("count");
+		stats.put("calls", getCalls());
+		stats.put("errors", getErrors());
+		stats.put("in_flight", getInFlight());
+		stats.put("rate", getRate());
+		return stats;
+	}
+
+	private final long created = System.nanoTime();
+	private final AtomicLong calls = new AtomicLong(0);
+	private final AtomicLong errors = new AtomicLong(0);
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private final Histogram latency = new Histogram();
+}
@@ -0,0 +1,67 @@
+package com.almende.eve.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.agent.annotation.Required;
+
+/**
+ * Agent exposing the metrics of its AgentFactory via JSON-RPC, for
+ * monitoring tools which cannot use JMX.
+ *
+ * Usage:
+ *     factory.createAgent(MetricsAgent.class, "metrics");
+ *     {"id": 1, "method": "getMetrics", "params": {"group": "AgentCache"}}
+ */
+public class MetricsAgent extends Agent {
+	/**
+	 * Get the names of the metric groups, one per subsystem
+	 * @return groups
+	 */
+	public List<String> getGroups() {
+		return getAgentFactory().getMetricsRegistry().getGroups();
+	}
+
+	/**
+	 * Get the current metrics of a group, or of all groups
+	 * @param group     optional name of a group
+	 * @return metrics  metric name as key, or group name as key when no
+	 *                  group is provided
+	 * @throws Exception
+	 */
+	public Map<String, ?> getMetrics(
+			@Required(false) @Name("group") String group) throws Exception {
+		MetricsRegistry registry = getAgentFactory().getMetricsRegistry();
+		if (group == null) {
+			return registry.getMetrics();
+		}
+		Map<String, Object> metrics = registry.getMetrics(group);
+		if (metrics == null) {
+			throw new Exception("Metric group '" + group + "' not found");
+		}
+		return metrics;
+	}
+
+	/**
+	 * Get the number of calls, errors and latencies of the invoked agent
+	 * methods, per agent class and method
+	 * @return invocations
+	 */
+	public Map<String, Map<String, Object>> getInvocations() {
+		return getAgentFactory().getInvocationMetrics().getStats();
+	}
+
+	@Override
+	public String getDescription() {
+		return "The MetricsAgent provides the metrics of the agent factory " +
+				"and its subsystems. " +
+				"Available methods: getGroups, getMetrics, getInvocations.";
+	}
+
+	@Override
+	public String getVersion() {
+		return "0.1";
+	}
+}
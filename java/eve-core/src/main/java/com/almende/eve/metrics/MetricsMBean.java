@@ -0,0 +1,118 @@
+package com.almende.eve.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read-only MBean exposing the metrics of one group of a MetricsRegistry.
+ * The attributes are read from the registry on every request, nested maps
+ * are flattened into attributes with dot separated names.
+ */
+class MetricsMBean implements DynamicMBean {
+	MetricsMBean(MetricsRegistry registry, String group) {
+		this.registry = registry;
+		this.group = group;
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException, MBeanException, 
+			ReflectionException {
+		Map<String, Object> values = read();
+		if (!values.containsKey(attribute)) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return values.get(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = read();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, 
+			String[] signature) throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> entry : read().entrySet()) {
+			Object value = entry.getValue();
+			String type = (value != null) ? value.getClass().getName() : 
+				String.class.getName();
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), type,
+					entry.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of " + group,
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+
+	/**
+	 * Read the metrics of the group as flat attributes
+	 * @return attributes
+	 */
+	private Map<String, Object> read() {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		Map<String, Object> metrics = registry.getMetrics(group);
+		if (metrics != null) {
+			flatten(null, metrics, attributes);
+		}
+		return attributes;
+	}
+
+	private static void flatten(String prefix, Map<?, ?> values, 
+			Map<String, Object> attributes) {
+		for (Map.Entry<?, ?> entry : values.entrySet()) {
+			String name = (prefix != null) ? 
+					prefix + "." + entry.getKey() : String.valueOf(entry.getKey());
+			Object value = entry.getValue();
+			if (value instanceof Map) {
+				flatten(name, (Map<?, ?>) value, attributes);
+			}
+			else if (value == null || value instanceof Number || 
+					value instanceof Boolean || value instanceof String) {
+				attributes.put(name, value);
+			}
+			else {
+				attributes.put(name, value.toString());
+			}
+		}
+	}
+
+	private final MetricsRegistry registry;
+	private final String group;
+}
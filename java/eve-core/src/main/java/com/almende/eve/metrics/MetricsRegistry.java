@@ -0,0 +1,253 @@
+package com.almende.eve.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry with the metrics of an AgentFactory and its subsystems.
+ *
+ * Metrics are registered per group (one group per subsystem, such as
+ * "AgentCache" or "HttpService") as gauges, which are read when the
+ * metrics are requested, or as counters. The metrics can be read via
+ * getMetrics, via the MetricsAgent, or via JMX: registerMBeans exposes
+ * each group as an MBean with the name
+ *     com.almende.eve:type=Metrics,factory=<namespace>,name=<group>
+ * Nested values are exposed as attributes with dot separated names, for
+ * example "localhost:8080.latency_p99".
+ *
+ * Usage:
+ *     MetricsRegistry registry = factory.getMetricsRegistry();
+ *     registry.register("MyService", "queue_size", new Gauge() {
+ *         public Object getValue() {
+ *             return queue.size();
+ *         }
+ *     });
+ *     Counter counter = registry.counter("MyService", "messages");
+ *     counter.increment();
+ */
+public class MetricsRegistry {
+	public MetricsRegistry() {}
+
+	/**
+	 * Register a gauge, replacing an existing metric with the same name
+	 * @param group   name of the subsystem
+	 * @param name    name of the metric
+	 * @param gauge
+	 */
+	public void register(String group, String name, Gauge gauge) {
+		getGroup(group).put(name, gauge);
+	}
+
+	/**
+	 * Register a gauge returning a map with metrics, for subsystems which
+	 * provide their statistics as a map. The entries of the map are added
+	 * to the metrics of the group. Replaces an existing map gauge of the
+	 * group.
+	 * @param group   name of the subsystem
+	 * @param gauge   gauge returning a Map
+	 */
+	public void register(String group, Gauge gauge) {
+		getGroup(group).put(STATS, gauge);
+	}
+
+	/**
+	 * Get a counter, create it when not yet existing
+	 * @param group   name of the subsystem
+	 * @param name    name of the metric
+	 * @return counter
+	 */
+	public Counter counter(String group, String name) {
+		ConcurrentMap<String, Gauge> metrics = getGroup(group);
+		Gauge gauge = metrics.get(name);
+		if (!(gauge instanceof Counter)) {
+			Counter counter = new Counter();
+			gauge = metrics.putIfAbsent(name, counter);
+			if (!(gauge instanceof Counter)) {
+				metrics.put(name, counter);
+				gauge = counter;
+			}
+		}
+		return (Counter) gauge;
+	}
+
+	/**
+	 * Remove a group with all its metrics
+	 * @param group
+	 */
+	public void unregister(String group) {
+		groups.remove(group);
+	}
+
+	/**
+	 * Get the names of the registered groups
+	 * @return groups   sorted names
+	 */
+	public List<String> getGroups() {
+		List<String> names = new ArrayList<String>(groups.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Read the current values of the metrics of a group
+	 * @param group
+	 * @return metrics   metric name as key, or null when the group does not
+	 *                   exist
+	 */
+	public Map<String, Object> getMetrics(String group) {
+		Map<String, Gauge> metrics = groups.get(group);
+		if (metrics == null) {
+			return null;
+		}
+
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		Object stats = read(group, STATS, metrics.get(STATS));
+		if (stats instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) stats).entrySet()) {
+				values.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+		}
+
+		List<String> names = new ArrayList<String>(metrics.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			Gauge gauge = metrics.get(name);
+			if (gauge != null && !name.equals(STATS)) {
+				values.put(name, read(group, name, gauge));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Read the current values of all metrics
+	 * @return metrics   group as key
+	 */
+	public Map<String, Map<String, Object>> getMetrics() {
+		Map<String, Map<String, Object>> values = 
+				new LinkedHashMap<String, Map<String, Object>>();
+		for (String group : getGroups()) {
+			Map<String, Object> metrics = getMetrics(group);
+			if (metrics != null) {
+				values.put(group, metrics);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Register an MBean for each group at the platform MBean server. Groups
+	 * registered later on are exposed as well, until unregisterMBeans is
+	 * invoked.
+	 * @param namespace   name of the factory, used in the object names
+	 * @throws Exception
+	 */
+	public synchronized void registerMBeans(String namespace) throws Exception {
+		this.namespace = namespace;
+		for (String group : getGroups()) {
+			registerMBean(group);
+		}
+	}
+
+	/**
+	 * Unregister the MBeans registered via registerMBeans
+	 */
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : objectNames) {
+			try {
+				server.unregisterMBean(name);
+			} catch (Exception e) {
+				logger.log(Level.FINE, "Failed to unregister " + name, e);
+			}
+		}
+		objectNames.clear();
+		namespace = null;
+	}
+
+	/**
+	 * Get the names of the registered MBeans
+	 * @return names
+	 */
+	public synchronized Set<ObjectName> getObjectNames() {
+		return Collections.unmodifiableSet(objectNames);
+	}
+
+	private ConcurrentMap<String, Gauge> getGroup(String group) {
+		ConcurrentMap<String, Gauge> metrics = groups.get(group);
+		if (metrics == null) {
+			metrics = new ConcurrentHashMap<String, Gauge>();
+			ConcurrentMap<String, Gauge> existing = 
+					groups.putIfAbsent(group, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+			else {
+				synchronized (this) {
+					if (namespace != null) {
+						try {
+							registerMBean(group);
+						} catch (Exception e) {
+							logger.log(Level.WARNING, 
+									"Failed to register MBean " + group, e);
+						}
+					}
+				}
+			}
+		}
+		return metrics;
+	}
+
+	private void registerMBean(String group) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(DOMAIN + ":type=Metrics" +
+				",factory=" + ObjectName.quote(namespace) + 
+				",name=" + ObjectName.quote(group));
+		if (objectNames.contains(name)) {
+			return;
+		}
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(new MetricsMBean(this, group), name);
+		objectNames.add(name);
+	}
+
+	private static Object read(String group, String name, Gauge gauge) {
+		if (gauge == null) {
+			return null;
+		}
+		try {
+			return gauge.getValue();
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Failed to read metric " + group + 
+					"." + name, e);
+			return null;
+		}
+	}
+
+	public static final String DOMAIN = "com.almende.eve";
+	private static final String STATS = "";     // name of the map gauge
+
+	private static Logger logger = 
+			Logger.getLogger(MetricsRegistry.class.getSimpleName());
+
+	private final ConcurrentMap<String, ConcurrentMap<String, Gauge>> groups = 
+			new ConcurrentHashMap<String, ConcurrentMap<String, Gauge>>();
+	private final Set<ObjectName> objectNames = 
+			new LinkedHashSet<ObjectName>();
+	private String namespace = null;             // set while exposed via JMX
+}
@@ -0,0 +1,88 @@
+package com.almende.eve.probe;
+
+/**
+ * Service provider interface for low level instrumentation of Eve, for
+ * example to emit Java Flight Recorder events (see the module eve-jfr).
+ *
+ * Implementations are found via java.util.ServiceLoader: a jar providing
+ * a probe lists its class in
+ *     META-INF/services/com.almende.eve.probe.Probe
+ * The first probe found is installed, see Probes.
+ *
+ * The methods are invoked on the threads doing the work, so they must be
+ * thread safe and should return quickly. Durations are in nanoseconds.
+ */
+public interface Probe {
+	/**
+	 * Test whether the probe currently records events. When false, Eve
+	 * skips measuring and does not invoke the other methods.
+	 * @return enabled
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * An agent is retrieved via AgentFactory.getAgent
+	 * @param agentId
+	 * @param cached     true when the agent was found in the agent cache,
+	 *                   false when it was instantiated
+	 * @param duration   time to retrieve or instantiate the agent
+	 */
+	public void agentLoaded(String agentId, boolean cached, long duration);
+
+	/**
+	 * A method of an agent is invoked via JSON-RPC
+	 * @param agentClass
+	 * @param method
+	 * @param bindDuration      time to find the method and convert the 
+	 *                          parameters
+	 * @param executeDuration   time to execute the method
+	 * @param success           false when the invocation failed
+	 */
+	public void invoked(String agentClass, String method, long bindDuration,
+			long executeDuration, boolean success);
+
+	/**
+	 * A context read the state of an agent from storage
+	 * @param agentId
+	 * @param bytes
+	 * @param duration
+	 */
+	public void contextRead(String agentId, long bytes, long duration);
+
+	/**
+	 * A context wrote the state of an agent to storage
+	 * @param agentId
+	 * @param bytes
+	 * @param duration
+	 */
+	public void contextWritten(String agentId, long bytes, long duration);
+
+	/**
+	 * A scheduled task is fired
+	 * @param agentId
+	 * @param method   method of the task request
+	 * @param lag      delay between the planned and actual start of the
+	 *                 task, in milliseconds
+	 */
+	public void taskFired(String agentId, String method, long lag);
+
+	/**
+	 * A request to a remote agent is sent, and its response received
+	 * @param protocol   for example "http" or "xmpp"
+	 * @param method
+	 * @param duration   time until the response is received
+	 * @param success    false when no valid response is received
+	 */
+	public void sent(String protocol, String method, long duration, 
+			boolean success);
+
+	/**
+	 * A request is received by a transport service and handled
+	 * @param protocol   for example "http" or "xmpp"
+	 * @param method
+	 * @param duration   time to handle the request
+	 * @param success    false when the response contains an error
+	 */
+	public void received(String protocol, String method, long duration,
+			boolean success);
+}
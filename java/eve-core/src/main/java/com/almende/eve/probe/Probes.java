@@ -0,0 +1,88 @@
+package com.almende.eve.probe;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+
+/**
+ * Holds the installed Probe. Instrumented code retrieves the probe once
+ * per operation, and only measures when a probe is returned:
+ *     Probe probe = Probes.get();
+ *     long start = (probe != null) ? System.nanoTime() : 0;
+ *     ...
+ *     if (probe != null) {
+ *         probe.sent(protocol, method, System.nanoTime() - start, success);
+ *     }
+ * Without an installed or enabled probe this costs a volatile read and a
+ * branch.
+ */
+public class Probes {
+	private Probes() {}
+
+	/**
+	 * Get the installed probe
+	 * @return probe   null when no probe is installed, or when the probe
+	 *                 is not enabled
+	 */
+	public static Probe get() {
+		Probe probe = Probes.probe;
+		return (probe != null && probe.isEnabled()) ? probe : null;
+	}
+
+	/**
+	 * Install a probe, replacing the probe found via the ServiceLoader
+	 * @param probe   null to remove the probe
+	 */
+	public static void set(Probe probe) {
+		Probes.probe = probe;
+	}
+
+	/**
+	 * Start measuring the handling of a received request
+	 * @return start   start time in nanoseconds, or 0 when not measured
+	 */
+	public static long start() {
+		return (get() != null) ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Report a request received by a transport service, which handling 
+	 * was started via start
+	 * @param protocol
+	 * @param request
+	 * @param response   can be null
+	 * @param start      the value returned by start
+	 */
+	public static void received(String protocol, JSONRequest request, 
+			JSONResponse response, long start) {
+		Probe probe = get();
+		if (probe != null && start != 0) {
+			boolean success = (response != null && 
+					!response.getObjectNode().has("error"));
+			probe.received(protocol, request.getMethod(), 
+					System.nanoTime() - start, success);
+		}
+	}
+
+	private static Probe load() {
+		try {
+			Iterator<Probe> probes = ServiceLoader.load(Probe.class).iterator();
+			if (probes.hasNext()) {
+				Probe probe = probes.next();
+				logger.info("Installed probe " + probe.getClass().getName());
+				return probe;
+			}
+		} catch (Throwable err) {
+			logger.log(Level.WARNING, "Failed to load probe", err);
+		}
+		return null;
+	}
+
+	private static Logger logger = 
+			Logger.getLogger(Probes.class.getSimpleName());
+	private static volatile Probe probe = load();
+}
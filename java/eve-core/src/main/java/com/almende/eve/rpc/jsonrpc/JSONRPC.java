@@ -17,6 +17,8 @@ import java.util.TreeSet;
 import com.almende.eve.agent.annotation.AccessType;
 import com.almende.eve.agent.annotation.Name;
 import com.almende.eve.agent.annotation.Required;
+import com.almende.eve.probe.Probe;
+import com.almende.eve.probe.Probes;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.agent.annotation.Access;
@@ -98,6 +100,9 @@ public class JSONRPC {
 		JSONResponse resp = new JSONResponse(); 
 		resp.setId(request.getId());
 
+		Probe probe = Probes.get();
+		long start = (probe != null) ? System.nanoTime() : 0;
+		long bound = 0;
 		try {
 			AnnotatedMethod annotatedMethod = getMethod(object.getClass(), 
 					request.getMethod(), requestParams);
@@ -111,6 +116,9 @@ public class JSONRPC {
 			
 			Object[] params = castParams(request.getParams(), 
 					annotatedMethod.getParams(), requestParams);
+			if (probe != null) {
+				bound = System.nanoTime();
+			}
 			Object result = method.invoke(object, params);
 			if (result == null) {
 				result = JOM.createNullNode();
@@ -135,6 +143,14 @@ public class JSONRPC {
 			}
 		}
 		
+		if (probe != null) {
+			long end = System.nanoTime();
+			if (bound == 0) {
+				bound = end;  // failed before executing the method
+			}
+			probe.invoked(object.getClass().getName(), request.getMethod(), 
+					bound - start, end - bound, !resp.getObjectNode().has("error"));
+		}
 		return resp;
 	}
 	
@@ -444,34 +460,7 @@ public class JSONRPC {
 	 * @return
 	 */
 	public static JSONRequest createRequest(Method method, Object[] args) {
-		AnnotatedMethod annotatedMethod = new AnnotationUtil.AnnotatedMethod(method);
-		List<AnnotatedParam> annotatedParams = annotatedMethod.getParams();
-		
-		ObjectNode params = JOM.createObjectNode();
-		
-		for(int i = 0; i < annotatedParams.size(); i++) {
-			AnnotatedParam annotatedParam = annotatedParams.get(i);
-			if (i < args.length && args[i] != null) {
-				String name = getName(annotatedParam);
-				if (name != null) {
-					JsonNode paramValue = JOM.getInstance().convertValue(args[i], 
-							JsonNode.class);
-					params.put(name, paramValue);
-				}
-				else {
-					throw new IllegalArgumentException(
-							"Parameter " + i + " in method '" + method.getName() + 
-							"' is missing the @Name annotation.");
-				}
-			}
-			else if (isRequired(annotatedParam)) {
-				throw new IllegalArgumentException(
-						"Required parameter " + i + " in method '" + method.getName() + 
-						"' is null.");
-			}
-		}
-		
-		return new JSONRequest(method.getName(), params);		
+		return RequestTemplate.get(method).createRequest(args);
 	}
 
 	/**
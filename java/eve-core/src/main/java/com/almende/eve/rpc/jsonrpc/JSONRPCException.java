@@ -16,7 +16,8 @@ public class JSONRPCException extends Exception {
 		METHOD_NOT_FOUND,
 		INVALID_PARAMS,
 		INTERNAL_ERROR,
-		NOT_FOUND
+		NOT_FOUND,
+		SERVER_BUSY
 	};
 	
 	public JSONRPCException () {
@@ -108,6 +109,7 @@ public class JSONRPCException extends Exception {
 			case INVALID_PARAMS: setCode (-32602); setMessage("Invalid params"); break;
 			case INTERNAL_ERROR: setCode (-32603); setMessage("Internal error"); break;
 			case NOT_FOUND: setCode(404); setMessage("Not found"); break;
+			case SERVER_BUSY: setCode(-32001); setMessage("Server busy"); break;
 		}
 		
 		if (message != null) {
@@ -3,6 +3,7 @@ package com.almende.eve.rpc.jsonrpc;
 import java.io.IOException;
 
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.trace.TraceContext;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -60,6 +61,9 @@ public class JSONRequest {
 		
 		init (request.get("id"), request.get("method").asText(), 
 				(ObjectNode)request.get("params"));
+		if (request.has("trace")) {
+			req.put("trace", request.get("trace"));
+		}
 	}
 
 	/*
@@ -175,6 +179,27 @@ public class JSONRequest {
 	public boolean hasCallback() {
 		return req.has("callback");
 	}
+
+	/**
+	 * Set the trace context, stored in the reserved member "trace"
+	 * @param context   null to remove the trace context
+	 */
+	public void setTraceContext(TraceContext context) {
+		if (context != null) {
+			req.put("trace", context.toJson());
+		}
+		else {
+			req.remove("trace");
+		}
+	}
+
+	/**
+	 * Get the trace context
+	 * @return context   null when the request is not traced
+	 */
+	public TraceContext getTraceContext() {
+		return TraceContext.fromJson(req.get("trace"));
+	}
 	
 	public ObjectNode getObjectNode() {
 		return req;
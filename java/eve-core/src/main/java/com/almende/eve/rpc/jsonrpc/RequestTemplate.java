@@ -0,0 +1,122 @@
+package com.almende.eve.rpc.jsonrpc;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.agent.annotation.Required;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.AnnotationUtil.AnnotatedMethod;
+import com.almende.util.AnnotationUtil.AnnotatedParam;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Template for the JSON-RPC requests invoking a java method on a remote
+ * agent. The names of the parameters, whether they are required, and the
+ * return type are read from the method once, so creating a request does
+ * not reflect over the method again.
+ *
+ * Templates are cached per method:
+ *     RequestTemplate template = RequestTemplate.get(method);
+ *     JSONRequest request = template.createRequest(args);
+ *     ...
+ *     Object result = template.getResult(response);
+ */
+public class RequestTemplate {
+	private RequestTemplate(Method method) {
+		AnnotatedMethod annotatedMethod = new AnnotatedMethod(method);
+		List<AnnotatedParam> params = annotatedMethod.getParams();
+
+		methodName = method.getName();
+		names = new String[params.size()];
+		required = new boolean[params.size()];
+		for (int i = 0; i < params.size(); i++) {
+			AnnotatedParam param = params.get(i);
+			Name name = param.getAnnotation(Name.class);
+			names[i] = (name != null) ? name.value() : null;
+			Required req = param.getAnnotation(Required.class);
+			required[i] = (req != null) ? req.value() : true;
+		}
+
+		Class<?> returnClass = method.getReturnType();
+		if (returnClass == void.class || returnClass == Void.class) {
+			returnType = null;
+		}
+		else {
+			returnType = JOM.getInstance().getTypeFactory().constructType(
+					method.getGenericReturnType());
+		}
+	}
+
+	/**
+	 * Get the template of a method, create it when not yet existing
+	 * @param method
+	 * @return template
+	 */
+	public static RequestTemplate get(Method method) {
+		RequestTemplate template = templates.get(method);
+		if (template == null) {
+			template = new RequestTemplate(method);
+			templates.put(method, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Create a JSONRequest invoking the method with given arguments
+	 * @param args
+	 * @return request
+	 */
+	public JSONRequest createRequest(Object[] args) {
+		ObjectMapper mapper = JOM.getInstance();
+		ObjectNode params = JOM.createObjectNode();
+		for (int i = 0; i < names.length; i++) {
+			if (args != null && i < args.length && args[i] != null) {
+				if (names[i] != null) {
+					params.put(names[i],
+							mapper.convertValue(args[i], JsonNode.class));
+				}
+				else {
+					throw new IllegalArgumentException(
+							"Parameter " + i + " in method '" + methodName +
+							"' is missing the @Name annotation.");
+				}
+			}
+			else if (required[i]) {
+				throw new IllegalArgumentException(
+						"Required parameter " + i + " in method '" + methodName +
+						"' is null.");
+			}
+		}
+
+		return new JSONRequest(methodName, params);
+	}
+
+	/**
+	 * Read the result of a response as the (generic) return type of the
+	 * method
+	 * @param response
+	 * @return result   null when the method returns void, or the response
+	 *                  has no result
+	 */
+	public Object getResult(JSONResponse response) {
+		JsonNode result = response.getResult();
+		if (returnType == null || result == null || result.isNull()) {
+			return null;
+		}
+		return JOM.getInstance().convertValue(result, returnType);
+	}
+
+	private static Map<Method, RequestTemplate> templates =
+			new ConcurrentHashMap<Method, RequestTemplate>();
+
+	private final String methodName;
+	private final String[] names;         // null for unnamed parameters
+	private final boolean[] required;
+	private final JavaType returnType;    // null for void methods
+}
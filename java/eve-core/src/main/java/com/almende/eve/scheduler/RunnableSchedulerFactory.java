@@ -12,6 +12,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -20,10 +21,14 @@ import org.joda.time.Interval;
 
 import com.almende.eve.agent.AgentFactory;
 import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.capture.TrafficRecorder;
 import com.almende.eve.context.Context;
+import com.almende.eve.probe.Probe;
+import com.almende.eve.probe.Probes;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
@@ -112,6 +117,29 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		return new RunnableScheduler(agentId);
 	}
 	
+	/**
+	 * Get the number of scheduled tasks, the number of tasks queued in the
+	 * executor, and the number of tasks being executed
+	 * @return stats
+	 */
+	public Map<String, Object> getStats() {
+		int tasks = 0;
+		for (Map<String, Task> agentTasks : allTasks.values()) {
+			tasks += agentTasks.size();
+		}
+
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("tasks", tasks);
+		stats.put("agents", allTasks.size());
+		if (scheduler instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor executor = (ThreadPoolExecutor) scheduler;
+			stats.put("queue_size", executor.getQueue().size());
+			stats.put("active_threads", executor.getActiveCount());
+			stats.put("completed", executor.getCompletedTaskCount());
+		}
+		return stats;
+	}
+	
 	/**
 	 * Create a new unique taskId
 	 * @return taskId
@@ -176,11 +204,31 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		    future = scheduler.schedule(new Runnable() {
 				@Override
 				public void run() {
+					Probe probe = Probes.get();
+					if (probe != null) {
+						probe.taskFired(agentId, request.getMethod(), 
+								System.currentTimeMillis() - timestamp.getMillis());
+					}
 					try {
 						RequestParams params = new RequestParams(); 
 						params.put(Sender.class, null);  // TODO: provide itself
 
-						agentFactory.invoke(agentId, request, params);
+						// capture the task when configured, also when the 
+						// invocation fails
+						TrafficRecorder recorder = 
+								agentFactory.getTrafficRecorder();
+						long start = System.nanoTime();
+						JSONResponse response = null;
+						try {
+							response = agentFactory.invoke(agentId, request, 
+									params);
+						}
+						finally {
+							if (recorder != null) {
+								recorder.record("scheduler", agentId, null, 
+										request, response, start);
+							}
+						}
 					} catch (Exception e) {
 						e.printStackTrace();
 					} finally {
@@ -276,6 +324,8 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 * @return taskId
 		 */
 		public String createTask(JSONRequest request, long delay) {
+			// let the task continue the trace of the current request
+			agentFactory.getTracer().inject(agentId, request);
 			Task task = new Task(agentId, request, delay);
 			return task.getTaskId();
 		}
@@ -0,0 +1,68 @@
+package com.almende.eve.trace;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Exporter appending the spans to a file, one JSON object per line:
+ *     {"trace_id": "...", "span_id": "...", "parent_id": "...", 
+ *      "name": "getEvents", "kind": "server", "agent": "calendar1",
+ *      "timestamp": 1364373012345, "duration": 1520, "success": true}
+ * The timestamp is in milliseconds since the epoch, the duration in 
+ * microseconds.
+ */
+public class FileSpanExporter implements SpanExporter {
+	/**
+	 * Create an exporter appending to given file
+	 * @param filename
+	 * @throws IOException
+	 */
+	public FileSpanExporter(String filename) throws IOException {
+		writer = new FileWriter(filename, true);
+	}
+
+	@Override
+	public void export(Span span) {
+		ObjectNode json = JOM.createObjectNode();
+		json.put("trace_id", span.getTraceId());
+		json.put("span_id", span.getSpanId());
+		json.put("parent_id", span.getParentId());
+		json.put("name", span.getName());
+		json.put("kind", span.getKind());
+		json.put("agent", span.getAgentId());
+		json.put("timestamp", span.getTimestamp());
+		json.put("duration", span.getDuration());
+		json.put("success", span.isSuccess());
+		String line = json.toString() + "\n";
+
+		synchronized (writer) {
+			try {
+				writer.write(line);
+				writer.flush();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to export span", e);
+			}
+		}
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (writer) {
+			writer.close();
+		}
+	}
+
+	private static Logger logger = 
+			Logger.getLogger(FileSpanExporter.class.getSimpleName());
+
+	private final Writer writer;
+}
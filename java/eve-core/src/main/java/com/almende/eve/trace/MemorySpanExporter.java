@@ -0,0 +1,72 @@
+package com.almende.eve.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exporter keeping the most recent spans in memory, in a ring buffer with
+ * a fixed capacity. Used for tests and for inspecting traces of a running
+ * process.
+ */
+public class MemorySpanExporter implements SpanExporter {
+	public MemorySpanExporter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an exporter
+	 * @param capacity   maximum number of kept spans
+	 */
+	public MemorySpanExporter(int capacity) {
+		spans = new Span[capacity];
+	}
+
+	@Override
+	public synchronized void export(Span span) {
+		spans[(int) (count % spans.length)] = span;
+		count++;
+	}
+
+	/**
+	 * Get the kept spans, oldest first
+	 * @return spans
+	 */
+	public synchronized List<Span> getSpans() {
+		List<Span> list = new ArrayList<Span>();
+		long first = Math.max(count - spans.length, 0);
+		for (long i = first; i < count; i++) {
+			list.add(spans[(int) (i % spans.length)]);
+		}
+		return list;
+	}
+
+	/**
+	 * Get the kept spans of a trace, oldest first
+	 * @param traceId
+	 * @return spans
+	 */
+	public List<Span> getSpans(String traceId) {
+		List<Span> list = new ArrayList<Span>();
+		for (Span span : getSpans()) {
+			if (span.getTraceId().equals(traceId)) {
+				list.add(span);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Remove all kept spans
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < spans.length; i++) {
+			spans[i] = null;
+		}
+		count = 0;
+	}
+
+	private static int DEFAULT_CAPACITY = 1000;
+
+	private final Span[] spans;
+	private long count = 0;      // number of exported spans
+}
@@ -0,0 +1,137 @@
+package com.almende.eve.trace;
+
+/**
+ * A timed operation within a trace: the invocation of an agent method
+ * (kind "server"), a request sent by an agent (kind "client"), or the 
+ * scheduling of a task (kind "producer").
+ *
+ * A span is created and ended by the Tracer, and passed to the 
+ * SpanExporter when ended.
+ */
+public class Span {
+	Span(TraceContext context, String parentId, String name, String kind,
+			String agentId, Span previous) {
+		this.context = context;
+		this.parentId = parentId;
+		this.name = name;
+		this.kind = kind;
+		this.agentId = agentId;
+		this.previous = previous;
+		this.timestamp = System.currentTimeMillis();
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Get the context of this span, to be propagated to child spans
+	 * @return context
+	 */
+	public TraceContext getContext() {
+		return context;
+	}
+
+	public String getTraceId() {
+		return context.getTraceId();
+	}
+
+	public String getSpanId() {
+		return context.getSpanId();
+	}
+
+	/**
+	 * Get the id of the parent span
+	 * @return parentId   null for the root span of a trace
+	 */
+	public String getParentId() {
+		return parentId;
+	}
+
+	/**
+	 * Get the name of the span, the method of the request
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the kind of the span: "server", "client", or "producer"
+	 * @return kind
+	 */
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * Get the id of the local agent executing or sending the request
+	 * @return agentId
+	 */
+	public String getAgentId() {
+		return agentId;
+	}
+
+	/**
+	 * Get the start of the span
+	 * @return timestamp   milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Get the duration of the span
+	 * @return duration   microseconds, or -1 while the span is not ended
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Test whether the operation succeeded
+	 * @return success
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * End the span
+	 * @param success
+	 * @return ended   false when the span was already ended
+	 */
+	boolean end(boolean success) {
+		if (duration >= 0) {
+			return false;
+		}
+		this.success = success;
+		this.duration = Math.max((System.nanoTime() - start) / 1000, 0);
+		return true;
+	}
+
+	/**
+	 * Get the span which was active on the thread before this span
+	 * @return previous
+	 */
+	Span getPrevious() {
+		return previous;
+	}
+
+	@Override
+	public String toString() {
+		return "{trace_id: " + getTraceId() + ", span_id: " + getSpanId() +
+				", parent_id: " + parentId + ", name: " + name + 
+				", kind: " + kind + ", agent: " + agentId + 
+				", timestamp: " + timestamp + ", duration: " + duration +
+				", success: " + success + "}";
+	}
+
+	private final TraceContext context;
+	private final String parentId;
+	private final String name;
+	private final String kind;
+	private final String agentId;
+	private final long timestamp;
+	private final transient long start;
+	private final transient Span previous;
+	private volatile long duration = -1;
+	private volatile boolean success = false;
+}
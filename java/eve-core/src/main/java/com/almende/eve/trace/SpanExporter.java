@@ -0,0 +1,9 @@
+package com.almende.eve.trace;
+
+/**
+ * Receives the spans which are ended, for sampled traces only.
+ * Implementations must be thread safe, and should not block.
+ */
+public interface SpanExporter {
+	public void export(Span span);
+}
@@ -0,0 +1,79 @@
+package com.almende.eve.trace;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The trace context carried by a JSON-RPC request: the id of the trace,
+ * the id of the span which sent the request, and whether the trace is
+ * sampled (recorded). The ids are hexadecimal strings of 32 and 16
+ * characters, as in the W3C trace context.
+ *
+ * The context is stored in the reserved member "trace" of a request:
+ *     {
+ *         "jsonrpc": "2.0", "id": 1, "method": "...", "params": {...},
+ *         "trace": {"trace_id": "...", "span_id": "...", "sampled": true}
+ *     }
+ */
+public class TraceContext {
+	public TraceContext(String traceId, String spanId, boolean sampled) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.sampled = sampled;
+	}
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+	public String getSpanId() {
+		return spanId;
+	}
+
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	/**
+	 * Convert the context to the member of a request
+	 * @return json
+	 */
+	public ObjectNode toJson() {
+		ObjectNode json = JOM.createObjectNode();
+		json.put("trace_id", traceId);
+		json.put("span_id", spanId);
+		json.put("sampled", sampled);
+		return json;
+	}
+
+	/**
+	 * Read a context from the member of a request
+	 * @param json
+	 * @return context   null when the member does not contain a valid 
+	 *                   context
+	 */
+	public static TraceContext fromJson(JsonNode json) {
+		if (json == null || !json.isObject()) {
+			return null;
+		}
+		JsonNode traceId = json.get("trace_id");
+		JsonNode spanId = json.get("span_id");
+		if (traceId == null || !traceId.isTextual() || 
+				spanId == null || !spanId.isTextual()) {
+			return null;
+		}
+		JsonNode sampled = json.get("sampled");
+		return new TraceContext(traceId.asText(), spanId.asText(), 
+				sampled == null || sampled.asBoolean());
+	}
+
+	@Override
+	public String toString() {
+		return traceId + "-" + spanId + (sampled ? "-01" : "-00");
+	}
+
+	private final String traceId;
+	private final String spanId;
+	private final boolean sampled;
+}
@@ -0,0 +1,179 @@
+package com.almende.eve.trace;
+
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+
+/**
+ * Records the spans of the requests handled and sent by the agents of an
+ * AgentFactory, and propagates the trace context between them.
+ *
+ * - An incoming request carrying a trace context continues its trace. 
+ *   A request without context starts a new trace with probability 
+ *   sampleRate (by default 0: tracing is off, unless a caller passes a
+ *   sampled context).
+ * - While an agent method is executed, its span is the current span of 
+ *   the thread. Requests sent by the agent (send, sendAsync, and agent
+ *   proxies) get a client span, whose context is added to the request.
+ * - Tasks scheduled by the agent (including the onTrigger tasks of 
+ *   trigger) get a producer span, whose context is stored with the task, 
+ *   so the task continues the trace when it is executed.
+ *
+ * Only the spans of sampled traces are passed to the exporter. When no
+ * exporter is set, spans are created and propagated but not recorded.
+ */
+public class Tracer {
+	public Tracer() {
+		this(null, 0);
+	}
+
+	/**
+	 * Create a tracer
+	 * @param exporter     receiver of the ended spans, can be null
+	 * @param sampleRate   probability (0 to 1) to trace a request without
+	 *                     trace context
+	 */
+	public Tracer(SpanExporter exporter, double sampleRate) {
+		this.exporter = exporter;
+		this.sampleRate = sampleRate;
+	}
+
+	public SpanExporter getExporter() {
+		return exporter;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Start the span of an incoming request, and make it the current span 
+	 * of this thread. The span must be ended via end on the same thread.
+	 * @param agentId   id of the invoked agent
+	 * @param request
+	 * @return span     null when the request is not traced
+	 */
+	public Span startServerSpan(String agentId, JSONRequest request) {
+		TraceContext parent = request.getTraceContext();
+		TraceContext context;
+		if (parent != null) {
+			context = new TraceContext(parent.getTraceId(), createSpanId(), 
+					parent.isSampled());
+		}
+		else if (sampleRate > 0 && random.nextDouble() < sampleRate) {
+			context = new TraceContext(createTraceId(), createSpanId(), true);
+		}
+		else {
+			return null;
+		}
+
+		Span span = new Span(context, 
+				(parent != null) ? parent.getSpanId() : null, 
+				request.getMethod(), SERVER, agentId, current.get());
+		current.set(span);
+		return span;
+	}
+
+	/**
+	 * Start the span of an outgoing request, when sent while a traced
+	 * request is being handled on this thread, and add the context of the
+	 * span to the request. Requests which already carry a trace context
+	 * are not changed.
+	 * @param agentId   id of the sending agent
+	 * @param request
+	 * @return span     null when the request is not traced
+	 */
+	public Span startClientSpan(String agentId, JSONRequest request) {
+		return startChildSpan(agentId, request, CLIENT);
+	}
+
+	/**
+	 * Add the trace context of the current span of this thread to a request
+	 * which is scheduled as a task, so the task continues the trace. 
+	 * A producer span is recorded for scheduling the task.
+	 * @param agentId   id of the scheduling agent
+	 * @param request   the request of the task
+	 */
+	public void inject(String agentId, JSONRequest request) {
+		Span span = startChildSpan(agentId, request, PRODUCER);
+		if (span != null) {
+			end(span, true);
+		}
+	}
+
+	/**
+	 * End a span, and export it when its trace is sampled. When the span
+	 * is the current span of this thread, the previous span is restored.
+	 * @param span      can be null
+	 * @param success
+	 */
+	public void end(Span span, boolean success) {
+		if (span == null || !span.end(success)) {
+			return;
+		}
+		if (current.get() == span) {
+			if (span.getPrevious() != null) {
+				current.set(span.getPrevious());
+			}
+			else {
+				current.remove();
+			}
+		}
+
+		if (exporter != null && span.getContext().isSampled()) {
+			try {
+				exporter.export(span);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to export span", e);
+			}
+		}
+	}
+
+	/**
+	 * Get the current span of this thread
+	 * @return span   null when no traced request is being handled
+	 */
+	public Span getCurrentSpan() {
+		return current.get();
+	}
+
+	private Span startChildSpan(String agentId, JSONRequest request, 
+			String kind) {
+		Span parent = current.get();
+		if (parent == null || request.getTraceContext() != null) {
+			return null;
+		}
+		TraceContext context = new TraceContext(parent.getTraceId(), 
+				createSpanId(), parent.getContext().isSampled());
+		request.setTraceContext(context);
+		return new Span(context, parent.getSpanId(), request.getMethod(), 
+				kind, agentId, null);
+	}
+
+	private String createTraceId() {
+		return toHex(random.nextLong()) + toHex(random.nextLong());
+	}
+
+	private String createSpanId() {
+		return toHex(random.nextLong());
+	}
+
+	private static String toHex(long value) {
+		String hex = Long.toHexString(value);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	public static final String SERVER = "server";
+	public static final String CLIENT = "client";
+	public static final String PRODUCER = "producer";
+
+	private static Logger logger = 
+			Logger.getLogger(Tracer.class.getSimpleName());
+
+	private final SpanExporter exporter;
+	private final double sampleRate;
+	private final Random random = new Random();
+	private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+}
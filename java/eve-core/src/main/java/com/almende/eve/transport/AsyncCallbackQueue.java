@@ -1,18 +1,64 @@
 package com.almende.eve.transport;
 
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.transport.HashedWheelTimer.Timeout;
 
 /**
  * Queue to hold a list with callbacks in progress.
  * The Queue handles timeouts on the callbacks.
+ * 
+ * The queue does not lock: callbacks are stored in a concurrent map, and the
+ * timeouts of all queues are handled by the shared HashedWheelTimer, so a
+ * queue does not need its own timer thread.
  */
 public class AsyncCallbackQueue<T> {
-	private static int TIMEOUT = 30000; // timeout in milliseconds
-	// TODO: make the timeout customizable in eve.yaml
+	public static long DEFAULT_TIMEOUT = 30000; // timeout in milliseconds
+
+	public AsyncCallbackQueue() {}
+
+	/**
+	 * Create a queue with a custom default timeout
+	 * @param timeout   timeout in milliseconds
+	 */
+	public AsyncCallbackQueue(long timeout) {
+		setTimeout(timeout);
+	}
+
+	/**
+	 * Set the default timeout for callbacks pushed to this queue
+	 * @param timeout   timeout in milliseconds
+	 */
+	public void setTimeout(long timeout) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Timeout must be positive");
+		}
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Get the default timeout for callbacks pushed to this queue
+	 * @return timeout  timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Append a callback to the queue, with the default timeout of the queue.
+	 * @param id
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void push(String id, AsyncCallback<T> callback) throws Exception {
+		push(id, callback, timeout);
+	}
 	
 	/**
 	 * Append a callback to the queue. 
@@ -25,29 +71,33 @@ public class AsyncCallbackQueue<T> {
 	 * is already in the queue. 
 	 * @param id
 	 * @param callback
+	 * @param timeout    timeout in milliseconds
 	 * @throws Exception
 	 */
-	public synchronized void push(final String id, 
-			AsyncCallback<T> callback) throws Exception {
-		if (queue.containsKey(id)) {
-			throw new Exception("Callback with id '" + id + "' already in queue");
-		}
-		
-		final AsyncCallbackQueue<T> me = this;
-		CallbackHandler handler = new CallbackHandler();
+	public void push(final String id, AsyncCallback<T> callback, long timeout) 
+			throws Exception {
+		final CallbackHandler handler = new CallbackHandler();
 		handler.callback = callback;
-		handler.timeout = new TimerTask() {
+		// schedule the timeout before the handler is published, so a pull
+		// right after publishing can cancel it
+		handler.timeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
 			@Override
 			public void run() {
-				AsyncCallback<T> callback = me.pull(id);
-				if (callback != null) {
-					callback.onFailure(new TimeoutException(
+				if (queue.remove(id, handler)) {
+					pending.decrementAndGet();
+					timeouts.incrementAndGet();
+					timedOut.incrementAndGet();
+					handler.callback.onFailure(new TimeoutException(
 						"Timeout occurred for request with id '" + id + "'"));
 				}
 			}
-        };
-		timer.schedule(handler.timeout, TIMEOUT);
-		queue.put(id, handler);
+		}, timeout);
+		pending.incrementAndGet();
+		if (queue.putIfAbsent(id, handler) != null) {
+			handler.timeout.cancel();
+			pending.decrementAndGet();
+			throw new Exception("Callback with id '" + id + "' already in queue");
+		}
 	}
 
 	/**
@@ -57,33 +107,106 @@ public class AsyncCallbackQueue<T> {
 	 * @param id
 	 * @return
 	 */
-	public synchronized AsyncCallback<T> pull(String id) {
-		CallbackHandler handler = queue.get(id);
+	public AsyncCallback<T> pull(String id) {
+		CallbackHandler handler = queue.remove(id);
 		if (handler != null) {
-			queue.remove(id);
-			handler.timeout.cancel(); // stop the timeout
+			pending.decrementAndGet();
+			Timeout timeout = handler.timeout;
+			if (timeout != null) {
+				timeout.cancel(); // stop the timeout
+			}
 			return handler.callback;
 		}
 		return null;
 	}
+
+	/**
+	 * Wrap a callback such that it is invoked exactly once: either with the
+	 * result of the wrapper, or with a TimeoutException when the wrapper is 
+	 * not invoked within the timeout.
+	 * @param callback
+	 * @param timeout    timeout in milliseconds
+	 * @return wrapper
+	 * @throws Exception
+	 */
+	public AsyncCallback<T> wrap(AsyncCallback<T> callback, long timeout) 
+			throws Exception {
+		final String id = UUID.randomUUID().toString();
+		push(id, callback, timeout);
+		return new AsyncCallback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				AsyncCallback<T> callback = pull(id);
+				if (callback != null) {
+					callback.onSuccess(result);
+				}
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				AsyncCallback<T> callback = pull(id);
+				if (callback != null) {
+					callback.onFailure(exception);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get the number of callbacks in this queue
+	 * @return size
+	 */
+	public int size() {
+		return queue.size();
+	}
 	
 	/**
 	 * Remove all callbacks from the queue.
 	 */
 	public void clear() {
-		queue.clear();
-		timer.cancel();
+		Iterator<String> it = queue.keySet().iterator();
+		while (it.hasNext()) {
+			pull(it.next());
+		}
+	}
+
+	/**
+	 * Get the number of callbacks in this queue which timed out
+	 * @return timeouts
+	 */
+	public long getTimeouts() {
+		return timedOut.get();
+	}
+
+	/**
+	 * Get the number of callbacks in progress, in all queues
+	 * @return pending
+	 */
+	public static int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * Get the number of callbacks which timed out, in all queues
+	 * @return timeouts
+	 */
+	public static long getTimeoutCount() {
+		return timeouts.get();
 	}
 	
 	/**
-	 * Helper class to store a callback and its timeout task
+	 * Helper class to store a callback and its timeout
 	 */
 	private class CallbackHandler {
 		public AsyncCallback<T> callback;
-		public TimerTask timeout;
+		public volatile Timeout timeout;
 	}
 	
-	private Map<String, CallbackHandler> queue = 
+	private ConcurrentMap<String, CallbackHandler> queue = 
 			new ConcurrentHashMap<String, CallbackHandler>();
-	private Timer timer = new Timer(true);  // deamon timer
+	private long timeout = DEFAULT_TIMEOUT;
+	private final AtomicLong timedOut = new AtomicLong(0);
+	
+	private static AtomicInteger pending = new AtomicInteger(0);
+	private static AtomicLong timeouts = new AtomicLong(0);
 }
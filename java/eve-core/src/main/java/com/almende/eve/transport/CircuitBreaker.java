@@ -0,0 +1,152 @@
+package com.almende.eve.transport;
+
+/**
+ * Circuit breaker guarding the calls to a single destination.
+ *
+ * The breaker records the outcome of the most recent calls. When the
+ * fraction of failed calls reaches the failure rate, the breaker opens, and
+ * calls are refused without contacting the destination. After the open
+ * time, the breaker is half open: a single trial call is allowed. When the
+ * trial succeeds the breaker closes again, when it fails the breaker opens
+ * for another open time.
+ *
+ * Usage:
+ *     if (breaker.allow()) {
+ *         try {
+ *             call();
+ *             breaker.onSuccess();
+ *         } catch (IOException e) {
+ *             breaker.onFailure();
+ *         }
+ *     }
+ */
+public class CircuitBreaker {
+	public enum State {CLOSED, OPEN, HALF_OPEN};
+
+	/**
+	 * Create a circuit breaker
+	 * @param failureRate  fraction of failed calls, between 0 and 1, at
+	 *                     which the breaker opens
+	 * @param window       number of recent calls taken into account
+	 * @param minCalls     minimum number of recorded calls before the
+	 *                     breaker can open
+	 * @param openTime     time in milliseconds the breaker stays open
+	 */
+	public CircuitBreaker(double failureRate, int window, int minCalls,
+			long openTime) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		this.failureRate = failureRate;
+		this.outcomes = new boolean[window];
+		this.minCalls = Math.min(Math.max(minCalls, 1), window);
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Test whether a call is allowed. When half open, only one trial call
+	 * is allowed until its outcome is recorded.
+	 * @return allowed
+	 */
+	public synchronized boolean allow() {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() < openUntil) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			trial = false;
+		}
+		if (state == State.HALF_OPEN) {
+			if (trial) {
+				return false;
+			}
+			trial = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Record a successful call
+	 */
+	public synchronized void onSuccess() {
+		if (state == State.HALF_OPEN) {
+			reset();
+			state = State.CLOSED;
+		}
+		else if (state == State.CLOSED) {
+			record(false);
+		}
+	}
+
+	/**
+	 * Record a failed call
+	 */
+	public synchronized void onFailure() {
+		if (state == State.HALF_OPEN) {
+			open();
+		}
+		else if (state == State.CLOSED) {
+			record(true);
+			if (calls >= minCalls && getFailureRate() >= failureRate) {
+				open();
+			}
+		}
+	}
+
+	public synchronized State getState() {
+		if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Get the fraction of failed calls in the window
+	 * @return rate   a value between 0 and 1
+	 */
+	public synchronized double getFailureRate() {
+		return (calls > 0) ? (double) failures / calls : 0.0;
+	}
+
+	private void record(boolean failure) {
+		if (calls == outcomes.length) {
+			if (outcomes[next]) {
+				failures--;
+			}
+		}
+		else {
+			calls++;
+		}
+		outcomes[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % outcomes.length;
+	}
+
+	private void open() {
+		reset();
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + openTime;
+	}
+
+	private void reset() {
+		calls = 0;
+		failures = 0;
+		next = 0;
+		trial = false;
+	}
+
+	private final double failureRate;
+	private final int minCalls;
+	private final long openTime;        // milliseconds
+
+	// guarded by this
+	private final boolean[] outcomes;   // ring buffer, true for a failure
+	private int next = 0;
+	private int calls = 0;
+	private int failures = 0;
+	private State state = State.CLOSED;
+	private long openUntil = 0;
+	private boolean trial = false;
+}
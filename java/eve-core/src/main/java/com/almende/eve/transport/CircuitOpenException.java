@@ -0,0 +1,15 @@
+package com.almende.eve.transport;
+
+import java.net.ConnectException;
+
+/**
+ * Thrown when a request is refused without contacting the destination,
+ * because the circuit breaker of the destination is open.
+ */
+public class CircuitOpenException extends ConnectException {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,359 @@
+package com.almende.eve.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timer optimized for a large number of timeouts, most of which are
+ * cancelled before they expire, such as the timeouts of requests.
+ *
+ * The timeouts are stored in a wheel of buckets. A single worker thread
+ * advances one bucket each tick, and expires the timeouts of that bucket.
+ * Scheduling and cancelling a timeout is O(1) and does not block: new and
+ * cancelled timeouts are queued, and processed by the worker on its next
+ * tick. Timeouts expire with an accuracy of one tick.
+ *
+ * The tasks of expired timeouts are executed by the worker thread, and must
+ * return quickly.
+ *
+ * A single shared instance is available via getInstance().
+ */
+public class HashedWheelTimer {
+	/**
+	 * Create a timer
+	 * @param tickDuration   duration of one tick in milliseconds
+	 * @param wheelSize      number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(long tickDuration, int wheelSize) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration must be positive");
+		}
+		if (wheelSize <= 0) {
+			throw new IllegalArgumentException("wheelSize must be positive");
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.mask = size - 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Get the timer shared by all transport services.
+	 * The timer has a tick of 100 milliseconds.
+	 * @return timer
+	 */
+	public static HashedWheelTimer getInstance() {
+		return SharedInstance.timer;
+	}
+
+	/**
+	 * Schedule a task to be executed after given delay.
+	 * @param task
+	 * @param delay    delay in milliseconds
+	 * @return timeout A handle which can be used to cancel the timeout
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		start();
+		long deadline = System.nanoTime() - startTime +
+				TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		Timeout timeout = new Timeout(this, task, deadline, generation.get());
+		scheduled.add(timeout);
+		pending.incrementAndGet();
+		return timeout;
+	}
+
+	/**
+	 * Get the number of timeouts which are scheduled and not yet expired or
+	 * cancelled
+	 * @return pending
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop the timer. Pending timeouts will not expire anymore.
+	 * The timer is started again by the next call to schedule.
+	 */
+	public void stop() {
+		generation.incrementAndGet();
+		started.set(false);
+	}
+
+	/**
+	 * Start the worker thread, if not yet started. A new worker waits until
+	 * the worker of a previous run has stopped, so the buckets are only
+	 * used by one thread at a time.
+	 */
+	private void start() {
+		if (started.compareAndSet(false, true)) {
+			final int gen = generation.get();
+			final Thread previous = worker;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (previous != null) {
+							previous.join();
+						}
+						work(gen);
+					} catch (InterruptedException e) {}
+				}
+			}, "HashedWheelTimer");
+			thread.setDaemon(true);
+			worker = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Loop of the worker thread
+	 * @param gen      generation of the run of the worker
+	 */
+	private void work(int gen) {
+		try {
+			loop(gen);
+		} finally {
+			clear();
+		}
+	}
+
+	/**
+	 * Advance the wheel until the timer is stopped
+	 * @param gen      generation of the run of the worker
+	 */
+	private void loop(int gen) {
+		long ticks = (System.nanoTime() - startTime) / tick;
+		while (generation.get() == gen) {
+			// wait for the end of the current tick
+			long deadline = tick * (ticks + 1);
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			removeCancelled();
+			addScheduled(ticks, gen);
+			wheel[(int) (ticks & mask)].expire(deadline);
+			ticks++;
+		}
+	}
+
+	/**
+	 * Move the newly scheduled timeouts into their buckets. Timeouts
+	 * scheduled before the timer was stopped are dropped.
+	 * @param ticks    current tick
+	 * @param gen      generation of the run of the worker
+	 */
+	private void addScheduled(long ticks, int gen) {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.generation > gen) {
+				// scheduled for the next run of the timer
+				scheduled.add(timeout);
+				return;
+			}
+			if (timeout.generation < gen) {
+				timeout.drop();
+				continue;
+			}
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			long expiration = timeout.deadline / tick;
+			timeout.rounds = Math.max(expiration - ticks, 0) / wheel.length;
+			timeout.bucket = wheel[(int) (Math.max(expiration, ticks) & mask)];
+			timeout.bucket.add(timeout);
+		}
+	}
+
+	/**
+	 * Remove the cancelled timeouts from their buckets
+	 */
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Drop the timeouts of the wheel when the worker stops
+	 */
+	private void clear() {
+		removeCancelled();
+		for (Bucket bucket : wheel) {
+			while (bucket.head != null) {
+				Timeout timeout = bucket.head;
+				bucket.remove(timeout);
+				timeout.drop();
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task, which can be cancelled
+	 */
+	public static class Timeout {
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline,
+				int generation) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			this.generation = generation;
+		}
+
+		/**
+		 * Cancel the timeout.
+		 * @return cancelled  False if the timeout was already expired or
+		 *                    cancelled
+		 */
+		public boolean cancel() {
+			if (state.compareAndSet(PENDING, CANCELLED)) {
+				timer.pending.decrementAndGet();
+				timer.cancelled.add(this);
+				return true;
+			}
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		/**
+		 * Execute the task if the timeout is not cancelled.
+		 */
+		private void expire() {
+			if (state.compareAndSet(PENDING, EXPIRED)) {
+				timer.pending.decrementAndGet();
+				try {
+					task.run();
+				} catch (Throwable err) {
+					logger.log(Level.WARNING, "Timeout task failed", err);
+				}
+			}
+		}
+
+		/**
+		 * Drop the timeout without executing its task, when the timer
+		 * is stopped.
+		 */
+		private void drop() {
+			if (state.compareAndSet(PENDING, CANCELLED)) {
+				timer.pending.decrementAndGet();
+			}
+		}
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;      // nanoseconds since start of the timer
+		private final int generation;     // run of the timer
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		// only used by the worker thread
+		private long rounds = 0;          // remaining rotations of the wheel
+		private Bucket bucket = null;
+		private Timeout prev = null;
+		private Timeout next = null;
+	}
+
+	/**
+	 * A bucket of the wheel, containing a doubly linked list with timeouts.
+	 * Only used by the worker thread.
+	 */
+	private static class Bucket {
+		void add(Timeout timeout) {
+			timeout.next = head;
+			if (head != null) {
+				head.prev = timeout;
+			}
+			head = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			}
+			else if (head == timeout) {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * Expire all timeouts of this bucket which are due in the
+		 * current rotation
+		 * @param deadline  end of the current tick, in nanoseconds
+		 */
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				}
+				else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private Timeout head = null;
+	}
+
+	/**
+	 * Lazily created shared instance
+	 */
+	private static class SharedInstance {
+		static final HashedWheelTimer timer = new HashedWheelTimer(100, 512);
+	}
+
+	private static Logger logger =
+			Logger.getLogger(HashedWheelTimer.class.getSimpleName());
+
+	private final long tick;                   // tick duration in nanoseconds
+	private final int mask;
+	private final Bucket[] wheel;
+	private final long startTime = System.nanoTime();
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private final AtomicInteger generation = new AtomicInteger(0);
+	private volatile Thread worker = null;
+	private final Queue<Timeout> scheduled =
+			new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled =
+			new ConcurrentLinkedQueue<Timeout>();
+}
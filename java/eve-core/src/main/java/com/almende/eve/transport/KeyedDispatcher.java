@@ -0,0 +1,176 @@
+package com.almende.eve.transport;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatcher executing tasks on a pool of worker threads, while preserving
+ * the order of the tasks per key.
+ *
+ * Tasks with the same key (for example the sender of a request) are
+ * executed one by one, in the order in which they are dispatched, by a 
+ * fixed number of worker threads. Tasks with different keys are executed 
+ * concurrently.
+ *
+ * A task without key is a nested call: a task which an other task in 
+ * progress is waiting for, such as a synchronous call back to the sender of
+ * a request. It would wait forever behind the task of its key, or for a 
+ * worker, so it is executed immediately on an additional thread. The 
+ * number of such threads is bounded by the depth of the nested calls.
+ *
+ * The number of tasks waiting or in progress is limited by the capacity: 
+ * when full, dispatch refuses new tasks, so the caller can reject them.
+ */
+public class KeyedDispatcher {
+	/**
+	 * Create a dispatcher
+	 * @param name       name for the worker threads
+	 * @param threads    number of worker threads executing the tasks with key
+	 * @param capacity   maximum number of tasks waiting or in progress
+	 */
+	public KeyedDispatcher(final String name, int threads, int capacity) {
+		this.capacity = capacity;
+		ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable,
+						name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 0, 
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), 
+				factory);
+		nestedExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+				KEEP_ALIVE, TimeUnit.MILLISECONDS, 
+				new SynchronousQueue<Runnable>(), factory);
+	}
+
+	/**
+	 * Dispatch a task. The task is executed after all tasks previously
+	 * dispatched with the same key. A task without key is a nested call, 
+	 * and is executed immediately.
+	 * @param key           key, or null for a nested call
+	 * @param task
+	 * @return dispatched   False when the dispatcher is full and the task is
+	 *                      refused
+	 */
+	public boolean dispatch(String key, final Runnable task) {
+		if (pending.incrementAndGet() > capacity) {
+			pending.decrementAndGet();
+			return false;
+		}
+
+		if (key == null) {
+			nestedExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					execute(task);
+				}
+			});
+			return true;
+		}
+
+		synchronized (queues) {
+			SerialQueue queue = queues.get(key);
+			if (queue == null) {
+				queue = new SerialQueue(key);
+				queues.put(key, queue);
+			}
+			queue.tasks.add(task);
+			if (!queue.running) {
+				queue.running = true;
+				executor.execute(queue);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of tasks waiting or in progress
+	 * @return pending
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop the worker threads. Waiting tasks are not executed anymore.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		nestedExecutor.shutdownNow();
+	}
+
+	/**
+	 * Execute a dispatched task
+	 * @param task
+	 */
+	private void execute(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable err) {
+			logger.log(Level.WARNING, "Task failed", err);
+		} finally {
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The queue with tasks of a single key. At most one worker at a time
+	 * executes the tasks of a queue.
+	 */
+	private class SerialQueue implements Runnable {
+		SerialQueue(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			// execute a limited batch, then give other keys a turn
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				Runnable task;
+				synchronized (queues) {
+					task = tasks.poll();
+					if (task == null) {
+						running = false;
+						queues.remove(key);
+						return;
+					}
+				}
+
+				execute(task);
+			}
+			executor.execute(this);
+		}
+
+		private final String key;
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		private boolean running = false;  // guarded by queues
+	}
+
+	private static int BATCH_SIZE = 16;
+	private static long KEEP_ALIVE = 60 * 1000; // idle nested threads, milliseconds
+	private static Logger logger =
+			Logger.getLogger(KeyedDispatcher.class.getSimpleName());
+
+	private final int capacity;
+	private final ExecutorService executor;
+	private final ExecutorService nestedExecutor;
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicInteger count = new AtomicInteger(0);
+	private final Map<String, SerialQueue> queues =
+			new HashMap<String, SerialQueue>(); // key:queue
+}
@@ -0,0 +1,263 @@
+package com.almende.eve.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Table routing urls to the registered transport services.
+ *
+ * The base urls of the services (see TransportService.getBaseUrls) are
+ * compiled into a prefix trie, so the service of a local agent is found
+ * in a single pass over the url. Services without fixed base urls are asked
+ * via getAgentId. Resolved urls are kept in a bounded cache, and the
+ * services per protocol are precomputed, so routing a known url does not
+ * allocate.
+ *
+ * A table is immutable: the AgentFactory builds a new table when transport
+ * services are added or removed.
+ */
+public class RoutingTable {
+	/**
+	 * Compile a routing table
+	 * @param services   the registered transport services, in order of
+	 *                   registration
+	 */
+	public RoutingTable(List<TransportService> services) {
+		List<TransportService> dynamic = new ArrayList<TransportService>();
+		List<TransportService> preferring = new ArrayList<TransportService>();
+		Map<String, List<TransportService>> protocols =
+				new LinkedHashMap<String, List<TransportService>>();
+		for (TransportService service : services) {
+			List<String> baseUrls = service.getBaseUrls();
+			if (baseUrls != null) {
+				for (String baseUrl : baseUrls) {
+					root.insert(baseUrl, service);
+				}
+			}
+			else {
+				dynamic.add(service);
+			}
+
+			if (overridesPreferredUrl(service)) {
+				preferring.add(service);
+			}
+
+			for (String protocol : service.getProtocols()) {
+				List<TransportService> list = protocols.get(protocol);
+				if (list == null) {
+					list = new ArrayList<TransportService>();
+					protocols.put(protocol, list);
+				}
+				list.add(service);
+			}
+		}
+
+		this.dynamic = dynamic.toArray(new TransportService[dynamic.size()]);
+		this.preferring = preferring.toArray(
+				new TransportService[preferring.size()]);
+		this.protocols = new String[protocols.size()];
+		this.services = new TransportService[protocols.size()];
+		int i = 0;
+		for (Map.Entry<String, List<TransportService>> entry :
+				protocols.entrySet()) {
+			this.protocols[i] = entry.getKey();
+			this.services[i] = entry.getValue().get(0);
+			servicesByProtocol.put(entry.getKey(),
+					Collections.unmodifiableList(entry.getValue()));
+			i++;
+		}
+	}
+
+	/**
+	 * Get the id of a local agent from its url
+	 * @param agentUrl
+	 * @return agentId   null when the url is not served by any of the
+	 *                   services
+	 */
+	public String getAgentId(String agentUrl) {
+		if (agentUrl == null) {
+			return null;
+		}
+
+		Object resolved = resolved(agentUrl);
+		if (resolved != NONE) {
+			return (String) resolved;
+		}
+
+		for (TransportService service : dynamic) {
+			String agentId = service.getAgentId(agentUrl);
+			if (agentId != null) {
+				return agentId;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the transport service to send a request to given url, the first
+	 * registered service supporting the protocol of the url
+	 * @param url
+	 * @return service   null when none of the services supports the
+	 *                   protocol
+	 */
+	public TransportService route(String url) {
+		for (int i = 0; i < protocols.length; i++) {
+			String protocol = protocols[i];
+			int length = protocol.length();
+			if (url.length() > length && url.charAt(length) == ':' &&
+					url.startsWith(protocol)) {
+				return services[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get all services supporting given protocol
+	 * @param protocol
+	 * @return services   an unmodifiable list
+	 */
+	public List<TransportService> getTransportServices(String protocol) {
+		List<TransportService> list = servicesByProtocol.get(protocol);
+		if (list != null) {
+			return list;
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Get the url via which a remote agent is reached best, as offered by
+	 * one of the services via TransportService.getPreferredUrl
+	 * @param agentUrl
+	 * @return url      the preferred url, or agentUrl itself
+	 */
+	public String getPreferredUrl(String agentUrl) {
+		for (TransportService service : preferring) {
+			String url = service.getPreferredUrl(agentUrl);
+			if (url != null) {
+				return url;
+			}
+		}
+		return agentUrl;
+	}
+
+	/**
+	 * Resolve a url via the trie of base urls
+	 * @param url
+	 * @return agentId   NONE when no service with base urls serves the url
+	 */
+	private Object resolved(String url) {
+		Object agentId = cache.get(url);
+		if (agentId == null) {
+			TransportService service = root.match(url);
+			agentId = (service != null) ? service.getAgentId(url) : null;
+			if (agentId == null) {
+				agentId = NONE;
+			}
+			if (cache.size() >= CACHE_SIZE) {
+				cache.clear();
+			}
+			cache.put(url, agentId);
+		}
+		return agentId;
+	}
+
+	/**
+	 * Test whether a service offers preferred urls, which is the case when
+	 * it overrides TransportService.getPreferredUrl
+	 * @param service
+	 * @return preferring
+	 */
+	private static boolean overridesPreferredUrl(TransportService service) {
+		try {
+			return service.getClass().getMethod("getPreferredUrl",
+					String.class).getDeclaringClass() != TransportService.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Node of the prefix trie. The children are kept in arrays, as the
+	 * number of children per node is small.
+	 */
+	private static class Node {
+		void insert(String prefix, TransportService service) {
+			Node node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				char c = prefix.charAt(i);
+				Node next = node.child(c);
+				if (next == null) {
+					next = new Node();
+					int size = node.keys.length;
+					char[] keys = new char[size + 1];
+					Node[] children = new Node[size + 1];
+					System.arraycopy(node.keys, 0, keys, 0, size);
+					System.arraycopy(node.children, 0, children, 0, size);
+					keys[size] = c;
+					children[size] = next;
+					node.keys = keys;
+					node.children = children;
+				}
+				node = next;
+			}
+			// the first registered service wins
+			if (node.service == null) {
+				node.service = service;
+			}
+		}
+
+		/**
+		 * Find the service with the longest base url matching the start
+		 * of given url
+		 * @param url
+		 * @return service   null if there is no match
+		 */
+		TransportService match(String url) {
+			TransportService match = service;
+			Node node = this;
+			for (int i = 0; i < url.length(); i++) {
+				node = node.child(url.charAt(i));
+				if (node == null) {
+					break;
+				}
+				if (node.service != null) {
+					match = node.service;
+				}
+			}
+			return match;
+		}
+
+		private Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private TransportService service = null;
+	}
+
+	private static int CACHE_SIZE = 10000;
+	private static final Object NONE = new Object();
+
+	private final Node root = new Node();
+	private final TransportService[] dynamic;
+	private final TransportService[] preferring;
+	private final String[] protocols;
+	private final TransportService[] services;      // first service per protocol
+	private final Map<String, List<TransportService>> servicesByProtocol =
+			new HashMap<String, List<TransportService>>();
+	private final ConcurrentMap<String, Object> cache =
+			new ConcurrentHashMap<String, Object>(); // url:agentId or NONE
+}
@@ -11,6 +11,7 @@ import com.almende.eve.rpc.jsonrpc.JSONResponse;
 public abstract class TransportService {
 	public TransportService(AgentFactory agentFactory) {
 		this.agentFactory = agentFactory;
+		callbacks = new AsyncCallbackQueue<JSONResponse>(getDefaultTimeout());
 	}
 	
 	/**
@@ -49,6 +50,42 @@ public abstract class TransportService {
 			final JSONRequest request, 
 			final AsyncCallback<JSONResponse> callback) throws Exception;
 	
+	/**
+	 * Asynchronously Send a message to an other agent, with a custom timeout.
+	 * If no response is received within the timeout, callback.onFailure is
+	 * invoked with a TimeoutException.
+	 * @param senderId
+	 * @oaran receiverUrl
+	 * @param request
+	 * @param callback with a JSONResponse
+	 * @param timeout  timeout in milliseconds
+	 */
+	public void sendAsync (final String senderId, final String receiver, 
+			final JSONRequest request, 
+			final AsyncCallback<JSONResponse> callback, 
+			final long timeout) throws Exception {
+		sendAsync(senderId, receiver, request, callbacks.wrap(callback, timeout));
+	}
+
+	/**
+	 * Get the default timeout for requests: the callback timeout of the
+	 * agent factory, unless the service is configured with its own timeout
+	 * @return timeout   timeout in milliseconds
+	 */
+	protected long getDefaultTimeout() {
+		return (agentFactory != null) ? 
+				agentFactory.getCallbackTimeout() : 
+				AsyncCallbackQueue.DEFAULT_TIMEOUT;
+	}
+
+	/**
+	 * Get the queue with the callbacks of the requests in progress
+	 * @return callbacks
+	 */
+	public AsyncCallbackQueue<JSONResponse> getCallbackQueue() {
+		return callbacks;
+	}
+
 	/*
 	// TODO: implement new send async method
 	public abstract void sendAsync (final String senderId, final String receiver, 
@@ -61,6 +98,52 @@ public abstract class TransportService {
 	 */
 	public abstract void init(Map<String, Object> params);
 	
+	/**
+	 * Get a url served by this service, which reaches the same remote agent
+	 * as given url via a shorter path. For example a service connecting
+	 * the factories on the same host can offer a path avoiding the network.
+	 * Returns null when the service offers no such path, which is the 
+	 * default.
+	 * @param agentUrl
+	 * @return url
+	 */
+	public String getPreferredUrl(String agentUrl) {
+		return null;
+	}
+
+	/**
+	 * Get the base urls of the agents served by this service: the url of
+	 * each agent is one of the base urls followed by its id. The 
+	 * AgentFactory uses the base urls to route urls to the service without 
+	 * invoking getAgentId for every url. Returns null when the agent urls 
+	 * of the service do not have fixed base urls, which is the default: 
+	 * the service is then asked via getAgentId.
+	 * @return baseUrls
+	 */
+	public List<String> getBaseUrls() {
+		return null;
+	}
+
+	/**
+	 * Test whether the service is ready to send and receive messages.
+	 * A service can need time to become ready after initialization, for 
+	 * example to restore persisted connections.
+	 * @return ready
+	 */
+	public boolean isReady() {
+		return true;
+	}
+
+	/**
+	 * Wait until the service is ready to send and receive messages
+	 * @param timeout   timeout in milliseconds
+	 * @return ready    false if the service was not ready within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitReady(long timeout) throws InterruptedException {
+		return isReady();
+	}
+
 	/**
 	 * Get the protocols supported by this service
 	 * @return protocols
@@ -75,5 +158,6 @@ public abstract class TransportService {
 	}
 	
 	protected AgentFactory agentFactory = null;
+	protected AsyncCallbackQueue<JSONResponse> callbacks = null;
 }
 
@@ -2,9 +2,18 @@ package com.almende.eve.transport.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -13,7 +22,11 @@ import javax.servlet.http.HttpServletResponse;
 import com.almende.eve.agent.Agent;
 import com.almende.eve.agent.AgentFactory;
 import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.probe.Probes;
+import com.almende.eve.agent.log.EventLogger;
 import com.almende.eve.agent.log.Log;
+import com.almende.eve.agent.log.LogListener;
+import com.almende.eve.capture.TrafficRecorder;
 import com.almende.eve.config.Config;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
@@ -22,12 +35,18 @@ import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.util.StreamingUtil;
 import com.almende.util.StringUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @SuppressWarnings("serial")
 public class AgentServlet extends HttpServlet {
 	private Logger logger = Logger.getLogger(this.getClass().getSimpleName());
 	
 	private static String RESOURCES = "/com/almende/eve/resources/";
+	private static long MAX_WAIT = 60 * 1000;          // long-poll, milliseconds
+	private static long STREAM_TIMEOUT = 5 * 60 * 1000; // event stream, milliseconds
+	private static long POLLING_INTERVAL = 10 * 1000;   // event stream retry, milliseconds
 	AgentFactory agentFactory = null;
 	HttpService httpTransport = null;
 	
@@ -84,15 +103,46 @@ public class AgentServlet extends HttpServlet {
 		if (resource.equals("events")) {
 			// retrieve the agents logs
 			String sinceStr = req.getParameter("since");
+			String afterStr = req.getParameter("after");
+			String lastEventId = req.getHeader("Last-Event-ID");
+			if (lastEventId != null && !lastEventId.isEmpty()) {
+				// a reconnecting event stream resumes after its last event
+				afterStr = lastEventId;
+			}
+			String waitStr = req.getParameter("wait");
+			Long after = null;
 			Long since = null;
-			if (sinceStr != null) {
-				since = Long.valueOf(sinceStr);
+			long wait = 0;
+			try {
+				if (afterStr != null) {
+					after = Long.valueOf(afterStr);
+				}
+				if (sinceStr != null) {
+					since = Long.valueOf(sinceStr);
+				}
+				if (waitStr != null) {
+					wait = Math.min(Long.valueOf(waitStr), MAX_WAIT);
+				}
+			} catch (NumberFormatException e) {
+				resp.sendError(400, "Invalid number: " + e.getMessage());
+				return;
 			}
 			
 			try {
-				List<Log> logs = agentFactory.getEventLogger().getLogs(agentId, since);
-				resp.addHeader("Content-type", "application/json");				
-				JOM.getInstance().writer().writeValue(resp.getWriter(), logs);
+				String accept = req.getHeader("Accept");
+				if (accept != null && accept.contains("text/event-stream")) {
+					streamEvents(req, resp, agentId, after);
+				}
+				else if (since != null && after == null) {
+					// logs since a timestamp, without waiting
+					List<Log> logs = agentFactory.getEventLogger().getLogs(
+							agentId, since);
+					resp.addHeader("Content-type", "application/json");
+					JOM.getInstance().writer().writeValue(resp.getWriter(), logs);
+				}
+				else {
+					getEvents(req, resp, agentId, after, wait);
+				}
 			} catch (Exception e) {
 				resp.sendError(500, e.getMessage());
 			}
@@ -111,11 +161,258 @@ public class AgentServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Retrieve the logs of an agent as a JSON array.
+	 * When wait is larger than zero and there are no logs after given 
+	 * sequence number, the request is parked (long-polling) until the first 
+	 * new log arrives or wait milliseconds have passed. All logs after given
+	 * sequence number are returned then, so a burst of logs is returned at
+	 * once. Without support for asynchronous requests, the logs are returned
+	 * immediately.
+	 * The response is written by a container thread, as the listener is 
+	 * invoked from the ingestion thread of the EventLogger.
+	 * Usage: GET /servlet/{agentId}/events?after={sequence}&wait={millis}
+	 */
+	private void getEvents(HttpServletRequest req, HttpServletResponse resp,
+			final String agentId, final Long after, long wait) throws Exception {
+		final EventLogger eventLogger = agentFactory.getEventLogger();
+		List<Log> logs = eventLogger.getLogsAfter(agentId, after);
+		if (!logs.isEmpty() || wait <= 0 || !req.isAsyncSupported()) {
+			resp.addHeader("Content-type", "application/json");
+			JOM.getInstance().writer().writeValue(resp.getWriter(), logs);
+			return;
+		}
+		
+		final AsyncContext async = req.startAsync();
+		async.setTimeout(wait);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final LogListener listener = new LogListener() {
+			@Override
+			public void onLog(Log log) throws Exception {
+				if (done.compareAndSet(false, true)) {
+					eventLogger.removeListener(agentId, this);
+					final Log first = log;
+					async.start(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								// include the logs ingested in the meantime
+								List<Log> logs = 
+										eventLogger.getLogsAfter(agentId, after);
+								if (logs.isEmpty()) {
+									logs.add(first);
+								}
+								writeEvents(async, logs);
+							} catch (Exception e) {
+								logger.fine("Failed to write events: " + e);
+							}
+						}
+					});
+				}
+			}
+		};
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					eventLogger.removeListener(agentId, listener);
+					writeEvents(async, new ArrayList<Log>());
+				}
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				done.set(true);
+				eventLogger.removeListener(agentId, listener);
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				done.set(true);
+				eventLogger.removeListener(agentId, listener);
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {}
+		});
+		try {
+			eventLogger.addListener(agentId, after, listener);
+		} catch (RejectedExecutionException e) {
+			// the event logger is overloaded: return the current logs, the
+			// client polls again
+			if (done.compareAndSet(false, true)) {
+				writeEvents(async, eventLogger.getLogsAfter(agentId, after));
+			}
+		}
+	}
+	
+	/**
+	 * Write logs as JSON array to the response of a parked request, and 
+	 * complete the request.
+	 * @param async
+	 * @param logs
+	 * @throws IOException
+	 */
+	private void writeEvents(AsyncContext async, List<Log> logs) 
+			throws IOException {
+		try {
+			HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+			resp.addHeader("Content-type", "application/json");
+			JOM.getInstance().writer().writeValue(resp.getWriter(), logs);
+		} finally {
+			async.complete();
+		}
+	}
+	
+	/**
+	 * Stream the logs of an agent as Server-Sent Events. Each event has the 
+	 * sequence number of the log as id and the log as JSON data, so a 
+	 * reconnecting client resumes after the last received log via the 
+	 * Last-Event-ID header.
+	 * The stream is closed after STREAM_TIMEOUT, after which the client 
+	 * reconnects. Without support for asynchronous requests, the current logs
+	 * are sent and the stream is closed immediately.
+	 * Usage: GET /servlet/{agentId}/events
+	 *        With header "Accept: text/event-stream"
+	 */
+	private void streamEvents(HttpServletRequest req, HttpServletResponse resp,
+			final String agentId, Long after) throws Exception {
+		final EventLogger eventLogger = agentFactory.getEventLogger();
+		resp.setContentType("text/event-stream");
+		resp.setCharacterEncoding("UTF-8");
+		resp.addHeader("Cache-Control", "no-cache");
+		
+		if (!req.isAsyncSupported()) {
+			PrintWriter writer = resp.getWriter();
+			writer.write("retry: " + POLLING_INTERVAL + "\n\n");
+			for (Log log : eventLogger.getLogsAfter(agentId, after)) {
+				writeEvent(writer, log);
+			}
+			writer.close();
+			return;
+		}
+		
+		final AsyncContext async = req.startAsync();
+		async.setTimeout(STREAM_TIMEOUT);
+		resp.getWriter().flush();
+		final EventStream stream = new EventStream(agentId, async);
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				stream.close();
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				eventLogger.removeListener(agentId, stream);
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				eventLogger.removeListener(agentId, stream);
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {}
+		});
+		try {
+			eventLogger.addListener(agentId, after, stream);
+		} catch (RejectedExecutionException e) {
+			// the event logger is overloaded: the client reconnects
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Event stream of a single client. The listener only queues the logs,
+	 * as it is invoked from the ingestion thread of the EventLogger. The 
+	 * queued logs are written and flushed by a container thread, one thread
+	 * at a time, so the events are written in order.
+	 */
+	private class EventStream implements LogListener, Runnable {
+		EventStream(String agentId, AsyncContext async) {
+			this.agentId = agentId;
+			this.async = async;
+		}
+		
+		@Override
+		public void onLog(Log log) throws Exception {
+			if (closed.get()) {
+				// unregisters the listener
+				throw new IOException("Event stream closed");
+			}
+			queue.add(log);
+			if (writing.compareAndSet(false, true)) {
+				async.start(this);
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				do {
+					PrintWriter writer = async.getResponse().getWriter();
+					Log log = queue.poll();
+					while (log != null) {
+						writeEvent(writer, log);
+						log = queue.poll();
+					}
+					writer.flush();
+					if (writer.checkError()) {
+						// client disconnected
+						close();
+						return;
+					}
+					writing.set(false);
+				} while (!queue.isEmpty() && writing.compareAndSet(false, true));
+			} catch (Exception e) {
+				close();
+			}
+		}
+		
+		/**
+		 * Stop listening for logs and complete the request
+		 */
+		void close() {
+			if (closed.compareAndSet(false, true)) {
+				agentFactory.getEventLogger().removeListener(agentId, this);
+				try {
+					async.complete();
+				} catch (IllegalStateException e) {
+					// already completed
+				}
+			}
+		}
+		
+		private final String agentId;
+		private final AsyncContext async;
+		private final Queue<Log> queue = new ConcurrentLinkedQueue<Log>();
+		private final AtomicBoolean writing = new AtomicBoolean(false);
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+	}
+	
+	/**
+	 * Write a single log as Server-Sent Event. The writer is not flushed.
+	 * @param writer
+	 * @param log
+	 * @throws IOException
+	 */
+	private static void writeEvent(PrintWriter writer, Log log) 
+			throws IOException {
+		writer.write("id: " + log.getSequence() + "\n");
+		writer.write("data: " + JOM.getInstance().writeValueAsString(log) + 
+				"\n\n");
+	}
+
 	/**
 	 * Send a JSON-RPC message to an agent
 	 * Usage: POST /servlet/{agentId}
 	 *        With a JSON-RPC request as body.
 	 *        Response will be a JSON-RPC response.
+	 * Usage: POST /servlet/
+	 *        With an array of JSON-RPC requests as body, each containing
+	 *        the id of the receiving agent in the member "to".
+	 *        Response will be an array of JSON-RPC responses.
 	 */
 	@Override
 	public void doPost(HttpServletRequest req, HttpServletResponse resp)
@@ -128,6 +425,10 @@ public class AgentServlet extends HttpServlet {
 		try {
 			// retrieve the agent url and the request body
 			body = StringUtil.streamToString(req.getInputStream());
+			if (body.trim().startsWith("[")) {
+				postBatch(req, resp, body);
+				return;
+			}
 			jsonRequest = new JSONRequest(body);
 
 			// TODO: append authorized sender url to the request parameters
@@ -141,19 +442,10 @@ public class AgentServlet extends HttpServlet {
 				resp.sendError(400, "No agentId found in url.");
 				return;
 			}
-			jsonResponse = agentFactory.invoke(agentId, jsonRequest, requestParams);
+			jsonResponse = invoke(agentId, jsonRequest, requestParams);
 		} catch (Exception err) {
 			// generate JSON error response
-			JSONRPCException jsonError = null;
-			if (err instanceof JSONRPCException) {
-				jsonError = (JSONRPCException) err;
-			}
-			else {
-				jsonError = new JSONRPCException(
-						JSONRPCException.CODE.INTERNAL_ERROR, err.getMessage());
-				jsonError.setData(err);
-			}
-			jsonResponse = new JSONResponse(jsonError);
+			jsonResponse = createErrorResponse(null, err);
 		}
 
 		// return response
@@ -162,6 +454,115 @@ public class AgentServlet extends HttpServlet {
 		resp.getWriter().close();
 	}
 
+	/**
+	 * Execute a batch of JSON-RPC requests. Each request is invoked on the 
+	 * agent in its member "to", or on the agent in the url when missing.
+	 * The responses are returned as an array, in the order of the requests.
+	 * Notifications (requests without id) get no response.
+	 * @param req
+	 * @param resp
+	 * @param body
+	 * @throws IOException
+	 */
+	private void postBatch(HttpServletRequest req, HttpServletResponse resp,
+			String body) throws IOException {
+		String urlAgentId = httpTransport.getAgentId(req.getRequestURI());
+		ArrayNode responses = JOM.createArrayNode();
+		ArrayNode requests = null;
+		try {
+			requests = JOM.getInstance().readValue(body, ArrayNode.class);
+			if (requests.size() == 0) {
+				throw new JSONRPCException(JSONRPCException.CODE.INVALID_REQUEST,
+						"Batch is empty");
+			}
+		} catch (Exception err) {
+			responses.add(createErrorResponse(null, err).getObjectNode());
+			requests = JOM.createArrayNode();
+		}
+
+		for (JsonNode node : requests) {
+			JsonNode id = node.get("id");
+			JSONResponse jsonResponse = null;
+			try {
+				if (!node.isObject()) {
+					throw new JSONRPCException(
+							JSONRPCException.CODE.INVALID_REQUEST, 
+							"Request is no object");
+				}
+				ObjectNode request = (ObjectNode) node;
+				JsonNode to = request.remove("to");
+				String agentId = (to != null) ? to.asText() : urlAgentId;
+				if (agentId == null || agentId.isEmpty()) {
+					throw new JSONRPCException(
+							JSONRPCException.CODE.INVALID_REQUEST, 
+							"No agentId found in member 'to' or in url");
+				}
+
+				// TODO: append authorized sender url to the request parameters
+				RequestParams requestParams =  new RequestParams();
+				requestParams.put(Sender.class, null);
+				JSONRequest jsonRequest = new JSONRequest(request);
+				jsonResponse = invoke(agentId, jsonRequest, requestParams);
+			} catch (Exception err) {
+				jsonResponse = createErrorResponse(id, err);
+			}
+			if (id != null && !id.isNull()) {
+				responses.add(jsonResponse.getObjectNode());
+			}
+		}
+
+		resp.addHeader("Content-Type", "application/json");
+		resp.getWriter().println(responses.toString());
+		resp.getWriter().close();
+	}
+
+	/**
+	 * Invoke a request on an agent. The invocation is measured by the probe,
+	 * and captured when a traffic recorder is configured, also when it 
+	 * throws an exception.
+	 * @param agentId
+	 * @param request
+	 * @param requestParams
+	 * @return response
+	 * @throws Exception
+	 */
+	private JSONResponse invoke(String agentId, JSONRequest request, 
+			RequestParams requestParams) throws Exception {
+		TrafficRecorder recorder = agentFactory.getTrafficRecorder();
+		long start = (recorder != null) ? System.nanoTime() : Probes.start();
+		JSONResponse response = null;
+		try {
+			response = agentFactory.invoke(agentId, request, requestParams);
+			Probes.received("http", request, response, start);
+			return response;
+		}
+		finally {
+			if (recorder != null) {
+				recorder.record("http", agentId, null, request, response, 
+						start);
+			}
+		}
+	}
+
+	/**
+	 * Create a JSON-RPC response for an error
+	 * @param id
+	 * @param err
+	 * @return response
+	 */
+	private JSONResponse createErrorResponse(Object id, Exception err) {
+		JSONRPCException jsonError = null;
+		if (err instanceof JSONRPCException) {
+			jsonError = (JSONRPCException) err;
+		}
+		else {
+			jsonError = new JSONRPCException(
+					JSONRPCException.CODE.INTERNAL_ERROR, err.getMessage());
+			jsonError.setData(err);
+		}
+		return new JSONResponse(id, jsonError);
+	}
+
 	/**
 	 * Create a new agent
 	 * Usage: PUT /servlet/{agentId}?class={agentClass}
@@ -299,6 +700,19 @@ public class AgentServlet extends HttpServlet {
 			"    A 404 error will be returned when the agent does not exist.\n" +
 			"\n" +
 			
+			"GET " + servletUrl + "{agentId}/events?since={timestamp}\n" +
+			"\n" +
+			"    Returns the events triggered by an agent since given timestamp.\n" +
+			"\n" +
+			"GET " + servletUrl + "{agentId}/events?after={sequence}&wait={millis}\n" +
+			"\n" +
+			"    Returns the events triggered by an agent after the event with\n" +
+			"    given sequence number. With wait, the request waits up to wait\n" +
+			"    milliseconds for a new event when there are none. With the\n" +
+			"    header \"Accept: text/event-stream\", the events are streamed\n" +
+			"    as Server-Sent Events.\n" +
+			"\n" +
+			
 			"POST " + servletUrl + "{agentId}\n" +
 			"\n" +
 			"    Send an RPC call to an agent.\n" +
@@ -309,6 +723,14 @@ public class AgentServlet extends HttpServlet {
 			"    A 404 error will be returned when the agent does not exist.\n" +
 			"\n" +
 			
+			"POST " + servletUrl + "\n" +
+			"\n" +
+			"    Send a batch of RPC calls to agents.\n" +
+			"    The body of the request must contain an array with JSON-RPC\n" +
+			"    requests, each with the id of the receiving agent in the\n" +
+			"    member \"to\". Returns an array with the JSON-RPC responses.\n" +
+			"\n" +
+			
 			"PUT " + servletUrl + "{agentId}?class={agentClass}\n" +
 			"\n" +
 			"    Create an agent. agentId can be any string. agentClass must\n" +
@@ -1,20 +1,69 @@
 package com.almende.eve.transport.http;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.almende.eve.agent.AgentFactory;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.CircuitBreaker;
+import com.almende.eve.transport.CircuitOpenException;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.HttpUtil;
 
+/**
+ * Transport service for communication with agents via HTTP.
+ * 
+ * Outgoing requests are guarded per remote host. Optionally, a circuit 
+ * breaker refuses requests to a host which fails too often, failed 
+ * requests are retried with a jittered exponential backoff, and requests
+ * which take longer than usual are hedged: a second request is sent, and 
+ * the first response is used. Only notifications (requests without id) and 
+ * methods configured as idempotent are retried after a failure, other 
+ * requests only when the host could not be connected. Only idempotent 
+ * methods are hedged. Statistics per host are available via getHostStats.
+ * 
+ * Configuration:
+ *     transport_services:
+ *     - class: HttpService
+ *       servlet_url: http://localhost:8080/agents/
+ *       connect_timeout: 10000    # milliseconds
+ *       read_timeout: 10000       # milliseconds
+ *       idempotent_methods: [getName, getType]
+ *       circuit_breaker:
+ *         failure_rate: 0.5       # open when half of the recent requests fail
+ *         window: 20              # number of recent requests
+ *         min_calls: 10           # minimum number of requests before opening
+ *         open_time: 30000        # milliseconds before a trial request
+ *       retry:
+ *         max_attempts: 3
+ *         backoff: 100            # initial backoff in milliseconds
+ *         max_backoff: 5000       # maximum backoff in milliseconds
+ *       hedge:
+ *         percentile: 0.95        # hedge after the 95th percentile latency
+ *         min_samples: 20         # minimum number of measured latencies
+ * The circuit breaker, retries and hedging are disabled when not configured.
+ */
 public class HttpService extends TransportService {
 	public HttpService(AgentFactory agentFactory) {
 		super(agentFactory);
@@ -24,12 +73,45 @@ public class HttpService extends TransportService {
 	 * Initialize the transport service with a set of parameters
 	 * @param params   Available parameters:
 	 *                 {String} servlet_url
+	 *                 {Integer} connect_timeout
+	 *                 {Integer} read_timeout
+	 *                 {String[]} idempotent_methods
+	 *                 {Map} circuit_breaker
+	 *                 {Map} retry
+	 *                 {Map} hedge
 	 */
 	@Override
 	// TODO: make init private and call from the constructor.
+	@SuppressWarnings("unchecked")
 	public void init(Map<String, Object> params) {
 		if (params != null) {
 			setServletUrl((String) params.get("servlet_url"));
+
+			connectTimeout = getNumber(params, "connect_timeout", 
+					connectTimeout).intValue();
+			readTimeout = getNumber(params, "read_timeout", 
+					readTimeout).intValue();
+			Collection<String> methods = 
+					(Collection<String>) params.get("idempotent_methods");
+			if (methods != null) {
+				idempotentMethods = new HashSet<String>(methods);
+			}
+
+			breakerParams = (Map<String, Object>) params.get("circuit_breaker");
+
+			Map<String, Object> retry = (Map<String, Object>) params.get("retry");
+			if (retry != null) {
+				maxAttempts = getNumber(retry, "max_attempts", 3).intValue();
+				backoff = getNumber(retry, "backoff", backoff).longValue();
+				maxBackoff = getNumber(retry, "max_backoff", maxBackoff).longValue();
+			}
+
+			Map<String, Object> hedge = (Map<String, Object>) params.get("hedge");
+			if (hedge != null) {
+				hedgePercentile = getNumber(hedge, "percentile", 0.95).doubleValue();
+				hedgeMinSamples = getNumber(hedge, "min_samples", 
+						hedgeMinSamples).intValue();
+			}
 		}
 	}
 	
@@ -80,7 +162,9 @@ public class HttpService extends TransportService {
 	}
 	
 	/**
-	 * Send a JSON-RPC request to an agent via HTTP
+	 * Send a JSON-RPC request to an agent via HTTP.
+	 * The request is retried and hedged when configured. When the circuit
+	 * breaker of the remote host is open, a CircuitOpenException is thrown.
 	 * @param senderId    Unused in the case of a HttpTransport
 	 * @param receiverUrl
 	 * @param request
@@ -93,8 +177,9 @@ public class HttpService extends TransportService {
 		JSONResponse response;
 
 		// invoke via http request
-		String req = request.toString();
-		String resp = HttpUtil.post(receiverUrl, req);
+		boolean idempotent = idempotentMethods.contains(request.getMethod());
+		String resp = postWithRetries(receiverUrl, request.toString(), 
+				isRetryable(request), idempotent && hedgePercentile != null);
 
 		try {
 			response = new JSONResponse(resp);
@@ -116,7 +201,7 @@ public class HttpService extends TransportService {
 	public void sendAsync(final String senderId, final String receiverUrl, 
 			final JSONRequest request,
 			final AsyncCallback<JSONResponse> callback) {
-		new Thread(new Runnable () {
+		agentFactory.getExecutor().execute(new Runnable () {
 			@Override
 			public void run() {
 				JSONResponse response;
@@ -127,7 +212,214 @@ public class HttpService extends TransportService {
 					callback.onFailure(e);
 				}
 			}
-		}).start();
+		});
+	}
+
+	/**
+	 * Post a JSON-RPC batch to a remote host, guarded by the circuit breaker
+	 * of the host like a single request. The batch is retried when every 
+	 * request in it can be retried. Batches are not hedged.
+	 * @param url        url accepting batches
+	 * @param requests   the requests in the batch
+	 * @param body       the batch, an array with the requests
+	 * @return response  an array with the responses
+	 * @throws Exception
+	 */
+	public String postBatch(String url, List<JSONRequest> requests, 
+			String body) throws Exception {
+		boolean retryable = true;
+		for (JSONRequest request : requests) {
+			retryable = retryable && isRetryable(request);
+		}
+		return postWithRetries(url, body, retryable, false);
+	}
+
+	/**
+	 * Test whether a request may be delivered more than once
+	 * @param request
+	 * @return retryable   true for notifications and idempotent methods
+	 */
+	private boolean isRetryable(JSONRequest request) {
+		return idempotentMethods.contains(request.getMethod()) || 
+				request.getId() == null;
+	}
+
+	/**
+	 * Post a message to a remote host, and retry on failure when configured
+	 * @param url
+	 * @param body
+	 * @param retryable   whether the message may be delivered more than
+	 *                    once. If not, it is only retried when the host 
+	 *                    could not be connected.
+	 * @param hedged      whether to hedge slow attempts
+	 * @return response
+	 * @throws Exception
+	 */
+	private String postWithRetries(String url, String body, 
+			boolean retryable, boolean hedged) throws Exception {
+		RemoteHost host = getRemoteHost(url);
+		String resp = null;
+		for (int attempt = 1; resp == null; attempt++) {
+			try {
+				if (hedged) {
+					resp = postHedged(host, url, body);
+				}
+				else {
+					resp = post(host, url, body);
+				}
+			} catch (IOException e) {
+				// a request which could not be connected was not delivered,
+				// and can be retried safely
+				if (attempt >= maxAttempts || e instanceof CircuitOpenException ||
+						e instanceof FileNotFoundException ||
+						!(retryable || e instanceof ConnectException)) {
+					throw e;
+				}
+				host.onRetry();
+				Thread.sleep(getBackoff(attempt));
+			}
+		}
+		return resp;
+	}
+
+	/**
+	 * Post a request to a remote host, guarded by its circuit breaker
+	 * @param host
+	 * @param url
+	 * @param body
+	 * @return response
+	 * @throws IOException
+	 */
+	private String post(RemoteHost host, String url, String body) 
+			throws IOException {
+		if (!host.allow()) {
+			throw new CircuitOpenException(
+					"Circuit breaker open for host " + host.getHost());
+		}
+		long start = System.currentTimeMillis();
+		try {
+			String resp = HttpUtil.fetch("POST", url, body, null, 
+					connectTimeout, readTimeout);
+			host.onSuccess(System.currentTimeMillis() - start);
+			return resp;
+		} catch (FileNotFoundException e) {
+			// the host is available, the agent is not found
+			host.onSuccess(System.currentTimeMillis() - start);
+			throw e;
+		} catch (IOException e) {
+			host.onFailure();
+			throw e;
+		} catch (RuntimeException e) {
+			host.onFailure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Post a request to a remote host. When there is no response within the
+	 * configured latency percentile of the host, a second request is sent,
+	 * and the first successful response is returned.
+	 * @param host
+	 * @param url
+	 * @param body
+	 * @return response
+	 * @throws Exception
+	 */
+	private String postHedged(final RemoteHost host, final String url, 
+			final String body) throws Exception {
+		Long delay = (host.getSampleCount() >= hedgeMinSamples) ?
+				host.getLatency(hedgePercentile) : null;
+		if (delay == null) {
+			return post(host, url, body);
+		}
+
+		Callable<String> call = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return post(host, url, body);
+			}
+		};
+		CompletionService<String> attempts = 
+				new ExecutorCompletionService<String>(agentFactory.getExecutor());
+		attempts.submit(call);
+		int running = 1;
+		Future<String> done = attempts.poll(delay, TimeUnit.MILLISECONDS);
+		if (done == null) {
+			host.onHedge();
+			attempts.submit(call);
+			running++;
+		}
+
+		Exception failure = null;
+		while (running > 0) {
+			if (done == null) {
+				done = attempts.take();
+			}
+			running--;
+			try {
+				return done.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				failure = (cause instanceof Exception) ? (Exception) cause : e;
+			}
+			done = null;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Get the backoff before the next attempt: a random time between zero
+	 * and the exponentially growing maximum (full jitter)
+	 * @param attempt   number of the failed attempt, starting at 1
+	 * @return backoff  milliseconds
+	 */
+	private long getBackoff(int attempt) {
+		long max = Math.min(maxBackoff, backoff << Math.min(attempt - 1, 30));
+		return (long) (random.nextDouble() * max);
+	}
+
+	/**
+	 * Get the state of the remote host of an url, create it when not 
+	 * yet existing
+	 * @param url
+	 * @return host
+	 */
+	private RemoteHost getRemoteHost(String url) {
+		String domain = getDomain(url);
+		RemoteHost host = hosts.get(domain);
+		if (host == null) {
+			CircuitBreaker breaker = null;
+			if (breakerParams != null) {
+				breaker = new CircuitBreaker(
+						getNumber(breakerParams, "failure_rate", 0.5).doubleValue(),
+						getNumber(breakerParams, "window", 20).intValue(),
+						getNumber(breakerParams, "min_calls", 10).intValue(),
+						getNumber(breakerParams, "open_time", 30000).longValue());
+			}
+			RemoteHost existing = hosts.putIfAbsent(domain, 
+					new RemoteHost(domain, breaker));
+			host = (existing != null) ? existing : hosts.get(domain);
+		}
+		return host;
+	}
+
+	/**
+	 * Get the statistics of all remote hosts contacted by this service
+	 * @return stats   Map with the domain of the host as key
+	 */
+	public Map<String, Map<String, Object>> getHostStats() {
+		Map<String, Map<String, Object>> stats = 
+				new HashMap<String, Map<String, Object>>();
+		for (RemoteHost host : hosts.values()) {
+			stats.put(host.getHost(), host.getStats());
+		}
+		return stats;
+	}
+
+	private static Number getNumber(Map<String, Object> params, String name,
+			Number defaultValue) {
+		Object value = params.get(name);
+		return (value instanceof Number) ? (Number) value : defaultValue;
 	}
 
 	/**
@@ -145,6 +437,25 @@ public class HttpService extends TransportService {
 		}
 	}
 
+	/**
+	 * Get the base urls of the agents served by this service: the servlet
+	 * url, and the path of the servlet url (agent urls can be provided
+	 * without domain).
+	 * @return baseUrls
+	 */
+	@Override
+	public List<String> getBaseUrls() {
+		List<String> baseUrls = new ArrayList<String>();
+		if (servletUrl != null) {
+			baseUrls.add(servletUrl);
+			String domain = getDomain(servletUrl);
+			if (!domain.isEmpty()) {
+				baseUrls.add(servletUrl.substring(domain.length()));
+			}
+		}
+		return baseUrls;
+	}
+
 	/**
 	 * Get the id of an agent from its url. 
 	 * If the id cannot be extracted, null is returned.
@@ -240,4 +551,17 @@ public class HttpService extends TransportService {
 	protected String servletUrl = null;
 	protected List<String> protocols = Arrays.asList("http", "https");
 	//protected List<String> protocols = new ArrayList<String>();
+
+	private int connectTimeout = HttpUtil.DEFAULT_TIMEOUT;   // milliseconds
+	private int readTimeout = HttpUtil.DEFAULT_TIMEOUT;      // milliseconds
+	private Set<String> idempotentMethods = new HashSet<String>();
+	private Map<String, Object> breakerParams = null;
+	private int maxAttempts = 1;
+	private long backoff = 100;                              // milliseconds
+	private long maxBackoff = 5000;                          // milliseconds
+	private Double hedgePercentile = null;
+	private int hedgeMinSamples = 20;
+	private final Random random = new Random();
+	private final ConcurrentMap<String, RemoteHost> hosts = 
+			new ConcurrentHashMap<String, RemoteHost>(); // domain:host
 }
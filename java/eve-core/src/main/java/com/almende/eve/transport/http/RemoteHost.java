@@ -0,0 +1,144 @@
+package com.almende.eve.transport.http;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.transport.CircuitBreaker;
+
+/**
+ * State and statistics of a remote host contacted by the HttpService:
+ * an optional circuit breaker, counters, and the latencies of the most
+ * recent successful requests.
+ */
+public class RemoteHost {
+	/**
+	 * Create a remote host
+	 * @param host      domain of the host, for example "http://host:8080"
+	 * @param breaker   optional circuit breaker, can be null
+	 */
+	public RemoteHost(String host, CircuitBreaker breaker) {
+		this.host = host;
+		this.breaker = breaker;
+	}
+
+	/**
+	 * Test whether a request to the host is allowed by the circuit breaker.
+	 * A refused request is counted as rejected.
+	 * @return allowed
+	 */
+	public boolean allow() {
+		if (breaker != null && !breaker.allow()) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		requests.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Record a successful request
+	 * @param latency   duration of the request in milliseconds
+	 */
+	public void onSuccess(long latency) {
+		if (breaker != null) {
+			breaker.onSuccess();
+		}
+		synchronized (latencies) {
+			latencies[(int) (samples % latencies.length)] = latency;
+			samples++;
+		}
+	}
+
+	/**
+	 * Record a failed request
+	 */
+	public void onFailure() {
+		if (breaker != null) {
+			breaker.onFailure();
+		}
+		failures.incrementAndGet();
+	}
+
+	public void onRetry() {
+		retries.incrementAndGet();
+	}
+
+	public void onHedge() {
+		hedges.incrementAndGet();
+	}
+
+	/**
+	 * Get a percentile of the latencies of the most recent successful
+	 * requests
+	 * @param percentile   a value between 0 and 1, for example 0.95
+	 * @return latency     latency in milliseconds, or null when no request
+	 *                     succeeded yet
+	 */
+	public Long getLatency(double percentile) {
+		long[] sorted;
+		synchronized (latencies) {
+			int count = (int) Math.min(samples, latencies.length);
+			if (count == 0) {
+				return null;
+			}
+			sorted = Arrays.copyOf(latencies, count);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+	}
+
+	/**
+	 * Get the number of latencies recorded, at most the number of samples
+	 * kept
+	 * @return count
+	 */
+	public int getSampleCount() {
+		synchronized (latencies) {
+			return (int) Math.min(samples, latencies.length);
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Get a snapshot of the statistics of this host
+	 * @return stats
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("requests", requests.get());
+		stats.put("failures", failures.get());
+		stats.put("retries", retries.get());
+		stats.put("hedges", hedges.get());
+		stats.put("rejected", rejected.get());
+		stats.put("latency_p50", getLatency(0.50));
+		stats.put("latency_p95", getLatency(0.95));
+		stats.put("latency_p99", getLatency(0.99));
+		if (breaker != null) {
+			stats.put("circuit", breaker.getState().toString());
+			stats.put("failure_rate", breaker.getFailureRate());
+		}
+		return stats;
+	}
+
+	private static int SAMPLES = 256;
+
+	private final String host;
+	private final CircuitBreaker breaker;
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong failures = new AtomicLong(0);
+	private final AtomicLong retries = new AtomicLong(0);
+	private final AtomicLong hedges = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final long[] latencies = new long[SAMPLES]; // ring buffer
+	private long samples = 0;                           // guarded by latencies
+}
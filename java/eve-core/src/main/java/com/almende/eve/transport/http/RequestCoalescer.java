@@ -0,0 +1,270 @@
+package com.almende.eve.transport.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallback;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Coalesces outgoing HTTP requests into JSON-RPC batches per destination.
+ * 
+ * Requests for agents with the same base url (the agent url without the
+ * agent id, for example "http://host/agents/") are buffered for a short
+ * window, and then sent as a single batch to the base url. Each request in
+ * the batch contains the id of the receiving agent in the member "to".
+ * The responses are returned to the callbacks of the individual requests.
+ * A batch is sent early when it reaches the maximum batch size. A batch 
+ * containing a single request is sent as a normal request.
+ * 
+ * Batches are sent via the HttpService, so they are guarded by the circuit
+ * breaker of the host and retried like single requests. A batch is only
+ * retried when all of its requests can be retried.
+ * 
+ * The receiving host must support batches, as the AgentServlet does.
+ */
+public class RequestCoalescer {
+	/**
+	 * Create a coalescer
+	 * @param window      time in milliseconds to buffer requests
+	 * @param maxBatch    maximum number of requests in a batch
+	 * @param executor    executor to send the batches on
+	 */
+	public RequestCoalescer(long window, int maxBatch, Executor executor) {
+		this.window = window;
+		this.maxBatch = maxBatch;
+		this.executor = executor;
+	}
+
+	/**
+	 * Queue a request for sending
+	 * @param service      the service to send the request via
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 */
+	public void send(HttpService service, String senderId, 
+			String receiverUrl, JSONRequest request, 
+			AsyncCallback<JSONResponse> callback) {
+		String url = receiverUrl;
+		if (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		int separator = url.lastIndexOf('/');
+		String baseUrl = url.substring(0, separator + 1);
+		String agentId = url.substring(separator + 1);
+
+		Entry entry = new Entry(senderId, receiverUrl, agentId, request, 
+				callback);
+		Batch full = null;
+		synchronized (batches) {
+			Batch batch = batches.get(baseUrl);
+			if (batch == null) {
+				batch = new Batch(baseUrl, service);
+				batches.put(baseUrl, batch);
+				final Batch scheduled = batch;
+				getScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(scheduled);
+					}
+				}, window, TimeUnit.MILLISECONDS);
+			}
+			batch.entries.add(entry);
+			if (batch.entries.size() >= maxBatch) {
+				full = batch;
+			}
+		}
+
+		if (full != null) {
+			flush(full);
+		}
+	}
+
+	/**
+	 * Close the batch, and send it on the executor. Does nothing when the 
+	 * batch is already flushed.
+	 * @param batch
+	 */
+	private void flush(final Batch batch) {
+		synchronized (batches) {
+			if (batches.get(batch.baseUrl) != batch) {
+				return;
+			}
+			batches.remove(batch.baseUrl);
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (batch.entries.size() == 1) {
+					sendSingle(batch.service, batch.entries.get(0));
+				}
+				else {
+					sendBatch(batch);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send a single request
+	 * @param service
+	 * @param entry
+	 */
+	private void sendSingle(HttpService service, Entry entry) {
+		JSONResponse response;
+		try {
+			response = service.send(entry.senderId, entry.receiverUrl, 
+					entry.request);
+		} catch (Exception e) {
+			entry.callback.onFailure(e);
+			return;
+		}
+		entry.callback.onSuccess(response);
+	}
+
+	/**
+	 * Send a batch of requests, and dispatch the responses
+	 * @param batch
+	 */
+	private void sendBatch(Batch batch) {
+		// give each request an id which is unique within the batch
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		List<JSONRequest> originals = new ArrayList<JSONRequest>();
+		ArrayNode requests = JOM.createArrayNode();
+		for (Entry entry : batch.entries) {
+			originals.add(entry.request);
+			String id = "c" + nextId.incrementAndGet();
+			ObjectNode request = entry.request.getObjectNode().deepCopy();
+			request.put("id", id);
+			request.put("to", entry.agentId);
+			requests.add(request);
+			entries.put(id, entry);
+		}
+
+		ArrayNode responses;
+		try {
+			String resp = batch.service.postBatch(batch.baseUrl, originals, 
+					requests.toString());
+			responses = JOM.getInstance().readValue(resp, ArrayNode.class);
+		} catch (Exception e) {
+			for (Entry entry : batch.entries) {
+				entry.callback.onFailure(e);
+			}
+			return;
+		}
+
+		for (JsonNode node : responses) {
+			JsonNode id = node.get("id");
+			Entry entry = (id != null) ? entries.remove(id.asText()) : null;
+			if (entry != null) {
+				try {
+					JSONResponse response = new JSONResponse((ObjectNode) node);
+					response.setId(entry.request.getId());
+					entry.callback.onSuccess(response);
+				} catch (Exception e) {
+					entry.callback.onFailure(e);
+				}
+			}
+		}
+		for (Entry entry : entries.values()) {
+			entry.callback.onFailure(new JSONRPCException(
+					JSONRPCException.CODE.INTERNAL_ERROR, 
+					"No response for request in batch"));
+		}
+	}
+
+	/**
+	 * Get the number of requests waiting to be sent
+	 * @return count
+	 */
+	public int getBuffered() {
+		int count = 0;
+		synchronized (batches) {
+			for (Batch batch : batches.values()) {
+				count += batch.entries.size();
+			}
+		}
+		return count;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "RequestCoalescer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A buffered request
+	 */
+	private static class Entry {
+		Entry(String senderId, String receiverUrl, String agentId, 
+				JSONRequest request, AsyncCallback<JSONResponse> callback) {
+			this.senderId = senderId;
+			this.receiverUrl = receiverUrl;
+			this.agentId = agentId;
+			this.request = request;
+			this.callback = callback;
+		}
+
+		final String senderId;
+		final String receiverUrl;
+		final String agentId;
+		final JSONRequest request;
+		final AsyncCallback<JSONResponse> callback;
+	}
+
+	/**
+	 * The requests buffered for a single base url
+	 */
+	private static class Batch {
+		Batch(String baseUrl, HttpService service) {
+			this.baseUrl = baseUrl;
+			this.service = service;
+		}
+
+		final String baseUrl;
+		final HttpService service;
+		final List<Entry> entries = new ArrayList<Entry>(); // guarded by batches
+	}
+
+	private final long window;
+	private final int maxBatch;
+	private final Executor executor;
+	private final AtomicLong nextId = new AtomicLong(0);
+	private final Map<String, Batch> batches = 
+			new HashMap<String, Batch>(); // baseUrl:batch
+	private ScheduledExecutorService scheduler = null;
+}
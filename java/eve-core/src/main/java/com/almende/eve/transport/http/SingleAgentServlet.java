@@ -11,6 +11,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.almende.eve.agent.Agent;
 import com.almende.eve.agent.AgentFactory;
 import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.capture.TrafficRecorder;
 import com.almende.eve.config.Config;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
@@ -86,8 +87,19 @@ public class SingleAgentServlet extends HttpServlet {
 			RequestParams requestParams = new RequestParams();
 			requestParams.put(Sender.class, null);
 
-			// invoke the agent
-			jsonResponse = agentFactory.invoke(agentId, jsonRequest, requestParams);
+			// invoke the agent, and capture the request when configured
+			TrafficRecorder recorder = agentFactory.getTrafficRecorder();
+			long start = System.nanoTime();
+			try {
+				jsonResponse = agentFactory.invoke(agentId, jsonRequest, 
+						requestParams);
+			}
+			finally {
+				if (recorder != null) {
+					recorder.record("http", agentId, null, jsonRequest, 
+							jsonResponse, start);
+				}
+			}
 		} catch (Exception err) {
 			// generate JSON error response
 			JSONRPCException jsonError = null;
@@ -0,0 +1,177 @@
+package com.almende.eve.transport.local;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.TransportService;
+
+/**
+ * Transport service for agents living in the same AgentFactory.
+ * Agents are addressed by the url "local://{agentId}". Requests are invoked
+ * in-memory: without serialization to a network protocol, and without 
+ * network I/O.
+ * 
+ * A synchronous request is invoked in the thread of the caller. An 
+ * asynchronous request is invoked on the shared executor of the 
+ * AgentFactory, unless the service is configured with async: false, in 
+ * which case asynchronous requests are invoked in the thread of the caller
+ * too (useful for deterministic tests).
+ * 
+ * The AgentFactory registers a LocalService by default. Configuration:
+ *     transport_services:
+ *     - class: LocalService
+ *       async: true
+ */
+public class LocalService extends TransportService {
+	public static String PREFIX = "local://";
+	
+	public LocalService(AgentFactory agentFactory) {
+		super(agentFactory);
+	}
+
+	/**
+	 * Initialize the service
+	 * @param params   Available parameters:
+	 *                 {Boolean} async    Invoke asynchronous requests on the
+	 *                                    shared executor. True by default.
+	 */
+	@Override
+	public void init(Map<String, Object> params) {
+		if (params != null) {
+			Boolean async = (Boolean) params.get("async");
+			if (async != null) {
+				this.async = async;
+			}
+		}
+	}
+
+	/**
+	 * Get the url of an agent from its id, "local://{agentId}"
+	 * @param agentId
+	 * @return agentUrl
+	 */
+	@Override
+	public String getAgentUrl(String agentId) {
+		return PREFIX + agentId;
+	}
+
+	/**
+	 * Get the id of an agent from its url "local://{agentId}".
+	 * If the url is no local url, null is returned.
+	 * @param agentUrl
+	 * @return agentId
+	 */
+	@Override
+	public String getAgentId(String agentUrl) {
+		if (agentUrl != null && agentUrl.startsWith(PREFIX)) {
+			String agentId = agentUrl.substring(PREFIX.length());
+			if (agentId.endsWith("/")) {
+				agentId = agentId.substring(0, agentId.length() - 1);
+			}
+			return agentId;
+		}
+		return null;
+	}
+
+	/**
+	 * Invoke a request on a local agent
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @return response
+	 */
+	@Override
+	public JSONResponse send(String senderId, String receiverUrl,
+			JSONRequest request) throws Exception {
+		String receiverId = getAgentId(receiverUrl);
+		if (receiverId == null) {
+			throw new Exception("Receiver url must start with '" + PREFIX +
+					"' (receiver='" + receiverUrl + "')");
+		}
+		
+		RequestParams requestParams = new RequestParams();
+		requestParams.put(Sender.class, 
+				(senderId != null) ? getAgentUrl(senderId) : null);
+		return agentFactory.invoke(receiverId, request, requestParams);
+	}
+
+	/**
+	 * Asynchronously invoke a request on a local agent
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 */
+	@Override
+	public void sendAsync(final String senderId, final String receiverUrl,
+			final JSONRequest request, 
+			final AsyncCallback<JSONResponse> callback) throws Exception {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				JSONResponse response;
+				try {
+					response = send(senderId, receiverUrl, request);
+				} catch (Exception e) {
+					callback.onFailure(e);
+					return;
+				}
+				callback.onSuccess(response);
+			}
+		};
+		
+		if (async) {
+			agentFactory.getExecutor().execute(task);
+		}
+		else {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Check whether asynchronous requests are invoked on the shared executor
+	 * @return async
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * Get the base url of the agents served by the LocalService: "local://"
+	 * @return baseUrls
+	 */
+	@Override
+	public List<String> getBaseUrls() {
+		return Arrays.asList(PREFIX);
+	}
+
+	/**
+	 * Get the protocols supported by the LocalService.
+	 * Will return an array with one value, "local"
+	 * @return protocols
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("protocols", protocols);
+		data.put("async", async);
+		return data.toString();
+	}
+
+	private boolean async = true;
+	private static List<String> protocols = Arrays.asList("local");
+}
@@ -0,0 +1,304 @@
+package com.almende.eve.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A ring buffer of frames in a memory mapped file, shared between the
+ * processes on the same host. One process reads the frames from the 
+ * buffer, any number of processes can write frames into it.
+ * 
+ * File layout:
+ *     int    magic
+ *     int    capacity of the data region in bytes
+ *     long   write position (total number of bytes written)
+ *     long   read position (total number of bytes read)
+ *     long   instance, a random number identifying the buffer
+ *     int    closed flag, set when the reader stops
+ *     ...    padding up to HEADER_SIZE
+ *     byte[] data region, containing frames: an int length plus the payload
+ * 
+ * Readers and writers synchronize via a lock on the header of the file, 
+ * which works across processes. Within a process, all users of the same
+ * file share one RingBuffer instance, as file locks cannot be held twice
+ * by the same process.
+ * 
+ * Writers detect that the reader has stopped via the closed flag, and 
+ * that the file has been replaced by a new buffer via the instance.
+ */
+class RingBuffer {
+	private RingBuffer(File file, int capacity, boolean create) 
+			throws IOException {
+		this.path = file.getCanonicalPath();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (create) {
+			raf.setLength(HEADER_SIZE + capacity);
+		}
+		else {
+			if (raf.length() < HEADER_SIZE) {
+				channel.close();
+				throw new IOException("File " + file + " is no ring buffer");
+			}
+			capacity = (int) raf.length() - HEADER_SIZE;
+		}
+		this.capacity = capacity;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 
+				HEADER_SIZE + capacity);
+
+		if (create) {
+			reset();
+		}
+		else if (buffer.getInt(MAGIC_OFFSET) != MAGIC || 
+				buffer.getInt(CAPACITY_OFFSET) != capacity) {
+			channel.close();
+			throw new IOException("File " + file + " is no ring buffer");
+		}
+		instance = buffer.getLong(INSTANCE_OFFSET);
+	}
+
+	/**
+	 * Create a new, empty ring buffer. An existing file is replaced: its
+	 * current users keep their mapping of the old file.
+	 * @param file
+	 * @param capacity   capacity of the buffer in bytes
+	 * @return buffer
+	 * @throws IOException
+	 */
+	static RingBuffer create(File file, int capacity) throws IOException {
+		synchronized (instances) {
+			file.delete();
+			RingBuffer buffer = new RingBuffer(file, capacity, true);
+			instances.put(buffer.path, buffer);
+			buffer.references++;
+			return buffer;
+		}
+	}
+
+	/**
+	 * Open an existing ring buffer
+	 * @param file
+	 * @return buffer
+	 * @throws IOException
+	 */
+	static RingBuffer open(File file) throws IOException {
+		synchronized (instances) {
+			RingBuffer buffer = instances.get(file.getCanonicalPath());
+			if (buffer == null || buffer.getInstance() != readInstance(file)) {
+				buffer = new RingBuffer(file, 0, false);
+				instances.put(buffer.path, buffer);
+			}
+			buffer.references++;
+			return buffer;
+		}
+	}
+
+	/**
+	 * Release the buffer. The file is closed when it is released by all its
+	 * users in this process.
+	 */
+	void release() {
+		synchronized (instances) {
+			references--;
+			if (references <= 0) {
+				if (instances.get(path) == this) {
+					instances.remove(path);
+				}
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Mark the buffer as closed, when its reader stops
+	 */
+	synchronized void close() {
+		buffer.putInt(CLOSED_OFFSET, 1);
+	}
+
+	/**
+	 * Test whether the reader of the buffer has stopped. Reads the mapped
+	 * header only, without locking the file.
+	 * @return closed
+	 */
+	synchronized boolean isClosed() {
+		return buffer.getInt(CLOSED_OFFSET) != 0;
+	}
+
+	/**
+	 * Get the random number identifying this buffer
+	 * @return instance
+	 */
+	long getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Read the instance of the ring buffer currently stored in a file
+	 * @param file
+	 * @return instance
+	 * @throws IOException   when the file does not exist or is no ring buffer
+	 */
+	static long readInstance(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_SIZE) {
+				throw new IOException("File " + file + " is no ring buffer");
+			}
+			raf.seek(INSTANCE_OFFSET);
+			return raf.readLong();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write a frame into the buffer
+	 * @param data
+	 * @return written   false when there is not enough free space
+	 * @throws IOException
+	 */
+	synchronized boolean offer(byte[] data) throws IOException {
+		int size = 4 + data.length;
+		if (size > capacity) {
+			throw new IOException("Frame of " + data.length + 
+					" bytes exceeds the capacity of the ring buffer");
+		}
+
+		FileLock lock = channel.lock(0, HEADER_SIZE, false);
+		try {
+			long write = buffer.getLong(WRITE_OFFSET);
+			long read = buffer.getLong(READ_OFFSET);
+			if (capacity - (write - read) < size) {
+				return false;
+			}
+			byte[] length = new byte[] {
+				(byte) (data.length >>> 24), (byte) (data.length >>> 16),
+				(byte) (data.length >>> 8), (byte) data.length
+			};
+			put(write, length);
+			put(write + 4, data);
+			buffer.putLong(WRITE_OFFSET, write + size);
+			return true;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Read all available frames from the buffer
+	 * @param frames   list to which the read frames are added
+	 * @return count   number of frames read
+	 * @throws IOException
+	 */
+	synchronized int drain(List<byte[]> frames) throws IOException {
+		FileLock lock = channel.lock(0, HEADER_SIZE, false);
+		try {
+			long write = buffer.getLong(WRITE_OFFSET);
+			long read = buffer.getLong(READ_OFFSET);
+			int count = 0;
+			byte[] length = new byte[4];
+			while (read < write) {
+				get(read, length);
+				int size = ((length[0] & 0xFF) << 24) | ((length[1] & 0xFF) << 16) |
+						((length[2] & 0xFF) << 8) | (length[3] & 0xFF);
+				if (size < 0 || read + 4 + size > write) {
+					// corrupt buffer, discard its contents
+					read = write;
+					break;
+				}
+				byte[] data = new byte[size];
+				get(read + 4, data);
+				frames.add(data);
+				read += 4 + size;
+				count++;
+			}
+			buffer.putLong(READ_OFFSET, read);
+			return count;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Test whether the buffer contains no frames. This check does not lock
+	 * the file, and is intended for cheap polling by the reader.
+	 * @return empty
+	 */
+	synchronized boolean isEmpty() {
+		return buffer.getLong(WRITE_OFFSET) == buffer.getLong(READ_OFFSET);
+	}
+
+	/**
+	 * Clear the buffer and (re)write its header
+	 */
+	private synchronized void reset() {
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.putLong(WRITE_OFFSET, 0);
+		buffer.putLong(READ_OFFSET, 0);
+		buffer.putLong(INSTANCE_OFFSET, random.nextLong());
+		buffer.putInt(CLOSED_OFFSET, 0);
+	}
+
+	/**
+	 * Copy bytes into the data region, wrapping around at its end
+	 * @param position
+	 * @param data
+	 */
+	private void put(long position, byte[] data) {
+		int index = (int) (position % capacity);
+		int first = Math.min(data.length, capacity - index);
+		ByteBuffer region = buffer.duplicate();
+		region.position(HEADER_SIZE + index);
+		region.put(data, 0, first);
+		region.position(HEADER_SIZE);
+		region.put(data, first, data.length - first);
+	}
+
+	/**
+	 * Copy bytes from the data region, wrapping around at its end
+	 * @param position
+	 * @param data       array to be filled
+	 */
+	private void get(long position, byte[] data) {
+		int index = (int) (position % capacity);
+		int first = Math.min(data.length, capacity - index);
+		ByteBuffer region = buffer.duplicate();
+		region.position(HEADER_SIZE + index);
+		region.get(data, 0, first);
+		region.position(HEADER_SIZE);
+		region.get(data, first, data.length - first);
+	}
+
+	private static final int MAGIC = 0x45564552;  // "EVER"
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int WRITE_OFFSET = 8;
+	private static final int READ_OFFSET = 16;
+	private static final int INSTANCE_OFFSET = 24;
+	private static final int CLOSED_OFFSET = 32;
+	static final int HEADER_SIZE = 64;
+
+	private static final Map<String, RingBuffer> instances = 
+			new HashMap<String, RingBuffer>(); // path:buffer
+	private static final Random random = new Random();
+
+	private final String path;
+	private final int capacity;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final long instance;
+	private int references = 0;           // guarded by instances
+}
@@ -0,0 +1,859 @@
+package com.almende.eve.transport.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.probe.Probes;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.tcp.BinaryCodec;
+import com.almende.eve.transport.tcp.Codec;
+import com.almende.eve.transport.tcp.TcpMessage;
+
+/**
+ * Transport service for communication between AgentFactories running in 
+ * different processes on the same host, via shared memory.
+ * Agents are addressed by the url "eve+shm://{name}/{agentId}".
+ * 
+ * Each service owns an inbox: a ring buffer in a memory mapped file in a 
+ * shared directory. A request is sent by writing it into the inbox of the
+ * receiving service, which writes the response back into the inbox of the 
+ * sender. No network stack is involved. Messages are serialized with the
+ * BinaryCodec of the TcpService. The inbox is polled by a single reader 
+ * thread, which spins shortly after each message, and backs off to 
+ * polling once per millisecond when idle. 
+ * Incoming requests are invoked by a fixed pool of threads. When the pool 
+ * and its queue are full, requests are answered with a "Server busy" error.
+ * 
+ * A stopped service marks its inbox closed. Senders check this on every 
+ * write, and check at most every 100 ms whether the peer crashed or was 
+ * restarted with a new inbox, so they fail fast or reopen the inbox.
+ * 
+ * The sender url in a request is provided by the peer and not 
+ * authenticated, so agents do not receive a @Sender.
+ * 
+ * Each service publishes the url templates of the other transport services 
+ * of its factory in the shared directory. When an agent sends a request to
+ * the http or eve+tcp url of an agent living in a factory on the same host, 
+ * the request is routed via shared memory automatically. XMPP urls are 
+ * per agent, and are not routed.
+ * 
+ * Configuration:
+ *     transport_services:
+ *     - class: ShmService
+ *       name: node1                # unique name on this host, defaults to 
+ *                                  # the process id
+ *       directory: /tmp/eve-shm    # shared directory, defaults to the
+ *                                  # directory eve-shm in java.io.tmpdir
+ *       capacity: 4194304          # size of the inbox in bytes
+ *       timeout: 30000             # request timeout in milliseconds
+ *       threads: 8                 # threads invoking incoming requests
+ *       queue: 1000                # max number of incoming requests 
+ *                                  # waiting for a thread
+ */
+public class ShmService extends TransportService {
+	public static String PREFIX = "eve+shm://";
+
+	public ShmService(AgentFactory agentFactory) {
+		super(agentFactory);
+	}
+
+	/**
+	 * Initialize the service, create its inbox, and start reading
+	 * @param params   Available parameters:
+	 *                 {String} name         Name unique on this host
+	 *                 {String} directory    Shared directory
+	 *                 {Integer} capacity    Size of the inbox in bytes
+	 *                 {Number} timeout      Request timeout in milliseconds
+	 *                 {Integer} threads     Threads invoking requests
+	 *                 {Integer} queue       Max number of waiting requests
+	 */
+	@Override
+	public void init(Map<String, Object> params) {
+		if (params != null) {
+			String name = (String) params.get("name");
+			if (name != null) {
+				this.name = name;
+			}
+			String directory = (String) params.get("directory");
+			if (directory != null) {
+				this.directory = new File(directory);
+			}
+			Integer capacity = (Integer) params.get("capacity");
+			if (capacity != null) {
+				this.capacity = capacity;
+			}
+			Number timeout = (Number) params.get("timeout");
+			if (timeout != null) {
+				this.timeout = timeout.longValue();
+			}
+			Integer threads = (Integer) params.get("threads");
+			if (threads != null) {
+				this.threads = threads;
+			}
+			Integer queue = (Integer) params.get("queue");
+			if (queue != null) {
+				this.queue = queue;
+			}
+		}
+
+		try {
+			start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot start ShmService '" + 
+					name + "': " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Claim the name, create the inbox, and start the reader thread
+	 * @throws IOException
+	 */
+	private synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		if (name.indexOf('/') != -1) {
+			throw new IOException("Name must not contain a slash");
+		}
+		directory.mkdirs();
+
+		// the lock on the lock file marks this service as alive
+		File lockFile = getFile(name, LOCK);
+		if (lockedFiles.contains(lockFile.getCanonicalPath())) {
+			throw new IOException("Name '" + name + "' is already in use");
+		}
+		lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException("Name '" + name + "' is already in use");
+		}
+		lockedFiles.add(lockFile.getCanonicalPath());
+		inbox = RingBuffer.create(getFile(name, INBOX), capacity);
+
+		final String threadName = "ShmService-" + name + "-worker";
+		executor = new ThreadPoolExecutor(threads, threads, 0, 
+				TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "ShmService-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("ShmService '" + name + "' started in " + directory);
+	}
+
+	/**
+	 * Stop reading, and remove the files of this service. 
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			thread = this.thread;
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {}
+
+		getFile(name, PEER).delete();
+		inbox.close();
+		getFile(name, INBOX).delete();
+		inbox.release();
+		synchronized (outboxes) {
+			for (RingBuffer outbox : outboxes.values()) {
+				outbox.release();
+			}
+			outboxes.clear();
+			validated.clear();
+		}
+		executor.shutdown();
+		try {
+			lockedFiles.remove(getFile(name, LOCK).getCanonicalPath());
+			lock.release();
+			lockChannel.close();
+		} catch (IOException e) {}
+		getFile(name, LOCK).delete();
+	}
+
+	/**
+	 * Get the url of an agent from its id, "eve+shm://{name}/{agentId}"
+	 * @param agentId
+	 * @return agentUrl
+	 */
+	@Override
+	public String getAgentUrl(String agentId) {
+		return PREFIX + name + "/" + agentId;
+	}
+
+	/**
+	 * Get the id of an agent from its url. If the url does not refer to 
+	 * this service, null is returned.
+	 * @param agentUrl
+	 * @return agentId
+	 */
+	@Override
+	public String getAgentId(String agentUrl) {
+		String baseUrl = PREFIX + name + "/";
+		if (agentUrl != null && agentUrl.startsWith(baseUrl)) {
+			String agentId = agentUrl.substring(baseUrl.length());
+			if (agentId.endsWith("/")) {
+				agentId = agentId.substring(0, agentId.length() - 1);
+			}
+			return agentId;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the shared memory url of an agent living in another factory on 
+	 * this host, given any of its urls.
+	 * @param agentUrl
+	 * @return url   null if the agent does not live on this host
+	 */
+	@Override
+	public String getPreferredUrl(String agentUrl) {
+		if (!running || agentUrl == null || agentUrl.startsWith(PREFIX)) {
+			return null;
+		}
+		for (Map.Entry<String, List<String[]>> peer : getPeers().entrySet()) {
+			for (String[] template : peer.getValue()) {
+				String agentId = match(agentUrl, template[0], template[1]);
+				if (agentId != null) {
+					return PREFIX + peer.getKey() + "/" + agentId;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Extract the agent id from an url matching a template
+	 * @param url
+	 * @param prefix     part of the template before the agent id
+	 * @param suffix     part of the template after the agent id
+	 * @return agentId   null if the url does not match
+	 */
+	private static String match(String url, String prefix, String suffix) {
+		if (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		if (suffix.endsWith("/")) {
+			suffix = suffix.substring(0, suffix.length() - 1);
+		}
+		if (url.length() > prefix.length() + suffix.length() && 
+				url.startsWith(prefix) && url.endsWith(suffix)) {
+			String agentId = url.substring(prefix.length(), 
+					url.length() - suffix.length());
+			if (agentId.indexOf('/') == -1) {
+				return agentId;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Send a request to an agent and wait for the response
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @return response
+	 */
+	@Override
+	public JSONResponse send(String senderId, String receiverUrl,
+			JSONRequest request) throws Exception {
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		sendAsync(senderId, receiverUrl, request, callback, timeout);
+		return callback.get();
+	}
+
+	/**
+	 * Send a request to an agent
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiverUrl,
+			JSONRequest request, AsyncCallback<JSONResponse> callback) 
+			throws Exception {
+		sendAsync(senderId, receiverUrl, request, callback, timeout);
+	}
+
+	/**
+	 * Send a request to an agent, with a specific timeout. Blocks while the
+	 * inbox of the receiver is full.
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 * @param timeout      timeout in milliseconds
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiverUrl,
+			JSONRequest request, AsyncCallback<JSONResponse> callback,
+			long timeout) throws Exception {
+		if (receiverUrl == null || !receiverUrl.startsWith(PREFIX)) {
+			throw new Exception("Receiver url must start with '" + PREFIX +
+					"' (receiver='" + receiverUrl + "')");
+		}
+		if (!running) {
+			throw new IOException("ShmService is not started");
+		}
+		String path = receiverUrl.substring(PREFIX.length());
+		int slash = path.indexOf('/');
+		if (slash == -1) {
+			throw new Exception("Receiver url must have the form '" + PREFIX + 
+					"name/agentId' (receiver='" + receiverUrl + "')");
+		}
+		String peer = path.substring(0, slash);
+		String receiverId = path.substring(slash + 1);
+		if (receiverId.endsWith("/")) {
+			receiverId = receiverId.substring(0, receiverId.length() - 1);
+		}
+
+		long id = nextId.incrementAndGet();
+		TcpMessage message = new TcpMessage(id, false, receiverId,
+				(senderId != null) ? getAgentUrl(senderId) : null,
+				request.toString());
+		callbacks.push(String.valueOf(id), callback, timeout);
+		try {
+			write(peer, message, timeout);
+		} catch (IOException e) {
+			AsyncCallback<JSONResponse> handler = callbacks.pull(String.valueOf(id));
+			if (handler != null) {
+				handler.onFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * Write a message into the inbox of a peer. A frame consists of the name
+	 * of the sending service, followed by the encoded message.
+	 * @param peer
+	 * @param message
+	 * @param timeout    maximum time to wait for free space in the inbox
+	 * @throws IOException
+	 */
+	private void write(String peer, TcpMessage message, long timeout) 
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(name);
+		out.write(codec.encode(message));
+		out.flush();
+		byte[] frame = bytes.toByteArray();
+
+		RingBuffer outbox = getOutbox(peer);
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!outbox.offer(frame)) {
+			if (outbox.isClosed() || !isAlive(peer)) {
+				drop(peer, outbox);
+				throw new IOException("No ShmService '" + peer + 
+						"' running in " + directory);
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("Inbox of '" + peer + "' is full");
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Get the inbox of a peer. A cached inbox which is no longer read by 
+	 * the peer is dropped, and the current inbox of the peer is opened.
+	 * @param peer
+	 * @return outbox
+	 * @throws IOException   when the peer is not running
+	 */
+	private RingBuffer getOutbox(String peer) throws IOException {
+		RingBuffer outbox = outboxes.get(peer);
+		if (outbox != null && !isValid(peer, outbox)) {
+			drop(peer, outbox);
+			outbox = null;
+		}
+		if (outbox == null) {
+			synchronized (outboxes) {
+				outbox = outboxes.get(peer);
+				if (outbox == null) {
+					File file = getFile(peer, INBOX);
+					if (!file.exists() || !isAlive(peer)) {
+						throw new IOException("No ShmService '" + peer + 
+								"' running in " + directory);
+					}
+					outbox = RingBuffer.open(file);
+					if (outbox.isClosed()) {
+						outbox.release();
+						throw new IOException("No ShmService '" + peer + 
+								"' running in " + directory);
+					}
+					outboxes.put(peer, outbox);
+					validated.put(peer, System.currentTimeMillis());
+				}
+			}
+		}
+		return outbox;
+	}
+
+	/**
+	 * Test whether a cached inbox of a peer is still read by the peer. 
+	 * The closed flag set by a stopped peer is checked on every call. 
+	 * Whether the peer crashed, or replaced its inbox with a new one, costs
+	 * a few system calls, and is checked at most once per VALIDATE_INTERVAL.
+	 * @param peer
+	 * @param outbox
+	 * @return valid
+	 */
+	private boolean isValid(String peer, RingBuffer outbox) {
+		if (outbox.isClosed()) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		Long last = validated.get(peer);
+		if (last != null && now - last < VALIDATE_INTERVAL) {
+			return true;
+		}
+		validated.put(peer, now);
+		try {
+			return isAlive(peer) && outbox.getInstance() == 
+					RingBuffer.readInstance(getFile(peer, INBOX));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Remove a cached inbox of a peer, and release it
+	 * @param peer
+	 * @param outbox
+	 */
+	private void drop(String peer, RingBuffer outbox) {
+		synchronized (outboxes) {
+			if (outboxes.get(peer) == outbox) {
+				outboxes.remove(peer);
+				validated.remove(peer);
+				outbox.release();
+			}
+		}
+	}
+
+	/**
+	 * Loop of the reader thread
+	 */
+	private void loop() {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		long idleSince = System.nanoTime();
+		long park = MIN_PARK;
+		long lastPublish = 0;
+		while (running) {
+			try {
+				if (!inbox.isEmpty() && inbox.drain(frames) > 0) {
+					for (byte[] frame : frames) {
+						receive(frame);
+					}
+					frames.clear();
+					idleSince = System.nanoTime();
+					park = MIN_PARK;
+				}
+				else if (System.nanoTime() - idleSince < SPIN_TIME) {
+					// a response or next request typically follows shortly.
+					// on a single processor, spinning would delay it
+					if (MULTI_PROCESSOR) {
+						Thread.yield();
+					}
+					else {
+						LockSupport.parkNanos(MIN_PARK);
+					}
+				}
+				else {
+					// back off to sleeping up to a millisecond
+					LockSupport.parkNanos(park);
+					park = Math.min(MAX_PARK, park * 2);
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastPublish > PUBLISH_INTERVAL) {
+					lastPublish = now;
+					publish();
+				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to read inbox", e);
+				frames.clear();
+			}
+		}
+	}
+
+	/**
+	 * Handle a frame read from the inbox
+	 * @param frame
+	 * @throws IOException
+	 */
+	private void receive(byte[] frame) throws IOException {
+		// the name of the peer is prefixed with its length in 2 bytes
+		int length = ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+		final String peer = new DataInputStream(
+				new ByteArrayInputStream(frame)).readUTF();
+		final TcpMessage message = codec.decode(
+				Arrays.copyOfRange(frame, 2 + length, frame.length));
+
+		if (message.isResponse()) {
+			final AsyncCallback<JSONResponse> callback = 
+					callbacks.pull(String.valueOf(message.getId()));
+			if (callback != null) {
+				agentFactory.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							callback.onSuccess(new JSONResponse(message.getBody()));
+						} catch (Exception e) {
+							callback.onFailure(e);
+						}
+					}
+				});
+			}
+		}
+		else {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						invoke(peer, message);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the reader thread must not wait for free space in the inbox
+				// of the peer
+				JSONResponse response = new JSONResponse(new JSONRPCException(
+						JSONRPCException.CODE.SERVER_BUSY));
+				write(peer, new TcpMessage(message.getId(), true, null, null, 
+						response.toString()), 0);
+			}
+		}
+	}
+
+	/**
+	 * Invoke an incoming request on an agent, and send back the response.
+	 * @param peer
+	 * @param message
+	 */
+	private void invoke(String peer, TcpMessage message) {
+		JSONResponse response;
+		try {
+			JSONRequest request = new JSONRequest(message.getBody());
+			RequestParams requestParams = new RequestParams();
+			requestParams.put(Sender.class, null);
+			long start = Probes.start();
+			response = agentFactory.invoke(message.getReceiver(), 
+					request, requestParams);
+			Probes.received("eve+shm", request, response, start);
+		} catch (Exception e) {
+			response = new JSONResponse(new JSONRPCException(
+					JSONRPCException.CODE.INTERNAL_ERROR, e.getMessage()));
+		}
+
+		try {
+			write(peer, new TcpMessage(message.getId(), true, null, null, 
+					response.toString()), timeout);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to send response to '" + 
+					peer + "'", e);
+		}
+	}
+
+	/**
+	 * Publish the url templates of the other transport services of this 
+	 * factory, so peers can route requests for these urls via shared 
+	 * memory. Executed by the reader thread.
+	 */
+	private void publish() {
+		StringBuilder templates = new StringBuilder();
+		for (TransportService service : agentFactory.getTransportServices()) {
+			if (service == this || service.getProtocols().contains("local")) {
+				continue;
+			}
+			String url = service.getAgentUrl(MARKER);
+			int index = (url != null) ? url.indexOf(MARKER) : -1;
+			if (index != -1) {
+				templates.append(url.substring(0, index)).append('\t')
+					.append(url.substring(index + MARKER.length())).append('\n');
+			}
+		}
+		String content = templates.toString();
+		if (content.equals(published)) {
+			return;
+		}
+
+		// write to a temporary file first, so peers never read a partial file
+		File file = getFile(name, PEER);
+		File tmp = getFile(name, PEER + ".tmp");
+		try {
+			Writer writer = new OutputStreamWriter(
+					new FileOutputStream(tmp), "UTF-8");
+			try {
+				writer.write(content);
+			} finally {
+				writer.close();
+			}
+			file.delete();
+			if (tmp.renameTo(file)) {
+				published = content;
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to publish url templates", e);
+		}
+	}
+
+	/**
+	 * Get the url templates of the running peers on this host. The peers
+	 * are read from the shared directory, at most once per second.
+	 * @return peers   name:list with templates {prefix, suffix}
+	 */
+	private synchronized Map<String, List<String[]>> getPeers() {
+		long now = System.currentTimeMillis();
+		if (now - lastRefresh < PUBLISH_INTERVAL) {
+			return peers;
+		}
+		lastRefresh = now;
+
+		Map<String, List<String[]>> peers = new HashMap<String, List<String[]>>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String fileName = file.getName();
+				if (!fileName.endsWith(PEER)) {
+					continue;
+				}
+				String peer = fileName.substring(0, 
+						fileName.length() - PEER.length());
+				if (peer.equals(name) || !isAlive(peer)) {
+					continue;
+				}
+				try {
+					List<String[]> templates = new ArrayList<String[]>();
+					for (String line : read(file).split("\n")) {
+						int tab = line.indexOf('\t');
+						if (tab > 0) {
+							templates.add(new String[] {
+								line.substring(0, tab), line.substring(tab + 1)
+							});
+						}
+					}
+					peers.put(peer, templates);
+				} catch (IOException e) {
+					// peer is just publishing or stopping, skip it this time
+				}
+			}
+		}
+		this.peers = peers;
+		return peers;
+	}
+
+	/**
+	 * Test whether a peer is running: a running peer holds the lock on 
+	 * its lock file.
+	 * @param peer
+	 * @return alive
+	 */
+	private boolean isAlive(String peer) {
+		File file = getFile(peer, LOCK);
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			// closing a channel can release all locks this process holds on
+			// the file, so never open the lock file of a service in this 
+			// process
+			if (lockedFiles.contains(file.getCanonicalPath())) {
+				return true;
+			}
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			try {
+				FileLock lock = channel.tryLock();
+				if (lock != null) {
+					lock.release();
+					return false;
+				}
+				return true;
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return new String(bytes, "UTF-8");
+		} finally {
+			raf.close();
+		}
+	}
+
+	private File getFile(String peer, String extension) {
+		return new File(directory, peer + extension);
+	}
+
+	/**
+	 * Get the default name of the service: the id of this process
+	 * @return name
+	 */
+	private static String getDefaultName() {
+		try {
+			// the name of the runtime has the form "pid@host"
+			String runtime = ManagementFactory.getRuntimeMXBean().getName();
+			return runtime.substring(0, runtime.indexOf('@'));
+		} catch (Throwable e) {
+			// not available on all platforms
+			return UUID.randomUUID().toString();
+		}
+	}
+
+	/**
+	 * Get the name of this service, unique on this host
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the base url of the agents served by the service,
+	 * "eve+shm://{name}/"
+	 * @return baseUrls
+	 */
+	@Override
+	public List<String> getBaseUrls() {
+		return Arrays.asList(PREFIX + name + "/");
+	}
+
+	/**
+	 * Get the protocols supported by the ShmService.
+	 * Will return an array with one value, "eve+shm"
+	 * @return protocols
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("protocols", protocols);
+		data.put("name", name);
+		data.put("directory", directory.getPath());
+		return data.toString();
+	}
+
+	private static Logger logger = 
+			Logger.getLogger(ShmService.class.getSimpleName());
+	private static List<String> protocols = Arrays.asList("eve+shm");
+
+	// lock files of the services running in this process
+	private static final Set<String> lockedFiles = 
+			Collections.synchronizedSet(new HashSet<String>());
+
+	private static final String INBOX = ".inbox";
+	private static final String LOCK = ".lock";
+	private static final String PEER = ".peer";
+	private static final String MARKER = "__eve_agent_id__";
+	private static final long PUBLISH_INTERVAL = 1000;  // milliseconds
+	private static final long VALIDATE_INTERVAL = 100;  // milliseconds
+	private static final long SPIN_TIME = TimeUnit.MILLISECONDS.toNanos(2);
+	private static final boolean MULTI_PROCESSOR = 
+			Runtime.getRuntime().availableProcessors() > 1;
+	private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(10);
+	private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private String name = getDefaultName();
+	private File directory = new File(System.getProperty("java.io.tmpdir"), 
+			"eve-shm");
+	private int capacity = 4 * 1024 * 1024;
+	private long timeout = getDefaultTimeout();
+	private int threads = 8;
+	private int queue = 1000;
+	private ExecutorService executor = null;
+	private final Codec codec = new BinaryCodec();
+
+	private final AtomicLong nextId = new AtomicLong(0);
+	private final Map<String, RingBuffer> outboxes = 
+			new ConcurrentHashMap<String, RingBuffer>(); // peer:inbox of peer
+	private final Map<String, Long> validated = 
+			new ConcurrentHashMap<String, Long>(); // peer:last validation
+	private Map<String, List<String[]>> peers = 
+			new HashMap<String, List<String[]>>();
+	private long lastRefresh = 0;
+	private String published = null;     // only used by the reader thread
+
+	private RingBuffer inbox = null;
+	private FileChannel lockChannel = null;
+	private FileLock lock = null;
+	private Thread thread = null;
+	private volatile boolean running = false;
+}
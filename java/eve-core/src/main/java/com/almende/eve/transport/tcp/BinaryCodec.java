@@ -0,0 +1,86 @@
+package com.almende.eve.transport.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary codec. A message is encoded as:
+ *     byte    flags (bit 0: response, bit 1: has receiver, bit 2: has sender)
+ *     long    id
+ *     string  receiver (optional)
+ *     string  sender (optional)
+ *     string  body
+ * where a string is an int length followed by the UTF-8 bytes.
+ * Lengths exceeding the remaining bytes of the frame are refused.
+ */
+public class BinaryCodec implements Codec {
+	@Override
+	public byte[] encode(TcpMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				64 + ((message.getBody() != null) ? message.getBody().length() : 0));
+		DataOutputStream out = new DataOutputStream(bytes);
+		int flags = 0;
+		if (message.isResponse()) {
+			flags |= RESPONSE;
+		}
+		if (message.getReceiver() != null) {
+			flags |= RECEIVER;
+		}
+		if (message.getSender() != null) {
+			flags |= SENDER;
+		}
+		out.writeByte(flags);
+		out.writeLong(message.getId());
+		if (message.getReceiver() != null) {
+			writeString(out, message.getReceiver());
+		}
+		if (message.getSender() != null) {
+			writeString(out, message.getSender());
+		}
+		writeString(out, (message.getBody() != null) ? message.getBody() : "");
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public TcpMessage decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		TcpMessage message = new TcpMessage();
+		int flags = in.readByte();
+		message.setResponse((flags & RESPONSE) != 0);
+		message.setId(in.readLong());
+		if ((flags & RECEIVER) != 0) {
+			message.setReceiver(readString(in));
+		}
+		if ((flags & SENDER) != 0) {
+			message.setSender(readString(in));
+		}
+		message.setBody(readString(in));
+		return message;
+	}
+
+	private static void writeString(DataOutputStream out, String value) 
+			throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static final String UTF8 = "UTF-8";
+	private static final int RESPONSE = 1;
+	private static final int RECEIVER = 2;
+	private static final int SENDER = 4;
+}
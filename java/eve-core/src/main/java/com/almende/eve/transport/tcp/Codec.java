@@ -0,0 +1,13 @@
+package com.almende.eve.transport.tcp;
+
+import java.io.IOException;
+
+/**
+ * Codec to serialize messages into the payload of a frame on an eve+tcp
+ * connection. Both ends of a connection must use the same codec.
+ * Implementations must be thread safe.
+ */
+public interface Codec {
+	public byte[] encode(TcpMessage message) throws IOException;
+	public TcpMessage decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,56 @@
+package com.almende.eve.transport.tcp;
+
+import java.io.IOException;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Human readable codec, encoding a message as a JSON object:
+ *     {"id": 1, "response": false, "receiver": "agentId", 
+ *      "sender": "url", "body": {...JSON-RPC request...}}
+ */
+public class JsonCodec implements Codec {
+	@Override
+	public byte[] encode(TcpMessage message) throws IOException {
+		ObjectMapper mapper = JOM.getInstance();
+		ObjectNode json = mapper.createObjectNode();
+		json.put("id", message.getId());
+		json.put("response", message.isResponse());
+		if (message.getReceiver() != null) {
+			json.put("receiver", message.getReceiver());
+		}
+		if (message.getSender() != null) {
+			json.put("sender", message.getSender());
+		}
+		if (message.getBody() != null) {
+			json.put("body", mapper.readTree(message.getBody()));
+		}
+		return mapper.writeValueAsBytes(json);
+	}
+
+	@Override
+	public TcpMessage decode(byte[] data) throws IOException {
+		ObjectNode json = JOM.getInstance().readValue(data, ObjectNode.class);
+		JsonNode id = json.get("id");
+		if (id == null || !id.canConvertToLong()) {
+			throw new IOException("Message without valid id");
+		}
+		TcpMessage message = new TcpMessage();
+		message.setId(id.asLong());
+		message.setResponse(json.has("response") && 
+				json.get("response").asBoolean());
+		if (json.has("receiver")) {
+			message.setReceiver(json.get("receiver").asText());
+		}
+		if (json.has("sender")) {
+			message.setSender(json.get("sender").asText());
+		}
+		if (json.has("body")) {
+			message.setBody(json.get("body").toString());
+		}
+		return message;
+	}
+}
@@ -0,0 +1,213 @@
+package com.almende.eve.transport.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A persistent, non-blocking connection between two TcpServices.
+ * 
+ * Messages are sent as frames: a 4 byte length (big endian), followed by the
+ * payload. Any thread can queue frames for sending, the frames are written
+ * by the selector thread of the TcpService. Reading and writing is done 
+ * by the selector thread only.
+ * 
+ * A connection carries requests in both directions, and any number of 
+ * outstanding requests (pipelining): responses are correlated by the
+ * id of the request, and can arrive in any order.
+ */
+class TcpConnection {
+	TcpConnection(TcpService service, SocketChannel channel, String address) {
+		this.service = service;
+		this.channel = channel;
+		this.address = address;
+	}
+
+	/**
+	 * Queue a frame for sending. Can be called from any thread.
+	 * @param payload
+	 * @throws IOException   when the connection is closed
+	 */
+	void send(byte[] payload) throws IOException {
+		if (closed) {
+			throw new IOException("Connection to " + address + " is closed");
+		}
+		ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+		frame.putInt(payload.length);
+		frame.put(payload);
+		frame.flip();
+		writeQueue.add(frame);
+
+		if (writeRequested.compareAndSet(false, true)) {
+			service.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Read available data from the channel, and pass complete frames
+	 * to the service. Called by the selector thread.
+	 * @throws IOException
+	 */
+	void read() throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			throw new EOFException("Connection closed by " + address);
+		}
+
+		readBuffer.flip();
+		while (true) {
+			if (frameLength < 0) {
+				if (readBuffer.remaining() < 4) {
+					break;
+				}
+				frameLength = readBuffer.getInt();
+				if (frameLength < 0 || frameLength > service.getMaxFrameSize()) {
+					throw new IOException("Invalid frame length " + frameLength +
+							" received from " + address);
+				}
+			}
+			if (readBuffer.remaining() < frameLength) {
+				break;
+			}
+			byte[] payload = new byte[frameLength];
+			readBuffer.get(payload);
+			frameLength = -1;
+			service.receive(this, payload);
+		}
+		readBuffer.compact();
+
+		// grow the buffer when the frame in progress does not fit
+		if (frameLength > readBuffer.capacity() - 4) {
+			ByteBuffer buffer = ByteBuffer.allocate(frameLength + 4);
+			readBuffer.flip();
+			buffer.put(readBuffer);
+			readBuffer = buffer;
+		}
+	}
+
+	/**
+	 * Write queued frames to the channel. Called by the selector thread
+	 * when the channel is writable. Unsubscribes from write readiness 
+	 * when all frames are written.
+	 * @throws IOException
+	 */
+	void write() throws IOException {
+		ByteBuffer frame;
+		while ((frame = writeQueue.peek()) != null) {
+			channel.write(frame);
+			if (frame.hasRemaining()) {
+				// socket buffer full, wait until writable again
+				return;
+			}
+			writeQueue.poll();
+		}
+
+		writeRequested.set(false);
+		if (writeQueue.isEmpty()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		else {
+			// frames queued meanwhile, keep writing
+			writeRequested.set(true);
+		}
+	}
+
+	/**
+	 * Test whether frames are queued for sending
+	 * @return pending
+	 */
+	boolean hasPendingWrites() {
+		return !writeQueue.isEmpty();
+	}
+
+	/**
+	 * Register the id of a request sent via this connection, which
+	 * awaits a response
+	 * @param id
+	 */
+	void addOutstanding(String id) {
+		outstanding.put(id, Boolean.TRUE);
+	}
+
+	/**
+	 * Unregister the id of a request which is answered or timed out
+	 * @param id
+	 */
+	void removeOutstanding(String id) {
+		outstanding.remove(id);
+	}
+
+	/**
+	 * Test whether a request sent via this connection awaits a response
+	 * @param id
+	 * @return outstanding
+	 */
+	boolean isOutstanding(String id) {
+		return outstanding.containsKey(id);
+	}
+
+	/**
+	 * Get the ids of the requests awaiting a response
+	 * @return ids
+	 */
+	Set<String> getOutstanding() {
+		return outstanding.keySet();
+	}
+
+	/**
+	 * Close the channel
+	 */
+	void close() {
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		writeQueue.clear();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	String getAddress() {
+		return address;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	private static int BUFFER_SIZE = 64 * 1024;
+
+	private final TcpService service;
+	private final SocketChannel channel;
+	private final String address;          // host:port of the remote end
+	private final Queue<ByteBuffer> writeQueue = 
+			new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+	private final ConcurrentHashMap<String, Boolean> outstanding = 
+			new ConcurrentHashMap<String, Boolean>(); // request id:true
+	private volatile boolean closed = false;
+
+	// only used by the selector thread
+	private SelectionKey key = null;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private int frameLength = -1;          // length of the frame in progress
+}
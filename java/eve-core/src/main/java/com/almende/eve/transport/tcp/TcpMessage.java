@@ -0,0 +1,88 @@
+package com.almende.eve.transport.tcp;
+
+/**
+ * A message exchanged over an eve+tcp connection: either a JSON-RPC
+ * request for an agent, or the response on a request. Requests and 
+ * responses are correlated by their id, which is unique per sending 
+ * connection.
+ */
+public class TcpMessage {
+	public TcpMessage() {}
+
+	public TcpMessage(long id, boolean response, String receiver, 
+			String sender, String body) {
+		this.id = id;
+		this.response = response;
+		this.receiver = receiver;
+		this.sender = sender;
+		this.body = body;
+	}
+
+	/**
+	 * Get the correlation id of the message
+	 * @return id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	/**
+	 * Test whether this message is a response
+	 * @return response
+	 */
+	public boolean isResponse() {
+		return response;
+	}
+
+	public void setResponse(boolean response) {
+		this.response = response;
+	}
+
+	/**
+	 * Get the id of the receiving agent. Only available for requests
+	 * @return receiver
+	 */
+	public String getReceiver() {
+		return receiver;
+	}
+
+	public void setReceiver(String receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Get the url of the sending agent. Optional, only for requests.
+	 * The url is provided by the peer and not authenticated, so it is not
+	 * passed to the agent as @Sender.
+	 * @return sender
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	public void setSender(String sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * Get the JSON-RPC request or response
+	 * @return body
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	public void setBody(String body) {
+		this.body = body;
+	}
+
+	private long id = 0;
+	private boolean response = false;
+	private String receiver = null;
+	private String sender = null;
+	private String body = null;
+}
@@ -0,0 +1,759 @@
+package com.almende.eve.transport.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.probe.Probes;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.TransportService;
+
+/**
+ * Transport service for direct communication between Eve hosts via TCP.
+ * Agents are addressed by the url "eve+tcp://{host}:{port}/{agentId}".
+ * 
+ * The service listens on the configured host and port, and keeps one 
+ * persistent connection per remote host, which is shared by all agents
+ * (multiplexing). Each connection can carry any number of outstanding
+ * requests in both directions (pipelining): responses are correlated with
+ * their request by id.
+ * Messages are sent as length prefixed frames, and serialized by a 
+ * pluggable Codec. All network I/O is done by a single selector thread
+ * using non-blocking I/O. Incoming requests are invoked by a fixed pool of
+ * threads. When the pool and its queue are full, requests are answered 
+ * with a "Server busy" error. A response is only accepted via the 
+ * connection on which its request was sent. A malformed frame closes the
+ * connection it was received on.
+ * 
+ * The sender url in a request is provided by the peer and not 
+ * authenticated, so agents do not receive a @Sender.
+ * 
+ * Configuration:
+ *     transport_services:
+ *     - class: TcpService
+ *       host: localhost           # host to listen on, and to advertise in
+ *                                 # the agent urls
+ *       port: 7000                # 0 picks a free port
+ *       codec: binary             # binary, json, or the class name of
+ *                                 # a Codec implementation
+ *       timeout: 30000            # request timeout in milliseconds
+ *       max_frame_size: 16777216  # maximum size of a frame in bytes
+ *       threads: 8                # threads invoking incoming requests
+ *       capacity: 1000            # max number of incoming requests waiting
+ *                                 # for a thread
+ */
+public class TcpService extends TransportService {
+	public static String PREFIX = "eve+tcp://";
+
+	public TcpService(AgentFactory agentFactory) {
+		super(agentFactory);
+	}
+
+	/**
+	 * Initialize the service, and start listening for connections
+	 * @param params   Available parameters:
+	 *                 {String} host           Host to listen on. 
+	 *                                         "localhost" by default.
+	 *                 {Integer} port          Port to listen on. When 0 or 
+	 *                                         not provided, a free port is
+	 *                                         chosen.
+	 *                 {String} codec          "binary" (default), "json", or
+	 *                                         a class implementing Codec
+	 *                 {Number} timeout        Request timeout in milliseconds
+	 *                 {Integer} max_frame_size  Maximum frame size in bytes
+	 *                 {Integer} threads       Threads invoking requests
+	 *                 {Integer} capacity      Max number of waiting requests
+	 */
+	@Override
+	public void init(Map<String, Object> params) {
+		if (params != null) {
+			String host = (String) params.get("host");
+			if (host != null) {
+				this.host = host;
+			}
+			Integer port = (Integer) params.get("port");
+			if (port != null) {
+				this.port = port;
+			}
+			String codec = (String) params.get("codec");
+			if (codec != null) {
+				this.codec = createCodec(codec);
+			}
+			Number timeout = (Number) params.get("timeout");
+			if (timeout != null) {
+				this.timeout = timeout.longValue();
+			}
+			Integer maxFrameSize = (Integer) params.get("max_frame_size");
+			if (maxFrameSize != null) {
+				this.maxFrameSize = maxFrameSize;
+			}
+			Integer threads = (Integer) params.get("threads");
+			if (threads != null) {
+				this.threads = threads;
+			}
+			Integer capacity = (Integer) params.get("capacity");
+			if (capacity != null) {
+				this.capacity = capacity;
+			}
+		}
+
+		try {
+			start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot start TcpService on " + 
+					host + ":" + port + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Create a codec from its short name or class name
+	 * @param name
+	 * @return codec
+	 */
+	private static Codec createCodec(String name) {
+		if (name.equalsIgnoreCase("binary")) {
+			return new BinaryCodec();
+		}
+		if (name.equalsIgnoreCase("json")) {
+			return new JsonCodec();
+		}
+		try {
+			return (Codec) Class.forName(name).newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Unknown codec '" + name + "'", e);
+		}
+	}
+
+	/**
+	 * Open the server socket and start the selector thread
+	 * @throws IOException
+	 */
+	private synchronized void start() throws IOException {
+		if (selector != null) {
+			return;
+		}
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(host, port));
+		port = server.socket().getLocalPort();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		final String name = "TcpService-" + port;
+		executor = new ThreadPoolExecutor(threads, threads, 0, 
+				TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("TcpService listening on " + host + ":" + port);
+	}
+
+	/**
+	 * Stop listening, and close all connections. Outstanding requests 
+	 * fail.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (selector == null) {
+				return;
+			}
+			running = false;
+			selector.wakeup();
+			thread = this.thread;
+		}
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {}
+	}
+
+	/**
+	 * Get the url of an agent from its id, 
+	 * "eve+tcp://{host}:{port}/{agentId}"
+	 * @param agentId
+	 * @return agentUrl
+	 */
+	@Override
+	public String getAgentUrl(String agentId) {
+		return getBaseUrl() + agentId;
+	}
+
+	/**
+	 * Get the id of an agent from its url. If the url does not refer to
+	 * this host and port, null is returned.
+	 * @param agentUrl
+	 * @return agentId
+	 */
+	@Override
+	public String getAgentId(String agentUrl) {
+		String baseUrl = getBaseUrl();
+		if (agentUrl != null && agentUrl.startsWith(baseUrl)) {
+			String agentId = agentUrl.substring(baseUrl.length());
+			if (agentId.endsWith("/")) {
+				agentId = agentId.substring(0, agentId.length() - 1);
+			}
+			return agentId;
+		}
+		return null;
+	}
+
+	private String getBaseUrl() {
+		return PREFIX + host + ":" + port + "/";
+	}
+
+	/**
+	 * Send a request to an agent and wait for the response
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @return response
+	 */
+	@Override
+	public JSONResponse send(String senderId, String receiverUrl,
+			JSONRequest request) throws Exception {
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		sendAsync(senderId, receiverUrl, request, callback, timeout);
+		return callback.get();
+	}
+
+	/**
+	 * Send a request to an agent. The callback is invoked with the response,
+	 * or with a TimeoutException when no response is received within the
+	 * configured timeout.
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiverUrl,
+			JSONRequest request, AsyncCallback<JSONResponse> callback) 
+			throws Exception {
+		sendAsync(senderId, receiverUrl, request, callback, timeout);
+	}
+
+	/**
+	 * Send a request to an agent, with a specific timeout
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 * @param timeout      timeout in milliseconds
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiverUrl,
+			JSONRequest request, final AsyncCallback<JSONResponse> callback,
+			long timeout) throws Exception {
+		if (receiverUrl == null || !receiverUrl.startsWith(PREFIX)) {
+			throw new Exception("Receiver url must start with '" + PREFIX +
+					"' (receiver='" + receiverUrl + "')");
+		}
+		if (!running) {
+			throw new IOException("TcpService is not started");
+		}
+		String path = receiverUrl.substring(PREFIX.length());
+		int slash = path.indexOf('/');
+		if (slash == -1) {
+			throw new Exception("Receiver url must have the form '" + PREFIX + 
+					"host:port/agentId' (receiver='" + receiverUrl + "')");
+		}
+		String address = path.substring(0, slash);
+		String receiverId = path.substring(slash + 1);
+		if (receiverId.endsWith("/")) {
+			receiverId = receiverId.substring(0, receiverId.length() - 1);
+		}
+
+		final TcpConnection connection = getConnection(address);
+		long messageId = nextId.incrementAndGet();
+		final String id = String.valueOf(messageId);
+		TcpMessage message = new TcpMessage(messageId, false, receiverId,
+				(senderId != null) ? getAgentUrl(senderId) : null, 
+				request.toString());
+		byte[] payload = codec.encode(message);
+
+		// the callback is removed from the queue on response, timeout,
+		// or when the connection is closed
+		connection.addOutstanding(id);
+		callbacks.push(id, new AsyncCallback<JSONResponse>() {
+			@Override
+			public void onSuccess(JSONResponse response) {
+				connection.removeOutstanding(id);
+				callback.onSuccess(response);
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				connection.removeOutstanding(id);
+				callback.onFailure(exception);
+			}
+		}, timeout);
+
+		try {
+			connection.send(payload);
+		} catch (IOException e) {
+			AsyncCallback<JSONResponse> handler = callbacks.pull(id);
+			if (handler != null) {
+				handler.onFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * Get the connection to a remote host, open a new connection when 
+	 * there is none. 
+	 * @param address    remote address, "host:port"
+	 * @return connection
+	 * @throws IOException
+	 */
+	private TcpConnection getConnection(String address) throws IOException {
+		TcpConnection connection = connections.get(address);
+		if (connection != null && !connection.isClosed()) {
+			return connection;
+		}
+
+		synchronized (connections) {
+			connection = connections.get(address);
+			if (connection != null && !connection.isClosed()) {
+				return connection;
+			}
+
+			int colon = address.lastIndexOf(':');
+			if (colon == -1) {
+				throw new IOException("No port specified in address '" + 
+						address + "'");
+			}
+			String remoteHost = address.substring(0, colon);
+			int remotePort = Integer.parseInt(address.substring(colon + 1));
+
+			final SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			final boolean connected = channel.connect(
+					new InetSocketAddress(remoteHost, remotePort));
+			final TcpConnection newConnection = 
+					new TcpConnection(this, channel, address);
+			connections.put(address, newConnection);
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					register(newConnection, connected ? 
+							SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+				}
+			});
+			return newConnection;
+		}
+	}
+
+	/**
+	 * Execute a task on the selector thread
+	 * @param task
+	 */
+	private void execute(Runnable task) {
+		tasks.add(task);
+		Selector selector = this.selector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Register a connection with the selector. 
+	 * Executed by the selector thread.
+	 * @param connection
+	 * @param ops
+	 */
+	private void register(TcpConnection connection, int ops) {
+		try {
+			if (ops == SelectionKey.OP_READ && connection.hasPendingWrites()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			connection.setKey(connection.getChannel().register(
+					selector, ops, connection));
+		} catch (IOException e) {
+			close(connection, e);
+		}
+	}
+
+	/**
+	 * Request the selector thread to write the queued frames of a 
+	 * connection. Called by TcpConnection.
+	 * @param connection
+	 */
+	void requestWrite(final TcpConnection connection) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				SelectionKey key = connection.getKey();
+				// a connection which is not yet connected enables writing
+				// as soon as it is connected
+				if (key != null && key.isValid() && 
+						connection.getChannel().isConnected()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loop of the selector thread
+	 */
+	private void loop() {
+		try {
+			while (running) {
+				selector.select();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.log(Level.WARNING, "Task failed", e);
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+
+					TcpConnection connection = (TcpConnection) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							connection.getChannel().finishConnect();
+							int ops = SelectionKey.OP_READ;
+							if (connection.hasPendingWrites()) {
+								ops |= SelectionKey.OP_WRITE;
+							}
+							key.interestOps(ops);
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						close(connection, e);
+					} catch (RuntimeException e) {
+						// only the connection of the peer is affected
+						logger.log(Level.WARNING, "Failed to handle data of " + 
+								connection.getAddress(), e);
+						close(connection, new IOException(
+								"Connection failed: " + e.getMessage()));
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "TcpService stopped", e);
+		} catch (ClosedSelectorException e) {
+			// stopped
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Accept a new incoming connection. Executed by the selector thread.
+	 */
+	private void accept() {
+		try {
+			SocketChannel channel = server.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			InetSocketAddress remote = 
+					(InetSocketAddress) channel.socket().getRemoteSocketAddress();
+			TcpConnection connection = new TcpConnection(this, channel,
+					remote.getAddress().getHostAddress() + ":" + remote.getPort());
+			incoming.add(connection);
+			register(connection, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to accept connection", e);
+		}
+	}
+
+	/**
+	 * Handle a frame received on a connection. 
+	 * Executed by the selector thread.
+	 * A response is only accepted for a request sent via the same 
+	 * connection. The callback of a response is invoked on the executor of
+	 * the AgentFactory, as a request waiting on the pool may wait for it.
+	 * @param connection
+	 * @param payload
+	 * @throws IOException   when the frame cannot be decoded
+	 */
+	void receive(final TcpConnection connection, byte[] payload) 
+			throws IOException {
+		final TcpMessage message = codec.decode(payload);
+		if (message.isResponse()) {
+			String id = String.valueOf(message.getId());
+			final AsyncCallback<JSONResponse> callback = 
+					connection.isOutstanding(id) ? callbacks.pull(id) : null;
+			if (callback != null) {
+				agentFactory.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							callback.onSuccess(new JSONResponse(message.getBody()));
+						} catch (Exception e) {
+							callback.onFailure(e);
+						}
+					}
+				});
+			}
+			else {
+				logger.fine("Response " + message.getId() + 
+						" received from " + connection.getAddress() + 
+						" after timeout");
+			}
+		}
+		else {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						invoke(connection, message);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				JSONResponse response = new JSONResponse(new JSONRPCException(
+						JSONRPCException.CODE.SERVER_BUSY));
+				connection.send(codec.encode(new TcpMessage(message.getId(), 
+						true, null, null, response.toString())));
+			}
+		}
+	}
+
+	/**
+	 * Invoke an incoming request on an agent, and send back the response.
+	 * @param connection
+	 * @param message
+	 */
+	private void invoke(TcpConnection connection, TcpMessage message) {
+		JSONResponse response;
+		try {
+			JSONRequest request = new JSONRequest(message.getBody());
+			RequestParams requestParams = new RequestParams();
+			requestParams.put(Sender.class, null);
+			long start = Probes.start();
+			response = agentFactory.invoke(message.getReceiver(), 
+					request, requestParams);
+			Probes.received("eve+tcp", request, response, start);
+		} catch (Exception e) {
+			response = new JSONResponse(new JSONRPCException(
+					JSONRPCException.CODE.INTERNAL_ERROR, e.getMessage()));
+		}
+
+		try {
+			TcpMessage reply = new TcpMessage(message.getId(), true, null, null,
+					response.toString());
+			connection.send(codec.encode(reply));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to send response to " + 
+					connection.getAddress(), e);
+		}
+	}
+
+	/**
+	 * Close a connection, and fail the requests awaiting a response.
+	 * @param connection
+	 * @param cause
+	 */
+	private void close(TcpConnection connection, Exception cause) {
+		connection.close();
+		synchronized (connections) {
+			if (connections.get(connection.getAddress()) == connection) {
+				connections.remove(connection.getAddress());
+			}
+		}
+		incoming.remove(connection);
+
+		for (String id : new ArrayList<String>(connection.getOutstanding())) {
+			AsyncCallback<JSONResponse> callback = callbacks.pull(id);
+			if (callback != null) {
+				callback.onFailure(cause);
+			}
+		}
+		logger.fine("Connection " + connection.getAddress() + " closed: " + 
+				cause.getMessage());
+	}
+
+	/**
+	 * Close the server and all connections. Executed by the selector thread
+	 * when stopped.
+	 */
+	private void shutdown() {
+		IOException cause = new IOException("TcpService stopped");
+		for (TcpConnection connection : 
+				new ArrayList<TcpConnection>(connections.values())) {
+			close(connection, cause);
+		}
+		for (TcpConnection connection : 
+				new ArrayList<TcpConnection>(incoming)) {
+			close(connection, cause);
+		}
+		try {
+			server.close();
+		} catch (IOException e) {}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+		executor.shutdown();
+		synchronized (this) {
+			selector = null;
+		}
+		logger.info("TcpService on " + host + ":" + port + " stopped");
+	}
+
+	/**
+	 * Get the maximum size of a frame in bytes
+	 * @return maxFrameSize
+	 */
+	int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Get the port the service is listening on
+	 * @return port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Get the host the service is listening on
+	 * @return host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get the codec used to serialize messages
+	 * @return codec
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Get the number of open connections, incoming and outgoing
+	 * @return count
+	 */
+	public int getConnectionCount() {
+		return connections.size() + incoming.size();
+	}
+
+	/**
+	 * Get the base url of the agents served by the service,
+	 * "eve+tcp://{host}:{port}/"
+	 * @return baseUrls
+	 */
+	@Override
+	public List<String> getBaseUrls() {
+		return Arrays.asList(getBaseUrl());
+	}
+
+	/**
+	 * Get the protocols supported by the TcpService.
+	 * Will return an array with one value, "eve+tcp"
+	 * @return protocols
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("protocols", protocols);
+		data.put("host", host);
+		data.put("port", port);
+		data.put("codec", codec.getClass().getSimpleName());
+		return data.toString();
+	}
+
+	private static Logger logger = 
+			Logger.getLogger(TcpService.class.getSimpleName());
+	private static List<String> protocols = Arrays.asList("eve+tcp");
+
+	private String host = "localhost";
+	private int port = 0;
+	private Codec codec = new BinaryCodec();
+	private long timeout = getDefaultTimeout();
+	private int maxFrameSize = 16 * 1024 * 1024;
+	private int threads = 8;
+	private int capacity = 1000;
+	private ExecutorService executor = null;
+
+	private final AtomicLong nextId = new AtomicLong(0);
+	private final Map<String, TcpConnection> connections = 
+			new ConcurrentHashMap<String, TcpConnection>(); // host:port:connection
+	private final List<TcpConnection> incoming = 
+			new CopyOnWriteArrayList<TcpConnection>();
+
+	private volatile Selector selector = null;
+	private ServerSocketChannel server = null;
+	private Thread thread = null;
+	private volatile boolean running = false;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+}
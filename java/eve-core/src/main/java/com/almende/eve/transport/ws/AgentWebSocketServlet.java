@@ -0,0 +1,200 @@
+package com.almende.eve.transport.ws;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketServlet;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.config.Config;
+
+/**
+ * Servlet accepting WebSocket connections of clients, on top of the
+ * WebSocket support of Jetty. Messages are handled by a WebSocketService,
+ * which the servlet registers at the AgentFactory.
+ * 
+ * A client connects to "{servlet_url}". A new id is generated for the
+ * client, which it receives with a reconnect token in the notification 
+ * "connected". To reconnect with the same id, the client connects to 
+ * "{servlet_url}{clientId}?token={token}".
+ * 
+ * Configuration in web.xml:
+ *     <servlet>
+ *       <servlet-name>AgentWebSocketServlet</servlet-name>
+ *       <servlet-class>com.almende.eve.transport.ws.AgentWebSocketServlet</servlet-class>
+ *       <init-param>
+ *         <param-name>config</param-name>
+ *         <param-value>eve.yaml</param-value>
+ *       </init-param>
+ *       <init-param>
+ *         <param-name>servlet_url</param-name>
+ *         <param-value>ws://localhost:8080/ws/</param-value>
+ *       </init-param>
+ *     </servlet>
+ */
+@SuppressWarnings("serial")
+public class AgentWebSocketServlet extends WebSocketServlet {
+	private Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+
+	/** Maximum idle time of a connection, in milliseconds */
+	private static int MAX_IDLE_TIME = 5 * 60 * 1000;
+
+	AgentFactory agentFactory = null;
+	WebSocketService wsTransport = null;
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		try {
+			initAgentFactory();
+			initWebSocketTransport();
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Failed to initialize servlet", e);
+		}
+	}
+
+	/**
+	 * Return usage information on a plain HTTP request
+	 */
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) 
+			throws ServletException, IOException {
+		String servletUrl = wsTransport.getServletUrl();
+		resp.getWriter().write(
+			"EVE WEBSOCKET SERVLET\n" +
+			"\n" +
+			"Usage:\n" +
+			"\n" +
+			"Connect a WebSocket to " + servletUrl + "\n" +
+			"\n" +
+			"    Opens a persistent connection for sending JSON-RPC requests\n" +
+			"    to agents, and receiving requests from agents, such as the\n" +
+			"    callbacks of subscribed events. A request for an agent\n" +
+			"    contains the id of the agent in the member \"to\".\n" +
+			"    After connecting, a notification \"connected\" is sent,\n" +
+			"    containing the url of the client and a reconnect token.\n" +
+			"\n" +
+			"Connect a WebSocket to " + servletUrl + "{clientId}?token={token}\n" +
+			"\n" +
+			"    Reconnects a client with its previous id. Without a valid\n" +
+			"    token, a new id is generated.");
+	}
+
+	/**
+	 * Accept a WebSocket connection
+	 * @param request
+	 * @param protocol
+	 * @return websocket
+	 */
+	@Override
+	public WebSocket doWebSocketConnect(HttpServletRequest request, 
+			String protocol) {
+		String clientId = request.getPathInfo();
+		if (clientId != null) {
+			clientId = clientId.replaceAll("^/+|/+$", "");
+		}
+		return new ClientWebSocket(clientId, request.getParameter("token"));
+	}
+
+	/**
+	 * The WebSocket of a single client
+	 */
+	private class ClientWebSocket implements WebSocket.OnTextMessage, 
+			WebSocketConnection {
+		ClientWebSocket(String clientId, String token) {
+			this.clientId = clientId;
+			this.token = token;
+		}
+
+		@Override
+		public void onOpen(Connection connection) {
+			this.connection = connection;
+			connection.setMaxIdleTime(MAX_IDLE_TIME);
+			clientId = wsTransport.onOpen(clientId, token, this);
+		}
+
+		@Override
+		public void onMessage(String data) {
+			wsTransport.onMessage(clientId, data);
+		}
+
+		@Override
+		public void onClose(int closeCode, String message) {
+			wsTransport.onClose(clientId, this);
+		}
+
+		@Override
+		public void sendMessage(String message) throws IOException {
+			connection.sendMessage(message);
+		}
+
+		@Override
+		public void close() {
+			if (connection.isOpen()) {
+				connection.close();
+			}
+		}
+
+		private String clientId;
+		private String token;
+		private Connection connection = null;
+	}
+
+	/**
+	 * initialize the agent factory
+	 * @throws Exception 
+	 */
+	private void initAgentFactory() throws Exception {
+		agentFactory = AgentFactory.getInstance();
+		if (agentFactory == null) {
+			// if the agent factory is not yet loaded, load it from config
+			String filename = getInitParameter("config");
+			if (filename == null) {
+				filename = "eve.yaml";
+				logger.warning(
+					"Init parameter 'config' missing in servlet configuration web.xml. " +
+					"Trying default filename '" + filename + "'.");
+			}
+			String fullname = "/WEB-INF/" + filename;
+			logger.info("loading configuration file '" + 
+					getServletContext().getRealPath(fullname) + "'...");
+			Config config = new Config(getServletContext().getResourceAsStream(fullname));
+			
+			agentFactory = AgentFactory.createInstance(config);
+		}
+	}
+
+	/**
+	 * Register the WebSocket transport at the agent factory
+	 * @throws Exception 
+	 */
+	private void initWebSocketTransport() throws Exception {
+		if (agentFactory == null) {
+			throw new Exception(
+					"Cannot initialize WebSocketService: no AgentFactory initialized.");
+		}
+
+		String environment = agentFactory.getEnvironment();
+		String envParam = "environment." + environment + ".servlet_url";
+		String globalParam = "servlet_url";
+		String servletUrl = getInitParameter(envParam);
+		if (servletUrl == null) {
+			servletUrl = getInitParameter(globalParam);
+		}
+		if (servletUrl == null) {
+			throw new Exception("Cannot initialize WebSocketService: " +
+					"Init Parameter '" + globalParam + "' or '" + envParam + "' " + 
+					"missing in servlet configuration web.xml.");
+		}
+
+		wsTransport = new WebSocketService(agentFactory);
+		wsTransport.init(servletUrl);
+		agentFactory.addTransportService(wsTransport);
+	}
+}
@@ -0,0 +1,12 @@
+package com.almende.eve.transport.ws;
+
+import java.io.IOException;
+
+/**
+ * An open WebSocket connection of a client, as provided by the WebSocket 
+ * implementation of the servlet container.
+ */
+public interface WebSocketConnection {
+	public void sendMessage(String message) throws IOException;
+	public void close();
+}
@@ -0,0 +1,650 @@
+package com.almende.eve.transport.ws;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.probe.Probes;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.HashedWheelTimer;
+import com.almende.eve.transport.HashedWheelTimer.Timeout;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.TransportService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Transport service for clients connected via a WebSocket, such as 
+ * browsers and mobile apps. Each client has a single, persistent 
+ * connection, over which JSON-RPC messages are sent in both directions:
+ * 
+ * - Requests from the client to an agent. The receiving agent is specified
+ *   by the member "to" in the request, containing the id of the agent:
+ *       {"id": 1, "method": "add", "params": {...}, "to": "agentId"}
+ *   The response is sent back with the same id.
+ * - Requests from agents to the client, for example the callbacks of 
+ *   triggered events the client subscribed to. The client is addressed by
+ *   its url "{servlet_url}{clientId}", and must send back a response 
+ *   with the same id. Notifications (requests without id) need no response.
+ * 
+ * After connecting, the client receives a notification with its url and
+ * a reconnect token:
+ *     {"jsonrpc": "2.0", "method": "connected", 
+ *      "params": {"url": "...", "token": "..."}}
+ * A client can only reconnect with the same id, and keep the subscriptions
+ * on its url, by presenting this token. The token is derived from the id
+ * with a secret of the service, so it remains valid after the connection
+ * is closed, until the service is restarted.
+ * 
+ * The service remembers on which agents a client subscribed to events.
+ * When a client does not reconnect within the reconnect timeout after its
+ * connection is closed, it is unsubscribed from these agents. A client 
+ * reconnecting later keeps its id, but must subscribe again.
+ * 
+ * Requests of clients are invoked by a fixed pool of threads. When the 
+ * pool and its queue are full, requests are answered with a "Server busy"
+ * error.
+ * 
+ * Clients are no agents: the service does not provide urls for the agents
+ * of the factory. The connections are accepted by the servlet 
+ * AgentWebSocketServlet, which registers the service at the AgentFactory.
+ */
+public class WebSocketService extends TransportService {
+	public WebSocketService(AgentFactory agentFactory) {
+		super(agentFactory);
+	}
+
+	/**
+	 * Initialize the transport service with a set of parameters
+	 * @param params   Available parameters:
+	 *                 {String} servlet_url   For example ws://host/ws/
+	 *                 {Number} timeout       Request timeout in milliseconds
+	 *                 {Number} reconnect_timeout   Time in milliseconds a
+	 *                                        closed client keeps its 
+	 *                                        subscriptions
+	 *                 {Integer} threads      Threads invoking requests
+	 *                 {Integer} queue        Max number of waiting requests
+	 */
+	@Override
+	public void init(Map<String, Object> params) {
+		if (params != null) {
+			Number timeout = (Number) params.get("timeout");
+			if (timeout != null) {
+				this.timeout = timeout.longValue();
+			}
+			Number reconnectTimeout = (Number) params.get("reconnect_timeout");
+			if (reconnectTimeout != null) {
+				this.reconnectTimeout = reconnectTimeout.longValue();
+			}
+			Integer threads = (Integer) params.get("threads");
+			if (threads != null) {
+				this.threads = threads;
+			}
+			Integer queue = (Integer) params.get("queue");
+			if (queue != null) {
+				this.queue = queue;
+			}
+			init((String) params.get("servlet_url"));
+		}
+	}
+
+	/**
+	 * Initialize the service
+	 * @param servletUrl   For example ws://host/ws/
+	 */
+	public void init(String servletUrl) {
+		if (servletUrl == null) {
+			return;
+		}
+		if (!servletUrl.endsWith("/")) {
+			servletUrl += "/";
+		}
+		this.servletUrl = servletUrl;
+		protocols = new ArrayList<String>();
+		int separator = servletUrl.indexOf(":");
+		if (separator != -1) {
+			protocols.add(servletUrl.substring(0, separator));
+		}
+	}
+
+	/**
+	 * Register a newly opened connection of a client. A previous connection
+	 * of the same client is closed.
+	 * @param clientId     Optional id of a reconnecting client. The id is 
+	 *                     only used when the token matches, otherwise a new
+	 *                     id is generated.
+	 * @param token        The token sent with the notification "connected"
+	 *                     of a previous connection of the client
+	 * @param connection
+	 * @return clientId
+	 */
+	public String onOpen(String clientId, String token, 
+			WebSocketConnection connection) {
+		if (clientId == null || clientId.isEmpty() || token == null || 
+				!token.equals(createToken(clientId))) {
+			clientId = UUID.randomUUID().toString();
+		}
+		Timeout expiry = expiries.remove(clientId);
+		if (expiry != null) {
+			expiry.cancel();
+		}
+		Client client = new Client(clientId, connection);
+		Client previous = clients.put(clientId, client);
+		if (previous != null) {
+			close(previous, new IOException("Client reconnected"));
+		}
+
+		ObjectNode params = JOM.createObjectNode();
+		params.put("url", getClientUrl(clientId));
+		params.put("token", createToken(clientId));
+		ObjectNode notification = new JSONRequest("connected", params)
+				.getObjectNode();
+		notification.remove("id");
+		try {
+			client.send(notification.toString());
+		} catch (IOException e) {
+			onClose(clientId, connection);
+		}
+		return clientId;
+	}
+
+	/**
+	 * Handle a message received from a client: either a request for an
+	 * agent, or the response on a request sent to the client
+	 * @param clientId
+	 * @param message
+	 */
+	public void onMessage(String clientId, String message) {
+		final Client client = clients.get(clientId);
+		if (client == null) {
+			return;
+		}
+
+		final ObjectNode json;
+		try {
+			json = JOM.getInstance().readValue(message, ObjectNode.class);
+		} catch (Exception e) {
+			reply(client, new JSONResponse(new JSONRPCException(
+					JSONRPCException.CODE.PARSE_ERROR)));
+			return;
+		}
+
+		if (json.has("method")) {
+			try {
+				getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						invoke(client, json);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				if (json.has("id") && !json.get("id").isNull()) {
+					reply(client, new JSONResponse(json.get("id"), 
+							new JSONRPCException(
+							JSONRPCException.CODE.SERVER_BUSY)));
+				}
+			}
+		}
+		else {
+			// only accept responses on requests sent to this client
+			JsonNode id = json.get("id");
+			final AsyncCallback<JSONResponse> callback = (id != null && 
+					client.outstanding.containsKey(id.asText())) ? 
+					callbacks.pull(id.asText()) : null;
+			if (callback != null) {
+				agentFactory.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							callback.onSuccess(new JSONResponse(json));
+						} catch (Exception e) {
+							callback.onFailure(e);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Unregister a closed connection. Requests awaiting a response of the
+	 * client fail. When the client does not reconnect within the reconnect
+	 * timeout, it is unsubscribed from the events of all agents.
+	 * @param clientId
+	 * @param connection
+	 */
+	public void onClose(final String clientId, WebSocketConnection connection) {
+		Client client = clients.get(clientId);
+		if (client != null && client.connection == connection) {
+			clients.remove(clientId);
+			close(client, new IOException("Connection of client '" + 
+					clientId + "' closed"));
+			if (subscriptions.containsKey(clientId)) {
+				Timeout expiry = HashedWheelTimer.getInstance().schedule(
+						new Runnable() {
+					@Override
+					public void run() {
+						expire(clientId);
+					}
+				}, reconnectTimeout);
+				Timeout previous = expiries.put(clientId, expiry);
+				if (previous != null) {
+					previous.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribe a client which did not reconnect from the events of all
+	 * agents it subscribed on. Executed by the timer.
+	 * @param clientId
+	 */
+	private void expire(final String clientId) {
+		if (expiries.remove(clientId) == null || clients.containsKey(clientId)) {
+			return;
+		}
+		final Set<String> agentIds = subscriptions.remove(clientId);
+		if (agentIds == null) {
+			return;
+		}
+		// invoking the agents may write their context: not on the timer thread
+		agentFactory.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				String clientUrl = getClientUrl(clientId);
+				RequestParams requestParams = new RequestParams();
+				requestParams.put(Sender.class, clientUrl);
+				synchronized (agentIds) {
+					for (String agentId : agentIds) {
+						ObjectNode params = JOM.createObjectNode();
+						params.put("callbackUrl", clientUrl);
+						try {
+							agentFactory.invoke(agentId, new JSONRequest(
+									"onUnsubscribe", params), requestParams);
+						} catch (Exception e) {
+							logger.log(Level.WARNING, "Failed to unsubscribe " +
+									"client '" + clientId + "' from agent '" + 
+									agentId + "'", e);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the pool of threads invoking the requests of clients
+	 * @return executor
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+					KEEP_ALIVE, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, 
+							"WebSocketService-worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			// the service is never stopped: let idle threads end
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/**
+	 * Create the reconnect token of a client: a HMAC of the client id
+	 * @param clientId
+	 * @return token
+	 */
+	private String createToken(String clientId) {
+		try {
+			Mac mac = Mac.getInstance(TOKEN_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, TOKEN_ALGORITHM));
+			StringBuilder token = new StringBuilder();
+			for (byte b : mac.doFinal(clientId.getBytes("UTF-8"))) {
+				token.append(Character.forDigit((b >> 4) & 0xF, 16));
+				token.append(Character.forDigit(b & 0xF, 16));
+			}
+			return token.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException(
+					"Failed to create token for client '" + clientId + "'", e);
+		}
+	}
+
+	/**
+	 * Create a random secret for the reconnect tokens
+	 * @return secret
+	 */
+	private static byte[] createSecret() {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		return secret;
+	}
+
+	/**
+	 * Invoke a request of a client on an agent, and send back the response
+	 * @param client
+	 * @param json
+	 */
+	private void invoke(Client client, ObjectNode json) {
+		JsonNode to = json.remove("to");
+		JSONResponse response;
+		try {
+			JSONRequest request = new JSONRequest(json);
+			if (to == null || !to.isTextual()) {
+				throw new JSONRPCException(JSONRPCException.CODE.INVALID_REQUEST,
+						"Member 'to' with the id of the agent missing in request");
+			}
+			RequestParams requestParams = new RequestParams();
+			requestParams.put(Sender.class, getClientUrl(client.id));
+			long start = Probes.start();
+			response = agentFactory.invoke(to.asText(), request, requestParams);
+			Probes.received("ws", request, response, start);
+			if ("onSubscribe".equals(request.getMethod()) && 
+					response.getError() == null) {
+				subscribed(client.id, to.asText());
+			}
+		} catch (JSONRPCException e) {
+			response = new JSONResponse(json.get("id"), e);
+		} catch (Exception e) {
+			response = new JSONResponse(json.get("id"), new JSONRPCException(
+					JSONRPCException.CODE.INTERNAL_ERROR, e.getMessage()));
+		}
+
+		if (json.has("id") && !json.get("id").isNull()) {
+			reply(client, response);
+		}
+	}
+
+	/**
+	 * Remember that a client subscribed to the events of an agent
+	 * @param clientId
+	 * @param agentId
+	 */
+	private void subscribed(String clientId, String agentId) {
+		Set<String> agentIds = subscriptions.get(clientId);
+		if (agentIds == null) {
+			agentIds = Collections.synchronizedSet(new HashSet<String>());
+			Set<String> existing = subscriptions.putIfAbsent(clientId, agentIds);
+			if (existing != null) {
+				agentIds = existing;
+			}
+		}
+		agentIds.add(agentId);
+	}
+
+	private void reply(Client client, JSONResponse response) {
+		try {
+			client.send(response.toString());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to send response to client '" + 
+					client.id + "'", e);
+		}
+	}
+
+	/**
+	 * Close the connection of a client, and fail its outstanding requests
+	 * @param client
+	 * @param cause
+	 */
+	private void close(Client client, Exception cause) {
+		client.connection.close();
+		for (String id : new ArrayList<String>(client.outstanding.keySet())) {
+			AsyncCallback<JSONResponse> callback = callbacks.pull(id);
+			if (callback != null) {
+				callback.onFailure(cause);
+			}
+		}
+	}
+
+	/**
+	 * Send a request to a client and wait for the response
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @return response
+	 */
+	@Override
+	public JSONResponse send(String senderId, String receiverUrl,
+			JSONRequest request) throws Exception {
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		sendAsync(senderId, receiverUrl, request, callback, timeout);
+		return callback.get();
+	}
+
+	/**
+	 * Send a request to a client
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiverUrl,
+			JSONRequest request, AsyncCallback<JSONResponse> callback)
+			throws Exception {
+		sendAsync(senderId, receiverUrl, request, callback, timeout);
+	}
+
+	/**
+	 * Send a request to a client, with a specific timeout
+	 * @param senderId
+	 * @param receiverUrl
+	 * @param request
+	 * @param callback
+	 * @param timeout      timeout in milliseconds
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiverUrl,
+			JSONRequest request, final AsyncCallback<JSONResponse> callback,
+			long timeout) throws Exception {
+		String clientId = getClientId(receiverUrl);
+		final Client client = (clientId != null) ? clients.get(clientId) : null;
+		if (client == null) {
+			throw new IOException("Client with url '" + receiverUrl + 
+					"' is not connected");
+		}
+
+		// replace the id of the request by an id unique for this service
+		final String id = String.valueOf(nextId.incrementAndGet());
+		ObjectNode message = request.getObjectNode().deepCopy();
+		message.put("id", id);
+
+		client.outstanding.put(id, Boolean.TRUE);
+		callbacks.push(id, new AsyncCallback<JSONResponse>() {
+			@Override
+			public void onSuccess(JSONResponse response) {
+				client.outstanding.remove(id);
+				callback.onSuccess(response);
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				client.outstanding.remove(id);
+				callback.onFailure(exception);
+			}
+		}, timeout);
+
+		try {
+			client.send(message.toString());
+		} catch (IOException e) {
+			AsyncCallback<JSONResponse> handler = callbacks.pull(id);
+			if (handler != null) {
+				handler.onFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * Get the url of a client from its id
+	 * @param clientId
+	 * @return clientUrl
+	 */
+	public String getClientUrl(String clientId) {
+		return (servletUrl != null) ? servletUrl + clientId : clientId;
+	}
+
+	/**
+	 * Get the id of a client from its url
+	 * @param clientUrl
+	 * @return clientId   null if the url is no client url of this service
+	 */
+	public String getClientId(String clientUrl) {
+		if (servletUrl != null && clientUrl != null && 
+				clientUrl.startsWith(servletUrl)) {
+			String clientId = clientUrl.substring(servletUrl.length());
+			if (clientId.endsWith("/")) {
+				clientId = clientId.substring(0, clientId.length() - 1);
+			}
+			return clientId;
+		}
+		return null;
+	}
+
+	/**
+	 * Test whether a client is connected
+	 * @param clientId
+	 * @return connected
+	 */
+	public boolean isConnected(String clientId) {
+		return clients.containsKey(clientId);
+	}
+
+	/**
+	 * Clients are no agents. Returns null
+	 * @param agentId
+	 * @return null
+	 */
+	@Override
+	public String getAgentUrl(String agentId) {
+		return null;
+	}
+
+	/**
+	 * Clients are no agents. Returns null
+	 * @param agentUrl
+	 * @return null
+	 */
+	@Override
+	public String getAgentId(String agentUrl) {
+		return null;
+	}
+
+	/**
+	 * Get the servlet url of the service
+	 * @return servletUrl
+	 */
+	public String getServletUrl() {
+		return servletUrl;
+	}
+
+	/**
+	 * The service does not serve agents, it only connects clients
+	 * @return baseUrls   an empty list
+	 */
+	@Override
+	public List<String> getBaseUrls() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Get the protocols supported by the service, "ws" or "wss", 
+	 * depending on the servlet url
+	 * @return protocols
+	 */
+	@Override
+	public List<String> getProtocols() {
+		return protocols;
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("servlet_url", servletUrl);
+		data.put("protocols", protocols);
+		return data.toString();
+	}
+
+	/**
+	 * A connected client
+	 */
+	private static class Client {
+		Client(String id, WebSocketConnection connection) {
+			this.id = id;
+			this.connection = connection;
+		}
+
+		/**
+		 * Send a message. Messages are sent one at a time.
+		 * @param message
+		 * @throws IOException
+		 */
+		synchronized void send(String message) throws IOException {
+			connection.sendMessage(message);
+		}
+
+		final String id;
+		final WebSocketConnection connection;
+		final Map<String, Boolean> outstanding = 
+				new ConcurrentHashMap<String, Boolean>(); // request id:true
+	}
+
+	private static Logger logger = 
+			Logger.getLogger(WebSocketService.class.getSimpleName());
+
+	private String servletUrl = null;
+	private List<String> protocols = new ArrayList<String>();
+	private long timeout = getDefaultTimeout();
+	private long reconnectTimeout = 60000;
+	private int threads = 8;
+	private int queue = 1000;
+	private ExecutorService executor = null;
+	private static final long KEEP_ALIVE = 60000; // milliseconds
+
+	private static final String TOKEN_ALGORITHM = "HmacSHA256";
+	private final byte[] secret = createSecret();
+
+	private final AtomicLong nextId = new AtomicLong(0);
+	private final Map<String, Client> clients = 
+			new ConcurrentHashMap<String, Client>(); // clientId:client
+	private final ConcurrentMap<String, Set<String>> subscriptions = 
+			new ConcurrentHashMap<String, Set<String>>(); // clientId:agentIds
+	private final Map<String, Timeout> expiries = 
+			new ConcurrentHashMap<String, Timeout>(); // clientId:expiry
+}
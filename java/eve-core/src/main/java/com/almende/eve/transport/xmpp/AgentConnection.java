@@ -1,5 +1,10 @@
 package com.almende.eve.transport.xmpp;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.Roster;
@@ -8,9 +13,12 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
 
 import com.almende.eve.agent.AgentFactory;
 import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.capture.TrafficRecorder;
+import com.almende.eve.probe.Probes;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
@@ -18,19 +26,53 @@ import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.transport.AsyncCallback;
 import com.almende.eve.transport.AsyncCallbackQueue;
+import com.almende.eve.transport.KeyedDispatcher;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+/**
+ * An XMPP connection for one agent, or a multiplexed connection shared by
+ * many agents.
+ * 
+ * A multiplexed connection has no agentId. Agents communicating via a 
+ * multiplexed connection are addressed with a url "xmpp:user@host/resource#agentId".
+ * The sending and receiving agent are added to the message as properties
+ * eve_from and eve_to, and incoming messages are routed to the agent by the
+ * eve_to property.
+ * 
+ * A multiplexed connection only accepts messages for the agents it carries,
+ * as decided by isReceiver. By default it carries no agents: the owner of 
+ * the connection overrides isReceiver.
+ */
 public class AgentConnection {
+	public static String PROPERTY_FROM = "eve_from";
+	public static String PROPERTY_TO = "eve_to";
+	
 	private AgentFactory agentFactory = null;
 	private String agentId = null;
 	private String username = null;
 	private String resource = null;
 	private XMPPConnection conn = null;
-	private AsyncCallbackQueue<JSONResponse> callbacks = 
-			new AsyncCallbackQueue<JSONResponse>();	
+	private AsyncCallbackQueue<JSONResponse> callbacks = null;
+	private KeyedDispatcher dispatcher = null;
+	private final Map<String, Integer> calls = 
+			new HashMap<String, Integer>();  // peer key:requests in progress
+	private static Logger logger = 
+			Logger.getLogger(AgentConnection.class.getSimpleName());
 	
-	public AgentConnection (AgentFactory agentFactory) {
+	/**
+	 * Create a connection
+	 * @param agentFactory
+	 * @param callbacks     Queue for the callbacks of requests in progress,
+	 *                      which can be shared by multiple connections
+	 * @param dispatcher    Dispatcher executing the incoming requests,
+	 *                      which can be shared by multiple connections
+	 */
+	public AgentConnection (AgentFactory agentFactory, 
+			AsyncCallbackQueue<JSONResponse> callbacks,
+			KeyedDispatcher dispatcher) {
 		this.agentFactory = agentFactory;
+		this.callbacks = callbacks;
+		this.dispatcher = dispatcher;
 	}
 	
 	/**
@@ -56,9 +98,30 @@ public class AgentConnection {
 	public String getResource() {
 		return resource;
 	}
+
 	/**
-	 * Login and connect the agent to the messaging service
+	 * Check whether this connection is shared by multiple agents
+	 * @return multiplexed
+	 */
+	public boolean isMultiplexed() {
+		return (agentId == null);
+	}
+	
+	/**
+	 * Check whether messages for an agent are accepted via this connection.
+	 * A connection of a single agent accepts the messages for that agent. 
+	 * A multiplexed connection accepts none by default, and must be 
+	 * extended to accept the agents it carries.
 	 * @param agentId
+	 * @return receiver
+	 */
+	protected boolean isReceiver(String agentId) {
+		return (this.agentId != null && this.agentId.equals(agentId));
+	}
+
+	/**
+	 * Login and connect the agent to the messaging service
+	 * @param agentId     the agent, or null for a multiplexed connection
 	 * @param host
 	 * @param port
 	 * @param serviceName
@@ -70,10 +133,7 @@ public class AgentConnection {
 	public void connect(String agentId, String host, Integer port, 
 			String serviceName, String username, String password, 
 			String resource) throws Exception {
-		this.agentId = agentId;
-		this.username = username;
-		this.resource = resource;
-		
+		XMPPConnection conn = null;
 		try {
 			// configure and connect
 			ConnectionConfiguration connConfig = 
@@ -88,21 +148,43 @@ public class AgentConnection {
 			else {
 				conn.login(username, password, resource);
 			}
-
-			// set presence to available
-			Presence presence = new Presence(Presence.Type.available);
-			conn.sendPacket(presence);
-			
-			// set acceptance to all
-			conn.getRoster().setSubscriptionMode(Roster.SubscriptionMode.accept_all);
-			
-			// instantiate a packet listener
-			conn.addPacketListener(new JSONRPCListener(conn, agentFactory, 
-					agentId, callbacks), null);            
 		} catch (XMPPException err) {
-			err.printStackTrace();
+			logger.log(Level.WARNING, "Failed to connect to " + host, err);
+			if (conn != null) {
+				conn.disconnect();
+			}
 			throw new Exception("Failed to connect to messenger");
 		}
+		
+		connect(agentId, conn, username, resource);
+	}
+	
+	/**
+	 * Connect the agent via an XMPP connection which is already connected
+	 * and logged in. The presence is set to available, and incoming messages
+	 * are handled by the agent.
+	 * @param agentId     the agent, or null for a multiplexed connection
+	 * @param conn        connection, logged in
+	 * @param username
+	 * @param resource    optional
+	 */
+	public void connect(String agentId, XMPPConnection conn, String username,
+			String resource) {
+		this.agentId = agentId;
+		this.username = username;
+		this.resource = resource;
+		this.conn = conn;
+		
+		// set presence to available
+		Presence presence = new Presence(Presence.Type.available);
+		conn.sendPacket(presence);
+		
+		// set acceptance to all
+		conn.getRoster().setSubscriptionMode(Roster.SubscriptionMode.accept_all);
+		
+		// instantiate a packet listener
+		conn.addPacketListener(new JSONRPCListener(this, conn, agentFactory, 
+				agentId, callbacks, dispatcher), null);            
 	}
 	
 	/**
@@ -113,7 +195,7 @@ public class AgentConnection {
 			conn.disconnect();
 			conn = null;
 		}
-		callbacks.clear();
+		// callbacks still in progress will time out
 	}
 
 	/**
@@ -132,18 +214,70 @@ public class AgentConnection {
 	 */
 	public void send (String username, JSONRequest request, 
 			AsyncCallback<JSONResponse> callback) throws Exception {
+		send(agentId, username, request, callback, callbacks.getTimeout());
+	}
+
+	/**
+	 * Send a message to an other agent
+	 * @param senderId  the sending agent
+	 * @param username  the receiver "user@host", "user@host/resource", or 
+	 *                  "user@host/resource#agentId" for an agent on a 
+	 *                  multiplexed connection
+	 * @param message
+	 * @param timeout   timeout for the response in milliseconds
+	 * @throws Exception 
+	 */
+	public void send (String senderId, String username, JSONRequest request, 
+			AsyncCallback<JSONResponse> callback, long timeout) 
+			throws Exception {
 		if (isConnected()) {
 			// create a unique id
 			final String id = (String) request.getId();
 			
-			// queue the response callback
-			callbacks.push(id, callback);
+			// split the receiver in address and agent
+			String address = username;
+			String receiverId = null;
+			int hash = username.indexOf("#");
+			if (hash != -1) {
+				address = username.substring(0, hash);
+				receiverId = username.substring(hash + 1);
+			}
+			
+			// queue the response callback, and register the call in progress
+			final String peer = getPeerKey(senderId, address, receiverId);
+			final AsyncCallback<JSONResponse> responseCallback = callback;
+			calling(peer, 1);
+			try {
+				callbacks.push(getCallbackKey(senderId, id), 
+						new AsyncCallback<JSONResponse>() {
+					@Override
+					public void onSuccess(JSONResponse response) {
+						calling(peer, -1);
+						responseCallback.onSuccess(response);
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						calling(peer, -1);
+						responseCallback.onFailure(exception);
+					}
+				}, timeout);
+			} catch (Exception e) {
+				calling(peer, -1);
+				throw e;
+			}
 			
 			// System.out.println("send username=" + username + ", request=" + request); // TODO: cleanup
 			
 			// send the message
 			Message reply = new Message();
-			reply.setTo(username);
+			reply.setTo(address);
+			if (receiverId != null) {
+				reply.setProperty(PROPERTY_TO, receiverId);
+			}
+			if (isMultiplexed()) {
+				reply.setProperty(PROPERTY_FROM, senderId);
+			}
 			reply.setBody(request.toString());
 			conn.sendPacket(reply);
 		}
@@ -152,23 +286,85 @@ public class AgentConnection {
 		}
 	}
 	
+	/**
+	 * Get the key of the callback of a request in the (shared) callback queue
+	 * @param agentId    the agent which sent the request
+	 * @param id         the id of the request
+	 * @return key
+	 */
+	private static String getCallbackKey(String agentId, String id) {
+		return agentId + " " + id;
+	}
+
+	/**
+	 * Get the key of a pair of an agent and a peer, independent of the 
+	 * resource of the peer
+	 * @param agentId    the local agent
+	 * @param address    the xmpp address of the peer
+	 * @param peerId     the agent of the peer on a multiplexed connection,
+	 *                   or null
+	 * @return key
+	 */
+	private static String getPeerKey(String agentId, String address, 
+			String peerId) {
+		return agentId + " " + StringUtils.parseBareAddress(address) + 
+				((peerId != null) ? "#" + peerId : "");
+	}
+
+	/**
+	 * Register the start or end of a request from an agent to a peer
+	 * @param peer     key of the agent and the peer
+	 * @param delta    1 when a request is sent, -1 when it is completed
+	 */
+	private void calling(String peer, int delta) {
+		synchronized (calls) {
+			Integer count = calls.get(peer);
+			int updated = ((count != null) ? count : 0) + delta;
+			if (updated > 0) {
+				calls.put(peer, updated);
+			}
+			else {
+				calls.remove(peer);
+			}
+		}
+	}
+
+	/**
+	 * Check whether an agent has a request in progress to a peer. A request
+	 * from the peer to the agent is then a nested call, which the request 
+	 * in progress may wait for.
+	 * @param peer     key of the agent and the peer
+	 * @return calling
+	 */
+	private boolean isCalling(String peer) {
+		synchronized (calls) {
+			return calls.containsKey(peer);
+		}
+	}
+	
 	/**
 	 * A class to listen for incoming JSON-RPC messages.
 	 * The listener will invoke the JSON-RPC message on the agent and
 	 * reply the result.
 	 */
 	private static class JSONRPCListener implements PacketListener {
+		private AgentConnection connection = null;
 		private XMPPConnection conn = null;
 		private AgentFactory agentFactory = null; 
 		private String agentId = null;
 		private AsyncCallbackQueue<JSONResponse> callbacks = null;
+		private KeyedDispatcher dispatcher = null;
 
-		public JSONRPCListener (XMPPConnection conn, AgentFactory agentFactory,
-				String agentId, AsyncCallbackQueue<JSONResponse> callbacks) {
+		public JSONRPCListener (AgentConnection connection, 
+				XMPPConnection conn, AgentFactory agentFactory,
+				String agentId, AsyncCallbackQueue<JSONResponse> callbacks,
+				KeyedDispatcher dispatcher) {
+			this.connection = connection;
 			this.conn = conn;
 			this.agentFactory = agentFactory;
 			this.agentId = agentId;
 			this.callbacks = callbacks;
+			this.dispatcher = dispatcher;
 		}
 
 		/**
@@ -205,14 +401,29 @@ public class AgentConnection {
 			if (body != null && body.startsWith("{") || body.trim().startsWith("{")) {
 				// the body contains a JSON object
 				ObjectNode json = null;
+				
+				// on a multiplexed connection, the agents are in the properties
+				String fromAgentId = (String) message.getProperty(PROPERTY_FROM);
+				String toAgentId = (String) message.getProperty(PROPERTY_TO);
+				if (agentId != null) {
+					toAgentId = agentId;
+				}
 				try {
 					json = JOM.getInstance().readValue(body, ObjectNode.class);
+					if (toAgentId == null) {
+						throw new Exception("No receiving agent specified " +
+								"(property '" + PROPERTY_TO + "' missing)");
+					}
+					if (!connection.isReceiver(toAgentId)) {
+						throw new Exception("Agent '" + toAgentId + 
+								"' is not reachable via this connection");
+					}
 					if (isResponse(json)) {
 						// this is a response
 						// Find and execute the corresponding callback
 						String id = json.has("id") ? json.get("id").asText() : null;
-						AsyncCallback<JSONResponse> callback = 
-								(id != null) ? callbacks.pull(id) : null;
+						AsyncCallback<JSONResponse> callback = (id != null) ? 
+								callbacks.pull(getCallbackKey(toAgentId, id)) : null;
 						if (callback != null) {
 							callback.onSuccess(new JSONResponse(body));
 						}
@@ -228,7 +439,7 @@ public class AgentConnection {
 						// this is a request
 						String senderUrl = message.getFrom();
 						JSONRequest request = new JSONRequest(json);
-						invoke(senderUrl, request);
+						invoke(senderUrl, fromAgentId, toAgentId, request);
 					}
 					else {
 						throw new Exception("Request does not contain a valid JSON-RPC request or response");
@@ -241,8 +452,8 @@ public class AgentConnection {
 					JSONResponse response = new JSONResponse(jsonError);
 					
 					// send exception as response
-					Message reply = new Message();
-					reply.setTo(message.getFrom());
+					Message reply = createReply(message.getFrom(), 
+							fromAgentId, toAgentId);
 					reply.setBody(response.toString());
 					conn.sendPacket(reply);
 				}
@@ -251,23 +462,57 @@ public class AgentConnection {
 	
 		/**
 		 * Invoke a JSON-RPC request
-		 * Invocation is done in a separate thread to prevent blocking the
+		 * Invocation is done by the dispatcher to prevent blocking the
 		 * single threaded XMPP PacketListener (which can cause deadlocks).
+		 * Requests from the same sender to the same agent are invoked in the
+		 * order of arrival. A request from a sender to which the agent has a 
+		 * request in progress is a nested call, such as a synchronous call
+		 * back while the sender handles the request of the agent: it is 
+		 * invoked immediately, as the request in progress may wait for it.
+		 * When the dispatcher is full, a "Server busy" error is replied.
 		 * @param senderUrl
+		 * @param fromAgentId  the sending agent on a multiplexed connection
+		 * @param toAgentId    the receiving agent
 		 * @param request
 		 */
-		private void invoke (final String senderUrl, final JSONRequest request) {
-			new Thread(new Runnable () {
+		private void invoke (final String senderUrl, final String fromAgentId,
+				final String toAgentId, final JSONRequest request) {
+			String key = toAgentId + " " + senderUrl + 
+					((fromAgentId != null) ? "#" + fromAgentId : "");
+			if (connection.isCalling(
+					getPeerKey(toAgentId, senderUrl, fromAgentId))) {
+				key = null;
+			}
+			boolean dispatched = dispatcher.dispatch(key, new Runnable () {
 				@Override
 				public void run() {
 					JSONResponse response;
 					try {
 						// append the sender to the request parameters
+						String sender = (fromAgentId != null) ? 
+								senderUrl + "#" + fromAgentId : senderUrl;
 						RequestParams params = new RequestParams();
-						params.put(Sender.class, senderUrl);
+						params.put(Sender.class, sender);
 
-						// invoke the agent
-						response = agentFactory.invoke(agentId, request, params);
+						// invoke the agent, and capture the request when 
+						// configured, also when the invocation fails
+						TrafficRecorder recorder = 
+								agentFactory.getTrafficRecorder();
+						long start = (recorder != null) ? 
+								System.nanoTime() : Probes.start();
+						JSONResponse result = null;
+						try {
+							result = agentFactory.invoke(toAgentId, request, 
+									params);
+							Probes.received("xmpp", request, result, start);
+						}
+						finally {
+							if (recorder != null) {
+								recorder.record("xmpp", toAgentId, sender, 
+										request, result, start);
+							}
+						}
+						response = result;
 					} catch (Exception err) {
 						// generate JSON error response
 						JSONRPCException jsonError = new JSONRPCException(
@@ -277,13 +522,43 @@ public class AgentConnection {
 					
 					if (response != null) {
 						//String from = StringUtils.parseBareAddress(senderUrl);
-						Message reply = new Message();
-						reply.setTo(senderUrl);
+						Message reply = createReply(senderUrl, 
+								fromAgentId, toAgentId);
 						reply.setBody(response.toString());
 						conn.sendPacket(reply);
 					}
 				}
-			}).start();		
+			});
+			
+			if (!dispatched) {
+				JSONResponse response = new JSONResponse(new JSONRPCException(
+						JSONRPCException.CODE.SERVER_BUSY));
+				response.setId(request.getId());
+				Message reply = createReply(senderUrl, fromAgentId, toAgentId);
+				reply.setBody(response.toString());
+				conn.sendPacket(reply);
+			}
+		}
+		
+		/**
+		 * Create a reply message, addressed to the sender. On a multiplexed
+		 * connection, the agents are added as properties.
+		 * @param senderUrl
+		 * @param fromAgentId  the agent which sent the message
+		 * @param toAgentId    the agent which received the message
+		 * @return reply
+		 */
+		private Message createReply(String senderUrl, String fromAgentId,
+				String toAgentId) {
+			Message reply = new Message();
+			reply.setTo(senderUrl);
+			if (fromAgentId != null) {
+				reply.setProperty(PROPERTY_TO, fromAgentId);
+			}
+			if (agentId == null && toAgentId != null) {
+				reply.setProperty(PROPERTY_FROM, toAgentId);
+			}
+			return reply;
 		}
 	}
 }
@@ -1,10 +1,18 @@
 package com.almende.eve.transport.xmpp;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.agent.AgentFactory;
@@ -14,10 +22,45 @@ import com.almende.eve.context.Context;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.KeyedDispatcher;
 import com.almende.eve.transport.TransportService;
 import com.almende.eve.transport.SyncCallback;
 import com.almende.util.EncryptionUtil;
 
+/**
+ * Transport service for XMPP.
+ * 
+ * By default, each agent has its own XMPP connection, opened via connect.
+ * Optionally, a pool of multiplexed sessions can be configured, which carry
+ * the messages of all other agents. Such agents are addressed by the url
+ * "xmpp:username@host/resource-N#agentId". An XMPP peer invokes such an 
+ * agent via its session, by setting the message property eve_to to the id 
+ * of the agent. A session only accepts messages for the agents it carries:
+ * agents with their own connection cannot be reached via a session.
+ * Configuration:
+ *     transport_services:
+ *     - class: XmppService
+ *       host: my.xmpp.server.com
+ *       port: 5222
+ *       service: my.xmpp.server.com
+ *       timeout: 30000         # optional, response timeout in milliseconds
+ *       threads: 8             # optional, threads handling incoming requests,
+ *                              # nested calls get additional threads
+ *       capacity: 1000         # optional, max number of incoming requests
+ *                              # waiting or in progress
+ *       restore_threads: 4     # optional, parallelism when restoring the
+ *                              # persisted connections at startup
+ *       restore_rate: 20       # optional, max restored connections per second
+ *       reconnect_delay: 1000  # optional, initial delay in milliseconds for
+ *                              # retrying a failed restore, doubled on
+ *                              # each attempt
+ *       reconnect_max_delay: 300000  # optional, max retry delay in milliseconds
+ *       multiplex:
+ *         username: eve
+ *         password: secret
+ *         resource: eve      # optional, resource prefix of the sessions
+ *         sessions: 4        # optional, number of sessions
+ */
 public class XmppService extends TransportService {	
 	public XmppService(AgentFactory agentFactory) {
 		super(agentFactory);
@@ -36,6 +79,11 @@ public class XmppService extends TransportService {
 			return generateUrl(connection.getUsername(), host, 
 					connection.getResource());
 		}
+		connection = getSession(agentId);
+		if (connection != null) {
+			return generateUrl(connection.getUsername(), host, 
+					connection.getResource()) + "#" + agentId;
+		}
 		return null;
 	}
 
@@ -51,6 +99,11 @@ public class XmppService extends TransportService {
 		if (connection != null) {
 			return connection.getAgentId();
 		}
+		int hash = agentUrl.indexOf("#");
+		if (hash != -1 && 
+				sessionsByUrl.containsKey(agentUrl.substring(0, hash))) {
+			return agentUrl.substring(hash + 1);
+		}
 		return null;
 	}
 	
@@ -61,6 +114,15 @@ public class XmppService extends TransportService {
 	 *                 {Integer} port
 	 *                 {String} serviceName
 	 *                 {String} id
+	 *                 {Number} timeout  timeout for responses in milliseconds
+	 *                 {Integer} threads  threads handling incoming requests
+	 *                 {Integer} capacity max number of incoming requests
+	 *                 {Integer} restore_threads
+	 *                 {Number} restore_rate
+	 *                 {Number} reconnect_delay
+	 *                 {Number} reconnect_max_delay
+	 *                 {Map} multiplex   optional, with parameters username,
+	 *                                   password, resource, sessions
      */
 	@Override
 	// TODO: make init private and call from the constructor.
@@ -72,10 +134,125 @@ public class XmppService extends TransportService {
 			port = (Integer) params.get("port");
 			service = (String) params.get("service");
 			contextId = (String) params.get("id");
+			Number timeout = (Number) params.get("timeout");
+			if (timeout != null) {
+				callbacks.setTimeout(timeout.longValue());
+			}
+			Integer threads = (Integer) params.get("threads");
+			if (threads != null) {
+				this.threads = threads;
+			}
+			Integer capacity = (Integer) params.get("capacity");
+			if (capacity != null) {
+				this.capacity = capacity;
+			}
+			Integer restoreThreads = (Integer) params.get("restore_threads");
+			if (restoreThreads != null) {
+				this.restoreThreads = restoreThreads;
+			}
+			Number restoreRate = (Number) params.get("restore_rate");
+			if (restoreRate != null) {
+				this.restoreRate = restoreRate.doubleValue();
+			}
+			Number reconnectDelay = (Number) params.get("reconnect_delay");
+			if (reconnectDelay != null) {
+				this.reconnectDelay = reconnectDelay.longValue();
+			}
+			Number reconnectMaxDelay = (Number) params.get("reconnect_max_delay");
+			if (reconnectMaxDelay != null) {
+				this.reconnectMaxDelay = reconnectMaxDelay.longValue();
+			}
 		}
 		
 		initContext(contextId);
 		initConnections();
+		
+		if (params != null) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> multiplex = 
+					(Map<String, Object>) params.get("multiplex");
+			if (multiplex != null) {
+				Integer count = (Integer) multiplex.get("sessions");
+				String resource = (String) multiplex.get("resource");
+				initSessions((String) multiplex.get("username"),
+						(String) multiplex.get("password"),
+						(resource != null) ? resource : "eve",
+						(count != null) ? count : 1);
+			}
+		}
+	}
+
+	/**
+	 * Open a pool of multiplexed sessions, which carry the messages of all 
+	 * agents which do not have their own connection. The sessions log in to
+	 * the same account, with resources "{resource}-0", "{resource}-1", ...
+	 * @param username
+	 * @param password
+	 * @param resource   prefix for the resources of the sessions
+	 * @param count      number of sessions
+	 */
+	public void initSessions(String username, String password, 
+			String resource, int count) {
+		if (username == null || password == null) {
+			logger.warning("Cannot open multiplexed XMPP sessions: " +
+					"username or password missing");
+			return;
+		}
+		
+		List<AgentConnection> sessions = new ArrayList<AgentConnection>();
+		Map<String, AgentConnection> sessionsByUrl = 
+				new HashMap<String, AgentConnection>();
+		for (int i = 0; i < count; i++) {
+			String sessionResource = resource + "-" + i;
+			try {
+				AgentConnection session = new AgentConnection(agentFactory, 
+						callbacks, getDispatcher()) {
+					@Override
+					protected boolean isReceiver(String agentId) {
+						return !connectionsById.containsKey(agentId) &&
+								getSession(agentId) == this;
+					}
+				};
+				session.connect(null, host, port, service, username, password, 
+						sessionResource);
+				sessions.add(session);
+				sessionsByUrl.put(generateUrl(username, host, sessionResource), 
+						session);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to open multiplexed XMPP " +
+						"session " + sessionResource, e);
+			}
+		}
+		this.sessions = sessions;
+		this.sessionsByUrl = sessionsByUrl;
+		logger.info("Opened " + sessions.size() + " multiplexed XMPP sessions");
+	}
+
+	/**
+	 * Get the dispatcher for incoming requests, shared by all connections.
+	 * Created on first use.
+	 * @return dispatcher
+	 */
+	private synchronized KeyedDispatcher getDispatcher() {
+		if (dispatcher == null) {
+			dispatcher = new KeyedDispatcher("XmppService", threads, capacity);
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Get the multiplexed session carrying the messages of an agent. 
+	 * Each agent is assigned to a fixed session by its id.
+	 * @param agentId
+	 * @return session   null if no sessions are opened
+	 */
+	private AgentConnection getSession(String agentId) {
+		List<AgentConnection> sessions = this.sessions;
+		if (sessions.isEmpty()) {
+			return null;
+		}
+		int index = (agentId.hashCode() & Integer.MAX_VALUE) % sessions.size();
+		return sessions.get(index);
 	}
 
 	/**
@@ -126,8 +303,8 @@ public class XmppService extends TransportService {
 				context = agentFactory.getContextFactory().create(contextId);
 			}
 		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.log(Level.WARNING, "Failed to initialize the context " +
+					contextId + " of the XmppService", e);
 		}
 	}
 	
@@ -169,6 +346,21 @@ public class XmppService extends TransportService {
 	@Access(AccessType.UNAVAILABLE)
 	final public void connect (String agentId, String username, String password, 
 			String resource) throws Exception {
+		connect(agentId, username, password, resource, true);
+	}
+	
+	/**
+	 * Connect an agent, and optionally persist the connection parameters
+	 * @param agentUrl
+	 * @param username
+	 * @param password
+	 * @param resource  (optional)
+	 * @param persist   if true, the parameters are stored in the context, 
+	 *                  to restore the connection after a restart
+	 * @throws Exception 
+	 */
+	private void connect (String agentId, String username, String password, 
+			String resource, boolean persist) throws Exception {
 		String agentUrl = generateUrl(username, host, resource);
 		if (connectionsByUrl.containsKey(agentUrl)) {
 			throw new Exception("Connection for url '" + agentUrl + "' is already open. " +
@@ -183,7 +375,8 @@ public class XmppService extends TransportService {
 		}
 
 		// instantiate open the connection		
-		AgentConnection connection = new AgentConnection(agentFactory);
+		AgentConnection connection = new AgentConnection(agentFactory, 
+				callbacks, getDispatcher());
 		connection.connect(agentId, host, port, service, username, password, resource);
 		
 		// register the connection
@@ -191,7 +384,7 @@ public class XmppService extends TransportService {
 		connectionsByUrl.put(agentUrl, connection);
 		
 		// persist the parameters for the connection
-		if (context != null) {
+		if (persist && context != null) {
 			synchronized (context) {
 				@SuppressWarnings("unchecked")
 				Map<String, Map<String, String>> connections = 
@@ -264,7 +457,23 @@ public class XmppService extends TransportService {
 	@Override
 	public void sendAsync(String senderId, String receiver, JSONRequest request,
 			AsyncCallback<JSONResponse> callback) throws Exception {
+		sendAsync(senderId, receiver, request, callback, callbacks.getTimeout());
+	}
+
+	/**
+	 * Asynchronously Send a message to an other agent
+	 * @param url
+	 * @param request
+	 * @param callback with a JSONResponse
+	 * @param timeout  timeout in milliseconds
+	 */
+	@Override
+	public void sendAsync(String senderId, String receiver, JSONRequest request,
+			AsyncCallback<JSONResponse> callback, long timeout) throws Exception {
 		AgentConnection connection = connectionsById.get(senderId);
+		if (connection == null && senderId != null) {
+			connection = getSession(senderId);
+		}
 		if (connection != null) {
 			// remove the protocol from the receiver url
 			String protocol = "xmpp:";
@@ -273,7 +482,7 @@ public class XmppService extends TransportService {
 						"' (receiver='" + receiver + "')");
 			}
 			String fullUsername = receiver.substring(protocol.length()); // username@domain
-			connection.send(fullUsername, request, callback);
+			connection.send(senderId, fullUsername, request, callback, timeout);
 		}
 		else {
 			// TODO: use an anonymous xmpp connection when the sender agent has no xmpp connection.
@@ -298,41 +507,185 @@ public class XmppService extends TransportService {
 	}
 
 	/**
-	 * initialize all connections stored in the services context
+	 * Get the number of open agent connections and multiplexed sessions
+	 * @return stats
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("connections", connectionsById.size());
+		stats.put("sessions", sessions.size());
+		stats.put("ready", isReady());
+		return stats;
+	}
+
+	/**
+	 * Test whether all persisted connections have been restored. A 
+	 * connection which failed to restore counts as restored: it is retried
+	 * in the background.
+	 * @return ready
+	 */
+	@Override
+	public boolean isReady() {
+		return restoring.getCount() == 0;
+	}
+
+	/**
+	 * Wait until all persisted connections have been restored
+	 * @param timeout   timeout in milliseconds
+	 * @return ready
+	 * @throws InterruptedException
+	 */
+	@Override
+	public boolean awaitReady(long timeout) throws InterruptedException {
+		return restoring.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * initialize all connections stored in the services context.
+	 * The connections are restored in parallel by restore_threads threads, 
+	 * at most restore_rate connections per second. A failed connection is
+	 * retried with exponential backoff.
 	 */
 	private void initConnections() {
-		if (context != null) {
-			synchronized (context) {
-				@SuppressWarnings("unchecked")
-				Map<String, Map<String, String>> connections = 
-						(Map<String, Map<String, String>>)context.get("connections");
-				if (connections != null) {
-					logger.info("Initializing " + connections.size() + " XMPP connections...");
-					
-					for (String agentId : connections.keySet()) {
-						Map<String, String> params = connections.get(agentId);
-						try {
-							String encryptedUsername = params.get("username");
-							String encryptedPassword = params.get("password");
-							String encryptedResource = params.get("resource");
-							if (encryptedUsername != null && encryptedPassword != null) {
-								String username = EncryptionUtil.decrypt(encryptedUsername);
-								String password = EncryptionUtil.decrypt(encryptedPassword);
-								String resource = null;
-								if (encryptedResource != null) {
-									resource = EncryptionUtil.decrypt(encryptedResource);
-								}
-								connect(agentId, username, password, resource);
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
+		if (context == null) {
+			return;
+		}
+		
+		Map<String, Map<String, String>> connections;
+		synchronized (context) {
+			@SuppressWarnings("unchecked")
+			Map<String, Map<String, String>> persisted = 
+					(Map<String, Map<String, String>>)context.get("connections");
+			connections = persisted;
+		}
+		if (connections == null || connections.isEmpty()) {
+			return;
+		}
+
+		logger.info("Restoring " + connections.size() + " XMPP connections...");
+		final CountDownLatch latch = new CountDownLatch(connections.size());
+		restoring = latch;
+		
+		ScheduledExecutorService executor = getRestoreExecutor();
+		long interval = (restoreRate > 0) ? (long) (1000000 / restoreRate) : 0;
+		long delay = 0;
+		for (Entry<String, Map<String, String>> entry : connections.entrySet()) {
+			executor.schedule(new Restore(entry.getKey(), entry.getValue(), latch), 
+					delay, TimeUnit.MICROSECONDS);
+			delay += interval;
+		}
+	}
+
+	/**
+	 * Get the executor restoring connections. Created on first use.
+	 * @return executor
+	 */
+	private synchronized ScheduledExecutorService getRestoreExecutor() {
+		if (restoreExecutor == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+					restoreThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "XmppService-restore");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+			executor.allowCoreThreadTimeOut(true);
+			restoreExecutor = executor;
+		}
+		return restoreExecutor;
+	}
+
+	/**
+	 * Task restoring the persisted connection of an agent. When failed, the
+	 * task reschedules itself with a doubled delay.
+	 */
+	private class Restore implements Runnable {
+		Restore(String agentId, Map<String, String> params, 
+				CountDownLatch latch) {
+			this.agentId = agentId;
+			this.params = params;
+			this.latch = latch;
+			this.delay = reconnectDelay;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (attempts > 0 && !isPersisted(agentId)) {
+					// the agent has been disconnected meanwhile
+					return;
+				}
+				attempts++;
+				
+				if (username == null) {
+					String encryptedUsername = params.get("username");
+					String encryptedPassword = params.get("password");
+					String encryptedResource = params.get("resource");
+					if (encryptedUsername == null || encryptedPassword == null) {
+						return;
+					}
+					username = EncryptionUtil.decrypt(encryptedUsername);
+					password = EncryptionUtil.decrypt(encryptedPassword);
+					if (encryptedResource != null) {
+						resource = EncryptionUtil.decrypt(encryptedResource);
+					}
+				}
+				
+				if (!connectionsById.containsKey(agentId)) {
+					connect(agentId, username, password, resource, false);
+				}
+			} catch (Exception e) {
+				if (username != null) {
+					logger.warning("Failed to restore the XMPP connection of " +
+							"agent '" + agentId + "', retrying in " + delay + 
+							" ms: " + e.getMessage());
+					getRestoreExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+					delay = Math.min(delay * 2, reconnectMaxDelay);
+				}
+				else {
+					logger.log(Level.WARNING, "Failed to restore the XMPP " +
+							"connection of agent '" + agentId + "'", e);
+				}
+			} finally {
+				if (!counted) {
+					counted = true;
+					latch.countDown();
+					if (latch.getCount() == 0) {
+						logger.info("XMPP connections restored");
 					}
-					
-					logger.info("XMPP connections initialized");
 				}
 			}
 		}
+		
+		private String agentId;
+		private Map<String, String> params;
+		private CountDownLatch latch;
+		private String username = null;
+		private String password = null;
+		private String resource = null;
+		private long delay;
+		private int attempts = 0;
+		private boolean counted = false;
+	}
+	
+	/**
+	 * Test whether the connection parameters of an agent are persisted
+	 * @param agentId
+	 * @return persisted
+	 */
+	private boolean isPersisted(String agentId) {
+		if (context == null) {
+			return false;
+		}
+		synchronized (context) {
+			@SuppressWarnings("unchecked")
+			Map<String, Map<String, String>> connections = 
+					(Map<String, Map<String, String>>)context.get("connections");
+			return (connections != null && connections.containsKey(agentId));
+		}
 	}
 
 	@Override
@@ -343,6 +696,9 @@ public class XmppService extends TransportService {
 		data.put("port", port);
 		data.put("service", service);
 		data.put("protocols", protocols);
+		data.put("timeout", callbacks.getTimeout());
+		data.put("pendingCallbacks", callbacks.size());
+		data.put("sessions", sessions.size());
 
 		if (context != null) {
 			data.put("id", context.getAgentId());
@@ -355,11 +711,24 @@ public class XmppService extends TransportService {
 	private Integer port = null;
 	private String service = null;
 	private Context context = null;	
+	private int threads = 8;
+	private int capacity = 1000;
+	private KeyedDispatcher dispatcher = null;
+	private int restoreThreads = 4;
+	private double restoreRate = 20;           // connections per second
+	private long reconnectDelay = 1000;        // milliseconds
+	private long reconnectMaxDelay = 300000;   // milliseconds
+	private ScheduledExecutorService restoreExecutor = null;
+	private volatile CountDownLatch restoring = new CountDownLatch(0);
 	
 	private Map<String, AgentConnection> connectionsById = 
 			new ConcurrentHashMap<String, AgentConnection>();   // agentId as key
 	private Map<String, AgentConnection> connectionsByUrl = 
 			new ConcurrentHashMap<String, AgentConnection>();   // xmpp url as key "xmpp:username@host"
+	private volatile List<AgentConnection> sessions = 
+			new ArrayList<AgentConnection>();                   // multiplexed sessions
+	private volatile Map<String, AgentConnection> sessionsByUrl = 
+			new HashMap<String, AgentConnection>();             // xmpp url of the session as key
 	private static List<String> protocols = Arrays.asList("xmpp");
 
 	private Logger logger = Logger.getLogger(this.getClass().getSimpleName());
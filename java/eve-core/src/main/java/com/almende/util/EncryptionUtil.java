@@ -60,15 +60,8 @@ public class EncryptionUtil {
 			NoSuchAlgorithmException, InvalidKeySpecException, 
 			NoSuchPaddingException, IllegalBlockSizeException, 
 			BadPaddingException, UnsupportedEncodingException {
-	    PBEParameterSpec pbeParamSpec = new PBEParameterSpec(S, C);
-	    PBEKeySpec pbeKeySpec = new PBEKeySpec(P);
-	    SecretKeyFactory keyFac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-	    SecretKey pbeKey = keyFac.generateSecret(pbeKeySpec);
-
-	    Cipher pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
-	    pbeCipher.init(Cipher.ENCRYPT_MODE, pbeKey, pbeParamSpec);
-
-	    byte[] encryptedText = pbeCipher.doFinal(text.getBytes("UTF-8"));
+	    byte[] encryptedText = doFinal(encryptCiphers, Cipher.ENCRYPT_MODE, 
+	    		text.getBytes("UTF-8"));
 	    return Base64.encodeBytes(encryptedText);	    
 	}
 	
@@ -90,15 +83,74 @@ public class EncryptionUtil {
 			NoSuchAlgorithmException, InvalidKeySpecException, 
 			NoSuchPaddingException, IllegalBlockSizeException, 
 			BadPaddingException, UnsupportedEncodingException {
-		PBEParameterSpec pbeParamSpec = new PBEParameterSpec(S, C);
-	    PBEKeySpec pbeKeySpec = new PBEKeySpec(P);
-	    SecretKeyFactory keyFac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-	    SecretKey pbeKey = keyFac.generateSecret(pbeKeySpec);
-
-	    Cipher pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
-	    pbeCipher.init(Cipher.DECRYPT_MODE, pbeKey, pbeParamSpec);
-
-	    byte[] text = pbeCipher.doFinal(Base64.decode(encryptedText));
+	    byte[] text = doFinal(decryptCiphers, Cipher.DECRYPT_MODE, 
+	    		Base64.decode(encryptedText));
 	    return new String(text, "UTF-8");
 	}
+	
+	/**
+	 * Encrypt or decrypt data with the cipher of the current thread. 
+	 * For PBE, the key is derived from the password and salt when the cipher
+	 * is initialized, so each thread initializes its cipher once and reuses 
+	 * it: doFinal resets the cipher to its initialized state.
+	 * @param ciphers   initialized ciphers per thread
+	 * @param mode      Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param input
+	 * @return output
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 * @throws NoSuchPaddingException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	private static byte[] doFinal(ThreadLocal<Cipher> ciphers, int mode, 
+			byte[] input) 
+			throws InvalidKeyException, InvalidAlgorithmParameterException, 
+			NoSuchAlgorithmException, InvalidKeySpecException, 
+			NoSuchPaddingException, IllegalBlockSizeException, 
+			BadPaddingException {
+		Cipher pbeCipher = ciphers.get();
+		if (pbeCipher == null) {
+		    PBEParameterSpec pbeParamSpec = new PBEParameterSpec(S, C);
+		    pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
+		    pbeCipher.init(mode, getKey(), pbeParamSpec);
+		    ciphers.set(pbeCipher);
+		}
+		
+		try {
+			return pbeCipher.doFinal(input);
+		} catch (IllegalBlockSizeException e) {
+			// do not reuse a cipher in an unknown state
+			ciphers.remove();
+			throw e;
+		} catch (BadPaddingException e) {
+			ciphers.remove();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Get the secret key for the master password. The key is created once, 
+	 * and cached.
+	 * @return key
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 */
+	private static synchronized SecretKey getKey() 
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		if (key == null) {
+		    PBEKeySpec pbeKeySpec = new PBEKeySpec(P);
+		    SecretKeyFactory keyFac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
+		    key = keyFac.generateSecret(pbeKeySpec);
+		}
+		return key;
+	}
+	
+	private static SecretKey key = null;
+	private static final ThreadLocal<Cipher> encryptCiphers = 
+			new ThreadLocal<Cipher>();
+	private static final ThreadLocal<Cipher> decryptCiphers = 
+			new ThreadLocal<Cipher>();
 }
\ No newline at end of file
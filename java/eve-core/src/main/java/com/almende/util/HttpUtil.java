@@ -401,11 +401,29 @@ public class HttpUtil {
 	 */
 	static public String fetch(String method, String url, String body,
 			Map<String, String> headers) throws IOException {
+		return fetch(method, url, body, headers, 
+				DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+	}
+	
+	/**
+	 * Send a request with custom timeouts
+	 * @param method          HTTP method, for example "GET" or "POST"
+	 * @param url             Url as string
+	 * @param body            Request body as string
+	 * @param headers         Optional map with headers
+	 * @param connectTimeout  Connect timeout in milliseconds
+	 * @param readTimeout     Read timeout in milliseconds
+	 * @return response       Response as string
+	 * @throws IOException 
+	 */
+	static public String fetch(String method, String url, String body,
+			Map<String, String> headers, int connectTimeout, int readTimeout) 
+			throws IOException {
 		// connection
 		URL u = new URL(url);
 	    HttpURLConnection conn = (HttpURLConnection)u.openConnection();
-	    conn.setConnectTimeout(10000);
-	    conn.setReadTimeout(10000);
+	    conn.setConnectTimeout(connectTimeout);
+	    conn.setReadTimeout(readTimeout);
 
 	    // method
 	    if (method != null) {
@@ -436,7 +454,8 @@ public class HttpUtil {
 	    // handle redirects
 	    if (conn.getResponseCode() == 301) {
 	    	String location = conn.getHeaderField("Location");
-	    	return fetch(method, location, body, headers);
+	    	return fetch(method, location, body, headers, 
+	    			connectTimeout, readTimeout);
 	    }
 	    
 	    return response;
@@ -456,4 +475,7 @@ public class HttpUtil {
 		}
 		return out.toString();
 	}
+	
+	/** Default connect and read timeout in milliseconds */
+	public static int DEFAULT_TIMEOUT = 10000;
 }
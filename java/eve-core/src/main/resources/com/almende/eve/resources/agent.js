@@ -52,8 +52,9 @@ function Controller($scope, $resource) {
     $scope.rpcStatus = '';
 
     // event logs
-    $scope.lastTimestamp = 0;
+    $scope.lastSequence = 0;         // sequence number of the last log
     $scope.pollingInterval = 10000;  // polling interval in milliseconds
+    $scope.pollingWait = 30000;      // long-polling wait time in milliseconds
     $scope.logs = [];
     $scope.enableEvents = true;
 
@@ -240,13 +241,22 @@ function Controller($scope, $resource) {
      * Start monitoring the events of the agent
      */
     $scope.startMonitoringEvents = function () {
-        $scope.updateEvents();
+        if (window.EventSource) {
+            $scope.streamEvents();
+        }
+        else {
+            $scope.updateEvents();
+        }
     };
 
     /**
      * Stop monitoring the events of the agent
      */
     $scope.stopMonitoringEvents = function () {
+        if ($scope.eventSource) {
+            $scope.eventSource.close();
+            delete $scope.eventSource;
+        }
         if ($scope.updateEventsTimer) {
             clearTimeout($scope.updateEventsTimer);
             delete $scope.updateEventsTimer;
@@ -254,21 +264,50 @@ function Controller($scope, $resource) {
     };
 
     /**
-     * Retrieve the latest event logs, and set a timeout for the next update
+     * Receive the event logs via a stream of Server-Sent Events. The browser
+     * reconnects automatically. When the stream fails, fall back to polling.
+     */
+    $scope.streamEvents = function () {
+        $scope.stopMonitoringEvents();
+
+        var eventSource = new EventSource(url + 'events?after=' + $scope.lastSequence);
+        eventSource.onmessage = function (event) {
+            var newLog = JSON.parse(event.data);
+            $scope.lastSequence = newLog.sequence;
+            $scope.logs.push(newLog);
+            $scope.lastUpdate = (new Date()).toISOString();
+            $scope.$apply();
+        };
+        eventSource.onerror = function () {
+            if (eventSource.readyState == 2) { // CLOSED
+                $scope.updateEvents();
+            }
+        };
+        $scope.eventSource = eventSource;
+    };
+
+    /**
+     * Retrieve the latest event logs, and set a timeout for the next update.
+     * The server holds the request until there are new logs (long-polling).
      */
     $scope.updateEvents = function () {
         $scope.stopMonitoringEvents();
 
-        agent.events({since: $scope.lastTimestamp}, undefined, function (newLogs) {
+        var params = {after: $scope.lastSequence, wait: $scope.pollingWait};
+        agent.events(params, undefined, function (newLogs) {
+            var received = (newLogs && newLogs.length > 0);
             while (newLogs && newLogs.length) {
                 var newLog = newLogs.shift();
-                $scope.lastTimestamp = newLog.timestamp;
+                $scope.lastSequence = newLog.sequence;
                 $scope.logs.push(newLog);
             }
             $scope.lastUpdate = (new Date()).toISOString();
 
-            // set a new timeout
-            $scope.updateEventsTimer = setTimeout($scope.updateEvents, $scope.pollingInterval);
+            // after new logs, immediately wait for the next logs. An empty
+            // response means the wait expired or the server does not support
+            // waiting: poll again after the polling interval
+            var delay = received ? 0 : $scope.pollingInterval;
+            $scope.updateEventsTimer = setTimeout($scope.updateEvents, delay);
         }, function (err) {
             console.log(err);
 
@@ -0,0 +1,99 @@
+package com.almende.test;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.agent.annotation.Required;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.agent.example.TestAgentInterface;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.entity.Person;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.RequestTemplate;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+
+public class TestAgentProxy extends TestCase {
+
+	public interface PersonAgentInterface extends AgentInterface {
+		public Person getPerson(@Name("name") String name);
+		public Set<String> getTasks();
+		public void put(@Name("key") String key, 
+				@Name("value") @Required(false) String value);
+	}
+
+	@Test
+	public void testRequestTemplate() throws Exception {
+		Method put = PersonAgentInterface.class.getMethod("put", 
+				String.class, String.class);
+		RequestTemplate template = RequestTemplate.get(put);
+		assertSame(template, RequestTemplate.get(put));
+
+		JSONRequest request = template.createRequest(new Object[] {"key1", null});
+		assertEquals("put", request.getMethod());
+		assertEquals("key1", request.getParams().get("key").asText());
+		assertFalse(request.getParams().has("value"));
+		try {
+			template.createRequest(new Object[] {null, "value1"});
+			fail("Missing required parameter should throw an exception");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertNull(template.getResult(new JSONResponse((Object) null)));
+
+		Method getPerson = PersonAgentInterface.class.getMethod("getPerson", 
+				String.class);
+		Person person = new Person();
+		person.setName("Jo");
+		JSONResponse response = new JSONResponse(
+				JOM.getInstance().convertValue(person, Object.class));
+		Object result = RequestTemplate.get(getPerson).getResult(response);
+		assertTrue(result instanceof Person);
+		assertEquals("Jo", ((Person) result).getName());
+
+		Method getTasks = PersonAgentInterface.class.getMethod("getTasks");
+		response = new JSONResponse(JOM.createArrayNode().add("a").add("b"));
+		result = RequestTemplate.get(getTasks).getResult(response);
+		assertTrue(result instanceof Set);
+		assertTrue(((Set<?>) result).contains("b"));
+	}
+
+	@Test
+	public void testProxyCache() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		String url1 = "http://localhost:8080/agents/agent1/";
+		String url2 = "http://localhost:8080/agents/agent2/";
+		TestAgentInterface proxy = factory.createAgentProxy(null, url1, 
+				TestAgentInterface.class);
+		assertSame(proxy, factory.createAgentProxy(null, url1, 
+				TestAgentInterface.class));
+		assertNotSame(proxy, factory.createAgentProxy(null, url2, 
+				TestAgentInterface.class));
+		assertNotSame(proxy, factory.createAgentProxy("sender", url1, 
+				TestAgentInterface.class));
+		assertNotSame(proxy, factory.createAgentProxy(null, url1, 
+				PersonAgentInterface.class));
+	}
+
+	@Test
+	public void testRemoteReturnType() throws Exception {
+		// TestAgent does not implement the interface: the proxy sends a 
+		// request, and converts the result from the JSON-RPC response
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.createAgent(TestAgent.class, "proxytest1");
+		PersonAgentInterface proxy = factory.createAgentProxy(null, 
+				"local://proxytest1", PersonAgentInterface.class);
+
+		Person person = proxy.getPerson("Jo");
+		assertEquals("Jo", person.getName());
+		assertEquals(2, person.getMarks().size());
+	}
+}
@@ -0,0 +1,83 @@
+package com.almende.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncCallbackQueue;
+import com.almende.eve.transport.HashedWheelTimer;
+import com.almende.eve.transport.SyncCallback;
+
+public class TestAsyncCallbackQueue extends TestCase {
+
+	@Test
+	public void testPull() throws Exception {
+		AsyncCallbackQueue<String> queue = new AsyncCallbackQueue<String>();
+		SyncCallback<String> callback = new SyncCallback<String>();
+		queue.push("1", callback);
+		assertEquals(1, queue.size());
+
+		try {
+			queue.push("1", callback);
+			fail("Duplicate id should be refused");
+		} catch (Exception e) {}
+
+		AsyncCallback<String> pulled = queue.pull("1");
+		assertSame(callback, pulled);
+		assertNull(queue.pull("1"));
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		AsyncCallbackQueue<String> queue = new AsyncCallbackQueue<String>();
+		long timeouts = AsyncCallbackQueue.getTimeoutCount();
+		SyncCallback<String> callback = new SyncCallback<String>();
+		long start = System.currentTimeMillis();
+		queue.push("1", callback, 300);
+
+		try {
+			callback.get();
+			fail("Callback should time out");
+		} catch (TimeoutException e) {}
+		long duration = System.currentTimeMillis() - start;
+		assertTrue(duration >= 300);
+		assertTrue(duration < 2000);
+		assertNull(queue.pull("1"));
+		assertEquals(timeouts + 1, AsyncCallbackQueue.getTimeoutCount());
+	}
+
+	@Test
+	public void testTimerRestart() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+		final CountDownLatch fired = new CountDownLatch(2);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				fired.countDown();
+			}
+		};
+		timer.schedule(task, 20);
+		timer.stop();
+		timer.schedule(task, 20);
+		timer.schedule(task, 50);
+		assertTrue(fired.await(2, TimeUnit.SECONDS));
+		timer.stop();
+	}
+
+	@Test
+	public void testWrap() throws Exception {
+		AsyncCallbackQueue<String> queue = new AsyncCallbackQueue<String>();
+		SyncCallback<String> callback = new SyncCallback<String>();
+		AsyncCallback<String> wrapper = queue.wrap(callback, 1000);
+		wrapper.onSuccess("result");
+		wrapper.onSuccess("again"); // ignored
+		assertEquals("result", callback.get());
+		assertEquals(0, queue.size());
+	}
+}
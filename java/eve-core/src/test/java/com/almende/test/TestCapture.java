@@ -0,0 +1,119 @@
+package com.almende.test;
+
+import java.io.File;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.capture.TrafficReader;
+import com.almende.eve.capture.TrafficRecord;
+import com.almende.eve.capture.TrafficRecorder;
+import com.almende.eve.capture.TrafficReplayer;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestCapture extends TestCase {
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		File dir = File.createTempFile("eve", ".capture");
+		dir.delete();
+		try {
+			AgentFactory factory = new AgentFactory();
+			factory.setContextFactory(new MemoryContextFactory(factory));
+			factory.setSchedulerFactory(
+					new RunnableSchedulerFactory(factory, "_scheduler"));
+			// tiny files, so every record starts a new file
+			TrafficRecorder recorder = new TrafficRecorder(dir.getPath(),
+					1, 100, 1000);
+			factory.setTrafficRecorder(recorder);
+			factory.createAgent(TestAgent.class, "capture1");
+
+			// requests as handled by a transport service
+			for (int i = 0; i < 50; i++) {
+				ObjectNode params = JOM.createObjectNode();
+				params.put("a", (double) i);
+				params.put("b", 2.0);
+				JSONRequest request = new JSONRequest("add", params);
+				long start = System.nanoTime();
+				JSONResponse response = factory.invoke("capture1", request,
+						new RequestParams());
+				recorder.record("http", "capture1", "http://sender", request,
+						response, start);
+			}
+			JSONRequest failing = new JSONRequest("throwException",
+					JOM.createObjectNode());
+			long start = System.nanoTime();
+			recorder.record("http", "capture1", null, failing,
+					factory.invoke("capture1", failing, new RequestParams()),
+					start);
+
+			// a task fired by the scheduler is captured by the factory
+			ObjectNode params = JOM.createObjectNode();
+			params.put("delay", 0);
+			factory.invoke("capture1", new JSONRequest("createTask", params),
+					new RequestParams());
+			long deadline = System.currentTimeMillis() + 5000;
+			while (recorder.getRecorded() < 52 &&
+					System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(52, recorder.getRecorded());
+			recorder.stop();
+			factory.setTrafficRecorder(null);
+
+			File[] files = TrafficRecorder.getFiles(dir);
+			assertEquals(52, files.length);
+
+			// read back
+			TrafficReader reader = new TrafficReader(dir);
+			int count = 0;
+			int failed = 0;
+			int fired = 0;
+			TrafficRecord record;
+			while ((record = reader.next()) != null) {
+				count++;
+				if (!record.isSuccess()) {
+					failed++;
+				}
+				if (record.getSource().equals("scheduler")) {
+					fired++;
+					assertEquals("myTask",
+							record.getRequest().get("method").asText());
+				}
+				assertEquals("capture1", record.getAgentId());
+			}
+			reader.close();
+			assertEquals(52, count);
+			assertEquals(1, failed);
+			assertEquals(1, fired);
+
+			// replay as fast as possible
+			TrafficReplayer replayer = new TrafficReplayer(factory, 4);
+			Map<String, Object> result = replayer.replay(
+					new TrafficReader(dir), 0);
+			assertEquals(52L, result.get("requests"));
+			assertEquals(1L, result.get("errors"));
+			assertEquals(0L, result.get("mismatches"));
+			Map<?, ?> methods = (Map<?, ?>) result.get("methods");
+			assertTrue(methods.containsKey("add"));
+			assertTrue(methods.containsKey("myTask"));
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.almende.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.config.Config;
+import com.almende.eve.agent.log.EventLogger;
+import com.almende.eve.agent.log.Log;
+import com.almende.eve.agent.log.LogAgent;
+
+public class TestEventLogger extends TestCase {
+	@Test
+	public void testLogsAfter() throws Exception {
+		EventLogger eventLogger = new EventLogger(new AgentFactory());
+		String agentId = "eventlogger1";
+
+		// logs are only recorded after they have been requested once
+		assertTrue(eventLogger.getLogsAfter(agentId, null).isEmpty());
+
+		// logs in the same millisecond have the same timestamp, but a
+		// unique sequence number
+		for (int i = 0; i < 5; i++) {
+			eventLogger.log(agentId, "event" + i, i);
+		}
+		List<Log> logs = waitForLogs(eventLogger, agentId, null, 5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals("event" + i, logs.get(i).getEvent());
+			assertEquals(Long.valueOf(i + 1), logs.get(i).getSequence());
+		}
+
+		List<Log> after = eventLogger.getLogsAfter(agentId, 2L);
+		assertEquals(3, after.size());
+		assertEquals("event2", after.get(0).getEvent());
+		assertTrue(eventLogger.getLogsAfter(agentId, 5L).isEmpty());
+
+		// a sequence number of a log which was recreated returns all logs
+		assertEquals(5, eventLogger.getLogsAfter(agentId, 100L).size());
+	}
+
+	@Test
+	public void testPersistentLogs() throws Exception {
+		String yaml =
+				"context:\n" +
+				"  class: MemoryContextFactory\n" +
+				"scheduler:\n" +
+				"  class: RunnableSchedulerFactory\n" +
+				"event_logger:\n" +
+				"  persistent: true\n";
+		AgentFactory factory = new AgentFactory(new Config(
+				new ByteArrayInputStream(yaml.getBytes("UTF-8"))));
+		String agentId = "eventlogger2";
+		EventLogger eventLogger = new EventLogger(factory);
+		eventLogger.getLogs(agentId, null);
+		for (int i = 0; i < 3; i++) {
+			eventLogger.log(agentId, "event" + i, i);
+		}
+		waitForLogs(eventLogger, agentId, null, 3);
+		LogAgent logAgent = (LogAgent) factory.getAgent("_logagent_" + agentId);
+		for (int i = 0; i < 100 && logAgent.getLogs(null).size() < 3; i++) {
+			Thread.sleep(10);
+		}
+
+		// a new logger returns the persisted logs on the first request
+		EventLogger restarted = new EventLogger(factory);
+		List<Log> logs = restarted.getLogs(agentId, null);
+		assertEquals(3, logs.size());
+		assertEquals("event0", logs.get(0).getEvent());
+	}
+
+	private List<Log> waitForLogs(EventLogger eventLogger, String agentId,
+			Long after, int count) throws Exception {
+		List<Log> logs = eventLogger.getLogsAfter(agentId, after);
+		for (int i = 0; i < 100 && logs.size() < count; i++) {
+			Thread.sleep(10);
+			logs = eventLogger.getLogsAfter(agentId, after);
+		}
+		assertEquals(count, logs.size());
+		return logs;
+	}
+}
@@ -0,0 +1,256 @@
+package com.almende.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.CircuitBreaker;
+import com.almende.eve.transport.CircuitOpenException;
+import com.almende.eve.transport.http.HttpService;
+import com.almende.util.StringUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestHttpService extends TestCase {
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 4, 100);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		breaker.onSuccess();
+		breaker.onFailure();
+		breaker.onSuccess();
+		assertTrue(breaker.allow());
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allow());
+
+		Thread.sleep(150);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.allow());
+		assertFalse(breaker.allow()); // only a single trial
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		Thread.sleep(150);
+		assertTrue(breaker.allow());
+		breaker.onSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0.0, breaker.getFailureRate());
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		// the first two requests fail
+		final AtomicInteger count = new AtomicInteger(0);
+		HttpServer server = createServer(new Behavior() {
+			@Override
+			public int handle(int request) {
+				return (request <= 2) ? 500 : 200;
+			}
+		}, count);
+		try {
+			Map<String, Object> retry = new HashMap<String, Object>();
+			retry.put("max_attempts", 3);
+			retry.put("backoff", 10);
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("retry", retry);
+			params.put("idempotent_methods", Arrays.asList("add"));
+			HttpService service = createService(params);
+			String url = getUrl(server);
+
+			JSONResponse response = service.send(null, url, 
+					createRequest("add"));
+			assertEquals(3, response.getResult().asInt());
+			assertEquals(3, count.get());
+			Map<String, Object> stats = service.getHostStats().get(
+					service.getDomain(url));
+			assertEquals(2L, stats.get("retries"));
+			assertEquals(2L, stats.get("failures"));
+
+			// a request which is not idempotent is not retried
+			count.set(0);
+			try {
+				service.send(null, url, createRequest("subtract"));
+				fail("Request should fail");
+			} catch (IOException e) {
+				assertEquals(1, count.get());
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testCircuitOpen() throws Exception {
+		final AtomicInteger count = new AtomicInteger(0);
+		HttpServer server = createServer(new Behavior() {
+			@Override
+			public int handle(int request) {
+				return 500;
+			}
+		}, count);
+		try {
+			Map<String, Object> breaker = new HashMap<String, Object>();
+			breaker.put("window", 4);
+			breaker.put("min_calls", 4);
+			breaker.put("open_time", 60000);
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("circuit_breaker", breaker);
+			HttpService service = createService(params);
+			String url = getUrl(server);
+
+			for (int i = 0; i < 4; i++) {
+				try {
+					service.send(null, url, createRequest("add"));
+					fail("Request should fail");
+				} catch (IOException e) {
+					assertFalse(e instanceof CircuitOpenException);
+				}
+			}
+			try {
+				service.send(null, url, createRequest("add"));
+				fail("Request should be refused");
+			} catch (CircuitOpenException e) {
+				// expected
+			}
+			assertEquals(4, count.get());
+			Map<String, Object> stats = service.getHostStats().get(
+					service.getDomain(url));
+			assertEquals(1L, stats.get("rejected"));
+			assertEquals("OPEN", stats.get("circuit"));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testHedge() throws Exception {
+		// request 6 is very slow, all others are fast
+		final AtomicInteger count = new AtomicInteger(0);
+		HttpServer server = createServer(new Behavior() {
+			@Override
+			public int handle(int request) throws InterruptedException {
+				if (request == 6) {
+					Thread.sleep(3000);
+				}
+				return 200;
+			}
+		}, count);
+		try {
+			Map<String, Object> hedge = new HashMap<String, Object>();
+			hedge.put("percentile", 0.9);
+			hedge.put("min_samples", 5);
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("hedge", hedge);
+			params.put("idempotent_methods", Arrays.asList("add"));
+			HttpService service = createService(params);
+			String url = getUrl(server);
+
+			for (int i = 0; i < 5; i++) {
+				service.send(null, url, createRequest("add"));
+			}
+			long start = System.currentTimeMillis();
+			JSONResponse response = service.send(null, url, 
+					createRequest("add"));
+			assertEquals(3, response.getResult().asInt());
+			assertTrue(System.currentTimeMillis() - start < 2000);
+			Map<String, Object> stats = service.getHostStats().get(
+					service.getDomain(url));
+			assertEquals(1L, stats.get("hedges"));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Behavior of the test server
+	 */
+	private interface Behavior {
+		/**
+		 * @param request   number of the request, starting at 1
+		 * @return status   HTTP status code
+		 */
+		int handle(int request) throws InterruptedException;
+	}
+
+	/**
+	 * Create a server handling "add" requests
+	 * @param behavior
+	 * @param count      counter for the number of received requests
+	 * @return server
+	 * @throws IOException
+	 */
+	private HttpServer createServer(final Behavior behavior, 
+			final AtomicInteger count) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/agents/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String body = StringUtil.streamToString(exchange.getRequestBody());
+				int status;
+				try {
+					status = behavior.handle(count.incrementAndGet());
+				} catch (InterruptedException e) {
+					status = 500;
+				}
+				if (status != 200) {
+					exchange.sendResponseHeaders(status, -1);
+					exchange.close();
+					return;
+				}
+
+				JsonNode request = JOM.getInstance().readTree(body);
+				JsonNode params = request.get("params");
+				ObjectNode response = JOM.createObjectNode();
+				response.put("id", request.get("id"));
+				response.put("result", params.get("a").asInt() + 
+						params.get("b").asInt());
+				byte[] bytes = response.toString().getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private HttpService createService(Map<String, Object> params) {
+		params.put("servlet_url", "http://localhost:8080/agents/");
+		HttpService service = new HttpService(new AgentFactory());
+		service.init(params);
+		return service;
+	}
+
+	private String getUrl(HttpServer server) {
+		return "http://localhost:" + server.getAddress().getPort() + 
+				"/agents/agent1/";
+	}
+
+	private JSONRequest createRequest(String method) {
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", 1);
+		params.put("b", 2);
+		return new JSONRequest("1", method, params);
+	}
+}
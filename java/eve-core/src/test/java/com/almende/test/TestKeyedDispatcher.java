@@ -0,0 +1,134 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.transport.KeyedDispatcher;
+
+public class TestKeyedDispatcher extends TestCase {
+
+	@Test
+	public void testOrderPerKey() throws Exception {
+		KeyedDispatcher dispatcher = new KeyedDispatcher("test", 4, 10000);
+		int keys = 10;
+		int tasks = 500;
+		final CountDownLatch done = new CountDownLatch(keys * tasks);
+		final List<List<Integer>> results = new ArrayList<List<Integer>>();
+		for (int k = 0; k < keys; k++) {
+			results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+
+		for (int i = 0; i < tasks; i++) {
+			for (int k = 0; k < keys; k++) {
+				final List<Integer> result = results.get(k);
+				final int value = i;
+				assertTrue(dispatcher.dispatch("key" + k, new Runnable() {
+					@Override
+					public void run() {
+						result.add(value);
+						done.countDown();
+					}
+				}));
+			}
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (List<Integer> result : results) {
+			assertEquals(tasks, result.size());
+			for (int i = 0; i < tasks; i++) {
+				assertEquals(i, (int) result.get(i));
+			}
+		}
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		KeyedDispatcher dispatcher = new KeyedDispatcher("test", 1, 2);
+		final CountDownLatch block = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					block.await();
+				} catch (InterruptedException e) {}
+			}
+		};
+
+		assertTrue(dispatcher.dispatch("a", task));
+		assertTrue(dispatcher.dispatch("b", task));
+		assertFalse(dispatcher.dispatch("c", task));
+		assertEquals(2, dispatcher.getPending());
+
+		block.countDown();
+		long start = System.currentTimeMillis();
+		while (dispatcher.getPending() > 0 && 
+				System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, dispatcher.getPending());
+		assertTrue(dispatcher.dispatch("c", task));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testBoundedWorkers() throws Exception {
+		// tasks with key are executed by the fixed number of workers
+		KeyedDispatcher dispatcher = new KeyedDispatcher("test", 2, 100);
+		int count = 20;
+		final AtomicInteger running = new AtomicInteger(0);
+		final AtomicInteger max = new AtomicInteger(0);
+		final CountDownLatch done = new CountDownLatch(count);
+		for (int i = 0; i < count; i++) {
+			assertTrue(dispatcher.dispatch("key" + i, new Runnable() {
+				@Override
+				public void run() {
+					int current = running.incrementAndGet();
+					synchronized (max) {
+						max.set(Math.max(max.get(), current));
+					}
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {}
+					running.decrementAndGet();
+					done.countDown();
+				}
+			}));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(2, max.get());
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testBlockedTasks() throws Exception {
+		// nested calls blocking on each other do not starve the single worker
+		KeyedDispatcher dispatcher = new KeyedDispatcher("test", 1, 100);
+		int count = 10;
+		final CountDownLatch started = new CountDownLatch(count);
+		final CountDownLatch done = new CountDownLatch(count);
+		for (int i = 0; i < count; i++) {
+			assertTrue(dispatcher.dispatch(null, new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						if (started.await(5, TimeUnit.SECONDS)) {
+							done.countDown();
+						}
+					} catch (InterruptedException e) {}
+				}
+			}));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+}
@@ -0,0 +1,151 @@
+package com.almende.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.agent.example.TestAgentInterface;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.local.LocalService;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestLocalService extends TestCase {
+
+	@Test
+	public void testUrls() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		LocalService local = (LocalService) factory.getTransportService("local");
+		assertNotNull(local);
+		assertEquals("local://agent1", local.getAgentUrl("agent1"));
+		assertEquals("agent1", local.getAgentId("local://agent1"));
+		assertEquals("agent1", local.getAgentId("local://agent1/"));
+		assertNull(local.getAgentId("http://localhost/agents/agent1/"));
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		Agent agent = factory.createAgent(TestAgent.class, "localtest1");
+		assertTrue(agent.getUrls().contains("local://localtest1"));
+
+		TestAgentInterface proxy = factory.createAgentProxy(null, 
+				"local://localtest1", TestAgentInterface.class);
+		assertEquals(new Double(5), proxy.add(2.0, 3.0));
+
+		// asynchronous, via the shared executor
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", 2.0);
+		params.put("b", 3.0);
+		SyncCallback<Double> callback = new SyncCallback<Double>();
+		agent.sendAsync("local://localtest1", "add", params, 
+				callback, Double.class);
+		assertEquals(new Double(5), callback.get());
+	}
+
+	@Test
+	public void testSynchronousCallbacks() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		LocalService local = (LocalService) factory.getTransportService("local");
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("async", false);
+		local.init(params);
+		Agent agent = factory.createAgent(TestAgent.class, "localtest2");
+		ObjectNode args = JOM.createObjectNode();
+		args.put("a", 2.0);
+		args.put("b", 3.0);
+		final Thread caller = Thread.currentThread();
+		final Thread[] invoked = new Thread[1];
+		SyncCallback<Double> callback = new SyncCallback<Double>() {
+			@Override
+			public synchronized void onSuccess(Double response) {
+				invoked[0] = Thread.currentThread();
+				super.onSuccess(response);
+			}
+		};
+		agent.sendAsync("local://localtest2", "subtract", args, 
+				callback, Double.class);
+		assertEquals(new Double(-1), callback.get());
+		assertSame(caller, invoked[0]);
+	}
+
+	@Test
+	public void testSender() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		Agent agent = factory.createAgent(SenderAgent.class, "localtest3");
+		factory.createAgent(SenderAgent.class, "localtest4");
+
+		// the sender is passed on synchronous and asynchronous requests
+		assertEquals("local://localtest3", agent.send("local://localtest4", 
+				"getSender", String.class));
+		SyncCallback<String> callback = new SyncCallback<String>();
+		agent.sendAsync("local://localtest4", "getSender", 
+				JOM.createObjectNode(), callback, String.class);
+		assertEquals("local://localtest3", callback.get());
+	}
+
+	@Test
+	public void testCallbackTimeout() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.setCallbackTimeout(300);
+		Agent agent = factory.createAgent(SlowAgent.class, "localtest4");
+		ObjectNode params = JOM.createObjectNode();
+		params.put("delay", 3000);
+		SyncCallback<Object> callback = new SyncCallback<Object>();
+		long start = System.currentTimeMillis();
+		agent.sendAsync("local://localtest4", "sleep", params, 
+				callback, Object.class);
+		try {
+			callback.get();
+			fail("Request should time out");
+		} catch (TimeoutException e) {}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+	}
+
+	public static class SlowAgent extends Agent {
+		public void sleep(@Name("delay") long delay) 
+				throws InterruptedException {
+			Thread.sleep(delay);
+		}
+
+		@Override
+		public String getDescription() {
+			return "Responds after a delay";
+		}
+
+		@Override
+		public String getVersion() {
+			return "1.0";
+		}
+	}
+
+	public static class SenderAgent extends Agent {
+		public String getSender(@Sender String sender) {
+			return sender;
+		}
+
+		@Override
+		public String getDescription() {
+			return "Returns the sender of a request";
+		}
+
+		@Override
+		public String getVersion() {
+			return "1.0";
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package com.almende.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.context.Context;
+import com.almende.eve.context.FileContextFactory;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.context.log.AgentDetailRecord;
+import com.almende.eve.context.log.RequestLogger;
+import com.almende.eve.metrics.Counter;
+import com.almende.eve.metrics.Gauge;
+import com.almende.eve.metrics.Histogram;
+import com.almende.eve.metrics.MethodMetrics;
+import com.almende.eve.metrics.MetricsAgent;
+import com.almende.eve.metrics.MetricsRegistry;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.SyncCallback;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestMetrics extends TestCase {
+
+	@Test
+	public void testHistogram() throws Exception {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(0.5));
+
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000, histogram.getMax());
+		assertEquals(50000.5, histogram.getMean(), 0.001);
+		assertEquals(50000, histogram.getPercentile(0.5), 50000 * 0.07);
+		assertEquals(99000, histogram.getPercentile(0.99), 99000 * 0.07);
+		assertEquals(100000, histogram.getPercentile(1.0));
+
+		// small values are counted exactly
+		Histogram small = new Histogram();
+		small.record(3);
+		small.record(7);
+		assertEquals(3, small.getPercentile(0.5));
+		assertEquals(7, small.getPercentile(0.99));
+
+		// very large values are counted in the last bucket
+		Histogram large = new Histogram();
+		large.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, large.getPercentile(0.5));
+	}
+
+	@Test
+	public void testInvocationMetrics() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.createAgent(TestAgent.class, "metrics1");
+
+		final List<AgentDetailRecord> records = 
+				new CopyOnWriteArrayList<AgentDetailRecord>();
+		final CountDownLatch logged = new CountDownLatch(3);
+		factory.setRequestLogger(new RequestLogger() {
+			@Override
+			public void log(AgentDetailRecord record) {
+				records.add(record);
+				logged.countDown();
+			}
+		}, 100);
+
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", 1.0);
+		params.put("b", 2.0);
+		RequestParams requestParams = new RequestParams();
+		factory.invoke("metrics1", new JSONRequest("add", params), requestParams);
+		factory.invoke("metrics1", new JSONRequest("add", params), requestParams);
+		factory.invoke("metrics1", new JSONRequest("throwException", 
+				JOM.createObjectNode()), requestParams);
+
+		MethodMetrics add = factory.getInvocationMetrics().get(
+				TestAgent.class, "add");
+		assertEquals(2, add.getCalls());
+		assertEquals(0, add.getErrors());
+		assertEquals(0, add.getInFlight());
+		assertEquals(2, add.getLatency().getCount());
+		MethodMetrics error = factory.getInvocationMetrics().get(
+				TestAgent.class, "throwException");
+		assertEquals(1, error.getCalls());
+		assertEquals(1, error.getErrors());
+
+		Map<String, Map<String, Object>> stats = 
+				factory.getInvocationMetrics().getStats();
+		assertTrue(stats.get(TestAgent.class.getName()).containsKey("add"));
+
+		assertTrue(logged.await(5, TimeUnit.SECONDS));
+		assertEquals("metrics1", records.get(0).getAgent());
+		assertEquals(TestAgent.class.getName(), records.get(0).getType());
+		assertEquals("add", records.get(0).getMethod());
+		assertTrue(records.get(0).getSuccess());
+		assertFalse(records.get(2).getSuccess());
+		assertNotNull(records.get(2).getTimestamp());
+		factory.setRequestLogger(null, 0);
+	}
+
+	@Test
+	public void testSynchronousRequestLogger() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.createAgent(TestAgent.class, "metrics5");
+
+		// without worker thread, as on Google App Engine, the record is 
+		// logged in the thread of the invocation
+		final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+		factory.setRequestLogger(new RequestLogger() {
+			@Override
+			public void log(AgentDetailRecord record) {
+				threads.add(Thread.currentThread());
+			}
+		}, 100, false);
+		assertFalse(factory.getRequestLogger().isAsync());
+
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", 1.0);
+		params.put("b", 2.0);
+		factory.invoke("metrics5", new JSONRequest("add", params), 
+				new RequestParams());
+		assertEquals(1, threads.size());
+		assertSame(Thread.currentThread(), threads.get(0));
+		factory.setRequestLogger(null, 0);
+	}
+
+	@Test
+	public void testMetricsRegistry() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		MetricsRegistry registry = factory.getMetricsRegistry();
+
+		List<String> groups = registry.getGroups();
+		assertTrue(groups.contains("AgentCache"));
+		assertTrue(groups.contains("AsyncCallbackQueue"));
+		assertTrue(groups.contains("Context"));
+		assertTrue(groups.contains("HttpService"));
+		assertTrue(groups.contains("Invocations"));
+		assertTrue(groups.contains("Scheduler"));
+		assertNotNull(registry.getMetrics("AgentCache").get("max_size"));
+		assertNotNull(registry.getMetrics("AsyncCallbackQueue").get("pending"));
+		assertNotNull(registry.getMetrics("Context").get("bytes_written"));
+		assertNull(registry.getMetrics("Unknown"));
+
+		Counter counter = registry.counter("Test", "events");
+		counter.increment();
+		counter.add(2);
+		assertSame(counter, registry.counter("Test", "events"));
+		assertEquals(3L, registry.getMetrics("Test").get("events"));
+
+		// a failing gauge does not break the other metrics
+		registry.register("Test", "failing", new Gauge() {
+			@Override
+			public Object getValue() {
+				throw new IllegalStateException();
+			}
+		});
+		Map<String, Object> test = registry.getMetrics("Test");
+		assertNull(test.get("failing"));
+		assertEquals(3L, test.get("events"));
+	}
+
+	@Test
+	public void testContextMetrics() throws Exception {
+		File path = File.createTempFile("eve", "contexts");
+		path.delete();
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new FileContextFactory(factory, 
+				path.getPath()));
+		AgentFactory other = new AgentFactory();
+		other.setContextFactory(new MemoryContextFactory(other));
+		try {
+			Context context = factory.getContextFactory().create("metrics3");
+			context.put("key", "value");
+			assertEquals("value", context.get("key"));
+
+			// the bytes are counted for the factory of the context only
+			Map<String, Object> metrics = factory.getMetricsRegistry()
+					.getMetrics("Context");
+			assertTrue((Long) metrics.get("bytes_written") > 0);
+			assertTrue((Long) metrics.get("bytes_read") > 0);
+			assertEquals(0L, other.getMetricsRegistry().getMetrics("Context")
+					.get("bytes_written"));
+		} finally {
+			factory.getContextFactory().delete("metrics3");
+			path.delete();
+		}
+	}
+
+	@Test
+	public void testFactoryMetrics() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		AgentFactory other = new AgentFactory();
+		other.setContextFactory(new MemoryContextFactory(other));
+		factory.createAgent(TestAgent.class, "metrics4");
+		factory.getAgent("metrics4");
+
+		// agents and callbacks are counted for their own factory only
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		factory.getTransportService("local").getCallbackQueue().push(
+				"metrics4", callback, 1);
+		try {
+			callback.get();
+			fail("Callback should time out");
+		} catch (TimeoutException e) {
+			// expected
+		}
+		Map<String, Object> callbacks = factory.getMetricsRegistry()
+				.getMetrics("AsyncCallbackQueue");
+		assertEquals(1L, callbacks.get("timeouts"));
+		assertEquals(0, callbacks.get("pending"));
+		assertEquals(0L, other.getMetricsRegistry()
+				.getMetrics("AsyncCallbackQueue").get("timeouts"));
+
+		assertTrue((Long) factory.getMetricsRegistry().getMetrics("AgentCache")
+				.get("misses") > 0);
+		assertEquals(0L, other.getMetricsRegistry().getMetrics("AgentCache")
+				.get("misses"));
+	}
+
+	@Test
+	public void testMBeans() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		MetricsRegistry registry = factory.getMetricsRegistry();
+		registry.counter("Test", "events").add(5);
+		registry.registerMBeans("test-mbeans");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MetricsRegistry.DOMAIN + 
+				":type=Metrics,factory=\"test-mbeans\",name=\"Test\"");
+		assertTrue(server.isRegistered(name));
+		assertEquals(5L, server.getAttribute(name, "events"));
+
+		// groups registered later on are exposed too
+		registry.register("Later", "value", new Gauge() {
+			@Override
+			public Object getValue() {
+				Map<String, Object> value = new HashMap<String, Object>();
+				value.put("nested", 7);
+				return value;
+			}
+		});
+		ObjectName later = new ObjectName(MetricsRegistry.DOMAIN + 
+				":type=Metrics,factory=\"test-mbeans\",name=\"Later\"");
+		assertEquals(7, server.getAttribute(later, "value.nested"));
+		assertTrue(server.getMBeanInfo(later).getAttributes().length == 1);
+
+		registry.unregisterMBeans();
+		assertFalse(server.isRegistered(name));
+		assertFalse(server.isRegistered(later));
+	}
+
+	@Test
+	public void testMetricsAgent() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.createAgent(MetricsAgent.class, "metrics2");
+
+		ObjectNode params = JOM.createObjectNode();
+		params.put("group", "AgentCache");
+		JSONResponse response = factory.invoke("metrics2", 
+				new JSONRequest("getMetrics", params), new RequestParams());
+		assertNull(response.getError());
+		assertTrue(response.getResult().has("max_size"));
+
+		response = factory.invoke("metrics2", 
+				new JSONRequest("getGroups", JOM.createObjectNode()), 
+				new RequestParams());
+		assertTrue(response.getResult().toString().contains("Invocations"));
+
+		// the invocations of the metrics agent itself are counted as well
+		response = factory.invoke("metrics2", 
+				new JSONRequest("getInvocations", JOM.createObjectNode()), 
+				new RequestParams());
+		assertTrue(response.getResult().has(MetricsAgent.class.getName()));
+	}
+}
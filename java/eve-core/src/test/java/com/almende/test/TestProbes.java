@@ -0,0 +1,149 @@
+package com.almende.test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.context.ConcurrentFileContext;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.probe.Probe;
+import com.almende.eve.probe.Probes;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.transport.tcp.TcpService;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestProbes extends TestCase {
+	@Test
+	public void testSendAndInvoke() throws Exception {
+		RecordingProbe probe = new RecordingProbe();
+		Probes.set(probe);
+		AgentFactory clientFactory = TestTcpService.createFactory("binary");
+		AgentFactory serverFactory = TestTcpService.createFactory("binary");
+		TcpService client = TestTcpService.getService(clientFactory);
+		TcpService server = TestTcpService.getService(serverFactory);
+		try {
+			serverFactory.createAgent(TestAgent.class, "probe1");
+			ObjectNode params = JOM.createObjectNode();
+			params.put("a", 1.0);
+			params.put("b", 2.0);
+			JSONResponse response = clientFactory.send(null, 
+					server.getAgentUrl("probe1"), 
+					new JSONRequest("add", params));
+			assertEquals(3.0, response.getResult(Double.class));
+
+			assertTrue(probe.events.contains("sent eve+tcp add true"));
+			assertTrue(probe.events.contains("received eve+tcp add true"));
+			assertTrue(probe.events.contains("loaded probe1 false"));
+			assertTrue(probe.events.contains("invoked " + 
+					TestAgent.class.getName() + " add true"));
+
+			// no events when the probe is disabled
+			probe.events.clear();
+			probe.enabled = false;
+			clientFactory.send(null, server.getAgentUrl("probe1"), 
+					new JSONRequest("add", params));
+			assertTrue(probe.events.isEmpty());
+		} finally {
+			Probes.set(null);
+			client.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testContextAndTasks() throws Exception {
+		RecordingProbe probe = new RecordingProbe();
+		Probes.set(probe);
+		File file = File.createTempFile("eve", ".context");
+		try {
+			ConcurrentFileContext context = 
+					new ConcurrentFileContext("probe2", file.getPath());
+			context.clear();
+			context.put("key", "value");
+			assertEquals("value", context.get("key"));
+			assertTrue(probe.events.contains("written probe2"));
+			assertTrue(probe.events.contains("read probe2"));
+
+			AgentFactory factory = new AgentFactory();
+			factory.setContextFactory(new MemoryContextFactory(factory));
+			factory.setSchedulerFactory(
+					new RunnableSchedulerFactory(factory, "_scheduler"));
+			factory.createAgent(TestAgent.class, "probe3");
+			ObjectNode params = JOM.createObjectNode();
+			params.put("delay", 0);
+			factory.invoke("probe3", new JSONRequest("createTask", params), 
+					new RequestParams());
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!probe.events.contains("fired probe3 myTask") && 
+					System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(probe.events.contains("fired probe3 myTask"));
+		} finally {
+			Probes.set(null);
+			file.delete();
+		}
+	}
+
+	private static class RecordingProbe implements Probe {
+		@Override
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		@Override
+		public void agentLoaded(String agentId, boolean cached, long duration) {
+			events.add("loaded " + agentId + " " + cached);
+		}
+
+		@Override
+		public void invoked(String agentClass, String method, 
+				long bindDuration, long executeDuration, boolean success) {
+			assertTrue(bindDuration >= 0 && executeDuration >= 0);
+			events.add("invoked " + agentClass + " " + method + " " + success);
+		}
+
+		@Override
+		public void contextRead(String agentId, long bytes, long duration) {
+			assertTrue(bytes > 0);
+			events.add("read " + agentId);
+		}
+
+		@Override
+		public void contextWritten(String agentId, long bytes, long duration) {
+			assertTrue(bytes > 0);
+			events.add("written " + agentId);
+		}
+
+		@Override
+		public void taskFired(String agentId, String method, long lag) {
+			events.add("fired " + agentId + " " + method);
+		}
+
+		@Override
+		public void sent(String protocol, String method, long duration, 
+				boolean success) {
+			events.add("sent " + protocol + " " + method + " " + success);
+		}
+
+		@Override
+		public void received(String protocol, String method, long duration,
+				boolean success) {
+			events.add("received " + protocol + " " + method + " " + success);
+		}
+
+		volatile boolean enabled = true;
+		List<String> events = new CopyOnWriteArrayList<String>();
+	}
+}
@@ -0,0 +1,246 @@
+package com.almende.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.ChatAgent;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.http.HttpService;
+import com.almende.eve.transport.http.RequestCoalescer;
+import com.almende.util.StringUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestRequestCoalescer extends TestCase {
+
+	@Test
+	public void testBatch() throws Exception {
+		final AtomicInteger posts = new AtomicInteger(0);
+		HttpServer server = createServer(posts, 0);
+		try {
+			String baseUrl = "http://localhost:" + 
+					server.getAddress().getPort() + "/agents/";
+			RequestCoalescer coalescer = new RequestCoalescer(50, 100, 
+					Executors.newCachedThreadPool());
+			HttpService service = new HttpService(new AgentFactory());
+
+			int count = 20;
+			final CountDownLatch done = new CountDownLatch(count);
+			final AtomicInteger failures = new AtomicInteger(0);
+			for (int i = 0; i < count; i++) {
+				ObjectNode params = JOM.createObjectNode();
+				params.put("a", i);
+				params.put("b", 1);
+				final int expected = i + 1;
+				final JSONRequest request = new JSONRequest("add", params);
+				request.setId("request" + i);
+				coalescer.send(service, null, baseUrl + "agent" + (i % 3) + "/", 
+						request, 
+						new AsyncCallback<JSONResponse>() {
+					@Override
+					public void onSuccess(JSONResponse response) {
+						if (response.getResult().asInt() != expected || 
+								!request.getId().equals(response.getId().toString()
+										.replace("\"", ""))) {
+							failures.incrementAndGet();
+						}
+						done.countDown();
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						failures.incrementAndGet();
+						done.countDown();
+					}
+				});
+			}
+
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(0, failures.get());
+			assertEquals(1, posts.get());
+			assertEquals(0, coalescer.getBuffered());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testMaxBatch() throws Exception {
+		final AtomicInteger posts = new AtomicInteger(0);
+		HttpServer server = createServer(posts, 0);
+		try {
+			String baseUrl = "http://localhost:" + 
+					server.getAddress().getPort() + "/agents/";
+			// a long window: batches can only be sent because they are full
+			RequestCoalescer coalescer = new RequestCoalescer(60000, 5, 
+					Executors.newCachedThreadPool());
+			HttpService service = new HttpService(new AgentFactory());
+
+			final CountDownLatch done = new CountDownLatch(10);
+			for (int i = 0; i < 10; i++) {
+				ObjectNode params = JOM.createObjectNode();
+				params.put("a", i);
+				params.put("b", 1);
+				coalescer.send(service, null, baseUrl + "agent/", 
+						new JSONRequest("add", params), 
+						new AsyncCallback<JSONResponse>() {
+					@Override
+					public void onSuccess(JSONResponse response) {
+						done.countDown();
+					}
+
+					@Override
+					public void onFailure(Exception exception) {}
+				});
+			}
+
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(2, posts.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		final AtomicInteger posts = new AtomicInteger(0);
+		HttpServer server = createServer(posts, 1);
+		try {
+			String baseUrl = "http://localhost:" + 
+					server.getAddress().getPort() + "/agents/";
+			RequestCoalescer coalescer = new RequestCoalescer(50, 100, 
+					Executors.newCachedThreadPool());
+			Map<String, Object> retry = new HashMap<String, Object>();
+			retry.put("max_attempts", 2);
+			retry.put("backoff", 1);
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("servlet_url", "http://localhost:8080/agents/");
+			params.put("retry", retry);
+			HttpService service = new HttpService(new AgentFactory());
+			service.init(params);
+
+			// a batch of notifications is retried after the failed post
+			final CountDownLatch done = new CountDownLatch(2);
+			for (int i = 0; i < 2; i++) {
+				ObjectNode add = JOM.createObjectNode();
+				add.put("a", i);
+				add.put("b", 1);
+				coalescer.send(service, null, baseUrl + "agent/", 
+						new JSONRequest("add", add), 
+						new AsyncCallback<JSONResponse>() {
+					@Override
+					public void onSuccess(JSONResponse response) {
+						done.countDown();
+					}
+
+					@Override
+					public void onFailure(Exception exception) {}
+				});
+			}
+
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(2, posts.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testChatAgent() throws Exception {
+		final AtomicInteger posts = new AtomicInteger(0);
+		HttpServer server = createServer(posts, 0);
+		try {
+			String baseUrl = "http://localhost:" + 
+					server.getAddress().getPort() + "/agents/";
+			AgentFactory factory = new AgentFactory();
+			factory.setContextFactory(new MemoryContextFactory(factory));
+			HttpService service = new HttpService(factory);
+			service.init("http://localhost:8080/agents/");
+			factory.addTransportService(service);
+			factory.setRequestCoalescer(new RequestCoalescer(50, 100, 
+					factory.getExecutor()));
+
+			// the messages posted to the connected agents are sent in 
+			// one batch
+			ChatAgent agent = (ChatAgent) factory.createAgent(
+					ChatAgent.class, "chat");
+			List<String> connections = new ArrayList<String>();
+			for (int i = 0; i < 3; i++) {
+				connections.add(baseUrl + "chat" + i + "/");
+			}
+			agent.getContext().put("connections", connections);
+			agent.post("hello");
+			assertEquals(1, posts.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Create a server handling batches of "add" requests. Other requests 
+	 * get the result null.
+	 * @param posts      counter for the number of received posts
+	 * @param failures   number of posts to fail before handling them
+	 * @return server
+	 * @throws IOException
+	 */
+	private HttpServer createServer(final AtomicInteger posts, 
+			final int failures) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+		server.createContext("/agents/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (posts.incrementAndGet() <= failures) {
+					exchange.sendResponseHeaders(503, -1);
+					exchange.close();
+					return;
+				}
+				String body = StringUtil.streamToString(exchange.getRequestBody());
+				ArrayNode responses = JOM.createArrayNode();
+				for (JsonNode request : JOM.getInstance().readTree(body)) {
+					assertTrue(request.has("to"));
+					JsonNode params = request.get("params");
+					ObjectNode response = JOM.createObjectNode();
+					response.put("id", request.get("id"));
+					if (params.has("a")) {
+						response.put("result", params.get("a").asInt() + 
+								params.get("b").asInt());
+					}
+					else {
+						response.putNull("result");
+					}
+					responses.add(response);
+				}
+				byte[] bytes = responses.toString().getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+}
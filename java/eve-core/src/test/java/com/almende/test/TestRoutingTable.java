@@ -0,0 +1,79 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.transport.RoutingTable;
+import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.http.HttpService;
+import com.almende.eve.transport.local.LocalService;
+
+public class TestRoutingTable extends TestCase {
+
+	@Test
+	public void testAgentId() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		HttpService http = new HttpService(factory);
+		http.init("http://localhost:8080/agents/");
+		List<TransportService> services = new ArrayList<TransportService>();
+		services.add(http);
+		services.add(new LocalService(factory));
+		RoutingTable routes = new RoutingTable(services);
+
+		for (int i = 0; i < 2; i++) { // second round is served from the cache
+			assertEquals("agent1", routes.getAgentId("local://agent1"));
+			assertEquals("agent1", routes.getAgentId("local://agent1/"));
+			assertEquals("agent2", routes.getAgentId(
+					"http://localhost:8080/agents/agent2/"));
+			assertEquals("agent2", routes.getAgentId(
+					"http://localhost:8080/agents/agent2/index.html"));
+			assertEquals("agent3", routes.getAgentId("/agents/agent3/"));
+			assertNull(routes.getAgentId("http://remote:8080/agents/agent4/"));
+			assertNull(routes.getAgentId("xmpp:agent5@remote"));
+		}
+	}
+
+	@Test
+	public void testRoute() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		HttpService http1 = new HttpService(factory);
+		http1.init("http://localhost:8080/agents/");
+		HttpService http2 = new HttpService(factory);
+		http2.init("http://localhost:8081/agents/");
+		LocalService local = new LocalService(factory);
+		List<TransportService> services = new ArrayList<TransportService>();
+		services.add(http1);
+		services.add(http2);
+		services.add(local);
+		RoutingTable routes = new RoutingTable(services);
+
+		assertSame(http1, routes.route("http://remote/agents/agent1/"));
+		assertSame(local, routes.route("local://agent1"));
+		assertNull(routes.route("https://remote/agents/agent1/"));
+		assertNull(routes.route("xmpp:agent1@remote"));
+		assertEquals(2, routes.getTransportServices("http").size());
+		assertTrue(routes.getTransportServices("xmpp").isEmpty());
+		assertEquals("http://remote/agents/agent1/", 
+				routes.getPreferredUrl("http://remote/agents/agent1/"));
+	}
+
+	@Test
+	public void testFactoryRoutes() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		HttpService http = new HttpService(factory);
+		http.init("https://localhost:8443/agents/");
+		int count = factory.getTransportServices("https").size();
+
+		factory.addTransportService(http);
+		assertEquals(count + 1, factory.getTransportServices("https").size());
+		assertTrue(factory.getTransportServices("https").contains(http));
+
+		factory.removeTransportService(http);
+		assertEquals(count, factory.getTransportServices("https").size());
+	}
+}
@@ -0,0 +1,152 @@
+package com.almende.test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.agent.example.TestAgentInterface;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.transport.http.HttpService;
+import com.almende.eve.transport.shm.ShmService;
+
+public class TestShmService extends TestCase {
+
+	@Test
+	public void testSend() throws Exception {
+		File directory = createDirectory();
+		AgentFactory clientFactory = createFactory(directory, "client");
+		AgentFactory serverFactory = createFactory(directory, "server");
+		ShmService client = getService(clientFactory);
+		ShmService server = getService(serverFactory);
+		try {
+			String url = server.getAgentUrl("shmtest1");
+			assertEquals("eve+shm://server/shmtest1", url);
+			assertEquals("shmtest1", server.getAgentId(url));
+			assertNull(client.getAgentId(url));
+			serverFactory.createAgent(TestAgent.class, "shmtest1");
+
+			TestAgentInterface proxy = clientFactory.createAgentProxy(
+					null, url, TestAgentInterface.class);
+			for (int i = 0; i < 100; i++) {
+				assertEquals(new Double(i + 1), proxy.add((double) i, 1.0));
+			}
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testPreferredUrl() throws Exception {
+		File directory = createDirectory();
+		AgentFactory clientFactory = createFactory(directory, "client");
+		AgentFactory serverFactory = createFactory(directory, "server");
+		ShmService client = getService(clientFactory);
+		ShmService server = getService(serverFactory);
+		try {
+			// nothing listens on this url: the request can only succeed
+			// when routed via shared memory
+			HttpService http = new HttpService(serverFactory);
+			http.init("http://localhost:9/agents/");
+			serverFactory.addTransportService(http);
+			serverFactory.createAgent(TestAgent.class, "shmtest2");
+			String httpUrl = "http://localhost:9/agents/shmtest2/";
+
+			// wait until the server has published its url templates
+			long deadline = System.currentTimeMillis() + 10000;
+			while (client.getPreferredUrl(httpUrl) == null && 
+					System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+			}
+			assertEquals("eve+shm://server/shmtest2", 
+					client.getPreferredUrl(httpUrl));
+			assertNull(client.getPreferredUrl("http://otherhost/agents/a/"));
+
+			TestAgentInterface proxy = clientFactory.createAgentProxy(
+					null, httpUrl, TestAgentInterface.class);
+			assertEquals(new Double(5), proxy.add(2.0, 3.0));
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		File directory = createDirectory();
+		AgentFactory clientFactory = createFactory(directory, "client");
+		AgentFactory serverFactory = createFactory(directory, "server");
+		ShmService client = getService(clientFactory);
+		try {
+			serverFactory.createAgent(TestAgent.class, "shmtest3");
+			TestAgentInterface proxy = clientFactory.createAgentProxy(
+					null, "eve+shm://server/shmtest3", TestAgentInterface.class);
+			assertEquals(new Double(3), proxy.add(1.0, 2.0));
+
+			// a stopped peer fails fast instead of waiting for the timeout
+			getService(serverFactory).stop();
+			long start = System.currentTimeMillis();
+			try {
+				proxy.add(1.0, 2.0);
+				fail("Sending to a stopped service should fail");
+			} catch (Exception e) {
+				// expected
+			}
+			assertTrue(System.currentTimeMillis() - start < 1000);
+
+			// a restarted peer has a new inbox, which is reopened
+			serverFactory = createFactory(directory, "server");
+			serverFactory.createAgent(TestAgent.class, "shmtest3");
+			assertEquals(new Double(5), proxy.add(2.0, 3.0));
+		} finally {
+			client.stop();
+			getService(serverFactory).stop();
+		}
+	}
+
+	@Test
+	public void testNameInUse() throws Exception {
+		File directory = createDirectory();
+		AgentFactory factory = createFactory(directory, "node");
+		try {
+			createFactory(directory, "node");
+			fail("Starting a second service with the same name should fail");
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			getService(factory).stop();
+		}
+	}
+
+	private File createDirectory() {
+		File directory = new File(System.getProperty("java.io.tmpdir"), 
+				"eve-shm-test-" + System.nanoTime());
+		directory.mkdirs();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private AgentFactory createFactory(File directory, String name) {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		ShmService service = new ShmService(factory);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("name", name);
+		params.put("directory", directory.getPath());
+		params.put("capacity", 64 * 1024);
+		params.put("timeout", 10000);
+		service.init(params);
+		factory.addTransportService(service);
+		return factory;
+	}
+
+	private ShmService getService(AgentFactory factory) {
+		return (ShmService) factory.getTransportService("eve+shm");
+	}
+}
@@ -0,0 +1,106 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.event.SubscriptionIndex;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.context.Context;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.entity.Callback;
+
+public class TestSubscriptionIndex extends TestCase {
+
+	@Test
+	public void testMatch() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		index.add("calendar.event.updated", new Callback("1", "http://a/", "onUpdate"));
+		index.add("calendar.*", new Callback("2", "http://b/", "onCalendar"));
+		index.add("*", new Callback("3", "http://c/", "onAll"));
+		index.add("task.*", new Callback("4", "http://d/", "onTask"));
+
+		assertEquals(3, index.match("calendar.event.updated").size());
+		assertEquals(2, index.match("calendar.created").size());
+		assertEquals(1, index.match("calendar").size()); // only "*"
+		assertEquals(1, index.match("meeting").size());
+		assertEquals(2, index.match("task.done").size());
+	}
+
+	@Test
+	public void testDuplicates() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		index.add("event", new Callback("1", "http://a/", "onEvent"));
+
+		Callback existing = index.find("event", "http://a/", "onEvent");
+		assertNotNull(existing);
+		assertEquals("1", existing.id);
+		assertNull(index.find("event", "http://a/", "onOther"));
+		assertNull(index.find("other", "http://a/", "onEvent"));
+	}
+
+	@Test
+	public void testRemove() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		index.add("a", new Callback("1", "http://a/", "onA"));
+		index.add("b.*", new Callback("2", "http://a/", "onB"));
+		index.add("b.*", new Callback("3", "http://b/", "onB"));
+
+		Set<String> changed = index.remove("3", null, null, null);
+		assertEquals(1, changed.size());
+		assertTrue(changed.contains("b.*"));
+		assertEquals(1, index.match("b.c").size());
+
+		// remove all subscriptions of a callback url
+		changed = index.remove(null, null, "http://a/", null);
+		assertEquals(2, changed.size());
+		assertEquals(0, index.size());
+		assertEquals(0, index.match("a").size());
+	}
+
+	@Test
+	public void testConversion() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		index.add("a.b", new Callback("1", "http://a/", "onAB"));
+		index.add("a.*", new Callback("2", "http://a/", "onA"));
+
+		Map<String, List<Callback>> map = index.toMap();
+		assertEquals(2, map.size());
+
+		SubscriptionIndex copy = new SubscriptionIndex(map);
+		assertEquals(2, copy.match("a.b").size());
+		assertEquals("2", copy.find("a.*", "http://a/", "onA").id);
+	}
+
+	@Test
+	public void testUnversionedContext() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		TestAgent agent = (TestAgent) factory.createAgent(TestAgent.class, 
+				"subscriptions1");
+
+		// subscriptions as stored before they were versioned
+		Map<String, List<Callback>> subscriptions = 
+				new HashMap<String, List<Callback>>();
+		List<Callback> callbacks = new ArrayList<Callback>();
+		callbacks.add(new Callback("1", "http://a/", "onA"));
+		subscriptions.put("a", callbacks);
+		Context context = agent.getContext();
+		context.put("subscriptions", subscriptions);
+
+		assertEquals("1", agent.onSubscribe("a", "http://a/", "onA"));
+		String version = (String) context.get("subscriptionsVersion");
+		assertNotNull(version);
+
+		// the version is kept as long as the subscriptions do not change
+		agent.onUnsubscribe(null, "b", "http://b/", null);
+		assertEquals(version, context.get("subscriptionsVersion"));
+	}
+}
@@ -0,0 +1,256 @@
+package com.almende.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.agent.example.TestAgentInterface;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.tcp.BinaryCodec;
+import com.almende.eve.transport.tcp.JsonCodec;
+import com.almende.eve.transport.tcp.TcpMessage;
+import com.almende.eve.transport.tcp.TcpService;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestTcpService extends TestCase {
+
+	@Test
+	public void testCodecs() throws Exception {
+		TcpMessage message = new TcpMessage(42, false, "agent1", 
+				"eve+tcp://localhost:7000/agent2", 
+				"{\"id\":1,\"method\":\"add\",\"params\":{\"a\":2,\"b\":3}}");
+		for (TcpMessage decoded : new TcpMessage[] {
+				new BinaryCodec().decode(new BinaryCodec().encode(message)),
+				new JsonCodec().decode(new JsonCodec().encode(message))}) {
+			assertEquals(42, decoded.getId());
+			assertFalse(decoded.isResponse());
+			assertEquals("agent1", decoded.getReceiver());
+			assertEquals("eve+tcp://localhost:7000/agent2", decoded.getSender());
+			assertEquals(JOM.getInstance().readTree(message.getBody()),
+					JOM.getInstance().readTree(decoded.getBody()));
+		}
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		AgentFactory clientFactory = createFactory("json");
+		AgentFactory serverFactory = createFactory("json");
+		TcpService client = getService(clientFactory);
+		TcpService server = getService(serverFactory);
+		try {
+			String url = server.getAgentUrl("tcptest1");
+			assertEquals("tcptest1", server.getAgentId(url));
+			assertNull(client.getAgentId(url));
+			Agent agent = serverFactory.createAgent(TestAgent.class, "tcptest1");
+			assertTrue(agent.getUrls().contains(url));
+
+			TestAgentInterface proxy = clientFactory.createAgentProxy(
+					null, url, TestAgentInterface.class);
+			assertEquals(new Double(5), proxy.add(2.0, 3.0));
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testPipelining() throws Exception {
+		AgentFactory serverFactory = createFactory("binary");
+		TcpService client = getService(createFactory("binary"));
+		TcpService server = getService(serverFactory);
+		try {
+			serverFactory.createAgent(TestAgent.class, "tcptest2");
+			String url = server.getAgentUrl("tcptest2");
+
+			int count = 1000;
+			final CountDownLatch done = new CountDownLatch(count);
+			final AtomicInteger failures = new AtomicInteger(0);
+			for (int i = 0; i < count; i++) {
+				ObjectNode params = JOM.createObjectNode();
+				params.put("a", (double) i);
+				params.put("b", 1.0);
+				final double expected = i + 1;
+				client.sendAsync(null, url, new JSONRequest("add", params), 
+						new AsyncCallback<JSONResponse>() {
+					@Override
+					public void onSuccess(JSONResponse response) {
+						if (response.getResult() == null || 
+								response.getResult().asDouble() != expected) {
+							failures.incrementAndGet();
+						}
+						done.countDown();
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						failures.incrementAndGet();
+						done.countDown();
+					}
+				});
+			}
+
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+			assertEquals(0, failures.get());
+			// all requests share a single connection
+			assertEquals(1, client.getConnectionCount());
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testConnectionClosed() throws Exception {
+		TcpService client = getService(createFactory("binary"));
+		TcpService server = getService(createFactory("binary"));
+		String url = server.getAgentUrl("tcptest3");
+		server.stop();
+		try {
+			client.send(null, url, new JSONRequest("add", 
+					JOM.createObjectNode()));
+			fail("Request to a stopped service should fail");
+		} catch (Exception e) {
+			// expected
+		} finally {
+			client.stop();
+		}
+	}
+
+	@Test
+	public void testMalformedFrames() throws Exception {
+		for (String codec : new String[] {"binary", "json"}) {
+			AgentFactory serverFactory = createFactory(codec);
+			TcpService client = getService(createFactory(codec));
+			TcpService server = getService(serverFactory);
+			try {
+				serverFactory.createAgent(TestAgent.class, "tcptest4");
+
+				// a string length exceeding the frame, or a frame without id,
+				// closes the connection of the peer
+				Socket socket = new Socket("localhost", server.getPort());
+				DataOutputStream out = 
+						new DataOutputStream(socket.getOutputStream());
+				if (codec.equals("binary")) {
+					writeFrame(out, new byte[] {2, 0, 0, 0, 0, 0, 0, 0, 1, 
+							0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+				}
+				else {
+					writeFrame(out, "{\"response\":false}".getBytes("UTF-8"));
+				}
+				out.flush();
+				assertEquals(-1, socket.getInputStream().read());
+				socket.close();
+
+				// the service keeps serving other connections
+				JSONResponse response = client.send(null, 
+						server.getAgentUrl("tcptest4"), 
+						new JSONRequest("add", createParams(2.0, 3.0)));
+				assertEquals(5.0, response.getResult().asDouble());
+			} finally {
+				client.stop();
+				server.stop();
+			}
+		}
+	}
+
+	@Test
+	public void testForgedResponse() throws Exception {
+		TcpService client = getService(createFactory("binary"));
+		ServerSocket peer = new ServerSocket(0);
+		try {
+			SyncCallback<JSONResponse> callback = 
+					new SyncCallback<JSONResponse>();
+			client.sendAsync(null, "eve+tcp://localhost:" + 
+					peer.getLocalPort() + "/agent1", 
+					new JSONRequest("add", createParams(2.0, 3.0)), callback);
+			Socket socket = peer.accept();
+			TcpMessage request = new BinaryCodec().decode(
+					readFrame(new DataInputStream(socket.getInputStream())));
+
+			// a response via another connection is not accepted
+			Socket forger = new Socket("localhost", client.getPort());
+			DataOutputStream out = 
+					new DataOutputStream(forger.getOutputStream());
+			writeFrame(out, new BinaryCodec().encode(new TcpMessage(
+					request.getId(), true, null, null, 
+					new JSONResponse(null, JOM.getInstance().valueToTree(0.0))
+					.toString())));
+			out.flush();
+			Thread.sleep(200);
+
+			// the response via the connection of the request is accepted
+			out = new DataOutputStream(socket.getOutputStream());
+			writeFrame(out, new BinaryCodec().encode(new TcpMessage(
+					request.getId(), true, null, null, 
+					new JSONResponse(null, JOM.getInstance().valueToTree(5.0))
+					.toString())));
+			out.flush();
+			assertEquals(5.0, callback.get().getResult().asDouble());
+			forger.close();
+			socket.close();
+		} finally {
+			peer.close();
+			client.stop();
+		}
+	}
+
+	private ObjectNode createParams(double a, double b) {
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", a);
+		params.put("b", b);
+		return params;
+	}
+
+	private void writeFrame(DataOutputStream out, byte[] payload) 
+			throws Exception {
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	private byte[] readFrame(DataInputStream in) throws Exception {
+		byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Create a factory with a TcpService listening on a free port
+	 * @param codec
+	 * @return factory
+	 */
+	static AgentFactory createFactory(String codec) {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		TcpService service = new TcpService(factory);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("host", "localhost");
+		params.put("port", 0);
+		params.put("codec", codec);
+		params.put("timeout", 10000);
+		service.init(params);
+		factory.addTransportService(service);
+		return factory;
+	}
+
+	static TcpService getService(AgentFactory factory) {
+		return (TcpService) factory.getTransportService("eve+tcp");
+	}
+}
@@ -0,0 +1,149 @@
+package com.almende.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.trace.MemorySpanExporter;
+import com.almende.eve.trace.Span;
+import com.almende.eve.trace.TraceContext;
+import com.almende.eve.trace.Tracer;
+
+public class TestTrace extends TestCase {
+	private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+	private static final String SPAN_ID = "00f067aa0ba902b7";
+
+	@Test
+	public void testTraceContext() throws Exception {
+		JSONRequest request = new JSONRequest("ping", JOM.createObjectNode());
+		assertNull(request.getTraceContext());
+		request.setTraceContext(new TraceContext(TRACE_ID, SPAN_ID, true));
+
+		// the trace context survives serialization
+		JSONRequest parsed = new JSONRequest(request.toString());
+		TraceContext context = parsed.getTraceContext();
+		assertEquals(TRACE_ID, context.getTraceId());
+		assertEquals(SPAN_ID, context.getSpanId());
+		assertTrue(context.isSampled());
+
+		parsed.setTraceContext(null);
+		assertNull(parsed.getTraceContext());
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		MemorySpanExporter exporter = new MemorySpanExporter();
+		AgentFactory factory = createFactory(new Tracer(exporter, 1.0));
+		factory.createAgent(TestAgent.class, "trace1");
+
+		JSONResponse response = factory.invoke("trace1", 
+				new JSONRequest("cascade2", JOM.createObjectNode()), 
+				new RequestParams());
+		assertNull(response.getError());
+
+		List<Span> spans = exporter.getSpans();
+		assertEquals(3, spans.size());
+		Span callee = spans.get(0);
+		Span client = spans.get(1);
+		Span caller = spans.get(2);
+		assertEquals("getPerson", callee.getName());
+		assertEquals(Tracer.SERVER, callee.getKind());
+		assertEquals("getPerson", client.getName());
+		assertEquals(Tracer.CLIENT, client.getKind());
+		assertEquals("cascade2", caller.getName());
+		assertNull(caller.getParentId());
+
+		assertEquals(caller.getTraceId(), client.getTraceId());
+		assertEquals(caller.getTraceId(), callee.getTraceId());
+		assertEquals(caller.getSpanId(), client.getParentId());
+		assertEquals(client.getSpanId(), callee.getParentId());
+		assertTrue(caller.getDuration() >= client.getDuration());
+		assertTrue(caller.isSuccess());
+		assertNull(factory.getTracer().getCurrentSpan());
+	}
+
+	@Test
+	public void testTrigger() throws Exception {
+		// requests without trace context are not traced, but a given
+		// context is continued via trigger, the scheduler and onTrigger
+		MemorySpanExporter exporter = new MemorySpanExporter();
+		AgentFactory factory = createFactory(new Tracer(exporter, 0));
+		factory.createAgent(TestAgent.class, "trace2");
+		factory.invoke("trace2", new JSONRequest("registerPingEvent", 
+				JOM.createObjectNode()), new RequestParams());
+		assertEquals(0, exporter.getSpans().size());
+
+		JSONRequest request = new JSONRequest("triggerPingEvent", 
+				JOM.createObjectNode());
+		request.setTraceContext(new TraceContext(TRACE_ID, SPAN_ID, true));
+		factory.invoke("trace2", request, new RequestParams());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (exporter.getSpans().size() < 5 && 
+				System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		List<Span> spans = exporter.getSpans(TRACE_ID);
+		assertEquals(5, spans.size());
+		Span producer = find(spans, "onTrigger", Tracer.PRODUCER);
+		Span trigger = find(spans, "triggerPingEvent", Tracer.SERVER);
+		Span task = find(spans, "onTrigger", Tracer.SERVER);
+		Span client = find(spans, "pingCallback", Tracer.CLIENT);
+		Span callback = find(spans, "pingCallback", Tracer.SERVER);
+		assertEquals(SPAN_ID, trigger.getParentId());
+		assertEquals(trigger.getSpanId(), producer.getParentId());
+		assertEquals(producer.getSpanId(), task.getParentId());
+		assertEquals(task.getSpanId(), client.getParentId());
+		assertEquals(client.getSpanId(), callback.getParentId());
+	}
+
+	@Test
+	public void testNotSampled() throws Exception {
+		MemorySpanExporter exporter = new MemorySpanExporter(2);
+		AgentFactory factory = createFactory(new Tracer(exporter, 1.0));
+		factory.createAgent(TestAgent.class, "trace3");
+
+		JSONRequest request = new JSONRequest("cascade2", 
+				JOM.createObjectNode());
+		request.setTraceContext(new TraceContext(TRACE_ID, SPAN_ID, false));
+		factory.invoke("trace3", request, new RequestParams());
+		assertEquals(0, exporter.getSpans().size());
+
+		// the exporter keeps the most recent spans only
+		factory.invoke("trace3", new JSONRequest("cascade2", 
+				JOM.createObjectNode()), new RequestParams());
+		List<Span> spans = exporter.getSpans();
+		assertEquals(2, spans.size());
+		assertEquals(Tracer.CLIENT, spans.get(0).getKind());
+		assertEquals("cascade2", spans.get(1).getName());
+	}
+
+	private static AgentFactory createFactory(Tracer tracer) throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.setSchedulerFactory(
+				new RunnableSchedulerFactory(factory, "_scheduler"));
+		factory.setTracer(tracer);
+		return factory;
+	}
+
+	private static Span find(List<Span> spans, String name, String kind) {
+		for (Span span : spans) {
+			if (span.getName().equals(name) && span.getKind().equals(kind)) {
+				return span;
+			}
+		}
+		fail("Span " + kind + " " + name + " not found in " + spans);
+		return null;
+	}
+}
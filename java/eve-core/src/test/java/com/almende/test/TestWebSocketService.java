@@ -0,0 +1,227 @@
+package com.almende.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.ws.WebSocketConnection;
+import com.almende.eve.transport.ws.WebSocketService;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestWebSocketService extends TestCase {
+
+	@Test
+	public void testRequestFromClient() throws Exception {
+		AgentFactory factory = createFactory();
+		WebSocketService service = getService(factory);
+		factory.createAgent(TestAgent.class, "wstest1");
+
+		FakeConnection connection = new FakeConnection();
+		String clientId = service.onOpen(null, null, connection);
+		ObjectNode connected = connection.next();
+		assertEquals("connected", connected.get("method").asText());
+		assertEquals("ws://localhost:8080/ws/" + clientId, 
+				connected.get("params").get("url").asText());
+
+		// multiple requests over the same connection
+		service.onMessage(clientId, "{\"id\":1,\"method\":\"add\"," +
+				"\"params\":{\"a\":2,\"b\":3},\"to\":\"wstest1\"}");
+		service.onMessage(clientId, "{\"id\":2,\"method\":\"add\"," +
+				"\"params\":{\"a\":4,\"b\":5},\"to\":\"wstest1\"}");
+		double sum = 0;
+		for (int i = 0; i < 2; i++) {
+			ObjectNode response = connection.next();
+			int id = response.get("id").asInt();
+			assertEquals((id == 1) ? 5.0 : 9.0, 
+					response.get("result").asDouble());
+			sum += response.get("result").asDouble();
+		}
+		assertEquals(14.0, sum);
+
+		// request without receiver
+		service.onMessage(clientId, "{\"id\":3,\"method\":\"add\"}");
+		assertTrue(connection.next().has("error"));
+	}
+
+	@Test
+	public void testRequestToClient() throws Exception {
+		AgentFactory factory = createFactory();
+		WebSocketService service = getService(factory);
+		FakeConnection connection = new FakeConnection();
+		String clientId = service.onOpen(null, null, connection);
+		connection.next(); // connected
+
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		ObjectNode params = JOM.createObjectNode();
+		params.put("message", "hello");
+		factory.sendAsync(null, service.getClientUrl(clientId), 
+				new JSONRequest("notify", params), callback);
+
+		ObjectNode request = connection.next();
+		assertEquals("notify", request.get("method").asText());
+		service.onMessage(clientId, "{\"id\":\"" + 
+				request.get("id").asText() + "\",\"result\":\"ok\"}");
+		assertEquals("ok", callback.get().getResult().asText());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		AgentFactory factory = createFactory();
+		WebSocketService service = getService(factory);
+		FakeConnection connection = new FakeConnection();
+		String clientId = service.onOpen(null, null, connection);
+
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		factory.sendAsync(null, service.getClientUrl(clientId), 
+				new JSONRequest("notify", JOM.createObjectNode()), callback);
+		service.onClose(clientId, connection);
+		assertFalse(service.isConnected(clientId));
+		try {
+			callback.get();
+			fail("Request to a disconnected client should fail");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReconnect() throws Exception {
+		AgentFactory factory = createFactory();
+		WebSocketService service = getService(factory);
+		FakeConnection connection = new FakeConnection();
+		String clientId = service.onOpen(null, null, connection);
+		String token = connection.next().get("params").get("token").asText();
+
+		// without the token, an existing id is not taken over
+		FakeConnection other = new FakeConnection();
+		assertFalse(clientId.equals(service.onOpen(clientId, null, other)));
+		assertFalse(clientId.equals(service.onOpen(clientId, "invalid", other)));
+		assertFalse(connection.closed);
+
+		// with the token, the client reconnects with the same id
+		service.onClose(clientId, connection);
+		FakeConnection reconnected = new FakeConnection();
+		assertEquals(clientId, service.onOpen(clientId, token, reconnected));
+		assertEquals(token, 
+				reconnected.next().get("params").get("token").asText());
+	}
+
+	@Test
+	public void testSubscriptionsExpire() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		WebSocketService service = new WebSocketService(factory);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("servlet_url", "ws://localhost:8080/ws/");
+		params.put("reconnect_timeout", 500);
+		service.init(params);
+		factory.addTransportService(service);
+		factory.createAgent(TestAgent.class, "wstest2");
+
+		FakeConnection connection = new FakeConnection();
+		String clientId = service.onOpen(null, null, connection);
+		String token = connection.next().get("params").get("token").asText();
+		String subscriptionId = subscribe(service, clientId, connection);
+
+		// a client reconnecting in time keeps its subscriptions
+		service.onClose(clientId, connection);
+		connection = new FakeConnection();
+		service.onOpen(clientId, token, connection);
+		connection.next(); // connected
+		assertEquals(subscriptionId, subscribe(service, clientId, connection));
+
+		// a client reconnecting too late is unsubscribed
+		service.onClose(clientId, connection);
+		Thread.sleep(2000);
+		connection = new FakeConnection();
+		service.onOpen(clientId, token, connection);
+		connection.next(); // connected
+		assertFalse(subscriptionId.equals(
+				subscribe(service, clientId, connection)));
+	}
+
+	@Test
+	public void testResponseOfOtherClient() throws Exception {
+		AgentFactory factory = createFactory();
+		WebSocketService service = getService(factory);
+		FakeConnection connection = new FakeConnection();
+		String clientId = service.onOpen(null, null, connection);
+		connection.next(); // connected
+		FakeConnection other = new FakeConnection();
+		String otherId = service.onOpen(null, null, other);
+		other.next(); // connected
+
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		factory.sendAsync(null, service.getClientUrl(clientId), 
+				new JSONRequest("notify", JOM.createObjectNode()), callback);
+		String id = connection.next().get("id").asText();
+
+		// a response with the id from another client is ignored
+		service.onMessage(otherId, "{\"id\":\"" + id + 
+				"\",\"result\":\"forged\"}");
+		service.onMessage(clientId, "{\"id\":\"" + id + 
+				"\",\"result\":\"ok\"}");
+		assertEquals("ok", callback.get().getResult().asText());
+	}
+
+	private String subscribe(WebSocketService service, String clientId, 
+			FakeConnection connection) throws Exception {
+		service.onMessage(clientId, "{\"id\":1,\"method\":\"onSubscribe\"," +
+				"\"params\":{\"event\":\"ping\",\"callbackUrl\":\"" + 
+				service.getClientUrl(clientId) + "\",\"callbackMethod\":" +
+				"\"onPing\"},\"to\":\"wstest2\"}");
+		return connection.next().get("result").asText();
+	}
+
+	private AgentFactory createFactory() {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		WebSocketService service = new WebSocketService(factory);
+		service.init("ws://localhost:8080/ws/");
+		factory.addTransportService(service);
+		return factory;
+	}
+
+	private WebSocketService getService(AgentFactory factory) {
+		return (WebSocketService) factory.getTransportService("ws");
+	}
+
+	/**
+	 * Connection collecting the sent messages
+	 */
+	private static class FakeConnection implements WebSocketConnection {
+		@Override
+		public void sendMessage(String message) throws IOException {
+			messages.add(message);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		ObjectNode next() throws Exception {
+			String message = messages.poll(10, TimeUnit.SECONDS);
+			assertNotNull(message);
+			return JOM.getInstance().readValue(message, ObjectNode.class);
+		}
+
+		boolean closed = false;
+		private BlockingQueue<String> messages = 
+				new LinkedBlockingQueue<String>();
+	}
+}
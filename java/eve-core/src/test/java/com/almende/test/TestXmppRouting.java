@@ -0,0 +1,465 @@
+package com.almende.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.junit.Test;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.agent.annotation.Sender;
+import com.almende.eve.agent.example.TestAgent;
+import com.almende.eve.capture.TrafficRecorder;
+import com.almende.eve.context.MemoryContextFactory;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallbackQueue;
+import com.almende.eve.transport.KeyedDispatcher;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.eve.transport.xmpp.AgentConnection;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Test the routing of messages on XMPP connections via the properties
+ * eve_to and eve_from, by feeding messages to the packet listener of a
+ * connection without XMPP server
+ */
+public class TestXmppRouting extends TestCase {
+	@Test
+	public void testMultiplexedRequest() throws Exception {
+		FakeConnection conn = connect(null);
+
+		// the request is routed to the agent in eve_to, and the reply is
+		// addressed to the sending agent
+		Message message = createRequest("ping", "hello");
+		message.setProperty(AgentConnection.PROPERTY_TO, "agent2");
+		message.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+		conn.listener.processPacket(message);
+
+		Message reply = conn.nextMessage();
+		assertEquals(PEER, reply.getTo());
+		assertEquals("remote1", reply.getProperty(AgentConnection.PROPERTY_TO));
+		assertEquals("agent2", reply.getProperty(AgentConnection.PROPERTY_FROM));
+		JSONResponse response = new JSONResponse(reply.getBody());
+		assertEquals("hello", response.getResult().asText());
+	}
+
+	@Test
+	public void testMultiplexedRequestWithoutReceiver() throws Exception {
+		FakeConnection conn = connect(null);
+
+		// without eve_to the receiving agent is unknown
+		Message message = createRequest("ping", "hello");
+		message.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+		conn.listener.processPacket(message);
+
+		Message reply = conn.nextMessage();
+		assertEquals(PEER, reply.getTo());
+		assertEquals("remote1", reply.getProperty(AgentConnection.PROPERTY_TO));
+		assertNull(reply.getProperty(AgentConnection.PROPERTY_FROM));
+		JSONResponse response = new JSONResponse(reply.getBody());
+		assertNotNull(response.getError());
+	}
+
+	@Test
+	public void testMultiplexedRequestToOtherAgent() throws Exception {
+		FakeConnection conn = new FakeConnection();
+		conn.receivers = new HashSet<String>(Arrays.asList("agent1"));
+		conn.connect(createFactory(), null, conn.callbacks, 
+				new KeyedDispatcher("test", 2, 100), null);
+
+		// an agent which is not carried by the connection is not invoked
+		ObjectNode params = JOM.createObjectNode();
+		params.put("key", "key");
+		params.put("value", "hello");
+		Message message = createMessage(
+				new JSONRequest("put", params).toString());
+		message.setProperty(AgentConnection.PROPERTY_TO, "agent2");
+		message.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+		conn.listener.processPacket(message);
+
+		Message reply = conn.nextMessage();
+		assertEquals("remote1", reply.getProperty(AgentConnection.PROPERTY_TO));
+		JSONResponse response = new JSONResponse(reply.getBody());
+		assertNotNull(response.getError());
+		assertNull(((TestAgent) conn.factory.getAgent("agent2")).get("key"));
+
+		// the agent carried by the connection is invoked
+		message = createRequest("ping", "hello");
+		message.setProperty(AgentConnection.PROPERTY_TO, "agent1");
+		message.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+		conn.listener.processPacket(message);
+		response = new JSONResponse(conn.nextMessage().getBody());
+		assertEquals("hello", response.getResult().asText());
+	}
+
+	/**
+	 * Agents of two factories call each other via two multiplexed sessions
+	 */
+	@Test
+	public void testMultiplexedSessions() throws Exception {
+		AgentFactory factory1 = new AgentFactory();
+		factory1.setContextFactory(new MemoryContextFactory(factory1));
+		AgentFactory factory2 = new AgentFactory();
+		factory2.setContextFactory(new MemoryContextFactory(factory2));
+		int agents = 10;
+		FakeConnection session1 = new FakeConnection();
+		FakeConnection session2 = new FakeConnection();
+		session1.receivers = new HashSet<String>();
+		session2.receivers = new HashSet<String>();
+		for (int i = 0; i < agents; i++) {
+			factory1.createAgent(TestAgent.class, "a" + i);
+			factory2.createAgent(TestAgent.class, "b" + i);
+			session1.receivers.add("a" + i);
+			session2.receivers.add("b" + i);
+		}
+		session1.connect(factory1, null, session1.callbacks, 
+				new KeyedDispatcher("test1", 2, 100), session2);
+		session2.connect(factory2, null, session2.callbacks, 
+				new KeyedDispatcher("test2", 2, 100), session1);
+
+		for (int i = 0; i < agents; i++) {
+			SyncCallback<JSONResponse> callback = 
+					new SyncCallback<JSONResponse>();
+			JSONRequest request = new JSONRequest(
+					UUID.randomUUID().toString(), "ping", 
+					createParams("hello " + i));
+			session1.connection.send("a" + i, session2.address + "#b" + i, 
+					request, callback, TIMEOUT);
+			JSONResponse response = callback.get();
+			assertNull(response.getError());
+			assertEquals("hello " + i, response.getResult().asText());
+		}
+		assertEquals(0, session1.callbacks.size());
+		session1.network.shutdown();
+		session2.network.shutdown();
+	}
+
+	@Test
+	public void testCaptureFailedRequest() throws Exception {
+		FakeConnection conn = connect(null);
+		File dir = File.createTempFile("eve", ".capture");
+		dir.delete();
+		TrafficRecorder recorder = new TrafficRecorder(dir.getPath());
+		conn.factory.setTrafficRecorder(recorder);
+		try {
+			// a request for an unknown agent fails, and is captured
+			Message message = createRequest("ping", "hello");
+			message.setProperty(AgentConnection.PROPERTY_TO, "unknown");
+			message.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+			conn.listener.processPacket(message);
+
+			JSONResponse response = new JSONResponse(
+					conn.nextMessage().getBody());
+			assertNotNull(response.getError());
+			assertEquals(1, recorder.getRecorded());
+		} finally {
+			recorder.stop();
+			for (File file : TrafficRecorder.getFiles(dir)) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testAgentRequest() throws Exception {
+		FakeConnection conn = connect("agent1");
+
+		// a connection of a single agent ignores eve_to
+		Message message = createRequest("ping", "hello");
+		message.setProperty(AgentConnection.PROPERTY_TO, "agent2");
+		conn.listener.processPacket(message);
+
+		Message reply = conn.nextMessage();
+		assertEquals(PEER, reply.getTo());
+		assertNull(reply.getProperty(AgentConnection.PROPERTY_TO));
+		assertNull(reply.getProperty(AgentConnection.PROPERTY_FROM));
+		JSONResponse response = new JSONResponse(reply.getBody());
+		assertEquals("hello", response.getResult().asText());
+	}
+
+	@Test
+	public void testRequestOrder() throws Exception {
+		FakeConnection conn = new FakeConnection();
+		conn.connect(createFactory(), "agent1", conn.callbacks, 
+				new KeyedDispatcher("test", 4, 100), null);
+
+		// requests of the same sender are invoked in the order of arrival
+		int count = 20;
+		for (int i = 0; i < count; i++) {
+			conn.listener.processPacket(createMessage(new JSONRequest(
+					"r" + i, "increment", JOM.createObjectNode()).toString()));
+		}
+		for (int i = 0; i < count; i++) {
+			JSONResponse response = new JSONResponse(
+					conn.nextMessage().getBody());
+			assertEquals("r" + i, ((JsonNode) response.getId()).asText());
+			assertEquals(i + 1, response.getResult().asInt());
+		}
+	}
+
+	@Test
+	public void testMultiplexedResponse() throws Exception {
+		FakeConnection conn = connect(null);
+
+		// the request is addressed to the agent after the hash of the url
+		JSONRequest request = new JSONRequest("ping",
+				createParams("hello"));
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		conn.connection.send("agent1", PEER + "#remote1", request, callback,
+				10000);
+		Message sent = conn.nextMessage();
+		assertEquals(PEER, sent.getTo());
+		assertEquals("remote1", sent.getProperty(AgentConnection.PROPERTY_TO));
+		assertEquals("agent1", sent.getProperty(AgentConnection.PROPERTY_FROM));
+
+		// a response for another agent with the same id is not delivered
+		JSONResponse result = new JSONResponse(request.getId(),
+				JOM.getInstance().valueToTree("hello"));
+		Message other = createMessage(result.toString());
+		other.setProperty(AgentConnection.PROPERTY_TO, "agent2");
+		other.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+		conn.listener.processPacket(other);
+		assertEquals(1, conn.callbacks.size());
+
+		// the response is delivered to the agent in eve_to
+		Message response = createMessage(result.toString());
+		response.setProperty(AgentConnection.PROPERTY_TO, "agent1");
+		response.setProperty(AgentConnection.PROPERTY_FROM, "remote1");
+		conn.listener.processPacket(response);
+		assertEquals(0, conn.callbacks.size());
+		assertEquals("hello", callback.get().getResult().asText());
+	}
+
+	/**
+	 * Agents alice and bob call each other synchronously back and forth,
+	 * each handling the request of the other while waiting for its own
+	 * response. The requests are dispatched by a single, shared dispatcher
+	 * with one worker thread.
+	 */
+	@Test
+	public void testNestedSynchronousCalls() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.createAgent(BounceAgent.class, "alice");
+		factory.createAgent(BounceAgent.class, "bob");
+		AsyncCallbackQueue<JSONResponse> callbacks = 
+				new AsyncCallbackQueue<JSONResponse>();
+		KeyedDispatcher dispatcher = new KeyedDispatcher("test", 1, 100);
+
+		FakeConnection alice = new FakeConnection();
+		FakeConnection bob = new FakeConnection();
+		alice.connect(factory, "alice", callbacks, dispatcher, bob);
+		bob.connect(factory, "bob", callbacks, dispatcher, alice);
+		connections.put("alice", alice.connection);
+		connections.put("bob", bob.connection);
+
+		ObjectNode params = JOM.createObjectNode();
+		params.put("depth", 6);
+		SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		JSONRequest request = new JSONRequest(UUID.randomUUID().toString(), 
+				"bounce", params);
+		alice.connection.send("alice", bob.address, request, callback, 
+				TIMEOUT);
+		JSONResponse response = callback.get();
+		assertNull(response.getError());
+		assertEquals(6, response.getResult().asInt());
+		dispatcher.shutdown();
+		alice.network.shutdown();
+		bob.network.shutdown();
+	}
+
+	/**
+	 * Create an agent factory with agents agent1 and agent2, and connect
+	 * given agent via a fake connection
+	 * @param agentId   the agent, or null for a multiplexed connection
+	 * @return conn
+	 */
+	private FakeConnection connect(String agentId) throws Exception {
+		FakeConnection conn = new FakeConnection();
+		conn.connect(createFactory(), agentId, conn.callbacks, 
+				new KeyedDispatcher("test", 2, 100), null);
+		return conn;
+	}
+
+	/**
+	 * Create an agent factory with agents agent1 and agent2
+	 * @return factory
+	 */
+	private AgentFactory createFactory() throws Exception {
+		AgentFactory factory = new AgentFactory();
+		factory.setContextFactory(new MemoryContextFactory(factory));
+		factory.createAgent(TestAgent.class, "agent1");
+		factory.createAgent(TestAgent.class, "agent2");
+		return factory;
+	}
+
+	private Message createRequest(String method, String message) {
+		return createMessage(new JSONRequest(method,
+				createParams(message)).toString());
+	}
+
+	private ObjectNode createParams(String message) {
+		ObjectNode params = JOM.createObjectNode();
+		params.put("message", message);
+		return params;
+	}
+
+	private Message createMessage(String body) {
+		Message message = new Message();
+		message.setFrom(PEER);
+		message.setTo("eve@localhost/eve-0");
+		message.setBody(body);
+		return message;
+	}
+
+	/**
+	 * Agent which calls its sender synchronously via XMPP, until the depth
+	 * is zero
+	 */
+	public static class BounceAgent extends Agent {
+		public Integer bounce(@Name("depth") Integer depth, 
+				@Sender String sender) throws Exception {
+			if (depth <= 0) {
+				return 0;
+			}
+			ObjectNode params = JOM.createObjectNode();
+			params.put("depth", depth - 1);
+			SyncCallback<JSONResponse> callback = 
+					new SyncCallback<JSONResponse>();
+			JSONRequest request = new JSONRequest(
+					UUID.randomUUID().toString(), "bounce", params);
+			connections.get(getId()).send(getId(), sender, request, callback,
+					TIMEOUT);
+			return callback.get().getResult().asInt() + 1;
+		}
+
+		@Override
+		public String getDescription() {
+			return "Calls its sender back";
+		}
+
+		@Override
+		public String getVersion() {
+			return "1.0";
+		}
+	}
+
+	/**
+	 * XMPP connection without server, which keeps the sent packets and the
+	 * packet listener of the AgentConnection. When connected to a peer, 
+	 * messages are delivered to the listener of the peer instead, one by
+	 * one as by a real connection.
+	 */
+	private static class FakeConnection extends XMPPConnection {
+		FakeConnection() {
+			super(new ConnectionConfiguration("localhost", 5222, "localhost"));
+		}
+
+		/**
+		 * Connect an agent via this connection
+		 * @param agentId   the agent, or null for a multiplexed connection
+		 * @param peer      optional connection receiving the messages
+		 */
+		void connect(AgentFactory factory, String agentId, 
+				AsyncCallbackQueue<JSONResponse> callbacks, 
+				KeyedDispatcher dispatcher, FakeConnection peer) {
+			String username = (agentId != null) ? agentId : "eve";
+			address = username + "@localhost/eve-0";
+			this.factory = factory;
+			connection = new AgentConnection(factory, callbacks, dispatcher) {
+				@Override
+				protected boolean isReceiver(String agentId) {
+					// a multiplexed connection carries all agents, unless
+					// restricted to given receivers
+					if (receivers != null) {
+						return receivers.contains(agentId);
+					}
+					return (getAgentId() == null || super.isReceiver(agentId));
+				}
+			};
+			connection.connect(agentId, this, username, "eve-0");
+			assertNotNull(listener);
+			sent.clear(); // presence
+			this.peer = peer;
+		}
+
+		@Override
+		public void sendPacket(final Packet packet) {
+			if (peer != null) {
+				packet.setFrom(address);
+				peer.network.execute(new Runnable() {
+					@Override
+					public void run() {
+						peer.listener.processPacket(packet);
+					}
+				});
+			}
+			else {
+				sent.add(packet);
+			}
+		}
+
+		@Override
+		public void addPacketListener(PacketListener packetListener,
+				PacketFilter packetFilter) {
+			if (packetFilter == null) {
+				listener = packetListener;
+			}
+			else {
+				super.addPacketListener(packetListener, packetFilter);
+			}
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		Message nextMessage() throws InterruptedException {
+			Packet packet = sent.poll(5, TimeUnit.SECONDS);
+			assertNotNull("No message sent", packet);
+			return (Message) packet;
+		}
+
+		String address = null;
+		AgentFactory factory = null;
+		AgentConnection connection = null;
+		AsyncCallbackQueue<JSONResponse> callbacks = 
+				new AsyncCallbackQueue<JSONResponse>();
+		PacketListener listener = null;
+		BlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+		FakeConnection peer = null;
+		Set<String> receivers = null;
+		ExecutorService network = Executors.newSingleThreadExecutor();
+	}
+
+	private static String PEER = "peer@localhost/res";
+	private static long TIMEOUT = 5000; // milliseconds
+
+	// connections of the BounceAgents
+	private static Map<String, AgentConnection> connections = 
+			new ConcurrentHashMap<String, AgentConnection>();
+}
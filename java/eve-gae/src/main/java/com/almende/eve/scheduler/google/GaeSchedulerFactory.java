@@ -96,6 +96,9 @@ public class GaeSchedulerFactory implements SchedulerFactory {
 				
 				URL uri = new URL(url);
 				String path = uri.getPath();		
+				
+				// let the task continue the trace of the current request
+				agentFactory.getTracer().inject(agentId, request);
 				Queue queue = QueueFactory.getDefaultQueue();
 				TaskHandle task = queue.add(withUrl(path)
 						.payload(request.toString())
@@ -0,0 +1,26 @@
+package com.almende.eve.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.almende.eve.AgentLoad")
+@Label("Agent Load")
+@Category({"Eve", "Agents"})
+@Description("An agent is retrieved from the agent cache or instantiated")
+@StackTrace(false)
+class AgentLoadEvent extends jdk.jfr.Event {
+	@Label("Agent Id")
+	String agentId;
+
+	@Label("Cached")
+	@Description("True when the agent was found in the agent cache")
+	boolean cached;
+
+	@Label("Load Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long loadTime;
+}
@@ -0,0 +1,31 @@
+package com.almende.eve.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.almende.eve.ContextIO")
+@Label("Context I/O")
+@Category({"Eve", "Context"})
+@Description("The context of an agent reads or writes its state")
+@StackTrace(false)
+class ContextIOEvent extends jdk.jfr.Event {
+	@Label("Agent Id")
+	String agentId;
+
+	@Label("Write")
+	@Description("True for a write, false for a read")
+	boolean write;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("I/O Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long ioTime;
+}
@@ -0,0 +1,33 @@
+package com.almende.eve.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.almende.eve.Invocation")
+@Label("Agent Invocation")
+@Category({"Eve", "Agents"})
+@Description("A method of an agent is invoked via JSON-RPC")
+@StackTrace(false)
+class InvocationEvent extends jdk.jfr.Event {
+	@Label("Agent Class")
+	String agentClass;
+
+	@Label("Method")
+	String method;
+
+	@Label("Binding Time")
+	@Description("Time to find the method and convert the parameters")
+	@Timespan(Timespan.NANOSECONDS)
+	long bindTime;
+
+	@Label("Execution Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long executionTime;
+
+	@Label("Success")
+	boolean success;
+}
@@ -0,0 +1,141 @@
+package com.almende.eve.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import com.almende.eve.probe.Probe;
+
+/**
+ * Probe emitting Java Flight Recorder events. Installed automatically via
+ * the ServiceLoader when eve-jfr is on the classpath.
+ *
+ * The probe is only enabled while a recording is running, so without a
+ * recording Eve does not measure anything. While recording, each event
+ * type can be enabled separately in the recording settings, for example:
+ *     jcmd <pid> JFR.start name=eve settings=profile
+ *     java -XX:StartFlightRecording=filename=eve.jfr ...
+ */
+public class JfrProbe implements Probe {
+	public JfrProbe() {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recorderInitialized(FlightRecorder recorder) {
+				update();
+			}
+
+			@Override
+			public void recordingStateChanged(Recording recording) {
+				update();
+			}
+		});
+		if (FlightRecorder.isInitialized()) {
+			update();
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return recording;
+	}
+
+	@Override
+	public void agentLoaded(String agentId, boolean cached, long duration) {
+		AgentLoadEvent event = new AgentLoadEvent();
+		if (event.isEnabled()) {
+			event.agentId = agentId;
+			event.cached = cached;
+			event.loadTime = duration;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void invoked(String agentClass, String method, long bindDuration,
+			long executeDuration, boolean success) {
+		InvocationEvent event = new InvocationEvent();
+		if (event.isEnabled()) {
+			event.agentClass = agentClass;
+			event.method = method;
+			event.bindTime = bindDuration;
+			event.executionTime = executeDuration;
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void contextRead(String agentId, long bytes, long duration) {
+		contextIO(agentId, false, bytes, duration);
+	}
+
+	@Override
+	public void contextWritten(String agentId, long bytes, long duration) {
+		contextIO(agentId, true, bytes, duration);
+	}
+
+	@Override
+	public void taskFired(String agentId, String method, long lag) {
+		TaskFireEvent event = new TaskFireEvent();
+		if (event.isEnabled()) {
+			event.agentId = agentId;
+			event.method = method;
+			event.lag = lag;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void sent(String protocol, String method, long duration,
+			boolean success) {
+		transport(protocol, method, true, duration, success);
+	}
+
+	@Override
+	public void received(String protocol, String method, long duration,
+			boolean success) {
+		transport(protocol, method, false, duration, success);
+	}
+
+	private void contextIO(String agentId, boolean write, long bytes, 
+			long duration) {
+		ContextIOEvent event = new ContextIOEvent();
+		if (event.isEnabled()) {
+			event.agentId = agentId;
+			event.write = write;
+			event.bytes = bytes;
+			event.ioTime = duration;
+			event.commit();
+		}
+	}
+
+	private void transport(String protocol, String method, boolean outgoing,
+			long duration, boolean success) {
+		TransportEvent event = new TransportEvent();
+		if (event.isEnabled()) {
+			event.protocol = protocol;
+			event.method = method;
+			event.outgoing = outgoing;
+			event.requestTime = duration;
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Enable the probe while any recording is running
+	 */
+	private void update() {
+		boolean running = false;
+		for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+			if (r.getState() == RecordingState.RUNNING) {
+				running = true;
+				break;
+			}
+		}
+		recording = running;
+	}
+
+	private volatile boolean recording = false;
+}
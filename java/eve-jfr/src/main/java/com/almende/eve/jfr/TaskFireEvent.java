@@ -0,0 +1,26 @@
+package com.almende.eve.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.almende.eve.TaskFire")
+@Label("Task Fire")
+@Category({"Eve", "Scheduler"})
+@Description("A scheduled task is fired")
+@StackTrace(false)
+class TaskFireEvent extends jdk.jfr.Event {
+	@Label("Agent Id")
+	String agentId;
+
+	@Label("Method")
+	String method;
+
+	@Label("Lag")
+	@Description("Delay between the planned and the actual start of the task")
+	@Timespan(Timespan.MILLISECONDS)
+	long lag;
+}
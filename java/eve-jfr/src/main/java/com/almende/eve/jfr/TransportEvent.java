@@ -0,0 +1,34 @@
+package com.almende.eve.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.almende.eve.Transport")
+@Label("Transport Request")
+@Category({"Eve", "Transport"})
+@Description("A request is sent to a remote agent, or received from one")
+@StackTrace(false)
+class TransportEvent extends jdk.jfr.Event {
+	@Label("Protocol")
+	String protocol;
+
+	@Label("Method")
+	String method;
+
+	@Label("Outgoing")
+	@Description("True for a sent request, false for a received request")
+	boolean outgoing;
+
+	@Label("Request Time")
+	@Description("Time until the response is received, or the time to " +
+			"handle a received request")
+	@Timespan(Timespan.NANOSECONDS)
+	long requestTime;
+
+	@Label("Success")
+	boolean success;
+}
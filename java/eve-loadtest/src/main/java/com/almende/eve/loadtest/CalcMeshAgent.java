@@ -0,0 +1,20 @@
+package com.almende.eve.loadtest;
+
+import java.util.List;
+
+import com.almende.eve.agent.annotation.Name;
+
+public class CalcMeshAgent extends MeshAgent {
+	public Double sum(@Name("values") List<Double> values) {
+		double sum = 0;
+		for (Double value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Load test agent calculating the sum of a list of values";
+	}
+}
@@ -0,0 +1,40 @@
+package com.almende.eve.loadtest;
+
+import java.util.List;
+
+import com.almende.eve.agent.annotation.Name;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallback;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ChatMeshAgent extends MeshAgent {
+	/**
+	 * Post a message to a number of other agents, without waiting for
+	 * the messages to be delivered
+	 * @param message
+	 * @param peers     urls of the agents receiving the message
+	 * @return count    the number of posted messages
+	 */
+	public Integer post(@Name("message") String message, 
+			@Name("peers") List<String> peers) throws Exception {
+		ObjectNode params = JOM.createObjectNode();
+		params.put("message", message);
+		for (String peer : peers) {
+			sendAsync(peer, "receive", params, new AsyncCallback<Object>() {
+				@Override
+				public void onSuccess(Object result) {}
+
+				@Override
+				public void onFailure(Exception exception) {
+					failed.incrementAndGet();
+				}
+			}, Object.class);
+		}
+		return peers.size();
+	}
+
+	@Override
+	public String getDescription() {
+		return "Load test agent posting messages to other agents";
+	}
+}
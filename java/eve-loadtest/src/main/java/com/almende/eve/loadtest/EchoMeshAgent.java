@@ -0,0 +1,14 @@
+package com.almende.eve.loadtest;
+
+import com.almende.eve.agent.annotation.Name;
+
+public class EchoMeshAgent extends MeshAgent {
+	public String echo(@Name("message") String message) {
+		return message;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Load test agent returning the messages it receives";
+	}
+}
@@ -0,0 +1,101 @@
+package com.almende.eve.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the garbage collections, threads and heap usage of the JVM
+ */
+public class JvmStats {
+	private JvmStats() {
+		for (GarbageCollectorMXBean gc : 
+				ManagementFactory.getGarbageCollectorMXBeans()) {
+			collections.put(gc.getName(), Math.max(gc.getCollectionCount(), 0));
+			times.put(gc.getName(), Math.max(gc.getCollectionTime(), 0));
+		}
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threads = threadBean.getThreadCount();
+		peakThreads = threadBean.getPeakThreadCount();
+		heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+				.getUsed();
+	}
+
+	/**
+	 * Take a snapshot
+	 * @return stats
+	 */
+	public static JvmStats snapshot() {
+		return new JvmStats();
+	}
+
+	/**
+	 * Get the total number of garbage collections since a former snapshot
+	 * @param since
+	 * @return collections
+	 */
+	public long getCollections(JvmStats since) {
+		return sum(collections) - sum(since.collections);
+	}
+
+	/**
+	 * Get the total time spent in garbage collections since a former 
+	 * snapshot
+	 * @param since
+	 * @return time   in milliseconds
+	 */
+	public long getCollectionTime(JvmStats since) {
+		return sum(times) - sum(since.times);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Get the garbage collections per collector, and the threads and heap 
+	 * usage, since a former snapshot
+	 * @param since
+	 * @return stats
+	 */
+	public Map<String, Object> getStats(JvmStats since) {
+		Map<String, Object> gc = new HashMap<String, Object>();
+		for (String name : collections.keySet()) {
+			Map<String, Object> collector = new HashMap<String, Object>();
+			collector.put("collections", collections.get(name) - 
+					get(since.collections, name));
+			collector.put("time_ms", times.get(name) - get(since.times, name));
+			gc.put(name, collector);
+		}
+
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("gc", gc);
+		stats.put("gc_collections", getCollections(since));
+		stats.put("gc_time_ms", getCollectionTime(since));
+		stats.put("threads", threads);
+		stats.put("peak_threads", peakThreads);
+		stats.put("heap_used_mb", heapUsed / (1024 * 1024));
+		return stats;
+	}
+
+	private static long sum(Map<String, Long> values) {
+		long sum = 0;
+		for (Long value : values.values()) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static long get(Map<String, Long> values, String name) {
+		Long value = values.get(name);
+		return (value != null) ? value : 0;
+	}
+
+	private final Map<String, Long> collections = new HashMap<String, Long>();
+	private final Map<String, Long> times = new HashMap<String, Long>();
+	private final int threads;
+	private final int peakThreads;
+	private final long heapUsed;
+}
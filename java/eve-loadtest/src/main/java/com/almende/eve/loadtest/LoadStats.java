@@ -0,0 +1,86 @@
+package com.almende.eve.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.metrics.Histogram;
+
+/**
+ * Counts and latencies of the calls in a period of the load test.
+ * Latencies are recorded in microseconds, overall and per agent type.
+ */
+public class LoadStats {
+	public LoadStats() {}
+
+	public void sent() {
+		sent.incrementAndGet();
+	}
+
+	public void dropped() {
+		dropped.incrementAndGet();
+	}
+
+	/**
+	 * Record a completed call
+	 * @param type      the agent type
+	 * @param latency   latency in microseconds
+	 * @param success   false when the call failed or timed out
+	 */
+	public void record(String type, long latency, boolean success) {
+		if (!success) {
+			errors.incrementAndGet();
+		}
+		latencies.record(latency);
+
+		Histogram histogram = types.get(type);
+		if (histogram == null) {
+			types.putIfAbsent(type, new Histogram());
+			histogram = types.get(type);
+		}
+		histogram.record(latency);
+	}
+
+	public long getCompleted() {
+		return latencies.getCount();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public Histogram getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Get the counts, the throughput and the latency percentiles
+	 * @param seconds   length of the period
+	 * @return stats
+	 */
+	public Map<String, Object> getStats(double seconds) {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("sent", sent.get());
+		stats.put("completed", getCompleted());
+		stats.put("errors", errors.get());
+		stats.put("dropped", dropped.get());
+		stats.put("throughput", (seconds > 0) ? getCompleted() / seconds : 0.0);
+		stats.put("latency_us", latencies.getStats());
+
+		Map<String, Object> perType = new HashMap<String, Object>();
+		for (Map.Entry<String, Histogram> entry : types.entrySet()) {
+			perType.put(entry.getKey(), entry.getValue().getStats());
+		}
+		stats.put("latency_us_per_type", perType);
+		return stats;
+	}
+
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong errors = new AtomicLong(0);
+	private final Histogram latencies = new Histogram();
+	private final ConcurrentMap<String, Histogram> types = 
+			new ConcurrentHashMap<String, Histogram>();
+}
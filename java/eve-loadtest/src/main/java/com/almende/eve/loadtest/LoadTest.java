@@ -0,0 +1,499 @@
+package com.almende.eve.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.config.Config;
+import com.almende.eve.metrics.Histogram;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.http.AgentServlet;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Load test of an AgentFactory with a simulated mesh of agents.
+ *
+ * The test creates a number of echo, calc and chat agents, and calls them
+ * open loop: calls are started at a fixed rate, independent of how fast
+ * the responses arrive, and latencies are measured from the moment a call
+ * was due. Chat agents post each message to a number of other agents
+ * (fan-out).
+ *
+ * With transport http, the agents are hosted via the AgentServlet in an
+ * embedded Jetty server on localhost, and called via HTTP from a second
+ * AgentFactory. Messages posted by chat agents are delivered in-memory,
+ * as the agents share an AgentFactory. With transport local, all calls are
+ * in-memory.
+ *
+ * Usage:
+ *     java com.almende.eve.loadtest.LoadTest [config.yaml]
+ * See loadtest.yaml for the configuration parameters.
+ */
+public class LoadTest {
+	public LoadTest(Config config) {
+		this.config = config;
+
+		transport = getString("transport", "http");
+		if (!transport.equals("http") && !transport.equals("local")) {
+			throw new IllegalArgumentException(
+					"Unknown transport '" + transport + "', " +
+					"choose 'http' or 'local'");
+		}
+		port = getNumber("port", 0).intValue();
+		serverThreads = getNumber("server_threads", 200).intValue();
+		rate = getNumber("rate", 1000).doubleValue();
+		warmup = getNumber("warmup", 10).longValue();
+		duration = getNumber("duration", 60).longValue();
+		fanOut = getNumber("fan_out", 5).intValue();
+		maxPending = getNumber("max_pending", 10000).intValue();
+		timeout = getNumber("timeout", 10000).longValue();
+		reportInterval = getNumber("report_interval", 5).longValue();
+		report = getString("report", null);
+
+		Map<String, Number> agents = config.get("loadtest", "agents");
+		if (agents == null) {
+			agents = new HashMap<String, Number>();
+			agents.put("echo", 1000);
+		}
+		for (Map.Entry<String, Number> entry : agents.entrySet()) {
+			if (!TYPES.containsKey(entry.getKey())) {
+				throw new IllegalArgumentException(
+						"Unknown agent type '" + entry.getKey() + "', " +
+						"choose from " + TYPES.keySet());
+			}
+			counts.put(entry.getKey(), entry.getValue().intValue());
+		}
+
+		Map<String, Number> mix = config.get("loadtest", "mix");
+		types = new String[counts.size()];
+		shares = new double[counts.size()];
+		double total = 0;
+		int i = 0;
+		for (String type : counts.keySet()) {
+			Number share = (mix != null) ? mix.get(type) : null;
+			total += (share != null) ? share.doubleValue() : 1.0;
+			types[i] = type;
+			shares[i] = total;
+			i++;
+		}
+		for (i = 0; i < shares.length; i++) {
+			shares[i] /= total;
+		}
+
+		List<Number> sizes = config.get("loadtest", "payload_sizes");
+		if (sizes == null) {
+			sizes = Arrays.<Number>asList(256);
+		}
+		messages = new String[sizes.size()];
+		values = new ArrayNode[sizes.size()];
+		for (i = 0; i < sizes.size(); i++) {
+			int size = sizes.get(i).intValue();
+			StringBuilder message = new StringBuilder(size);
+			for (int j = 0; j < size; j++) {
+				message.append((char) ('a' + j % 26));
+			}
+			messages[i] = message.toString();
+			values[i] = JOM.createArrayNode();
+			for (int j = 0; j < Math.max(size / 8, 1); j++) {
+				values[i].add(j * 0.5);
+			}
+		}
+	}
+
+	/**
+	 * Run a load test
+	 * @param args   optionally the filename of the configuration, by
+	 *               default the built-in loadtest.yaml is used
+	 */
+	public static void main(String[] args) throws Exception {
+		Config config;
+		if (args.length > 0 && !args[0].isEmpty()) {
+			config = new Config(args[0]);
+		}
+		else {
+			InputStream stream = LoadTest.class.getResourceAsStream(
+					"/loadtest.yaml");
+			config = new Config(stream);
+		}
+
+		LoadTest test = new LoadTest(config);
+		try {
+			test.start();
+			Map<String, Object> result = test.run();
+
+			String json = JOM.getInstance().writerWithDefaultPrettyPrinter()
+					.writeValueAsString(result);
+			System.out.println(json);
+			if (test.report != null) {
+				File file = new File(test.report);
+				if (file.getParentFile() != null) {
+					file.getParentFile().mkdirs();
+				}
+				OutputStream out = new FileOutputStream(file);
+				try {
+					out.write(json.getBytes("UTF-8"));
+				} finally {
+					out.close();
+				}
+				logger.info("Report written to " + file.getAbsolutePath());
+			}
+		} finally {
+			test.stop();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Start the agent factory and the Jetty server, and create the agents
+	 * @throws Exception
+	 */
+	public void start() throws Exception {
+		factory = AgentFactory.createInstance(config);
+
+		if (transport.equals("http")) {
+			if (port == 0) {
+				port = getFreePort();
+			}
+			baseUrl = "http://" + HOST + ":" + port + "/agents/";
+
+			SelectChannelConnector connector = new SelectChannelConnector();
+			connector.setHost(HOST);
+			connector.setPort(port);
+
+			ServletHolder holder = new ServletHolder(new AgentServlet());
+			holder.setInitParameter("servlet_url", baseUrl);
+			holder.setInitOrder(1);
+			holder.setAsyncSupported(true);
+			ServletContextHandler handler = new ServletContextHandler(
+					ServletContextHandler.NO_SESSIONS);
+			handler.setContextPath("/");
+			handler.addServlet(holder, "/agents/*");
+
+			server = new Server();
+			server.setThreadPool(new QueuedThreadPool(serverThreads));
+			server.addConnector(connector);
+			server.setHandler(handler);
+			server.start();
+			logger.info("Jetty server listening at " + baseUrl);
+
+			// a separate factory, so the calls are not routed in-memory
+			client = new AgentFactory();
+		}
+		else {
+			baseUrl = "local://";
+			client = factory;
+		}
+
+		long start = System.currentTimeMillis();
+		for (String type : types) {
+			int count = counts.get(type);
+			List<String> typeUrls = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				String agentId = type + "-" + i;
+				factory.createAgent(TYPES.get(type), agentId);
+				typeUrls.add(getUrl(agentId));
+			}
+			urls.put(type, typeUrls.toArray(new String[count]));
+			allUrls.addAll(typeUrls);
+			logger.info("Created " + count + " " + type + " agents");
+		}
+		logger.info("Created " + allUrls.size() + " agents in " +
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Run the warmup and the measurement, and report the results
+	 * @return results
+	 * @throws Exception
+	 */
+	public Map<String, Object> run() throws Exception {
+		final LoadStats warmupStats = new LoadStats();
+		final LoadStats measured = new LoadStats();
+		LoadStats stats = (warmup > 0) ? warmupStats : measured;
+		JvmStats jvmStart = JvmStats.snapshot();
+
+		final long start = System.nanoTime();
+		final long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		final long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+		final long period = (long) (1e9 / rate);
+
+		ScheduledExecutorService reporter =
+				Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				report(start, measureStart);
+			}
+		}, reportInterval, reportInterval, TimeUnit.SECONDS);
+		logger.info("Running " + warmup + " s warmup and " + duration +
+				" s measurement at " + rate + " calls/s");
+
+		try {
+			for (long i = 0; ; i++) {
+				long due = start + i * period;
+				if (due >= end) {
+					break;
+				}
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				if (stats == warmupStats && due >= measureStart) {
+					stats = measured;
+					jvmStart = JvmStats.snapshot();
+					receivedStart = MeshAgent.getReceived();
+					failedStart = MeshAgent.getFailed();
+				}
+				call(due, stats);
+			}
+
+			// wait for the pending calls
+			long deadline = System.nanoTime() +
+					TimeUnit.MILLISECONDS.toNanos(timeout);
+			while (pending.get() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			reporter.shutdownNow();
+		}
+
+		double seconds = (System.nanoTime() - measureStart) / 1e9;
+		Map<String, Object> settings = new LinkedHashMap<String, Object>();
+		settings.put("transport", transport);
+		settings.put("agents", counts);
+		settings.put("rate", rate);
+		settings.put("warmup", warmup);
+		settings.put("duration", duration);
+		settings.put("fan_out", fanOut);
+
+		Map<String, Object> fanOutStats = new HashMap<String, Object>();
+		long received = MeshAgent.getReceived() - receivedStart;
+		fanOutStats.put("received", received);
+		fanOutStats.put("failed", MeshAgent.getFailed() - failedStart);
+		fanOutStats.put("throughput", received / seconds);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("settings", settings);
+		result.put("calls", measured.getStats(seconds));
+		result.put("fan_out", fanOutStats);
+		result.put("jvm", JvmStats.snapshot().getStats(jvmStart));
+		return result;
+	}
+
+	/**
+	 * Stop the Jetty server
+	 */
+	public void stop() {
+		if (server != null) {
+			try {
+				server.stop();
+			} catch (Exception e) {
+				logger.warning("Failed to stop the Jetty server: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Start a call to a random agent, according to the mix of calls
+	 * @param due     the time the call was due, in nanoseconds
+	 * @param stats   stats of the current period
+	 */
+	private void call(final long due, final LoadStats stats) {
+		if (pending.get() >= maxPending) {
+			stats.dropped();
+			window.get().dropped();
+			return;
+		}
+
+		double r = random.nextDouble();
+		int t = 0;
+		while (t < shares.length - 1 && r >= shares[t]) {
+			t++;
+		}
+		final String type = types[t];
+		String[] typeUrls = urls.get(type);
+		String url = typeUrls[random.nextInt(typeUrls.length)];
+		int payload = random.nextInt(messages.length);
+
+		ObjectNode params = JOM.createObjectNode();
+		String method;
+		if (type.equals("echo")) {
+			method = "echo";
+			params.put("message", messages[payload]);
+		}
+		else if (type.equals("calc")) {
+			method = "sum";
+			params.put("values", values[payload]);
+		}
+		else {
+			method = "post";
+			params.put("message", messages[payload]);
+			ArrayNode peers = params.putArray("peers");
+			for (int i = 0; i < fanOut; i++) {
+				peers.add(allUrls.get(random.nextInt(allUrls.size())));
+			}
+		}
+		JSONRequest request = new JSONRequest(sequence++, method, params);
+
+		stats.sent();
+		window.get().sent();
+		pending.incrementAndGet();
+		try {
+			client.sendAsync(null, url, request,
+					new AsyncCallback<JSONResponse>() {
+				@Override
+				public void onSuccess(JSONResponse response) {
+					complete(type, due, stats, 
+							!response.getObjectNode().has("error"));
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					complete(type, due, stats, false);
+				}
+			}, timeout);
+		} catch (Exception e) {
+			complete(type, due, stats, false);
+		}
+	}
+
+	private void complete(String type, long due, LoadStats stats,
+			boolean success) {
+		pending.decrementAndGet();
+		long latency = (System.nanoTime() - due) / 1000;
+		stats.record(type, latency, success);
+		window.get().record(type, latency, success);
+	}
+
+	/**
+	 * Log the calls of the past interval
+	 * @param start          start of the test in nanoseconds
+	 * @param measureStart   end of the warmup in nanoseconds
+	 */
+	private void report(long start, long measureStart) {
+		LoadStats interval = window.getAndSet(new LoadStats());
+		long now = System.nanoTime();
+		JvmStats jvm = JvmStats.snapshot();
+		long received = MeshAgent.getReceived();
+		Histogram latencies = interval.getLatencies();
+
+		logger.info(String.format(
+				"%s %4d s  %8.1f calls/s  p50 %7d us  p99 %7d us  " +
+				"max %7d us  errors %d  pending %d  fan-out %8.1f msg/s  " +
+				"threads %d  gc %d (%d ms)",
+				(now - TimeUnit.SECONDS.toNanos(reportInterval) < measureStart) ? 
+						"warmup " : "measure",
+				TimeUnit.NANOSECONDS.toSeconds(now - start),
+				interval.getCompleted() / (double) reportInterval,
+				latencies.getPercentile(0.50),
+				latencies.getPercentile(0.99),
+				latencies.getMax(),
+				interval.getErrors(),
+				pending.get(),
+				(received - lastReceived) / (double) reportInterval,
+				jvm.getThreads(),
+				jvm.getCollections(lastJvm),
+				jvm.getCollectionTime(lastJvm)));
+
+		lastReceived = received;
+		lastJvm = jvm;
+	}
+
+	private String getUrl(String agentId) {
+		return transport.equals("http") ?
+				baseUrl + agentId + "/" : baseUrl + agentId;
+	}
+
+	private String getString(String key, String defaultValue) {
+		String value = config.get("loadtest", key);
+		return (value != null) ? value : defaultValue;
+	}
+
+	private Number getNumber(String key, Number defaultValue) {
+		Number value = config.get("loadtest", key);
+		return (value != null) ? value : defaultValue;
+	}
+
+	private static int getFreePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static final String HOST = "127.0.0.1";
+	private static final Map<String, Class<? extends MeshAgent>> TYPES =
+			new HashMap<String, Class<? extends MeshAgent>>();
+	static {
+		TYPES.put("echo", EchoMeshAgent.class);
+		TYPES.put("calc", CalcMeshAgent.class);
+		TYPES.put("chat", ChatMeshAgent.class);
+	}
+	private static Logger logger =
+			Logger.getLogger(LoadTest.class.getSimpleName());
+
+	private final Config config;
+	private final String transport;
+	private int port;
+	private final int serverThreads;
+	private final double rate;
+	private final long warmup;            // seconds
+	private final long duration;          // seconds
+	private final int fanOut;
+	private final int maxPending;
+	private final long timeout;           // milliseconds
+	private final long reportInterval;    // seconds
+	private final String report;
+	private final Map<String, Integer> counts =
+			new LinkedHashMap<String, Integer>();
+	private final String[] types;
+	private final double[] shares;        // cumulative share per type
+	private final String[] messages;      // payload per size
+	private final ArrayNode[] values;     // calc payload per size
+
+	private AgentFactory factory = null;
+	private AgentFactory client = null;
+	private Server server = null;
+	private String baseUrl = null;
+	private final Map<String, String[]> urls = new HashMap<String, String[]>();
+	private final List<String> allUrls = new ArrayList<String>();
+
+	private final Random random = new Random();
+	private long sequence = 0;
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicReference<LoadStats> window =
+			new AtomicReference<LoadStats>(new LoadStats());
+	private long receivedStart = 0;
+	private long failedStart = 0;
+	private long lastReceived = 0;
+	private JvmStats lastJvm = JvmStats.snapshot();
+}
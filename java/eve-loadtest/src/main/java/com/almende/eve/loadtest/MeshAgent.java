@@ -0,0 +1,41 @@
+package com.almende.eve.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.annotation.Name;
+
+/**
+ * Base class of the agents of the load test. Every agent can receive the
+ * messages posted by chat agents. The received messages are counted over
+ * all agents.
+ */
+public abstract class MeshAgent extends Agent {
+	public void receive(@Name("message") String message) {
+		received.incrementAndGet();
+	}
+
+	/**
+	 * Get the number of messages received by all agents
+	 * @return received
+	 */
+	public static long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Get the number of messages which could not be delivered
+	 * @return failed
+	 */
+	public static long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+
+	protected static AtomicLong received = new AtomicLong(0);
+	protected static AtomicLong failed = new AtomicLong(0);
+}
@@ -66,16 +66,23 @@ package com.almende.eve.agent;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.joda.time.Duration;
 import org.joda.time.Interval;
 import org.joda.time.MutableDateTime;
@@ -84,6 +91,7 @@ import com.almende.eve.agent.annotation.Access;
 import com.almende.eve.agent.annotation.AccessType;
 import com.almende.eve.agent.annotation.Name;
 import com.almende.eve.agent.annotation.Required;
+import com.almende.eve.config.Config;
 import com.almende.eve.context.Context;
 import com.almende.eve.entity.Issue;
 import com.almende.eve.entity.Issue.TYPE;
@@ -97,7 +105,10 @@ import com.almende.eve.entity.calendar.AgentData;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.transport.SyncCallback;
+import com.almende.util.IntervalSet;
 import com.almende.util.IntervalsUtil;
+import com.almende.util.WeightProfile;
 import com.almende.util.WeightsUtil;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -113,6 +124,8 @@ public class MeetingAgent extends Agent {
 	private final Double WEIGHT_PREFERRED_INTERVAL = 0.1;
 	// private final Double WEIGHT_UNDESIRED_INTERVAL = -0.1;
 	private final Double WEIGHT_DELAY_PER_DAY = -0.1;
+	private static final int PARALLEL_MIN_CANDIDATES = 10000;
+	private static final double PREFERENCE_PRECISION = 1e9;
 
 	/**
 	 * Convenience method to quickly set a new activity. 
@@ -455,7 +468,7 @@ public class MeetingAgent extends Agent {
 		}
 
 		// calculate solutions
-		List<Weight> solutions = calculateSolutions();
+		List<Weight> solutions = calculateSolutions(1);
 		if (solutions.size() > 0) {
 			// there are solutions. yippie!
 			Weight solution = solutions.get(0);
@@ -509,8 +522,27 @@ public class MeetingAgent extends Agent {
 	 * If there are no solutions, an empty array is returned.
 	 * @return solutions
 	 */
-	@SuppressWarnings("unchecked")
 	private List<Weight> calculateSolutions() {
+		return calculateSolutions(0);
+	}
+
+	/**
+	 * Calculate the feasible intervals with their preference weight, based on
+	 * the event status, stored infeasible intervals, and preferred intervals.
+	 * The solutions are ordered by weight, from highest to lowest. In case of
+	 * equal weights, the solutions are ordered by start date.
+	 * 
+	 * Candidate timeslots are taken at the next half hour and around the 
+	 * boundaries of the infeasible and preferred intervals. The infeasible 
+	 * intervals are indexed in an IntervalSet and the preferred intervals in
+	 * a WeightProfile, so each candidate is evaluated in O(log n). 
+	 * When configured with "planning.parallel", large numbers of candidates 
+	 * are evaluated in parallel.
+	 * @param limit       maximum number of solutions, 0 to return all
+	 * @return solutions
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Weight> calculateSolutions(int limit) {
 		logger.info("calculateSolutions started"); // TODO: cleanup
 		
 		Context context = getContext();
@@ -543,93 +575,225 @@ public class MeetingAgent extends Agent {
 			// TODO: give error when duration is not defined?
 			duration = Duration.standardHours(1);
 		}
+		long millis = duration.getMillis();
+		
+		// collect the start of the candidate timeslots. All timeslots have 
+		// the same duration, so a timeslot is identified by its start
+		long[] candidates = new long[1 + 2 * infeasible.size() + 
+				4 * preferred.size()];
+		int count = 0;
 		
 		// check interval at next half hour
-		DateTime firstTimeslot = getNextHalfHour();
-		Interval test = new Interval(firstTimeslot, firstTimeslot.plus(duration));
-		testInterval(infeasible, preferred, test, solutions);
+		candidates[count++] = getNextHalfHour().getMillis();
 		
-		// loop over all infeasible intervals
+		// timeslots left and right from the infeasible intervals
 		for (Interval i : infeasible) {
-			// test timeslot left from the infeasible interval
-			test = new Interval(i.getStart().minus(duration), i.getStart());
-			testInterval(infeasible, preferred, test, solutions);
-			
-			// test timeslot right from the infeasible interval
-			test = new Interval(i.getEnd(), i.getEnd().plus(duration));
-			testInterval(infeasible, preferred, test, solutions);
+			candidates[count++] = i.getStartMillis() - millis;
+			candidates[count++] = i.getEndMillis();
 		}
 
-		// loop over all preferred intervals
+		// timeslots left and right from the start and the end of the
+		// preferred intervals
 		for (Weight w : preferred) {
-			// test timeslot left from the start of the preferred interval
-			test = new Interval(w.getStart().minus(duration), w.getStart());
-			testInterval(infeasible, preferred, test, solutions);
+			long start = w.getInterval().getStartMillis();
+			long end = w.getInterval().getEndMillis();
+			candidates[count++] = start - millis;
+			candidates[count++] = start;
+			candidates[count++] = end - millis;
+			candidates[count++] = end;
+		}
+		
+		// remove duplicates
+		Arrays.sort(candidates, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || candidates[i] != candidates[unique - 1]) {
+				candidates[unique++] = candidates[i];
+			}
+		}
+		
+		// evaluate the candidates against the indexed intervals
+		IntervalSet infeasibleSet = IntervalSet.fromIntervals(infeasible);
+		WeightProfile preferredProfile = WeightProfile.fromWeights(preferred);
+		double[] weights = new double[unique];
+		if (unique >= PARALLEL_MIN_CANDIDATES && isParallel()) {
+			evaluateParallel(infeasibleSet, preferredProfile, candidates, 
+					millis, weights, unique);
+		}
+		else {
+			evaluate(infeasibleSet, preferredProfile, candidates, millis, 
+					weights, 0, unique);
+		}
+		
+		// order the feasible timeslots by weight, and keep the best ones
+		List<Integer> best = selectSolutions(candidates, weights, unique, 
+				limit);
+		for (int index : best) {
+			long start = candidates[index];
+			solutions.add(new Weight(new Interval(start, start + millis), 
+					weights[index]));
+		}
+		
+		return solutions;
+	}
+	
+	/**
+	 * Test if the candidate timeslots are feasible. If so, calculate their
+	 * preference weight, else set their weight to NaN.
+	 * @param infeasible
+	 * @param preferred
+	 * @param starts      start of the candidate timeslots
+	 * @param duration    duration of the timeslots in milliseconds
+	 * @param weights     array receiving the weights
+	 * @param from        index of the first candidate
+	 * @param to          index after the last candidate
+	 */
+	private static void evaluate(IntervalSet infeasible, 
+			WeightProfile preferred, long[] starts, long duration, 
+			double[] weights, int from, int to) {
+		for (int i = from; i < to; i++) {
+			long start = starts[i];
+			long end = start + duration;
+			if (calculateFeasible(infeasible, start, end)) {
+				weights[i] = calculatePreference(preferred, start, end);
+			}
+			else {
+				weights[i] = Double.NaN;
+			}
+		}
+	}
 
-			// test timeslot right from the start of the preferred interval
-			test = new Interval(w.getStart(), w.getStart().plus(duration));
-			testInterval(infeasible, preferred, test, solutions);
-			
-			// test timeslot left from the end of the preferred interval
-			test = new Interval(w.getEnd().minus(duration), w.getEnd());
-			testInterval(infeasible, preferred, test, solutions);
-			
-			// test timeslot right from the end of the preferred interval
-			test = new Interval(w.getEnd(), w.getEnd().plus(duration));
-			testInterval(infeasible, preferred, test, solutions);
+	/**
+	 * Evaluate the candidate timeslots in parallel, on the executor of the
+	 * agent factory
+	 * @param infeasible
+	 * @param preferred
+	 * @param starts      start of the candidate timeslots
+	 * @param duration    duration of the timeslots in milliseconds
+	 * @param weights     array receiving the weights
+	 * @param count       number of candidates
+	 */
+	private void evaluateParallel(final IntervalSet infeasible, 
+			final WeightProfile preferred, final long[] starts, 
+			final long duration, final double[] weights, int count) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int chunk = (count + threads - 1) / threads;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		ExecutorService executor = getAgentFactory().getExecutor();
+		for (int from = chunk; from < count; from += chunk) {
+			final int first = from;
+			final int last = Math.min(from + chunk, count);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					evaluate(infeasible, preferred, starts, duration, weights,
+							first, last);
+				}
+			}));
 		}
 		
-		// order the calculated feasible timeslots by weight, from highest to
-		// lowest. In case of equals weights, the timeslots are ordered by 
-		// start date
-		class WeightComparator implements Comparator<Weight> {
+		// evaluate the first chunk in the current thread
+		evaluate(infeasible, preferred, starts, duration, weights, 0, 
+				Math.min(chunk, count));
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Order the feasible timeslots by weight, from highest to lowest. 
+	 * In case of equals weights, the timeslots are ordered by start date. 
+	 * @param starts      start of the candidate timeslots, ordered
+	 * @param weights     weight of the candidates, NaN if infeasible
+	 * @param count       number of candidates
+	 * @param limit       maximum number of solutions, 0 to return all
+	 * @return indexes    the indexes of the best candidates, best first
+	 */
+	private static List<Integer> selectSolutions(final long[] starts, 
+			final double[] weights, int count, int limit) {
+		class SolutionComparator implements Comparator<Integer> {
 			@Override
-			public int compare(Weight a, Weight b) {
-				if (a.getWeight() != null && b.getWeight() != null) {
-					int cmp = Double.compare(a.getWeight(), b.getWeight());
-					if (cmp == 0) {
-						return a.getStart().compareTo(b.getStart());
-					}
-					else {
-						return -cmp;
-					}
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(weights[b], weights[a]);
+				if (cmp == 0) {
+					// the starts are ordered
+					return a.compareTo(b);
 				}
-				return 0;
+				return cmp;
 			}
 		}
-		WeightComparator comparator = new WeightComparator();
-		Collections.sort(solutions, comparator);
+		SolutionComparator comparator = new SolutionComparator();
 
-		// remove duplicates
-		int i = 1;
-		while (i < solutions.size()) {
-			if (solutions.get(i).equals(solutions.get(i - 1))) {
-				solutions.remove(i);
-			}
-			else {
-				i++;
+		if (limit <= 0) {
+			List<Integer> solutions = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++) {
+				if (!Double.isNaN(weights[i])) {
+					solutions.add(i);
+				}
 			}
+			Collections.sort(solutions, comparator);
+			return solutions;
 		}
 		
+		// keep the best solutions in a heap with the worst at the head
+		PriorityQueue<Integer> heap = new PriorityQueue<Integer>(limit + 1, 
+				Collections.reverseOrder(comparator));
+		for (int i = 0; i < count; i++) {
+			if (!Double.isNaN(weights[i])) {
+				heap.add(i);
+				if (heap.size() > limit) {
+					heap.poll();
+				}
+			}
+		}
+		List<Integer> solutions = new ArrayList<Integer>(heap);
+		Collections.sort(solutions, comparator);
 		return solutions;
 	}
 	
 	/**
-	 * Test if given interval is feasible. If so, calculate the preference 
-	 * weight and add it to the provided array with solutions
-	 * @param infeasible
-	 * @param preferred
-	 * @param test
-	 * @param solutions
+	 * Check whether large numbers of candidate timeslots are evaluated in
+	 * parallel. Configuration:
+	 *     planning:
+	 *       parallel: true
+	 * @return parallel
 	 */
-	private void testInterval(final List<Interval> infeasible, 
-			final List<Weight> preferred, final Interval test, 
-			List<Weight> solutions) {
-		boolean feasible = calculateFeasible(infeasible, test);
-		if (feasible) {
-			double weight = calculatePreference(preferred, test);
-			solutions.add(new Weight(test, weight));
+	private boolean isParallel() {
+		Config config = getAgentFactory().getConfig();
+		if (config == null) {
+			return false;
 		}
+		Boolean parallel = config.get("planning", "parallel");
+		return (parallel != null && parallel);
+	}
+
+	/**
+	 * Get the best solutions for the activity
+	 * @param limit   maximum number of solutions, all solutions when not
+	 *                provided
+	 * @return solutions   array with start, end and weight of the solutions,
+	 *                     best first
+	 */
+	public ArrayNode getSolutions(
+			@Required(false) @Name("limit") Integer limit) {
+		List<Weight> solutions = calculateSolutions(
+				(limit != null) ? limit : 0);
+		ArrayNode arr = JOM.createArrayNode();
+		for (Weight weight : solutions) {
+			ObjectNode o = JOM.createObjectNode();
+			o.put("start", weight.getStart().toString());
+			o.put("end", weight.getEnd().toString());
+			o.put("weight", weight.getWeight());
+			arr.add(o);
+		}
+		return arr;
 	}
 
 	/**
@@ -1114,18 +1278,28 @@ public class MeetingAgent extends Agent {
 	}
 
 	/**
-	 * Update the busy intervals of all attendees, and merge the results
+	 * Update the busy intervals of all attendees, and merge the results.
+	 * When the agent factory coalesces requests, the busy intervals are 
+	 * requested concurrently, so the requests to calendar agents on the same
+	 * host are sent in one batch.
 	 */
 	private void updateBusyIntervals() {
 		Activity activity = getActivity();
 		if (activity != null) {
+			boolean async = (getAgentFactory().getRequestCoalescer() != null);
+			Map<String, SyncCallback<ArrayNode>> callbacks = 
+					new LinkedHashMap<String, SyncCallback<ArrayNode>>();
 			List<Attendee> attendees = activity.withConstraints().withAttendees();
 			for (Attendee attendee : attendees) {
 				String agent = attendee.getAgent();
 				if (attendee.getResponseStatus() != RESPONSE_STATUS.declined) {
-					updateBusyInterval(agent);
+					callbacks.put(agent, requestBusyInterval(agent, async));
 				}
 			}
+			for (Map.Entry<String, SyncCallback<ArrayNode>> entry : 
+					callbacks.entrySet()) {
+				updateBusyInterval(entry.getKey(), entry.getValue());
+			}
 		}
 		
 		mergeTimeConstraints();
@@ -1222,63 +1396,36 @@ public class MeetingAgent extends Agent {
 	 * Calculate the average preference for given interval.
 	 * The method aggregates over all stored preferences
 	 * Default preference is 0.
-	 * @param preferredIntervals   list with intervals ordered by start
-	 * @param test                 test interval
+	 * The preference is rounded to 9 decimals, so rounding errors of the
+	 * profile do not change the order of equally preferred intervals.
+	 * @param preferred   profile of the preferred intervals
+	 * @param start       start of the interval in milliseconds
+	 * @param end         end of the interval in milliseconds
 	 * @return preference
 	 */
-	private double calculatePreference(
-			List<Weight> preferredIntervals, Interval test) {
-		double preference = 0;
-
-		for (Weight interval : preferredIntervals) {
-			Interval overlap = test.overlap(interval.getInterval());
-			if (overlap != null) {
-				Double weight = interval.getWeight();
-				if (weight != null) {
-					double durationCheck = test.toDurationMillis();
-					double durationOverlap = overlap.toDurationMillis();
-					double avgWeight = (durationOverlap / durationCheck) * weight;
-					preference += avgWeight;
-				}
-			}
-
-			if (interval.getStart().isAfter(test.getEnd())) {
-				// as the list is ordered, we can exit as soon as we have an
-				// interval which starts after the wanted interval.
-				break;
-			}
-		}
-		
-		return preference;
+	private static double calculatePreference(WeightProfile preferred, 
+			long start, long end) {
+		double preference = preferred.getAverage(start, end);
+		return Math.round(preference * PREFERENCE_PRECISION) / 
+				PREFERENCE_PRECISION;
 	}
 			
 	/**
 	 * Calculate whether given interval is feasible (i.e. does not overlap with
 	 * any of the infeasible intervals, and is not in the past)
-	 * @param infeasibleIntervals   list with intervals ordered by start
-	 * @param timeMin
-	 * @param timeMax
+	 * @param infeasible   set with the infeasible intervals
+	 * @param start        start of the interval in milliseconds
+	 * @param end          end of the interval in milliseconds
 	 * @return feasible
 	 */
-	private boolean calculateFeasible(List<Interval> infeasibleIntervals,
-			Interval test) {
-		if (test.getStart().isBeforeNow()) {
+	private static boolean calculateFeasible(IntervalSet infeasible,
+			long start, long end) {
+		if (start < DateTimeUtils.currentTimeMillis()) {
 			// interval starts in the past
 			return false;
 		}
 		
-		for (Interval interval : infeasibleIntervals) {
-			if (test.overlaps(interval)) {
-				return false;
-			}
-			if (interval.getStart().isAfter(test.getEnd())) {
-				// as the list is ordered, we can exit as soon as we have an
-				// interval which starts after the wanted interval.
-				break;
-			}
-		}
-		
-		return true; 
+		return !infeasible.overlaps(start, end); 
 	}
 	
 	/**
@@ -1366,11 +1513,15 @@ public class MeetingAgent extends Agent {
 	}
 
 	/**
-	 * Retrieve the busy intervals of a calendar agent
+	 * Request the busy intervals of a calendar agent
 	 * 
 	 * @param agent
+	 * @param async    send the request asynchronously
+	 * @return callback   receiving the busy intervals
 	 */
-	private void updateBusyInterval(@Name("agent") String agent) {
+	private SyncCallback<ArrayNode> requestBusyInterval(String agent, 
+			boolean async) {
+		SyncCallback<ArrayNode> callback = new SyncCallback<ArrayNode>();
 		try {
 			// create parameters with the boundaries of the interval to be
 			// retrieved
@@ -1389,7 +1540,29 @@ public class MeetingAgent extends Agent {
 			}
 
 			// get the busy intervals from the agent
-			ArrayNode array = send(agent, "getBusy", params, ArrayNode.class);
+			if (async) {
+				sendAsync(agent, "getBusy", params, callback, ArrayNode.class);
+			}
+			else {
+				callback.onSuccess(send(agent, "getBusy", params, 
+						ArrayNode.class));
+			}
+		} catch (Exception e) {
+			callback.onFailure(e);
+		}
+		return callback;
+	}
+
+	/**
+	 * Store the retrieved busy intervals of a calendar agent
+	 * 
+	 * @param agent
+	 * @param callback   callback of the request for the busy intervals
+	 */
+	private void updateBusyInterval(String agent, 
+			SyncCallback<ArrayNode> callback) {
+		try {
+			ArrayNode array = callback.get();
 
 			// convert from ArrayNode to List
 			List<Interval> busy = new ArrayList<Interval>();
@@ -0,0 +1,315 @@
+package com.almende.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.Chronology;
+import org.joda.time.Interval;
+import org.joda.time.ReadableInterval;
+
+/**
+ * @class IntervalSet
+ * An immutable set of disjoint time intervals, stored as two sorted arrays
+ * with the start and end of the intervals in milliseconds.
+ *
+ * Overlapping and adjacent intervals are merged when the set is created,
+ * which takes O(n log n). Union, intersection and inverse are computed by a
+ * single sweep over the sorted arrays in O(n + m), and overlap queries use a
+ * binary search in O(log n). Like a Joda Interval, an interval includes its
+ * start and excludes its end.
+ */
+public class IntervalSet {
+	/**
+	 * Create a set from the start and end of intervals, in milliseconds.
+	 * The intervals may be given in any order and may overlap.
+	 * @param starts
+	 * @param ends
+	 */
+	public IntervalSet(long[] starts, long[] ends) {
+		if (starts.length != ends.length) {
+			throw new IllegalArgumentException(
+					"Number of starts and ends differ");
+		}
+		long[] s = starts.clone();
+		long[] e = ends.clone();
+		for (int i = 0; i < s.length; i++) {
+			if (e[i] < s[i]) {
+				throw new IllegalArgumentException(
+						"The end instant must be greater or equal to the start");
+			}
+		}
+		Arrays.sort(s);
+		Arrays.sort(e);
+
+		// With the starts and the ends sorted separately, the k+1 first
+		// intervals to start have all ended at e[k] when the next start
+		// s[k+1] lies after e[k]: there is a gap between e[k] and s[k+1].
+		int n = 0;
+		for (int k = 0; k < s.length; k++) {
+			if (k == 0 || s[k] > e[k - 1]) {
+				s[n] = s[k];
+				n++;
+			}
+			e[n - 1] = e[k];
+		}
+		this.starts = s;
+		this.ends = e;
+		this.size = n;
+	}
+
+	/**
+	 * Create a set from a list with intervals
+	 * @param intervals   intervals in any order, may overlap
+	 * @return set
+	 */
+	public static IntervalSet fromIntervals(
+			List<? extends ReadableInterval> intervals) {
+		long[] starts = new long[intervals.size()];
+		long[] ends = new long[intervals.size()];
+		int i = 0;
+		for (ReadableInterval interval : intervals) {
+			starts[i] = interval.getStartMillis();
+			ends[i] = interval.getEndMillis();
+			i++;
+		}
+		return new IntervalSet(starts, ends);
+	}
+
+	/**
+	 * Create a set from intervals which are already sorted and disjoint
+	 */
+	private IntervalSet(long[] starts, long[] ends, int size) {
+		this.starts = starts;
+		this.ends = ends;
+		this.size = size;
+	}
+
+	/**
+	 * Get the number of disjoint intervals
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the start of an interval in milliseconds
+	 * @param index   index of the interval, ordered by start
+	 * @return start
+	 */
+	public long getStart(int index) {
+		checkIndex(index);
+		return starts[index];
+	}
+
+	/**
+	 * Get the end of an interval in milliseconds
+	 * @param index   index of the interval, ordered by start
+	 * @return end
+	 */
+	public long getEnd(int index) {
+		checkIndex(index);
+		return ends[index];
+	}
+
+	/**
+	 * Check if the interval from start to end overlaps with any of the
+	 * intervals in this set, with the same semantics as Interval.overlaps
+	 * @param start   start in milliseconds
+	 * @param end     end in milliseconds
+	 * @return overlaps
+	 */
+	public boolean overlaps(long start, long end) {
+		int index = indexOfEndAfter(start);
+		return (index < size && starts[index] < end);
+	}
+
+	/**
+	 * Check if an interval overlaps with any of the intervals in this set
+	 * @param interval
+	 * @return overlaps
+	 */
+	public boolean overlaps(ReadableInterval interval) {
+		return overlaps(interval.getStartMillis(), interval.getEndMillis());
+	}
+
+	/**
+	 * Check if an instant lies in one of the intervals of this set
+	 * @param instant   instant in milliseconds
+	 * @return contains
+	 */
+	public boolean contains(long instant) {
+		int index = indexOfEndAfter(instant);
+		return (index < size && starts[index] <= instant);
+	}
+
+	/**
+	 * Create the union of this set and another set
+	 * @param other
+	 * @return union
+	 */
+	public IntervalSet union(IntervalSet other) {
+		long[] s = new long[size + other.size];
+		long[] e = new long[size + other.size];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < size || j < other.size) {
+			long start;
+			long end;
+			if (j >= other.size || (i < size && starts[i] <= other.starts[j])) {
+				start = starts[i];
+				end = ends[i];
+				i++;
+			}
+			else {
+				start = other.starts[j];
+				end = other.ends[j];
+				j++;
+			}
+
+			if (n > 0 && start <= e[n - 1]) {
+				// overlaps or adjoins the previous interval
+				if (end > e[n - 1]) {
+					e[n - 1] = end;
+				}
+			}
+			else {
+				s[n] = start;
+				e[n] = end;
+				n++;
+			}
+		}
+		return new IntervalSet(s, e, n);
+	}
+
+	/**
+	 * Create the intersection of this set and another set. Intervals which
+	 * only adjoin do not intersect.
+	 * @param other
+	 * @return intersection
+	 */
+	public IntervalSet intersection(IntervalSet other) {
+		long[] s = new long[size + other.size];
+		long[] e = new long[size + other.size];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			long start = Math.max(starts[i], other.starts[j]);
+			long end = Math.min(ends[i], other.ends[j]);
+			if (start < end) {
+				s[n] = start;
+				e[n] = end;
+				n++;
+			}
+
+			// continue with the next interval of the set ending first
+			if (ends[i] < other.ends[j]) {
+				i++;
+			}
+			else {
+				j++;
+			}
+		}
+		return new IntervalSet(s, e, n);
+	}
+
+	/**
+	 * Create the inverse of this set within the interval from min to max:
+	 * the gaps between the intervals of this set
+	 * @param min   start of the range in milliseconds
+	 * @param max   end of the range in milliseconds
+	 * @return inverse
+	 */
+	public IntervalSet inverse(long min, long max) {
+		long[] s = new long[size + 1];
+		long[] e = new long[size + 1];
+		int n = 0;
+		long cursor = min;
+		for (int i = indexOfEndAfter(min); i < size && starts[i] < max; i++) {
+			if (starts[i] > cursor) {
+				s[n] = cursor;
+				e[n] = starts[i];
+				n++;
+			}
+			cursor = ends[i];
+		}
+		if (cursor < max) {
+			s[n] = cursor;
+			e[n] = max;
+			n++;
+		}
+		return new IntervalSet(s, e, n);
+	}
+
+	/**
+	 * Convert the set into a list with intervals
+	 * @param chronology   chronology of the intervals, null to use ISO in
+	 *                     the default time zone
+	 * @return intervals   ordered by start
+	 */
+	public List<Interval> toIntervals(Chronology chronology) {
+		List<Interval> intervals = new ArrayList<Interval>(size);
+		for (int i = 0; i < size; i++) {
+			intervals.add(new Interval(starts[i], ends[i], chronology));
+		}
+		return intervals;
+	}
+
+	public List<Interval> toIntervals() {
+		return toIntervals(null);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(starts[i]).append('/').append(ends[i]);
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * Find the first interval which ends after given instant. As the
+	 * intervals are disjoint, the ends are strictly increasing.
+	 * @param instant
+	 * @return index   size when no interval ends after the instant
+	 */
+	private int indexOfEndAfter(long instant) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (ends[mid] > instant) {
+				high = mid;
+			}
+			else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(
+					"Index: " + index + ", Size: " + size);
+		}
+	}
+
+	public static final IntervalSet EMPTY =
+			new IntervalSet(new long[0], new long[0], 0);
+
+	private final long[] starts;
+	private final long[] ends;
+	private final int size;
+}
@@ -40,52 +40,19 @@ public class IntervalsUtil {
 	/**
 	 * Merge overlapping intervals in given list
 	 * @param intervals
-	 * @return
+	 * @return merged   ordered by start
 	 */
-	public static List<Interval> merge(List<Interval> intervals) {		
-		// copy the intervals
-		List<Interval> merged = new ArrayList<Interval>();
-		for (Interval i : intervals) {
-			merged.add(new Interval(i));
+	public static List<Interval> merge(List<Interval> intervals) {
+		if (intervals.isEmpty()) {
+			return new ArrayList<Interval>();
 		}
-		
-		// order the intervals
-		order(merged);
-		
-		// merge the intervals
-		int i = 1;  // important to start at 1 (this is not accidentally)
-		while (i < merged.size()) {
-			Interval prev = merged.get(i - 1);
-			Interval cur = merged.get(i);
-			
-			if (cur.getStart().isBefore(prev.getEnd()) || 
-					cur.getStart().equals(prev.getEnd())) {
-				// merge these two intervals
-				DateTime start = prev.getStart();
-				DateTime end = null;
-				if (cur.getEnd().isAfter(prev.getEnd())) {
-					end = cur.getEnd();
-				} 
-				else {
-					end = prev.getEnd();
-				}
-				Interval combi = new Interval(start, end);
-				merged.set(i - 1, combi);
-				merged.remove(i);
-			}
-			else {
-				i++;
-			}
-		}
-		
-		// return merged intervals
-		return merged;
+		return IntervalSet.fromIntervals(intervals).toIntervals(
+				intervals.get(0).getChronology());
 	}
 	
 	/**
 	 * Create the inverse of a given set with intervals.
-	 * Provided intervals must be ordered, and may not have overlapping events
-	 * (to ensure all of this is ok, put the intervals through the method merge)
+	 * Overlapping intervals are merged first.
 	 * @param intervals
 	 * @param timeMin   Optional start time of the intervals. If the first 
 	 *                   interval starts after timeMin, a gap from timeMin to
@@ -97,49 +64,36 @@ public class IntervalsUtil {
 	 */
 	public static List<Interval> inverse(List<Interval> intervals,
 			DateTime timeMin, DateTime timeMax) {		
-		List<Interval> inverse = new ArrayList<Interval>();
-		
-		// gap from timeMin to the first interval
-		if (timeMin != null && intervals.size() > 0) {
-			DateTime start = new DateTime(timeMin);
-			DateTime end = intervals.get(0).getStart();
-			if (start.isBefore(end)) {
-				inverse.add(new Interval(start, end));
-			}
-		}
-		
-		// gaps between the intervals
-		for (int i = 1, iMax = intervals.size(); i < iMax; i++) {
-			DateTime start = intervals.get(i - 1).getEnd();
-			DateTime end = intervals.get(i).getStart();
-			
-			if (end.isAfter(start)) {
-				inverse.add(new Interval(start, end));
-			}
-		}
-		
-		// gap from last interval to timeMax
-		if (timeMax != null && intervals.size() > 0) {
-			DateTime start = new DateTime(intervals.get(intervals.size() - 1).getEnd());
-			DateTime end = new DateTime(timeMax);
-			if (start.isBefore(end)) {
-				inverse.add(new Interval(start, end));
-			}
-		}
-		
 		// no intervals at all
 		if (intervals.size() == 0) {
+			List<Interval> inverse = new ArrayList<Interval>();
 			DateTime start = new DateTime(timeMin);
 			DateTime end = new DateTime(timeMax);
 			inverse.add(new Interval(start, end));
+			return inverse;
 		}
 		
-		return inverse;
+		// the gaps between the intervals are always included, the gaps 
+		// before the first and after the last interval only when timeMin
+		// and timeMax are provided
+		IntervalSet set = IntervalSet.fromIntervals(intervals);
+		long min = set.getStart(0);
+		if (timeMin != null) {
+			min = Math.min(min, timeMin.getMillis());
+		}
+		long max = set.getEnd(set.size() - 1);
+		if (timeMax != null) {
+			max = Math.max(max, timeMax.getMillis());
+		}
+		return set.inverse(min, max).toIntervals(
+				intervals.get(0).getChronology());
 	}
 	
 	/**
 	 * check if interval to be checked overlaps with any any of the intervals 
-	 * in given list 
+	 * in given list. This takes a linear scan; to check many intervals 
+	 * against the same list, create an IntervalSet once and use its 
+	 * overlaps method.
 	 * @param intervals
 	 * @param checkInterval
 	 * @return isOverlapping
@@ -0,0 +1,315 @@
+package com.almende.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Chronology;
+import org.joda.time.Interval;
+
+import com.almende.eve.entity.Weight;
+
+/**
+ * @class WeightProfile
+ * An immutable, piecewise constant weight profile: the sum of the weights
+ * of a set of possibly overlapping weighted intervals. The profile is stored
+ * as sorted, disjoint pieces in three primitive arrays with the start and
+ * end in milliseconds and the summed weight.
+ *
+ * The profile is created by a sweep over the sorted starts and ends of the
+ * intervals, which takes O(n log n). Adjoining pieces with the same weight
+ * are combined, and instants not covered by any interval have no piece.
+ * The integral of the profile over an interval uses prefix sums of the
+ * pieces and a binary search, which takes O(log n).
+ */
+public class WeightProfile {
+	/**
+	 * Create a profile from weighted intervals
+	 * @param starts    start of the intervals in milliseconds
+	 * @param ends      end of the intervals in milliseconds
+	 * @param weights   weight of the intervals
+	 */
+	public WeightProfile(long[] starts, long[] ends, double[] weights) {
+		int count = starts.length;
+		if (ends.length != count || weights.length != count) {
+			throw new IllegalArgumentException(
+					"Number of starts, ends and weights differ");
+		}
+
+		// an event for the start and the end of each interval
+		long[] times = new long[2 * count];
+		double[] deltas = new double[2 * count];
+		int events = 0;
+		for (int i = 0; i < count; i++) {
+			if (ends[i] < starts[i]) {
+				throw new IllegalArgumentException(
+						"The end instant must be greater or equal to the start");
+			}
+			if (ends[i] > starts[i]) {
+				times[events] = starts[i];
+				deltas[events] = weights[i];
+				events++;
+				times[events] = ends[i];
+				deltas[events] = -weights[i];
+				events++;
+			}
+		}
+		int[] order = sort(times, events);
+
+		// sweep over the events, keeping the number of active intervals and
+		// the sum of their weights
+		long[] s = new long[events];
+		long[] e = new long[events];
+		double[] w = new double[events];
+		int n = 0;
+		int active = 0;
+		double sum = 0;
+		long previous = 0;
+		int i = 0;
+		while (i < events) {
+			long time = times[order[i]];
+			if (active > 0 && time > previous) {
+				if (n > 0 && e[n - 1] == previous && w[n - 1] == sum) {
+					e[n - 1] = time;
+				}
+				else {
+					s[n] = previous;
+					e[n] = time;
+					w[n] = sum;
+					n++;
+				}
+			}
+
+			// apply all events at this instant
+			while (i < events && times[order[i]] == time) {
+				int event = order[i];
+				sum += deltas[event];
+				active += isEnd(event) ? -1 : 1;
+				i++;
+			}
+			if (active == 0) {
+				// avoid carrying rounding errors into the next covered range
+				sum = 0;
+			}
+			previous = time;
+		}
+
+		// prefix sums of weight times duration of the pieces
+		double[] p = new double[n + 1];
+		for (int k = 0; k < n; k++) {
+			p[k + 1] = p[k] + w[k] * (e[k] - s[k]);
+		}
+
+		this.starts = s;
+		this.ends = e;
+		this.weights = w;
+		this.integrals = p;
+		this.size = n;
+	}
+
+	/**
+	 * Create a profile from a list with weights
+	 * @param intervals   weighted intervals in any order, may overlap.
+	 *                    A weight of null counts as 0.
+	 * @return profile
+	 */
+	public static WeightProfile fromWeights(List<Weight> intervals) {
+		long[] starts = new long[intervals.size()];
+		long[] ends = new long[intervals.size()];
+		double[] weights = new double[intervals.size()];
+		int i = 0;
+		for (Weight interval : intervals) {
+			starts[i] = interval.getInterval().getStartMillis();
+			ends[i] = interval.getInterval().getEndMillis();
+			weights[i] = (interval.getWeight() != null) ?
+					interval.getWeight() : 0.0;
+			i++;
+		}
+		return new WeightProfile(starts, ends, weights);
+	}
+
+	/**
+	 * Get the number of pieces
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the start of a piece in milliseconds
+	 * @param index   index of the piece, ordered by start
+	 * @return start
+	 */
+	public long getStart(int index) {
+		checkIndex(index);
+		return starts[index];
+	}
+
+	/**
+	 * Get the end of a piece in milliseconds
+	 * @param index   index of the piece, ordered by start
+	 * @return end
+	 */
+	public long getEnd(int index) {
+		checkIndex(index);
+		return ends[index];
+	}
+
+	/**
+	 * Get the summed weight of a piece
+	 * @param index   index of the piece, ordered by start
+	 * @return weight
+	 */
+	public double getWeight(int index) {
+		checkIndex(index);
+		return weights[index];
+	}
+
+	/**
+	 * Get the integral of the profile over an interval: the sum of the
+	 * weight times the duration of the overlap of each piece
+	 * @param start   start in milliseconds
+	 * @param end     end in milliseconds
+	 * @return integral
+	 */
+	public double getIntegral(long start, long end) {
+		return getCumulative(end) - getCumulative(start);
+	}
+
+	/**
+	 * Get the average weight over an interval. Instants not covered by the
+	 * profile count as weight 0.
+	 * @param start   start in milliseconds
+	 * @param end     end in milliseconds
+	 * @return average   0 when the interval is empty
+	 */
+	public double getAverage(long start, long end) {
+		if (end <= start) {
+			return 0.0;
+		}
+		return getIntegral(start, end) / (end - start);
+	}
+
+	/**
+	 * Convert the profile into a list with weights
+	 * @param chronology   chronology of the intervals, null to use ISO in
+	 *                     the default time zone
+	 * @return weights     ordered by start
+	 */
+	public List<Weight> toWeights(Chronology chronology) {
+		List<Weight> list = new ArrayList<Weight>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(new Weight(new Interval(starts[i], ends[i], chronology),
+					weights[i]));
+		}
+		return list;
+	}
+
+	public List<Weight> toWeights() {
+		return toWeights(null);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(starts[i]).append('/').append(ends[i])
+					.append('=').append(weights[i]);
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * Get the integral of the profile from the start of the first piece up
+	 * to given instant
+	 * @param instant
+	 * @return integral
+	 */
+	private double getCumulative(long instant) {
+		// find the last piece starting at or before the instant
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= instant) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		int index = low - 1;
+		if (index < 0) {
+			return 0.0;
+		}
+		long covered = Math.min(instant, ends[index]) - starts[index];
+		return integrals[index] + weights[index] * covered;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(
+					"Index: " + index + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * Check whether an event is the end of an interval: the events are
+	 * created in pairs, a start at an even and its end at an odd index
+	 */
+	private static boolean isEnd(int event) {
+		return (event & 1) == 1;
+	}
+
+	/**
+	 * Sort the events by time, without boxing: a bottom-up merge sort of the
+	 * indices of the events
+	 * @param times    time of the events
+	 * @param count    number of events
+	 * @return order   indices of the events ordered by time
+	 */
+	private static int[] sort(long[] times, int count) {
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		int[] buffer = new int[count];
+		for (int width = 1; width < count; width *= 2) {
+			for (int low = 0; low < count - width; low += 2 * width) {
+				int mid = low + width;
+				int high = Math.min(low + 2 * width, count);
+				int left = low;
+				int right = mid;
+				int k = low;
+				while (left < mid && right < high) {
+					if (times[order[right]] < times[order[left]]) {
+						buffer[k++] = order[right++];
+					}
+					else {
+						buffer[k++] = order[left++];
+					}
+				}
+				while (left < mid) {
+					buffer[k++] = order[left++];
+				}
+				while (right < high) {
+					buffer[k++] = order[right++];
+				}
+				System.arraycopy(buffer, low, order, low, high - low);
+			}
+		}
+		return order;
+	}
+
+	public static final WeightProfile EMPTY =
+			new WeightProfile(new long[0], new long[0], new double[0]);
+
+	private final long[] starts;
+	private final long[] ends;
+	private final double[] weights;
+	private final double[] integrals;
+	private final int size;
+}
@@ -0,0 +1,126 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.junit.Test;
+
+import com.almende.util.IntervalSet;
+import com.almende.util.IntervalsUtil;
+
+public class TestIntervalSet extends TestCase {
+	@Test
+	public void testMerge() {
+		IntervalSet set = new IntervalSet(
+				new long[] {10, 0, 5, 20, 30, 30},
+				new long[] {15, 5, 8, 25, 30, 35});
+		// [0,5] and [5,8] adjoin, [30,30] is empty but inside [30,35]
+		assertEquals("[0/8, 10/15, 20/25, 30/35]", set.toString());
+
+		assertTrue(set.overlaps(7, 9));
+		assertFalse(set.overlaps(8, 10));
+		assertFalse(set.overlaps(15, 20));
+		assertTrue(set.overlaps(14, 21));
+		assertFalse(set.overlaps(35, 40));
+		assertTrue(set.contains(0));
+		assertFalse(set.contains(8));
+
+		assertEquals("[8/10, 15/20, 25/30]", set.inverse(0, 35).toString());
+		assertEquals("[-5/0, 8/10, 15/20, 25/30, 35/40]",
+				set.inverse(-5, 40).toString());
+		assertEquals("[8/10]", set.inverse(6, 12).toString());
+
+		IntervalSet other = new IntervalSet(
+				new long[] {4, 15, 33}, new long[] {12, 20, 50});
+		assertEquals("[0/25, 30/50]", set.union(other).toString());
+		assertEquals("[4/8, 10/12, 33/35]",
+				set.intersection(other).toString());
+		assertEquals(0, IntervalSet.EMPTY.union(IntervalSet.EMPTY).size());
+	}
+
+	@Test
+	public void testIntervalsUtil() {
+		DateTime start = new DateTime(2013, 1, 1, 8, 0, 0, 0);
+		List<Interval> intervals = new ArrayList<Interval>();
+		intervals.add(new Interval(start.plusHours(4), start.plusHours(6)));
+		intervals.add(new Interval(start, start.plusHours(2)));
+		intervals.add(new Interval(start.plusHours(1), start.plusHours(3)));
+		intervals.add(new Interval(start.plusHours(6), start.plusHours(7)));
+
+		List<Interval> merged = IntervalsUtil.merge(intervals);
+		assertEquals(2, merged.size());
+		assertEquals(new Interval(start, start.plusHours(3)), merged.get(0));
+		assertEquals(new Interval(start.plusHours(4), start.plusHours(7)),
+				merged.get(1));
+
+		List<Interval> inverse = IntervalsUtil.inverse(merged,
+				start.minusHours(1), null);
+		assertEquals(2, inverse.size());
+		assertEquals(new Interval(start.minusHours(1), start), inverse.get(0));
+		assertEquals(new Interval(start.plusHours(3), start.plusHours(4)),
+				inverse.get(1));
+	}
+
+	@Test
+	public void testRandomized() {
+		Random random = new Random(7);
+		for (int run = 0; run < 200; run++) {
+			IntervalSet a = createRandom(random);
+			IntervalSet b = createRandom(random);
+			boolean[] coverA = cover(a);
+			boolean[] coverB = cover(b);
+
+			boolean[] union = cover(a.union(b));
+			boolean[] intersection = cover(a.intersection(b));
+			boolean[] inverse = cover(a.inverse(20, 180));
+			for (int t = 0; t < RANGE; t++) {
+				assertEquals(coverA[t] || coverB[t], union[t]);
+				assertEquals(coverA[t] && coverB[t], intersection[t]);
+				assertEquals(t >= 20 && t < 180 && !coverA[t], inverse[t]);
+			}
+
+			for (int i = 0; i < 20; i++) {
+				long start = random.nextInt(RANGE);
+				long end = start + 1 + random.nextInt(20);
+				boolean expected = false;
+				for (long t = start; t < end && t < RANGE; t++) {
+					expected |= coverA[(int) t];
+				}
+				assertEquals(expected, a.overlaps(start, end));
+			}
+
+			// the intervals are disjoint and do not adjoin
+			for (int i = 1; i < a.size(); i++) {
+				assertTrue(a.getStart(i) > a.getEnd(i - 1));
+			}
+		}
+	}
+
+	private IntervalSet createRandom(Random random) {
+		int count = random.nextInt(30);
+		long[] starts = new long[count];
+		long[] ends = new long[count];
+		for (int i = 0; i < count; i++) {
+			starts[i] = random.nextInt(RANGE - 20);
+			ends[i] = starts[i] + 1 + random.nextInt(20);
+		}
+		return new IntervalSet(starts, ends);
+	}
+
+	private boolean[] cover(IntervalSet set) {
+		boolean[] cover = new boolean[RANGE];
+		for (int i = 0; i < set.size(); i++) {
+			for (long t = set.getStart(i); t < set.getEnd(i); t++) {
+				cover[(int) t] = true;
+			}
+		}
+		return cover;
+	}
+
+	private static final int RANGE = 200;
+}
@@ -0,0 +1,188 @@
+package com.almende.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentFactory;
+import com.almende.eve.agent.MeetingAgent;
+import com.almende.eve.config.Config;
+import com.almende.eve.context.Context;
+import com.almende.eve.entity.Weight;
+import com.almende.eve.entity.activity.Activity;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+public class TestMeetingAgent extends TestCase {
+	@Test
+	public void testSolutions() throws Exception {
+		Random random = new Random(5);
+		DateTime start = DateTime.now().plusHours(1);
+		List<Interval> infeasible = createInfeasible(random, start, 50);
+		List<Weight> preferred = createPreferred(random, start, 50);
+		long duration = 45 * 60 * 1000;
+
+		MeetingAgent agent = createAgent(false, infeasible, preferred,
+				duration);
+		ArrayNode solutions = agent.getSolutions(null);
+		assertTrue(solutions.size() > 0);
+
+		// compare with a linear evaluation of every candidate
+		List<Weight> expected = calculateSolutions(infeasible, preferred,
+				duration);
+		assertEquals(expected.size(), solutions.size());
+		double previous = Double.MAX_VALUE;
+		for (JsonNode solution : solutions) {
+			long solutionStart = new DateTime(
+					solution.get("start").asText()).getMillis();
+			double weight = solution.get("weight").asDouble();
+			assertTrue(weight <= previous);
+			previous = weight;
+
+			Weight match = null;
+			for (Weight w : expected) {
+				if (w.getInterval().getStartMillis() == solutionStart) {
+					match = w;
+				}
+			}
+			assertNotNull(match);
+			assertEquals(match.getWeight(), weight, 1e-6);
+		}
+
+		// the top solutions equal the first of all solutions
+		ArrayNode top = agent.getSolutions(5);
+		assertEquals(5, top.size());
+		for (int i = 0; i < top.size(); i++) {
+			assertEquals(solutions.get(i), top.get(i));
+		}
+	}
+
+	@Test
+	public void testParallelSolutions() throws Exception {
+		Random random = new Random(6);
+		DateTime start = DateTime.now().plusHours(1);
+		List<Interval> infeasible = createInfeasible(random, start, 500);
+		// enough candidates to be evaluated in parallel
+		List<Weight> preferred = createPreferred(random, start, 3000);
+		long duration = 30 * 60 * 1000;
+
+		ArrayNode sequential = createAgent(false, infeasible, preferred,
+				duration).getSolutions(null);
+		ArrayNode parallel = createAgent(true, infeasible, preferred,
+				duration).getSolutions(null);
+		assertTrue(sequential.size() > 0);
+		assertEquals(sequential, parallel);
+	}
+
+	private MeetingAgent createAgent(boolean parallel,
+			List<Interval> infeasible, List<Weight> preferred, long duration)
+			throws Exception {
+		String yaml =
+				"context:\n" +
+				"  class: MemoryContextFactory\n" +
+				"scheduler:\n" +
+				"  class: com.almende.eve.scheduler.RunnableSchedulerFactory\n" +
+				"planning:\n" +
+				"  parallel: " + parallel + "\n";
+		Config config = new Config(new ByteArrayInputStream(
+				yaml.getBytes("UTF-8")));
+		AgentFactory factory = new AgentFactory(config);
+		MeetingAgent agent = (MeetingAgent) factory.createAgent(
+				MeetingAgent.class, "meeting");
+
+		Activity activity = new Activity();
+		activity.setSummary("meeting");
+		activity.withConstraints().withTime().setDuration(duration);
+		Context context = agent.getContext();
+		context.put("activity", activity);
+		context.put("infeasible", infeasible);
+		context.put("preferred", preferred);
+		return agent;
+	}
+
+	private List<Interval> createInfeasible(Random random, DateTime start,
+			int count) {
+		List<Interval> intervals = new ArrayList<Interval>();
+		for (int i = 0; i < count; i++) {
+			DateTime intervalStart = start.plusMinutes(
+					15 * random.nextInt(7 * 24 * 4));
+			intervals.add(new Interval(intervalStart,
+					intervalStart.plusMinutes(15 + 15 * random.nextInt(8))));
+		}
+		return intervals;
+	}
+
+	private List<Weight> createPreferred(Random random, DateTime start,
+			int count) {
+		List<Weight> weights = new ArrayList<Weight>();
+		for (int i = 0; i < count; i++) {
+			DateTime intervalStart = start.plusSeconds(
+					random.nextInt(7 * 24 * 60 * 60));
+			weights.add(new Weight(intervalStart,
+					intervalStart.plusMinutes(15 + 15 * random.nextInt(40)),
+					(double) (random.nextInt(21) - 10) / 10));
+		}
+		return weights;
+	}
+
+	/**
+	 * Evaluate every candidate timeslot by a linear scan over all intervals
+	 */
+	private List<Weight> calculateSolutions(List<Interval> infeasible,
+			List<Weight> preferred, long duration) {
+		List<Long> candidates = new ArrayList<Long>();
+		for (Interval i : infeasible) {
+			candidates.add(i.getStartMillis() - duration);
+			candidates.add(i.getEndMillis());
+		}
+		for (Weight w : preferred) {
+			candidates.add(w.getInterval().getStartMillis() - duration);
+			candidates.add(w.getInterval().getStartMillis());
+			candidates.add(w.getInterval().getEndMillis() - duration);
+			candidates.add(w.getInterval().getEndMillis());
+		}
+
+		// the next half hour, as candidate of the agent
+		DateTime next = DateTime.now().withSecondOfMinute(0)
+				.withMillisOfSecond(0);
+		next = next.withMinuteOfHour(0).plusMinutes(
+				(next.getMinuteOfHour() > 30) ? 60 : 30);
+		candidates.add(next.getMillis());
+
+		List<Weight> solutions = new ArrayList<Weight>();
+		List<Long> tested = new ArrayList<Long>();
+		for (long candidate : candidates) {
+			if (tested.contains(candidate)) {
+				continue;
+			}
+			tested.add(candidate);
+
+			Interval test = new Interval(candidate, candidate + duration);
+			boolean feasible = !test.getStart().isBeforeNow();
+			for (Interval i : infeasible) {
+				if (test.overlaps(i)) {
+					feasible = false;
+				}
+			}
+			if (feasible) {
+				double preference = 0;
+				for (Weight w : preferred) {
+					Interval overlap = test.overlap(w.getInterval());
+					if (overlap != null) {
+						preference += ((double) overlap.toDurationMillis() /
+								duration) * w.getWeight();
+					}
+				}
+				solutions.add(new Weight(test, preference));
+			}
+		}
+		return solutions;
+	}
+}
@@ -0,0 +1,254 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.almende.eve.entity.Weight;
+import com.almende.util.WeightProfile;
+import com.almende.util.WeightsUtil;
+
+public class TestWeightsUtil extends TestCase {
+	@Test
+	public void testMerge() {
+		List<Weight> intervals = new ArrayList<Weight>();
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 8, 0, 0),
+				new DateTime(2012, 8, 4, 10, 0, 0), 1.0));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 12, 0, 0),
+				new DateTime(2012, 8, 4, 14, 0, 0), 1.0));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 13, 0, 0),
+				new DateTime(2012, 8, 4, 16, 0, 0), 1.0));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 3, 0, 0),
+				new DateTime(2012, 8, 4, 4, 0, 0), 1.0));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 3, 0, 0),
+				new DateTime(2012, 8, 4, 4, 0, 0), 1.0));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 3, 0, 0),
+				new DateTime(2012, 8, 4, 5, 0, 0), 1.0));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 17, 30, 0),
+				new DateTime(2012, 8, 4, 18, 0, 0), 1.5));
+		intervals.add(new Weight(new DateTime(2012, 8, 4, 17, 0, 0),
+				new DateTime(2012, 8, 4, 17, 30, 0), 1.5));
+
+		List<Weight> merged = WeightsUtil.merge(intervals);
+		List<Weight> expected = new ArrayList<Weight>();
+		expected.add(new Weight(new DateTime(2012, 8, 4, 3, 0, 0),
+				new DateTime(2012, 8, 4, 4, 0, 0), 3.0));
+		expected.add(new Weight(new DateTime(2012, 8, 4, 4, 0, 0),
+				new DateTime(2012, 8, 4, 5, 0, 0), 1.0));
+		expected.add(new Weight(new DateTime(2012, 8, 4, 8, 0, 0),
+				new DateTime(2012, 8, 4, 10, 0, 0), 1.0));
+		expected.add(new Weight(new DateTime(2012, 8, 4, 12, 0, 0),
+				new DateTime(2012, 8, 4, 13, 0, 0), 1.0));
+		expected.add(new Weight(new DateTime(2012, 8, 4, 13, 0, 0),
+				new DateTime(2012, 8, 4, 14, 0, 0), 2.0));
+		expected.add(new Weight(new DateTime(2012, 8, 4, 14, 0, 0),
+				new DateTime(2012, 8, 4, 16, 0, 0), 1.0));
+		expected.add(new Weight(new DateTime(2012, 8, 4, 17, 0, 0),
+				new DateTime(2012, 8, 4, 18, 0, 0), 1.5));
+		assertEquals(expected.size(), merged.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertTrue(merged.get(i).toString(),
+					expected.get(i).equals(merged.get(i)));
+		}
+
+		assertTrue(WeightsUtil.merge(new ArrayList<Weight>()).isEmpty());
+	}
+
+	/**
+	 * With integer weights the sums are exact, so the profile must equal
+	 * the result of the original algorithm piece by piece
+	 */
+	@Test
+	public void testRandomizedIntegerWeights() {
+		Random random = new Random(11);
+		for (int run = 0; run < 300; run++) {
+			List<Weight> intervals = createRandom(random, true);
+			List<Weight> expected = referenceMerge(intervals);
+			List<Weight> merged = WeightsUtil.merge(intervals);
+			assertEquals(expected.toString(), expected.size(), merged.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertTrue(merged.get(i) + " != " + expected.get(i),
+						expected.get(i).equals(merged.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * With fractional weights the sums may differ in rounding, so the
+	 * profiles are compared by their value at every instant
+	 */
+	@Test
+	public void testRandomizedWeights() {
+		Random random = new Random(13);
+		for (int run = 0; run < 300; run++) {
+			List<Weight> intervals = createRandom(random, false);
+			WeightProfile profile = WeightProfile.fromWeights(intervals);
+			List<Weight> expected = referenceMerge(intervals);
+			for (long t = 0; t < RANGE; t++) {
+				Double a = valueAt(expected, t);
+				Double b = valueAt(profile.toWeights(), t);
+				if (a == null || b == null) {
+					assertEquals(a, b);
+				}
+				else {
+					assertEquals(a, b, 1e-9);
+				}
+			}
+			for (int i = 1; i < profile.size(); i++) {
+				assertTrue(profile.getStart(i) >= profile.getEnd(i - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testIntegral() {
+		Random random = new Random(17);
+		for (int run = 0; run < 300; run++) {
+			List<Weight> intervals = createRandom(random, false);
+			WeightProfile profile = WeightProfile.fromWeights(intervals);
+			for (int i = 0; i < 20; i++) {
+				long start = random.nextInt(RANGE) - 10;
+				long end = start + random.nextInt(50);
+				double expected = 0;
+				for (Weight weight : intervals) {
+					long from = Math.max(start,
+							weight.getInterval().getStartMillis());
+					long to = Math.min(end,
+							weight.getInterval().getEndMillis());
+					if (to > from) {
+						expected += (to - from) * weight.getWeight();
+					}
+				}
+				assertEquals(expected, profile.getIntegral(start, end), 1e-9);
+				if (end > start) {
+					assertEquals(expected / (end - start),
+							profile.getAverage(start, end), 1e-9);
+				}
+			}
+		}
+	}
+
+	private List<Weight> createRandom(Random random, boolean integer) {
+		List<Weight> intervals = new ArrayList<Weight>();
+		int count = random.nextInt(25);
+		for (int i = 0; i < count; i++) {
+			long start = random.nextInt(RANGE - 20);
+			long end = start + 1 + random.nextInt(20);
+			double weight = integer ? random.nextInt(4) - 1 :
+					random.nextDouble() * 2 - 0.5;
+			intervals.add(new Weight(new DateTime(start), new DateTime(end),
+					weight));
+		}
+		return intervals;
+	}
+
+	private Double valueAt(List<Weight> weights, long instant) {
+		for (Weight weight : weights) {
+			if (weight.getInterval().getStartMillis() <= instant &&
+					instant < weight.getInterval().getEndMillis()) {
+				return weight.getWeight();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The original merge, which splits each interval against the already
+	 * merged intervals
+	 */
+	private List<Weight> referenceMerge(List<Weight> intervals) {
+		ArrayList<Weight> merged = new ArrayList<Weight>();
+		for (Weight newInterval : intervals) {
+			Weight interval = new Weight(newInterval);
+			int i = 0;
+			while (i < merged.size() && interval != null) {
+				Weight other = merged.get(i);
+				if (interval.getInterval().overlaps(other.getInterval())) {
+					DateTime start = null;
+					Double leftWeight = null;
+					if (interval.getStart().isBefore(other.getStart())) {
+						start = interval.getStart();
+						leftWeight = interval.getWeight();
+					}
+					else {
+						start = other.getStart();
+						leftWeight = other.getWeight();
+					}
+					DateTime centerStart = null;
+					if (interval.getStart().isAfter(other.getStart())) {
+						centerStart = interval.getStart();
+					}
+					else {
+						centerStart = other.getStart();
+					}
+					Double centerWeight = interval.getWeight() +
+							other.getWeight();
+					DateTime centerEnd = null;
+					if (interval.getEnd().isBefore(other.getEnd())) {
+						centerEnd = interval.getEnd();
+					}
+					else {
+						centerEnd = other.getEnd();
+					}
+					DateTime end = null;
+					Double rightWeight = null;
+					if (interval.getEnd().isAfter(other.getEnd())) {
+						end = interval.getEnd();
+						rightWeight = interval.getWeight();
+					}
+					else {
+						end = other.getEnd();
+						rightWeight = other.getWeight();
+					}
+					if (centerEnd.isAfter(centerStart)) {
+						merged.set(i, new Weight(centerStart, centerEnd,
+								centerWeight));
+					}
+					if (centerStart.isAfter(start)) {
+						merged.add(i, new Weight(start, centerStart,
+								leftWeight));
+						i++;
+					}
+					if (end.isAfter(centerEnd)) {
+						interval = new Weight(centerEnd, end, rightWeight);
+					}
+					else {
+						interval = null;
+					}
+				}
+				else if (interval.getEnd().isBefore(other.getStart()) ||
+						interval.getEnd().equals(other.getStart())) {
+					merged.add(i, interval);
+					interval = null;
+					i++;
+				}
+				i++;
+			}
+			if (interval != null) {
+				merged.add(interval);
+			}
+		}
+
+		int i = 1;
+		while (i < merged.size()) {
+			Weight prev = merged.get(i - 1);
+			Weight cur = merged.get(i);
+			if (prev.getWeight().equals(cur.getWeight()) &&
+					prev.getEnd().equals(cur.getStart())) {
+				merged.set(i - 1, new Weight(prev.getStart(), cur.getEnd(),
+						prev.getWeight()));
+				merged.remove(i);
+				i--;
+			}
+			i++;
+		}
+		return merged;
+	}
+
+	private static final int RANGE = 200;
+}